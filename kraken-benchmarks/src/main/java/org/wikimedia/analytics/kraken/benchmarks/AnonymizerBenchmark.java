@@ -0,0 +1,58 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.analytics.kraken.privacy.Anonymizer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing the ip address and user agent of a request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AnonymizerBenchmark extends CorpusBenchmark {
+    @Param({"md5", "sha256", "murmur3_128"})
+    public String hashFunction;
+
+    private Anonymizer anonymizer;
+
+    @Setup
+    public void setUp() {
+        anonymizer = new Anonymizer(hashFunction);
+    }
+
+    @Benchmark
+    public String generateHash() {
+        int i = next();
+        return anonymizer.generateHash(corpus.getIpAddress(i), corpus.getUserAgent(i));
+    }
+}
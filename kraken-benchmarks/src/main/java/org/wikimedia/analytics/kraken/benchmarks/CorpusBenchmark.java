@@ -0,0 +1,50 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Base class of the benchmarks that run over the {@link WebrequestCorpus}.
+ * Every benchmark thread walks through the corpus with its own cursor, so
+ * consecutive invocations see different requests.
+ */
+@State(Scope.Thread)
+public abstract class CorpusBenchmark {
+    protected WebrequestCorpus corpus;
+
+    private int cursor;
+
+    @Setup
+    public void setUpCorpus() {
+        corpus = WebrequestCorpus.generate();
+        cursor = 0;
+    }
+
+    /**
+     * @return the index of the next request of the corpus
+     */
+    protected final int next() {
+        int i = cursor;
+        cursor = i + 1 == corpus.size() ? 0 : i + 1;
+        return i;
+    }
+}
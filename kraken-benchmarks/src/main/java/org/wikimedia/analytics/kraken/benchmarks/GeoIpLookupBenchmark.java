@@ -0,0 +1,63 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.benchmarks;
+
+import com.maxmind.geoip.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.analytics.kraken.geo.GeoIpLookup;
+import org.wikimedia.analytics.kraken.geo.GeoIpResult;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Geocoding the client addresses, both with a plain database lookup and through
+ * the per address cache of {@link GeoIpLookup#lookup(String)}. The GeoIPCity and
+ * GeoIPv6 databases are read from /usr/share/GeoIP.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GeoIpLookupBenchmark extends CorpusBenchmark {
+    private GeoIpLookup geoIpLookup;
+
+    @Setup
+    public void setUp() throws IOException {
+        geoIpLookup = new GeoIpLookup("countryCode,city", "GeoIPCity", "LOCAL");
+    }
+
+    @Benchmark
+    public Location doGeoLookup() {
+        return geoIpLookup.doGeoLookup(corpus.getIpAddress(next()));
+    }
+
+    @Benchmark
+    public GeoIpResult lookup() {
+        return geoIpLookup.lookup(corpus.getIpAddress(next()));
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.benchmarks;
+
+import java.util.Random;
+
+/**
+ * A synthetic corpus of webrequests, generated from a fixed seed so every run
+ * of a benchmark sees exactly the same requests.
+ *
+ * The mix roughly follows the production traffic: mostly desktop and mobile
+ * article views of the larger Wikipedias, some api, bits and upload requests,
+ * a few internal addresses, IPv6 clients and error responses, and a handful of
+ * popular user agents that account for most of the requests. The size of the
+ * corpus can be set with the kraken.benchmarks.corpus.size system property.
+ */
+public final class WebrequestCorpus {
+    public static final int DEFAULT_SIZE = 10000;
+
+    public static final long DEFAULT_SEED = 20130401L;
+
+    private static final String[] LANGUAGES = {"en", "en", "en", "en", "de", "de", "ja", "es", "ru", "fr",
+            "it", "pl", "pt", "zh", "nl", "sv", "zh-min-nan", "be-x-old"};
+
+    private static final String[] PROJECTS = {"wikipedia", "wikipedia", "wikipedia", "wikipedia", "wiktionary",
+            "wikibooks", "wikinews", "wikiquote", "wikisource", "wikivoyage"};
+
+    private static final String[] TITLES = {"Main_Page", "Special:Search", "Barack_Obama", "Facebook",
+            "Wikipedia", "Java_(programming_language)", "List_of_countries_by_population", "%C3%89cole",
+            "Special:Random", "Talk:Albert_Einstein", "Category:Living_people", "File:Example.jpg"};
+
+    private static final String[] USER_AGENTS = {
+        "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.22 (KHTML, like Gecko) Chrome/25.0.1364.172 Safari/537.22",
+        "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:19.0) Gecko/20100101 Firefox/19.0",
+        "Mozilla/5.0 (compatible; MSIE 9.0; Windows NT 6.1; Trident/5.0)",
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_8_3) AppleWebKit/536.28.10 (KHTML, like Gecko) Version/6.0.3 Safari/536.28.10",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 6_1_3 like Mac OS X) AppleWebKit/536.26 (KHTML, like Gecko) Version/6.0 Mobile/10B329 Safari/8536.25",
+        "Mozilla/5.0 (iPad; CPU OS 6_1_3 like Mac OS X) AppleWebKit/536.26 (KHTML, like Gecko) Version/6.0 Mobile/10B329 Safari/8536.25",
+        "Mozilla/5.0 (Linux; U; Android 4.0.4; en-us; GT-I9300 Build/IMM76D) AppleWebKit/534.30 (KHTML, like Gecko) Version/4.0 Mobile Safari/534.30",
+        "Mozilla/5.0%20(Linux;%20U;%20Android%202.3.6;%20en-us;%20Nexus%20S%20Build/GRK39F)%20AppleWebKit/533.1",
+        "Opera/9.80 (J2ME/MIDP; Opera Mini/4.2.14912/29.3417; U; en) Presto/2.8.119 Version/11.10",
+        "WikipediaMobile/3.2.1 Android/4.1.2",
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+        "-"
+    };
+
+    private static final String[] QUERY_KEYS = {"action", "format", "titles", "prop", "uselang", "search",
+            "oldid", "redirect", "utm_source", "event_%24schema"};
+
+    private final String[] hostnames;
+    private final String[] urls;
+    private final String[] referers;
+    private final String[] userAgents;
+    private final String[] statusCodes;
+    private final String[] ipAddresses;
+    private final String[] mimeTypes;
+    private final String[] requestMethods;
+    private final String[] queryStrings;
+
+    private WebrequestCorpus(final int size) {
+        hostnames = new String[size];
+        urls = new String[size];
+        referers = new String[size];
+        userAgents = new String[size];
+        statusCodes = new String[size];
+        ipAddresses = new String[size];
+        mimeTypes = new String[size];
+        requestMethods = new String[size];
+        queryStrings = new String[size];
+    }
+
+    /**
+     * @return a corpus of the configured size, generated from the default seed
+     */
+    public static WebrequestCorpus generate() {
+        return generate(Integer.getInteger("kraken.benchmarks.corpus.size", DEFAULT_SIZE), DEFAULT_SEED);
+    }
+
+    /**
+     * @param size number of requests in the corpus
+     * @param seed seed of the random generator
+     * @return the corpus
+     */
+    public static WebrequestCorpus generate(final int size, final long seed) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Corpus size should be at least 1, got " + size);
+        }
+        Random random = new Random(seed);
+        WebrequestCorpus corpus = new WebrequestCorpus(size);
+        for (int i = 0; i < size; i++) {
+            corpus.fill(i, random);
+        }
+        return corpus;
+    }
+
+    private void fill(final int i, final Random random) {
+        String language = zipf(random, LANGUAGES);
+        String project = zipf(random, PROJECTS);
+        String title = zipf(random, TITLES);
+        int kind = random.nextInt(100);
+
+        if (kind < 8) {
+            hostnames[i] = "bits.wikimedia.org";
+            urls[i] = "http://bits.wikimedia.org/" + language + "." + project + ".org/load.php?debug=false&lang="
+                    + language + "&modules=site&only=styles&skin=vector";
+            mimeTypes[i] = random.nextBoolean() ? "text/css" : "text/javascript";
+        } else if (kind < 16) {
+            hostnames[i] = "upload.wikimedia.org";
+            urls[i] = "http://upload.wikimedia.org/" + project + "/commons/thumb/a/a9/Example.jpg/220px-Example.jpg";
+            mimeTypes[i] = "image/jpeg";
+        } else if (kind < 24) {
+            hostnames[i] = language + "." + project + ".org";
+            urls[i] = "http://" + hostnames[i] + "/w/api.php?action=query&format=json&titles=" + title;
+            mimeTypes[i] = "application/json; charset=utf-8";
+        } else if (kind < 50) {
+            hostnames[i] = language + ".m." + project + ".org";
+            urls[i] = "http://" + hostnames[i] + "/wiki/" + title;
+            mimeTypes[i] = "text/html; charset=utf-8";
+        } else {
+            hostnames[i] = language + "." + project + ".org";
+            urls[i] = "http://" + hostnames[i] + "/wiki/" + title;
+            mimeTypes[i] = "text/html; charset=UTF-8";
+        }
+
+        referers[i] = random.nextInt(3) == 0 ? "-" : "http://www.google.com/search?q=" + title;
+        userAgents[i] = zipf(random, USER_AGENTS);
+        statusCodes[i] = statusCode(random);
+        ipAddresses[i] = ipAddress(random);
+        requestMethods[i] = random.nextInt(20) == 0 ? "POST" : "GET";
+        queryStrings[i] = queryString(random, title);
+    }
+
+    /**
+     * @return an element of values, the first elements are picked more often than the last ones
+     */
+    private static String zipf(final Random random, final String[] values) {
+        double u = random.nextDouble();
+        return values[(int) (values.length * u * u)];
+    }
+
+    private static String statusCode(final Random random) {
+        int p = random.nextInt(100);
+        if (p < 80) {
+            return "TCP_MISS/200";
+        } else if (p < 90) {
+            return "TCP_IMS_HIT/304";
+        } else if (p < 94) {
+            return "TCP_MISS/301";
+        } else if (p < 98) {
+            return "TCP_MISS/404";
+        }
+        return "TCP_MISS/503";
+    }
+
+    private static String ipAddress(final Random random) {
+        int p = random.nextInt(100);
+        if (p < 3) {
+            // Internal and WMF ranges, rejected by the CIDR filter
+            return random.nextBoolean() ? "10.64.0." + random.nextInt(256) : "208.80.154." + random.nextInt(256);
+        } else if (p < 13) {
+            return "2001:" + Integer.toHexString(random.nextInt(0x10000)) + ":"
+                    + Integer.toHexString(random.nextInt(0x10000)) + "::" + Integer.toHexString(random.nextInt(0x10000));
+        }
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                + (1 + random.nextInt(254));
+    }
+
+    private static String queryString(final Random random, final String title) {
+        StringBuilder query = new StringBuilder();
+        int pairs = 1 + random.nextInt(5);
+        for (int j = 0; j < pairs; j++) {
+            if (j > 0) {
+                query.append('&');
+            }
+            query.append(QUERY_KEYS[random.nextInt(QUERY_KEYS.length)]).append('=').append(title);
+        }
+        return query.toString();
+    }
+
+    public int size() {
+        return urls.length;
+    }
+
+    public String getHostname(final int i) {
+        return hostnames[i];
+    }
+
+    public String getUrl(final int i) {
+        return urls[i];
+    }
+
+    public String getReferer(final int i) {
+        return referers[i];
+    }
+
+    public String getUserAgent(final int i) {
+        return userAgents[i];
+    }
+
+    public String getStatusCode(final int i) {
+        return statusCodes[i];
+    }
+
+    public String getIpAddress(final int i) {
+        return ipAddresses[i];
+    }
+
+    public String getMimeType(final int i) {
+        return mimeTypes[i];
+    }
+
+    public String getRequestMethod(final int i) {
+        return requestMethods[i];
+    }
+
+    public String getQueryString(final int i) {
+        return queryStrings[i];
+    }
+}
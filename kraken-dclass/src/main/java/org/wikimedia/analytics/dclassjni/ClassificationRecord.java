@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2012-2013  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.dclassjni;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable, typed copy of the dclass_keyvalue map returned by dClass for a
+ * single user agent. Instances are shared between threads through the
+ * classification cache in {@link DeviceClassification}.
+ */
+public final class ClassificationRecord {
+    /** The result for an unknown user agent */
+    static final ClassificationRecord EMPTY = new ClassificationRecord(Collections.<String, String>emptyMap());
+
+    private final String parentId;
+    private final String vendor;
+    private final String model;
+    private final String deviceOs;
+    private final String deviceOsVersion;
+    private final int displayHeight;
+    private final int displayWidth;
+    private final String inputDevices;
+    private final String browser;
+    private final String browserVersion;
+    private final boolean isTablet;
+    private final boolean isWirelessDevice;
+    private final boolean isCrawler;
+    private final boolean isDesktop;
+    private final boolean ajaxSupportJavascript;
+
+    /**
+     * @param result the key/values returned by {@link DclassWrapper#classifyUA(String)}
+     */
+    public ClassificationRecord(final Map result) {
+        this.vendor = (String) result.get("vendor");
+        this.model = (String) result.get("model");
+        this.parentId = (String) result.get("parentId");
+        this.inputDevices = (String) result.get("inputDevices");
+        this.deviceOs = (String) result.get("device_os");
+        this.deviceOsVersion = (String) result.get("device_os_version");
+        this.displayHeight = parseInt(result.get("displayHeight"));
+        this.displayWidth = parseInt(result.get("displayWidth"));
+        this.ajaxSupportJavascript = Boolean.valueOf((String) result.get("ajax_support_javascript"));
+        this.isWirelessDevice = Boolean.valueOf((String) result.get("is_wireless_device"));
+        this.isTablet = Boolean.valueOf((String) result.get("is_tablet"));
+        this.isCrawler = Boolean.valueOf((String) result.get("is_crawler"));
+        this.isDesktop = Boolean.valueOf((String) result.get("is_desktop"));
+        this.browser = (String) result.get("browser");
+        this.browserVersion = (String) result.get("browser_version");
+    }
+
+    private static int parseInt(final Object value) {
+        return value == null ? 0 : Integer.valueOf((String) value);
+    }
+
+    /**
+     * Gets the vendor.
+     *
+     * @return the vendor
+     */
+    public String getVendor() {
+        return vendor;
+    }
+
+    /**
+     * Gets the model.
+     *
+     * @return the model
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the parent id.
+     *
+     * @return the parent id
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Gets the input devices.
+     *
+     * @return the input devices
+     */
+    public String getInputDevices() {
+        return inputDevices;
+    }
+
+    /**
+     * Gets the display height.
+     *
+     * @return the display height
+     */
+    public int getDisplayHeight() {
+        return displayHeight;
+    }
+
+    /**
+     * Gets the display width.
+     *
+     * @return the display width
+     */
+    public int getDisplayWidth() {
+        return displayWidth;
+    }
+
+    /**
+     * Gets the device_os.
+     *
+     * @return the device_os
+     */
+    public String getDeviceOs() {
+        return deviceOs;
+    }
+
+    /**
+     * Gets the device_os_version.
+     *
+     * @return the device_os_version
+     */
+    public String getDeviceOsVersion() {
+        return deviceOsVersion;
+    }
+
+    /**
+     * Gets the ajax_support_javascript.
+     *
+     * @return the ajaxSupportJavascript
+     */
+    public boolean getAjaxSupportJavascript() {
+        return ajaxSupportJavascript;
+    }
+
+    /**
+     * Gets the is_tablet.
+     *
+     * @return the is_tablet
+     */
+    public boolean getIsTablet() {
+        return isTablet;
+    }
+
+    /**
+     * Gets the checks if is wireless_device.
+     *
+     * @return the checks if is wireless_device
+     */
+    public boolean getIsWirelessDevice() {
+        return isWirelessDevice;
+    }
+
+    /**
+     * Gets the is_crawler.
+     *
+     * @return the getIsCrawler
+     */
+    public boolean getIsCrawler() {
+        return isCrawler;
+    }
+
+    /**
+     * Gets the is_desktop.
+     *
+     * @return the is_desktop
+     */
+    public boolean getIsDesktop() {
+        return isDesktop;
+    }
+
+    public String getBrowser() {
+        return browser;
+    }
+
+    public String getBrowserVersion() {
+        return browserVersion;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012-2013  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.dclassjni;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of independent {@link DclassWrapper} instances, each with its own
+ * dtree handle, so user agents can be classified on multiple threads at once.
+ *
+ * Handles are created lazily, up to the maximum size of the pool, and every
+ * handle loads its own copy of the dtree data (~2MB). When all handles are in
+ * use the borrowing thread blocks until one is returned, and fails if none is
+ * returned within the timeout of the pool.
+ */
+public class DclassWrapperPool {
+    /**
+     * Milliseconds to wait for a handle when all of them are in use, can be
+     * overridden with the kraken.dclass.pool.timeout system property.
+     */
+    public static final long DEFAULT_TIMEOUT = Long.getLong("kraken.dclass.pool.timeout", 30000L);
+
+    private static final long RETRY_MILLIS = 100L;
+
+    /** Idle handles */
+    private final BlockingQueue<DclassWrapper> idle = new LinkedBlockingQueue<DclassWrapper>();
+
+    /** Number of handles created so far */
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final int maxSize;
+    private final long timeoutMillis;
+
+    /**
+     * Create a pool with one handle per available core.
+     */
+    public DclassWrapperPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxSize maximum number of dtree handles in this pool
+     */
+    public DclassWrapperPool(final int maxSize) {
+        this(maxSize, DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxSize maximum number of dtree handles in this pool
+     * @param timeout how long to wait for a handle when all of them are in use
+     * @param unit the unit of timeout
+     */
+    public DclassWrapperPool(final int maxSize, final long timeout, final TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size should be at least 1, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Classify a user agent with one of the handles in the pool.
+     *
+     * @param ua the useragent device string
+     * @return the key/values returned by dClass
+     */
+    public final Map<String, String> classifyUA(final String ua) {
+        DclassWrapper dClass = borrow();
+        try {
+            return dClass.classifyUA(ua);
+        } finally {
+            release(dClass);
+        }
+    }
+
+    /**
+     * @return an idle handle, creating a new one if the pool is not full yet.
+     * @throws IllegalStateException if no handle was returned to the pool in time.
+     */
+    DclassWrapper borrow() {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            DclassWrapper dClass = idle.poll();
+            if (dClass != null) {
+                return dClass;
+            }
+
+            int count = created.get();
+            if (count < maxSize) {
+                if (created.compareAndSet(count, count + 1)) {
+                    boolean loaded = false;
+                    try {
+                        dClass = newHandle();
+                        loaded = true;
+                        return dClass;
+                    } finally {
+                        if (!loaded) {
+                            // Release the slot, the next borrower can try again
+                            created.decrementAndGet();
+                        }
+                    }
+                }
+                continue;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException("No dClass handle was returned to the pool within "
+                        + timeoutMillis + " ms, all " + maxSize + " handles are in use");
+            }
+            try {
+                // Wake up now and then, a slot is released when loading a new handle fails
+                dClass = idle.poll(Math.min(remaining, RETRY_MILLIS), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            if (dClass != null) {
+                return dClass;
+            }
+        }
+    }
+
+    /**
+     * Return a borrowed handle to the pool.
+     */
+    void release(final DclassWrapper dClass) {
+        idle.offer(dClass);
+    }
+
+    /**
+     * Load the dtree data in a new handle, the handle releases the data
+     * when it is garbage collected.
+     */
+    DclassWrapper newHandle() {
+        DclassWrapper dClass = new DclassWrapper() {
+            @Override
+            protected void finalize() {
+                destroyUA();
+            }
+        };
+        dClass.initUA();
+        return dClass;
+    }
+
+    /**
+     * @return the maximum number of handles in this pool
+     */
+    public final int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of handles that have been created so far
+     */
+    public final int getSize() {
+        return created.get();
+    }
+}
@@ -17,6 +17,11 @@
  */
 package org.wikimedia.analytics.dclassjni;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
 import java.util.Iterator;
 import java.util.Map;
 
@@ -42,55 +47,66 @@ import java.util.Map;
 public class DeviceClassification {
 
     /**
-     * Only initialize the dClass JNI wrapper on-demand (and only once),
-     * as doing so loads 2+ MB of dtree data into memory from disk.
+     * Number of dClass handles in the pool, defaults to one per available core
+     * and can be overridden with the kraken.dclass.pool.size system property.
      */
-    private static boolean isDClassInitialized = false;
+    public static final int POOL_SIZE = Integer.getInteger("kraken.dclass.pool.size",
+            Runtime.getRuntime().availableProcessors());
 
     /**
-     * Wrapper subclass to release the dtree data when the singleton is
-     * destroyed, presumably when its classloader is released (which *can*
-     * happen without imminent JVM termination, such as in IOC containers,
-     * like Spring).
+     * Each handle in the pool loads its own copy of the dtree data (~2MB), but
+     * only on demand, so a single threaded caller still loads it just once.
+     * Threads classifying concurrently each get their own handle instead of
+     * waiting on a shared, synchronized wrapper.
      */
-    final private static DclassWrapper dClass = new DclassWrapper() {
-        @Override
-        protected void finalize() {
-            if (isDClassInitialized) destroyUA();
-        }
-    };
+    private static final DclassWrapperPool POOL = new DclassWrapperPool(POOL_SIZE);
+
+    private static Map classifyUA(String ua) {
+        return POOL.classifyUA(ua);
+    }
 
     /**
-     * Initializing the dClass JNI wrapper loads the dtree data (~2MB) into memory.
-     * By using a static wrapper we avoid reloading the db, but we must synchronize
-     * access to settle a race during classification.
+     * Maximum number of distinct user agents kept in the classification cache,
+     * can be overridden with the kraken.dclass.cache.size system property.
      */
-    synchronized private static Map classifyUA(String ua) {
-        if (!isDClassInitialized) {
-            dClass.initUA();
-            isDClassInitialized = true;
-        }
-        return dClass.classifyUA(ua);
-    }
+    public static final int DEFAULT_CACHE_SIZE = 100000;
 
+    /**
+     * User agents follow a heavy Zipf distribution, so most classifications are
+     * answered from this cache without entering native code or borrowing a
+     * handle from the pool. The cache is keyed by the unspaced user agent.
+     */
+    private static final LoadingCache<String, ClassificationRecord> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(Integer.getInteger("kraken.dclass.cache.size", DEFAULT_CACHE_SIZE))
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .recordStats()
+            .build(new CacheLoader<String, ClassificationRecord>() {
+                @Override
+                public ClassificationRecord load(final String ua) {
+                    return new ClassificationRecord(classifyUA(ua));
+                }
+            });
 
+    /**
+     * @return the hit, miss and eviction counters of the classification cache
+     */
+    public static CacheStats getCacheStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * @param userAgent
+     * @return the (possibly cached) classification of userAgent
+     */
+    public static ClassificationRecord classify(final String userAgent) {
+        if (userAgent == null) {
+            return ClassificationRecord.EMPTY;
+        }
+        return CACHE.getUnchecked(userAgent);
+    }
 
-    private String parentId;
-    private String vendor;
-    private String model;
-    private String deviceOs;
-    private String deviceOsVersion;
-    private int displayHeight;
-    private int displayWidth;
-    private String inputDevices;
-    private String browser;
-    private String browserVersion;
-    private boolean isTablet;
-    private boolean isWirelessDevice;
-    private boolean isCrawler;
-    private boolean isDesktop;
-    private boolean ajaxSupportJavascript;
 
+    private ClassificationRecord record = ClassificationRecord.EMPTY;
 
     public DeviceClassification() {}
 
@@ -103,42 +119,24 @@ public class DeviceClassification {
      * @param userAgent
      */
     public final DeviceClassification classifyUseragent(final String userAgent) {
-        final Map result  = classifyUA(userAgent);
-        setVendor(result.get("vendor"));
-        setModel(result.get("model"));
-        setParentId(result.get("parentId"));
-        setInputDevices(result.get("inputDevices"));
-        setDeviceOs(result.get("device_os"));
-        setDeviceOsVersion(result.get("device_os_version"));
-        setDisplayHeight(result.get("displayHeight"));
-        setDisplayWidth(result.get("displayWidth"));
-        setAjaxSupportJavascript(result.get("ajax_support_javascript"));
-        setIsWirelessDevice(result.get("is_wireless_device"));
-        setIsTablet(result.get("is_tablet"));
-        setIsCrawler(result.get("is_crawler"));
-        setIsDesktop(result.get("is_desktop"));
-        setBrowser(result.get("browser"));
-        setBrowserVersion(result.get("browser_version"));
+        record = classify(userAgent);
         return this;
     }
 
-
     /**
-     * Gets the vendor.
-     *
-     * @return the vendor
+     * @return the immutable classification record of the last classified user agent
      */
-    public final String getVendor() {
-        return vendor;
+    public final ClassificationRecord getRecord() {
+        return record;
     }
 
     /**
-     * Sets the vendor.
+     * Gets the vendor.
      *
-     * @param vendor the new vendor
+     * @return the vendor
      */
-    private void setVendor(final Object vendor) {
-        this.vendor = (String) vendor;
+    public final String getVendor() {
+        return record.getVendor();
     }
 
     /**
@@ -147,16 +145,7 @@ public class DeviceClassification {
      * @return the model
      */
     public final String getModel() {
-        return model;
-    }
-
-    /**
-     * Sets the model.
-     *
-     * @param model the new model
-     */
-    private void setModel(final Object model) {
-        this.model = (String) model;
+        return record.getModel();
     }
 
     /**
@@ -165,16 +154,7 @@ public class DeviceClassification {
      * @return the parent id
      */
     public final String getParentId() {
-        return parentId;
-    }
-
-    /**
-     * Sets the parent id.
-     *
-     * @param parentId the new parent id
-     */
-    private void setParentId(final Object parentId) {
-        this.parentId = (String) parentId;
+        return record.getParentId();
     }
 
     /**
@@ -183,16 +163,7 @@ public class DeviceClassification {
      * @return the input devices
      */
     public final String getInputDevices() {
-        return inputDevices;
-    }
-
-    /**
-     * Sets the input devices.
-     *
-     * @param inputDevices the new input devices
-     */
-    private void setInputDevices(final Object inputDevices) {
-        this.inputDevices = (String) inputDevices;
+        return record.getInputDevices();
     }
 
     /**
@@ -201,16 +172,7 @@ public class DeviceClassification {
      * @return the display height
      */
     public final int getDisplayHeight() {
-        return displayHeight;
-    }
-
-    /**
-     * Sets the display height.
-     *
-     * @param displayHeight the new display height
-     */
-    private void setDisplayHeight(final Object displayHeight) {
-        this.displayHeight = displayHeight == null ? 0 : Integer.valueOf((String) displayHeight);
+        return record.getDisplayHeight();
     }
 
     /**
@@ -219,16 +181,7 @@ public class DeviceClassification {
      * @return the display width
      */
     public final int getDisplayWidth() {
-        return displayWidth;
-    }
-
-    /**
-     * Sets the display width.
-     *
-     * @param displayWidth the new display width
-     */
-    private void setDisplayWidth(final Object displayWidth) {
-        this.displayWidth = displayWidth == null ? 0 : Integer.valueOf((String) displayWidth);
+        return record.getDisplayWidth();
     }
 
     /**
@@ -237,16 +190,7 @@ public class DeviceClassification {
      * @return the device_os
      */
     public final String getDeviceOs() {
-        return deviceOs;
-    }
-
-    /**
-     * Sets the device_os.
-     *
-     * @param deviceOs the new device_os
-     */
-    private void setDeviceOs(final Object deviceOs) {
-        this.deviceOs = (String) deviceOs;
+        return record.getDeviceOs();
     }
 
     /**
@@ -255,16 +199,7 @@ public class DeviceClassification {
      * @return the device_os_version
      */
     public final String getDeviceOsVersion() {
-        return deviceOsVersion;
-    }
-
-    /**
-     * Sets the device_os_version.
-     *
-     * @param deviceOsVersion the new device_os_version
-     */
-    private void setDeviceOsVersion(final Object deviceOsVersion) {
-        this.deviceOsVersion = (String) deviceOsVersion;
+        return record.getDeviceOsVersion();
     }
 
     /**
@@ -273,16 +208,7 @@ public class DeviceClassification {
      * @return the ajaxSupportJavascript
      */
     public final boolean getAjaxSupportJavascript() {
-        return ajaxSupportJavascript;
-    }
-
-    /**
-     * Sets the ajax_support_javascript.
-     *
-     * @param ajaxSupportJavascript the new ajax_support_javascript
-     */
-    private void setAjaxSupportJavascript(final Object ajaxSupportJavascript) {
-        this.ajaxSupportJavascript = Boolean.valueOf((String) ajaxSupportJavascript);
+        return record.getAjaxSupportJavascript();
     }
 
     /**
@@ -291,16 +217,7 @@ public class DeviceClassification {
      * @return the is_tablet
      */
     public final boolean getIsTablet() {
-        return isTablet;
-    }
-
-    /**
-     * Sets the is_tablet.
-     *
-     * @param isTablet the new is_tablet
-     */
-    private void setIsTablet(final Object isTablet) {
-        this.isTablet = Boolean.valueOf((String) isTablet);
+        return record.getIsTablet();
     }
 
     /**
@@ -309,16 +226,7 @@ public class DeviceClassification {
      * @return the checks if is wireless_device
      */
     public final boolean getIsWirelessDevice() {
-        return isWirelessDevice;
-    }
-
-    /**
-     * Sets the is_wireless_device.
-     *
-     * @param isWirelessDevice the new is_wireless_device
-     */
-    private void setIsWirelessDevice(final Object isWirelessDevice) {
-        this.isWirelessDevice = Boolean.valueOf((String) isWirelessDevice);
+        return record.getIsWirelessDevice();
     }
 
     /**
@@ -327,16 +235,7 @@ public class DeviceClassification {
      * @return the getIsCrawler
      */
     public final boolean getIsCrawler() {
-        return isCrawler;
-    }
-
-    /**
-     * Sets the is_crawler.
-     *
-     * @param isCrawler the new is_crawler
-     */
-    private void setIsCrawler(final Object isCrawler) {
-        this.isCrawler = Boolean.valueOf((String) isCrawler);
+        return record.getIsCrawler();
     }
 
     /**
@@ -345,32 +244,15 @@ public class DeviceClassification {
      * @return the is_desktop
      */
     public final boolean getIsDesktop() {
-        return isDesktop;
-    }
-
-    /**
-     * Sets the is_desktop.
-     *
-     * @param isDesktop the new is_desktop
-     */
-    private void setIsDesktop(final Object isDesktop) {
-        this.isDesktop = Boolean.valueOf((String) isDesktop);
+        return record.getIsDesktop();
     }
 
     public String getBrowser() {
-        return browser;
-    }
-
-    private void setBrowser(final Object browser) {
-        this.browser = (String) browser;
+        return record.getBrowser();
     }
 
     public String getBrowserVersion() {
-        return browserVersion;
-    }
-
-    private void setBrowserVersion(final Object browserVersion) {
-        this.browserVersion = (String) browserVersion;
+        return record.getBrowserVersion();
     }
 
 
@@ -390,7 +272,7 @@ public class DeviceClassification {
         System.out.println("device_os_version       = " + getDeviceOsVersion());
         System.out.println("displayHeight           = " + getDisplayHeight());
         System.out.println("displayWidth            = " + getDisplayWidth());
-        System.out.println("ajax_support_javascript = " + ajaxSupportJavascript);
+        System.out.println("ajax_support_javascript = " + getAjaxSupportJavascript());
         System.out.println("is_tablet               = " + getIsTablet());
         System.out.println("is_wireless_device      = " + getIsWirelessDevice());
         System.out.println("is_crawler              = " + getIsCrawler());
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2012-2013  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.dclassjni;
+
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class ClassificationRecordTest {
+    @Test
+    public void testClassificationRecord() {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put("vendor", "HTC");
+        result.put("model", "A6380");
+        result.put("displayHeight", "480");
+        result.put("displayWidth", "320");
+        result.put("is_wireless_device", "true");
+        result.put("is_tablet", "false");
+
+        ClassificationRecord record = new ClassificationRecord(result);
+        assertEquals("HTC", record.getVendor());
+        assertEquals("A6380", record.getModel());
+        assertEquals(480, record.getDisplayHeight());
+        assertEquals(320, record.getDisplayWidth());
+        assertTrue(record.getIsWirelessDevice());
+        assertFalse(record.getIsTablet());
+        assertFalse(record.getIsCrawler());
+        assertNull(record.getBrowser());
+    }
+
+    @Test
+    public void testEmptyRecord() {
+        assertEquals(0, ClassificationRecord.EMPTY.getDisplayWidth());
+        assertNull(ClassificationRecord.EMPTY.getVendor());
+        assertFalse(ClassificationRecord.EMPTY.getIsDesktop());
+    }
+}
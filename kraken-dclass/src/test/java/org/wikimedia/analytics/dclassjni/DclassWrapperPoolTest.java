@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012-2013  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.dclassjni;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class DclassWrapperPoolTest {
+
+    private static final String UA = "Mozilla/5.0 (Linux; U; Android 2.2; en; HTC Aria A6380 Build/ERE27) "
+            + "AppleWebKit/540.13+ (KHTML, like Gecko) Version/3.1 Mobile Safari/524.15.0";
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPool() {
+        new DclassWrapperPool(0);
+    }
+
+    @Test
+    public void testConcurrentClassification() throws InterruptedException {
+        final DclassWrapperPool pool = new DclassWrapperPool(2);
+        final AtomicInteger matches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        Map<String, String> result = pool.classifyUA(UA);
+                        if ("HTC".equals(result.get("vendor"))) {
+                            matches.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, matches.get());
+        assertTrue(pool.getSize() <= pool.getMaxSize());
+    }
+
+    @Test
+    public void testFailedHandleReleasesSlot() {
+        final AtomicInteger attempts = new AtomicInteger();
+        DclassWrapperPool pool = new DclassWrapperPool(1, 100, TimeUnit.MILLISECONDS) {
+            @Override
+            DclassWrapper newHandle() {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new IllegalStateException("dtree could not be loaded");
+                }
+                return new DclassWrapper();
+            }
+        };
+        try {
+            pool.borrow();
+            fail("the first handle should fail to load");
+        } catch (IllegalStateException e) {
+            assertEquals(0, pool.getSize());
+        }
+        assertNotNull(pool.borrow());
+        assertEquals(1, pool.getSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBorrowTimesOut() {
+        DclassWrapperPool pool = new DclassWrapperPool(1, 50, TimeUnit.MILLISECONDS) {
+            @Override
+            DclassWrapper newHandle() {
+                return new DclassWrapper();
+            }
+        };
+        pool.borrow();
+        pool.borrow();
+    }
+
+    @Test
+    public void testReleasedHandleIsReused() {
+        DclassWrapperPool pool = new DclassWrapperPool(1, 50, TimeUnit.MILLISECONDS) {
+            @Override
+            DclassWrapper newHandle() {
+                return new DclassWrapper();
+            }
+        };
+        DclassWrapper dClass = pool.borrow();
+        pool.release(dClass);
+        assertTrue(dClass == pool.borrow());
+    }
+}
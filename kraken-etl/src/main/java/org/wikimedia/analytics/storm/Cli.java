@@ -21,6 +21,10 @@ package org.wikimedia.analytics.storm;
 import backtype.storm.Config;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * A simple interface to start Kraken Storm in local or in Kafka mode.
  */
@@ -37,7 +41,9 @@ public class Cli {
         "     |:|  |        |:|\\/__/        /:/  /      |:|  |       \\:\\ \\/__/       |::/  /  \n" +
         "     |:|  |        |:|  |         /:/  /       |:|  |        \\:\\__\\         /:/  /   \n" +
         "     \\|__|         \\|__|         \\/__/         \\|__|         \\/__/         \\/__/  \n" +
-        "\n \n [-mode <local|kafka>] [-input <absolute path to file>] [-redis_host <host>] [-redisport <port>]";
+        "\n \n [-mode <local|kafka>] [-input <absolute path to file>] [-redis_host <host>] [-redisport <port>]\n" +
+        " [-workers <number of workers>] [-parallelism <component=hint,...>]\n" +
+        " [-anonymizerSecretFile <file>] [-anonymizerSaltRotation <seconds>]";
     private static final String HEADER = "Kraken Storm - realtime ETL, Copyright 2012-2013 Wikimedia Foundation licensed under GPL2.\n.";
     private static final String FOOTER = "\nThis program was written by Diederik van Liere <dvanliere@wikimedia.org>\n";
 
@@ -48,6 +54,12 @@ public class Cli {
     private String redisHost = "localhost";
     private String redisPort = "6379";
 
+    private Integer workers;
+    private Map<String, Integer> parallelism;
+
+    private String anonymizerSecretFile;
+    private String anonymizerSaltRotation;
+
     private String kafkaServers;
     private String kafkaProduct;
     private String kafkaTopic;
@@ -90,6 +102,24 @@ public class Cli {
                 .withDescription("Specify the Redis port to connect to.").create("redisPort");
 
 
+        // Topology related options
+        Option workers = OptionBuilder.withArgName("workers").hasArg()
+                .withDescription("Specify the number of worker processes.").create("workers");
+
+        Option parallelism = OptionBuilder.withArgName("parallelism").hasArg()
+                .withDescription("Specify the parallelism hints per component, for example kraken-cleaner=4,redis=2.")
+                .create("parallelism");
+
+
+        Option anonymizerSecretFile = OptionBuilder.withArgName("anonymizerSecretFile").hasArg()
+                .withDescription("Specify a file with the secret the salts of the anonymizer are derived from, "
+                        + "it should be readable at the same path on every worker host.")
+                .create("anonymizerSecretFile");
+
+        Option anonymizerSaltRotation = OptionBuilder.withArgName("anonymizerSaltRotation").hasArg()
+                .withDescription("Specify the number of seconds a salt of the anonymizer is used.")
+                .create("anonymizerSaltRotation");
+
         // Kafka related options
         Option kfServers = OptionBuilder.withArgName("kafkaServers").hasArg()
                 .withDescription("Specify the list of kafka servers, separated by comma.")
@@ -134,6 +164,10 @@ public class Cli {
         options.addOption(redisPort);
         options.addOption(debug);
         options.addOption(help);
+        options.addOption(workers);
+        options.addOption(parallelism);
+        options.addOption(anonymizerSecretFile);
+        options.addOption(anonymizerSaltRotation);
         options.addOption(kfServers);
         options.addOption(kafkaProduct);
         options.addOption(kafkaTopic);
@@ -181,6 +215,23 @@ public class Cli {
             if (line.hasOption("redisPort")) {
                 cli.redisPort = line.getOptionValue("redisport", "6379");
             }
+            if (line.hasOption("workers")) {
+                cli.workers = parseWorkers(line.getOptionValue("workers"));
+            }
+            if (line.hasOption("parallelism")) {
+                cli.parallelism = parseParallelism(line.getOptionValue("parallelism"));
+            }
+            if (line.hasOption("anonymizerSecretFile")) {
+                File secretFile = new File(line.getOptionValue("anonymizerSecretFile"));
+                if (!secretFile.canRead()) {
+                    throw new ParseException("Cannot read the anonymizer secret file " + secretFile);
+                }
+                // Only the path goes into the topology configuration, which is not secret
+                cli.anonymizerSecretFile = secretFile.getAbsolutePath();
+            }
+            if (line.hasOption("anonymizerSaltRotation")) {
+                cli.anonymizerSaltRotation = line.getOptionValue("anonymizerSaltRotation");
+            }
             if (line.hasOption("debug")) {
                 cli.debug = Boolean.parseBoolean(line.getOptionValue("debug", "false"));
             }
@@ -200,6 +251,20 @@ public class Cli {
         conf.put("mode", cli.mode);
         conf.put("redisHost", cli.redisHost);
         conf.put("redisPort", cli.redisPort);
+        if (cli.workers != null) {
+            conf.setNumWorkers(cli.workers);
+        }
+        if (cli.parallelism != null) {
+            for (Map.Entry<String, Integer> hint : cli.parallelism.entrySet()) {
+                conf.put("parallelism." + hint.getKey(), hint.getValue().toString());
+            }
+        }
+        if (cli.anonymizerSecretFile != null) {
+            conf.put("anonymizerSecretFile", cli.anonymizerSecretFile);
+        }
+        if (cli.anonymizerSaltRotation != null) {
+            conf.put("anonymizerSaltRotation", cli.anonymizerSaltRotation);
+        }
         if ("local".equals(cli.mode)) {
             if (cli.debug){
                 conf.put("inputFile", "/Users/diederik/Development/kraken/kraken-etl/src/main/resources/testdata");
@@ -218,6 +283,50 @@ public class Cli {
         topology.start();
     }
 
+    /**
+     * @param value the number of worker processes
+     * @return the number of workers
+     * @throws ParseException if the value is not a positive number
+     */
+    static int parseWorkers(final String value) throws ParseException {
+        int workers;
+        try {
+            workers = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number of workers [" + value + "], the value is not a number");
+        }
+        if (workers < 1) {
+            throw new ParseException("Invalid number of workers [" + value + "], the value should be positive");
+        }
+        return workers;
+    }
+
+    /**
+     * @param value a comma separated list of component=hint pairs, like kraken-cleaner=4,redis=2
+     * @return the parallelism hint per component
+     * @throws ParseException if a pair has no component or no positive hint
+     */
+    static Map<String, Integer> parseParallelism(final String value) throws ParseException {
+        Map<String, Integer> hints = new LinkedHashMap<String, Integer>();
+        for (String hint : value.split(",")) {
+            String[] componentHint = hint.split("=");
+            if (componentHint.length != 2 || componentHint[0].trim().length() == 0) {
+                throw new ParseException("Invalid parallelism hint [" + hint + "], expected component=hint");
+            }
+            int parallelism;
+            try {
+                parallelism = Integer.parseInt(componentHint[1].trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid parallelism hint [" + hint + "], the hint is not a number");
+            }
+            if (parallelism < 1) {
+                throw new ParseException("Invalid parallelism hint [" + hint + "], the hint should be positive");
+            }
+            hints.put(componentHint[0].trim(), parallelism);
+        }
+        return hints;
+    }
+
     /**
      *
      * @param options
@@ -0,0 +1,147 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A Count-Min sketch of string keys (Cormode and Muthukrishnan).
+ *
+ * A sketch of depth d and width w never underestimates a count, and overestimates
+ * it by more than e / w times the total count with a probability of at most e^-d.
+ * The memory use is fixed at d * w longs. The d hashes of a key are derived from a
+ * single murmur3 128 bit hash (Kirsch and Mitzenmacher), so sketches with the same
+ * dimensions are merged by adding their counters, for example the sketches of
+ * different bolt instances.
+ *
+ * Instances are not thread-safe.
+ */
+public class CountMinSketch {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final int depth;
+    private final int width;
+    private final long[] counters;
+    private long total;
+
+    /**
+     * @param depth the number of hash functions
+     * @param width the number of counters per hash function
+     */
+    public CountMinSketch(final int depth, final int width) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException("Depth and width should be positive, got " + depth + " and " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counters = new long[depth * width];
+    }
+
+    /**
+     * Add count, which may be negative to undo an earlier add, to the count of key.
+     */
+    public void add(final String key, final long count) {
+        long[] hashes = hash(key);
+        for (int i = 0; i < depth; i++) {
+            counters[i * width + index(hashes, i)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @return the estimated count of key, never less than the true count
+     */
+    public long estimate(final String key) {
+        long[] hashes = hash(key);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            estimate = Math.min(estimate, counters[i * width + index(hashes, i)]);
+        }
+        return estimate;
+    }
+
+    private static long[] hash(final String key) {
+        byte[] bytes = HASH.hashString(key, Charsets.UTF_8).asBytes();
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 7; i >= 0; i--) {
+            h1 = (h1 << 8) | (bytes[i] & 0xFF);
+            h2 = (h2 << 8) | (bytes[i + 8] & 0xFF);
+        }
+        return new long[] {h1, h2};
+    }
+
+    private int index(final long[] hashes, final int i) {
+        long hash = hashes[0] + i * hashes[1];
+        return (int) ((hash & Long.MAX_VALUE) % width);
+    }
+
+    /**
+     * Add the counts of a sketch with the same dimensions.
+     */
+    public void merge(final CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Cannot merge a " + other.depth + "x" + other.width
+                    + " sketch into a " + depth + "x" + width + " sketch");
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] += other.counters[i];
+        }
+        total += other.total;
+    }
+
+    /**
+     * @return the sum of all counts
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void write(final DataOutput out) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeLong(total);
+        for (long counter : counters) {
+            out.writeLong(counter);
+        }
+    }
+
+    public static CountMinSketch read(final DataInput in) throws IOException {
+        CountMinSketch sketch = new CountMinSketch(in.readInt(), in.readInt());
+        sketch.total = in.readLong();
+        for (int i = 0; i < sketch.counters.length; i++) {
+            sketch.counters[i] = in.readLong();
+        }
+        return sketch;
+    }
+}
@@ -4,36 +4,170 @@ import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
 import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.google.common.io.Files;
+import org.wikimedia.analytics.kraken.privacy.Anonymizer;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Map;
 
 /**
+ * Replaces the client ip address of every logline with a hash of the ip address
+ * and the user agent, and drops the X-Forwarded-For header. All other fields are
+ * passed on unchanged. This bolt keeps no state, so it can be shuffle grouped.
  *
+ * When the anonymizerSecretFile configuration key is set the hashes are keyed with
+ * a salt that is derived from the secret in that file and rotated every
+ * anonymizerSaltRotation seconds (a day by default), see {@link Anonymizer}. The salt is selected by
+ * the time of the request (field 2), not by the time the tuple is processed, so
+ * a lagging or replaying topology derives the same tokens as a Pig job that
+ * shares the secret.
  */
 public class KrakenAnonymousBolt implements IRichBolt {
+    /** Number of seconds a salt is used, unless anonymizerSaltRotation is configured */
+    public static final int DEFAULT_SALT_ROTATION = 24 * 3600;
+
+    /** The fields of the incoming tuples, which are also the outgoing fields */
+    private final Fields fields;
+
+    private final String hashFunction;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private OutputCollector outputCollector;
+
+    /** Not serializable, created in {@link #prepare(Map, TopologyContext, OutputCollector)} */
+    private transient Anonymizer anonymizer;
+
+    /**
+     *
+     * @param fields the fields emitted by the upstream bolt
+     */
+    public KrakenAnonymousBolt(final Fields fields) {
+        this(fields, "sha256");
+    }
+
+    /**
+     *
+     * @param fields the fields emitted by the upstream bolt
+     * @param hashFunction the name of a hash function supported by {@link Anonymizer}
+     */
+    public KrakenAnonymousBolt(final Fields fields, final String hashFunction) {
+        this.fields = fields;
+        this.hashFunction = hashFunction;
+    }
+
     @Override
-    public void prepare(Map map, TopologyContext topologyContext, OutputCollector outputCollector) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void prepare(final Map map, final TopologyContext topologyContext, final OutputCollector outputCollector) {
+        this.outputCollector = outputCollector;
+        Object secretFile = map.get("anonymizerSecretFile");
+        if (secretFile != null) {
+            // The secret is read on the worker, so it never appears in the serialized topology configuration
+            String secret;
+            try {
+                secret = Files.toString(new File(secretFile.toString()), UTF8).trim();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            Object rotation = map.get("anonymizerSaltRotation");
+            long rotationSeconds = rotation != null ? Long.parseLong(rotation.toString()) : DEFAULT_SALT_ROTATION;
+            this.anonymizer = new Anonymizer(hashFunction, secret.getBytes(UTF8), rotationSeconds * 1000);
+        } else {
+            this.anonymizer = new Anonymizer(hashFunction);
+        }
     }
 
     @Override
-    public void execute(Tuple tuple) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void execute(final Tuple tuple) {
+        Values values = new Values();
+        values.addAll(tuple.getValues());
+        long timestamp = parseTimestamp(tuple.getString(2));
+        if (timestamp < 0) {
+            // No request time, the salt of the current period is the best guess
+            timestamp = System.currentTimeMillis();
+        }
+        values.set(4, anonymizer.generateHash(tuple.getString(4), tuple.getString(13), timestamp));
+        values.set(12, "-");
+
+        outputCollector.emit(tuple, values);
+        outputCollector.ack(tuple);
+    }
+
+    /**
+     * Parse a UTC timestamp like 2013-01-01T12:34:56.789 (or with a space
+     * instead of the T, and with or without milliseconds) without allocating.
+     *
+     * @param timestamp
+     * @return the milliseconds since the epoch, or -1 if it cannot be parsed
+     */
+    static long parseTimestamp(final String timestamp) {
+        if (timestamp == null || timestamp.length() < 19) {
+            return -1;
+        }
+        char separator = timestamp.charAt(10);
+        if (timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-' || (separator != 'T' && separator != ' ')
+                || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':') {
+            return -1;
+        }
+        int year = digits(timestamp, 0, 4);
+        int month = digits(timestamp, 5, 2);
+        int day = digits(timestamp, 8, 2);
+        int hour = digits(timestamp, 11, 2);
+        int minute = digits(timestamp, 14, 2);
+        int second = digits(timestamp, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+        int millis = 0;
+        if (timestamp.length() >= 23 && timestamp.charAt(19) == '.') {
+            millis = digits(timestamp, 20, 3);
+            if (millis < 0) {
+                return -1;
+            }
+        }
+
+        // Days since the epoch of the proleptic Gregorian date, with March as the first month of the year
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+    }
+
+    /**
+     * @return the value of length decimal digits at start, or -1 if one of them is not a digit
+     */
+    private static int digits(final String s, final int start, final int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 
     @Override
     public void cleanup() {
-        //To change body of implemented methods use File | Settings | File Templates.
+
     }
 
     @Override
-    public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
-        //To change body of implemented methods use File | Settings | File Templates.
+    public void declareOutputFields(final OutputFieldsDeclarer outputFieldsDeclarer) {
+        outputFieldsDeclarer.declare(fields);
     }
 
     @Override
     public Map<String, Object> getComponentConfiguration() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return null;
     }
 }
@@ -23,22 +23,82 @@ import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
 import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import org.wikimedia.analytics.kraken.geo.GeoIpLookup;
+import org.wikimedia.analytics.kraken.geo.GeoIpResult;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * Geocodes the client ip address of every logline and appends the requested
+ * geo fields to the fields emitted by {@link KrakenInitialFilterAndCleanerBolt}.
  *
+ * {@link GeoIpLookup} caches its results per ip address, so this bolt should
+ * receive its input through a fieldsGrouping on the ip address.
  */
 public class KrakenGeoBolt implements IRichBolt {
+    /** A comma separated list of geo fields, see {@link GeoIpLookup} */
+    private final String geoFields;
+
+    private OutputCollector outputCollector;
+
+    /** Not serializable, created in {@link #prepare(Map, TopologyContext, OutputCollector)} */
+    private transient GeoIpLookup geoIpLookup;
+
+    /**
+     * Geocode at the country level.
+     */
+    public KrakenGeoBolt() {
+        this("countryCode");
+    }
+
+    /**
+     *
+     * @param geoFields a comma separated list of the geo fields to append, for example countryCode, city
+     */
+    public KrakenGeoBolt(final String geoFields) {
+        this.geoFields = geoFields;
+    }
+
     @Override
     public void prepare(final Map map, final TopologyContext topologyContext, final OutputCollector outputCollector) {
-
+        this.outputCollector = outputCollector;
+        try {
+            // In local mode the databases are read from /usr/share/GeoIP
+            String execType = "local".equals(map.get("mode")) ? "LOCAL" : null;
+            this.geoIpLookup = new GeoIpLookup(geoFields, "GeoIPCity", execType);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void execute(final Tuple tuple) {
+        String ipAddress = tuple.getString(4);
+        String xForwardedFor = tuple.getString(12);
+        if (xForwardedFor != null && !"-".equals(xForwardedFor)) {
+            // The left most address is the originating client
+            int comma = xForwardedFor.indexOf(',');
+            ipAddress = comma < 0 ? xForwardedFor : xForwardedFor.substring(0, comma);
+        }
+
+        GeoIpResult result = geoIpLookup.lookup(ipAddress);
+        int size = geoIpLookup.getNeededGeoFieldNames().size();
 
+        Values values = new Values();
+        values.addAll(tuple.getValues());
+        for (int i = 0; i < size; i++) {
+            values.add(result != null ? result.get(i) : null);
+        }
+
+        outputCollector.emit(tuple, values);
+        outputCollector.ack(tuple);
     }
 
     @Override
@@ -48,7 +108,18 @@ public class KrakenGeoBolt implements IRichBolt {
 
     @Override
     public void declareOutputFields(final OutputFieldsDeclarer outputFieldsDeclarer) {
+        outputFieldsDeclarer.declare(getOutputFields());
+    }
 
+    /**
+     * @return the fields of the cleaner bolt followed by the requested geo fields
+     */
+    public final Fields getOutputFields() {
+        List<String> fields = new ArrayList<String>(Arrays.asList(KrakenInitialFilterAndCleanerBolt.FIELDS));
+        for (String field : geoFields.split(",")) {
+            fields.add(field.trim());
+        }
+        return new Fields(fields);
     }
 
     @Override
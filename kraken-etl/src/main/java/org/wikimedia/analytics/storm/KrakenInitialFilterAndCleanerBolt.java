@@ -27,64 +27,99 @@ import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
 
-import java.util.Arrays;
+import java.nio.charset.Charset;
 import java.util.Map;
 
 /**
+ * Tokenizes the raw loglines emitted by the spout, drops the requests that are
+ * not interesting for the downstream bolts (4xx/5xx responses, images, css and
+ * javascript, and requests for bits.wikimedia.org) and cleans up the fields of
+ * the remaining ones.
  *
+ * A line is scanned once with a {@link TabFieldScanner} and the filters are
+ * applied on the offsets of the fields, so rejected lines are acked without
+ * allocating a single substring. Only surviving lines are split into fields.
  */
 public class KrakenInitialFilterAndCleanerBolt implements IRichBolt {
 
+    /** Names of the fields emitted by this bolt, in webrequest log order */
+    public static final String[] FIELDS = {"hostname", "udplog_sequence", "timestamp", "responsetime",
+            "ipaddress", "response", "size", "httpmethod", "url", "peer",
+            "mimetype", "referrer", "x-forwarded-for", "useragent", "language", "x-cs"};
+
+    private static final int HOSTNAME = 0;
+    private static final int RESPONSE = 5;
+    private static final int URL = 8;
+    private static final int MIMETYPE = 10;
+    private static final int USERAGENT = 13;
+    private static final int LANGUAGE = 14;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     OutputCollector outputCollector;
+
+    private TabFieldScanner scanner;
+
     @Override
     public void prepare(final Map map, final TopologyContext topologyContext, final OutputCollector outputCollector) {
         this.outputCollector = outputCollector;
-
+        this.scanner = new TabFieldScanner(FIELDS.length);
     }
 
     @Override
     public void execute(final Tuple tuple) {
+        // The file spout emits Strings, the Kafka spout emits the raw message bytes
+        Object value = tuple.getValue(0);
+        String line = value instanceof byte[] ? new String((byte[]) value, UTF8) : (String) value;
 
-        String statusCode = parseResponse(tuple.getString(5));
-        if (statusCode.startsWith("40") || statusCode.startsWith("50")) {
-            return;
-        }
-
-        String mimeType = parseMimeType(tuple.getString(10));
-        if (mimeType.startsWith("image") || mimeType.endsWith("javascript") || mimeType.endsWith("css")) {
+        if (scanner.scan(line) < FIELDS.length || isFiltered()) {
+            outputCollector.ack(tuple);
             return;
         }
 
-        String url = tuple.getString(8);
-        if (url.contains("bits.wikimedia.org")) {
-            return;
-        }
-
-        String hostName = parseHostName(tuple.getString(0));
-        String sequenceNumber = tuple.getString(1);
-        String timeStamp = tuple.getString(2);
-        String responseTime = tuple.getString(3);
-        String ipAddress = tuple.getString(4);
-
-        String responseSize = tuple.getString(6);
-        String requestMethod = tuple.getString(7);
-
-        String peerIp = tuple.getString(9);
+        String hostName = parseHostName(line);
+        String sequenceNumber = scanner.field(1);
+        String timeStamp = scanner.field(2);
+        String responseTime = scanner.field(3);
+        String ipAddress = scanner.field(4);
+        String statusCode = scanner.substring(responseStart(), responseEnd());
+        String responseSize = scanner.field(6);
+        String requestMethod = scanner.field(7);
+        String url = scanner.field(URL);
+        String peerIp = scanner.field(9);
+        String mimeType = parseMimeType();
+        String referer = scanner.field(11);
+        String XForwardedFor = scanner.field(12);
+        String userAgent = parseUserAgent();
+        String acceptLanguage = parseHttpLanguage();
+        String X_CS = scanner.field(15);
 
-        String referer = tuple.getString(11);
-        String XForwardedFor = tuple.getString(12);
-        String userAgent = parseUserAgent(tuple.getString(13));
-        String acceptLanguage = parseHttpLanguage(tuple.getString(14));
-        String X_CS = tuple.getString(15);
-
-
-        outputCollector.emit(new Values(hostName, sequenceNumber, timeStamp,
+        outputCollector.emit(tuple, new Values(hostName, sequenceNumber, timeStamp,
                 responseTime, ipAddress, statusCode, responseSize, requestMethod, url, peerIp,
                 mimeType, referer, XForwardedFor, userAgent, acceptLanguage, X_CS));
-
         outputCollector.ack(tuple);
     }
 
+    /**
+     * @return true if the scanned line should be dropped
+     */
+    private boolean isFiltered() {
+        int start = responseStart();
+        int end = responseEnd();
+        if (scanner.regionStartsWith(start, end, "40") || scanner.regionStartsWith(start, end, "50")) {
+            return true;
+        }
+
+        start = scanner.start(MIMETYPE);
+        end = mimeTypeEnd();
+        if (mimeTypeStartsWith(start, end, "image") || mimeTypeEndsWith(start, end, "javascript")
+                || mimeTypeEndsWith(start, end, "css")) {
+            return true;
+        }
+
+        return scanner.regionContains(scanner.start(URL), scanner.end(URL), "bits.wikimedia.org");
+    }
+
     @Override
     public void cleanup() {
 
@@ -92,9 +127,7 @@ public class KrakenInitialFilterAndCleanerBolt implements IRichBolt {
 
     @Override
     public void declareOutputFields(final OutputFieldsDeclarer outputFieldsDeclarer) {
-        outputFieldsDeclarer.declare(new Fields("hostname", "udplog_sequence", "timestamp", "responsetime",
-                "ipaddress", "response", "size", "httpmethod", "url", "x-forwarded-for",
-                "mimetype", "referrer", "useragent", "", "language", "x-cs"));
+        outputFieldsDeclarer.declare(new Fields(FIELDS));
 
     }
 
@@ -104,65 +137,142 @@ public class KrakenInitialFilterAndCleanerBolt implements IRichBolt {
     }
 
     /**
-     *
-     * @param hostnameInput
+     * Only keep the first two labels of the hostname, without the dot.
+     * @param line
      * @return
      */
-    private String parseHostName(final String hostnameInput) {
-        String[] hostname = hostnameInput.split("\\.");
-        if (hostname.length == 1) {
-            return hostname[0];
-        } else {
-            return hostname[0] + hostname[1];
+    private String parseHostName(final String line) {
+        int start = scanner.start(HOSTNAME);
+        int end = scanner.end(HOSTNAME);
+        int dot = scanner.indexOf('.', start, end);
+        if (dot < 0) {
+            return scanner.field(HOSTNAME);
         }
+        int secondDot = scanner.indexOf('.', dot + 1, end);
+        int secondEnd = secondDot < 0 ? end : secondDot;
+        return new StringBuilder(secondEnd - start - 1)
+                .append(line, start, dot)
+                .append(line, dot + 1, secondEnd)
+                .toString();
     }
 
     /**
-     *
-     * @param mimeTypeInput
+     * @return the end of the first word of the mimetype field
+     */
+    private int mimeTypeEnd() {
+        int end = scanner.indexOf(' ', scanner.start(MIMETYPE), scanner.end(MIMETYPE));
+        return end < 0 ? scanner.end(MIMETYPE) : end;
+    }
+
+    /**
+     * The first word of the mimetype field, without semicolons.
      * @return
      */
-    private String parseMimeType(final String mimeTypeInput) {
-        String[] mimeType = mimeTypeInput.split(" ");
-        return mimeType[0].replace(";", "");
+    private String parseMimeType() {
+        int start = scanner.start(MIMETYPE);
+        int end = mimeTypeEnd();
+        if (scanner.indexOf(';', start, end) < 0) {
+            return scanner.substring(start, end);
+        }
+        StringBuilder mimeType = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = scanner.charAt(i);
+            if (c != ';') {
+                mimeType.append(c);
+            }
+        }
+        return mimeType.toString();
     }
 
     /**
-     *
-     * @param responseInput
+     * @return true if line[start, end) without semicolons starts with prefix
+     */
+    private boolean mimeTypeStartsWith(final int start, final int end, final String prefix) {
+        int pos = start;
+        for (int i = 0; i < prefix.length(); i++) {
+            while (pos < end && scanner.charAt(pos) == ';') {
+                pos++;
+            }
+            if (pos == end || scanner.charAt(pos++) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if line[start, end) without semicolons ends with suffix
+     */
+    private boolean mimeTypeEndsWith(final int start, final int end, final String suffix) {
+        int pos = end - 1;
+        for (int i = suffix.length() - 1; i >= 0; i--) {
+            while (pos >= start && scanner.charAt(pos) == ';') {
+                pos--;
+            }
+            if (pos < start || scanner.charAt(pos--) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The status code is the part after the first slash of the response field, e.g. TCP_MISS/200.
      * @return
      */
-    private String parseResponse(final String responseInput) {
-        if (responseInput.contains("/")) {
-            String[] response = responseInput.split("/");
-            return response[1];
-        } else {
-            return responseInput;
+    private int responseStart() {
+        int slash = scanner.indexOf('/', scanner.start(RESPONSE), scanner.end(RESPONSE));
+        return slash < 0 ? scanner.start(RESPONSE) : slash + 1;
+    }
+
+    private int responseEnd() {
+        int start = responseStart();
+        if (start == scanner.start(RESPONSE)) {
+            return scanner.end(RESPONSE);
         }
+        int slash = scanner.indexOf('/', start, scanner.end(RESPONSE));
+        return slash < 0 ? scanner.end(RESPONSE) : slash;
     }
 
     /**
      *
-     * @param userAgentInput
      * @return
      */
-    private String parseUserAgent(final String userAgentInput) {
-        return userAgentInput.replace("%20", " ");
+    private String parseUserAgent() {
+        String userAgent = scanner.field(USERAGENT);
+        if (scanner.regionContains(scanner.start(USERAGENT), scanner.end(USERAGENT), "%20")) {
+            return userAgent.replace("%20", " ");
+        }
+        return userAgent;
     }
 
     /**
-     *
-     * @param httpLanguageInput
+     * The first language of the Accept-Language header, if it has a quality value.
      * @return
      */
-    private String parseHttpLanguage(final String httpLanguageInput) {
-        String[] languageArray = httpLanguageInput.split(";");
-        if (languageArray.length == 1) {
-            return languageArray[0];
-        } else if (languageArray[0].contains(",")) {
-            String[] language = languageArray[0].split(",");
-            return language[0];
+    private String parseHttpLanguage() {
+        int start = scanner.start(LANGUAGE);
+        int end = scanner.end(LANGUAGE);
+        int semicolon = scanner.indexOf(';', start, end);
+        if (semicolon < 0) {
+            return scanner.field(LANGUAGE);
+        }
+
+        boolean trailing = true;
+        for (int i = semicolon + 1; i < end; i++) {
+            if (scanner.charAt(i) != ';') {
+                trailing = false;
+                break;
+            }
+        }
+        if (trailing) {
+            return scanner.substring(start, semicolon);
+        }
+
+        int comma = scanner.indexOf(',', start, semicolon);
+        if (comma >= 0) {
+            return scanner.substring(start, comma);
         }
-        return  httpLanguageInput;
+        return scanner.field(LANGUAGE);
     }
 }
@@ -21,7 +21,6 @@ package org.wikimedia.analytics.storm;
 import backtype.storm.Config;
 import backtype.storm.spout.SpoutOutputCollector;
 import backtype.storm.task.TopologyContext;
-import backtype.storm.testing.TestWordSpout;
 import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichSpout;
 import backtype.storm.tuple.Fields;
@@ -30,23 +29,73 @@ import backtype.storm.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
 /**
+ * Emits the loglines of a local file, one tuple per line, with the byte offset of
+ * the line as its message id. The line is emitted as is, in a single "line" field,
+ * just like the Kafka spout emits a message.
  *
+ * Every call to {@link #nextTuple()} emits at most a batch of lines, so Storm
+ * keeps control over the executor thread and topology.max.spout.pending limits
+ * the number of lines in flight. Failed lines are emitted again before any new
+ * lines are read.
+ *
+ * The file is read through a large direct buffer, or memory mapped when the
+ * inputFileMapped configuration key is true. The number of lines per batch is
+ * read from the spoutBatchSize configuration key.
  */
 public class KrakenSpout extends BaseRichSpout {
     public static Logger LOG = LoggerFactory.getLogger(KrakenSpout.class);
+
+    /** Maximum number of lines emitted per call to nextTuple */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Maximum number of lines in flight, used by the topology unless topology.max.spout.pending is configured */
+    public static final int DEFAULT_MAX_SPOUT_PENDING = 10000;
+
+    /** Name of the single field emitted by this spout */
+    public static final String LINE_FIELD = "line";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     boolean _isDistributed;
     SpoutOutputCollector _collector;
-    private boolean completed = false;
-    private FileReader fileReader;
+
+    private int batchSize;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    /** Either the mapped file or a window on the file that is refilled from the channel */
+    private ByteBuffer buffer;
+
+    /** File offset of position 0 of the buffer */
+    private long bufferOffset;
+
+    private boolean mapped;
+    private boolean endOfFile;
+
+    /** Reused to decode a line */
+    private byte[] lineBytes = new byte[4096];
+
+    /** Lines that have been emitted but not acked yet, by byte offset */
+    private final Map<Long, String> pending = new HashMap<Long, String>();
+
+    /** Offsets of the lines that failed and should be emitted again */
+    private final LinkedList<Long> failed = new LinkedList<Long>();
+
+    /** Offset of the line that was last returned by {@link #readLine()} */
+    private long lineOffset;
 
     /**
      *
@@ -70,11 +119,24 @@ public class KrakenSpout extends BaseRichSpout {
      * @param collector
      */
     public final void open(final Map conf, final TopologyContext context, final SpoutOutputCollector collector) {
+        String inputFile = conf.get("inputFile").toString();
         try {
-            this.fileReader = new FileReader(conf.get("inputFile").toString());
+            this.file = new RandomAccessFile(inputFile, "r");
+            this.channel = file.getChannel();
+            this.mapped = Boolean.parseBoolean(String.valueOf(conf.get("inputFileMapped")))
+                    && channel.size() <= Integer.MAX_VALUE;
+            if (mapped) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                endOfFile = true;
+            } else {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.flip();
+            }
         } catch (IOException e) {
-            throw new RuntimeException("Error reading file " + conf.get("fileInput"));
+            throw new RuntimeException("Error reading file " + inputFile, e);
         }
+        Object batchSize = conf.get("spoutBatchSize");
+        this.batchSize = batchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize.toString());
         this._collector = collector;
     }
 
@@ -82,31 +144,104 @@ public class KrakenSpout extends BaseRichSpout {
      *
      */
     public void close() {
-
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            LOG.error("Error closing input file", e);
+        }
     }
 
     /**
      *
      */
     public final void nextTuple() {
-        Utils.sleep(100);
-        String logLine;
-        BufferedReader reader = new BufferedReader(fileReader);
+        int emitted = 0;
+        while (emitted < batchSize && !failed.isEmpty()) {
+            Long offset = failed.removeFirst();
+            String logLine = pending.get(offset);
+            if (logLine != null) {
+                emit(logLine, offset);
+                emitted++;
+            }
+        }
 
         try {
-            while ((logLine = reader.readLine()) != null) {
-                _collector.emit(new Values(logLine.split("\t")));
+            String logLine;
+            while (emitted < batchSize && (logLine = readLine()) != null) {
+                Long offset = lineOffset;
+                pending.put(offset, logLine);
+                emit(logLine, offset);
+                emitted++;
             }
         } catch (IOException e) {
             throw new RuntimeException("Error reading tuple", e);
-        } finally {
-            completed = true;
+        }
+
+        if (emitted == 0) {
+            // Nothing left to do until lines are acked or failed
+            Utils.sleep(1);
+        }
+    }
+
+    private void emit(final String logLine, final Long offset) {
+        // The line is tokenized by the (parallel) cleaner bolts, not by this single spout
+        _collector.emit(new Values(logLine), offset);
+    }
+
+    /**
+     * @return the next line of the file, without the line terminator, or null at the end of the file.
+     */
+    private String readLine() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            int limit = buffer.limit();
+            for (int i = scanned; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    return decodeLine(i, i + 1);
+                }
+            }
+            scanned = limit;
+
+            if (endOfFile) {
+                // The last line may not end with a newline
+                return buffer.hasRemaining() ? decodeLine(limit, limit) : null;
+            }
 
+            int consumed = buffer.position();
+            bufferOffset += consumed;
+            scanned -= consumed;
+            if (consumed == 0 && limit == buffer.capacity()) {
+                // A single line fills the whole buffer, make room for more
+                ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            if (channel.read(buffer) < 0) {
+                endOfFile = true;
+            }
+            buffer.flip();
         }
-//        final String[] words = new String[] {"nathan", "mike", "jackson", "golda", "bertels"};
-//        final Random rand = new Random();
-//        final String word = words[rand.nextInt(words.length)];
-//        _collector.emit(new Values(word));
+    }
+
+    /**
+     * Decode the line from the buffer position up to end, and continue after it.
+     */
+    private String decodeLine(final int end, final int next) {
+        int start = buffer.position();
+        lineOffset = bufferOffset + start;
+        int length = end - start;
+        if (length > 0 && buffer.get(end - 1) == '\r') {
+            length--;
+        }
+        if (lineBytes.length < length) {
+            lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+        }
+        buffer.get(lineBytes, 0, length);
+        buffer.position(next);
+        return new String(lineBytes, 0, length, UTF8);
     }
 
     /**
@@ -114,7 +249,7 @@ public class KrakenSpout extends BaseRichSpout {
      * @param msgId
      */
     public void ack(final Object msgId) {
-
+        pending.remove(msgId);
     }
 
     /**
@@ -122,8 +257,8 @@ public class KrakenSpout extends BaseRichSpout {
      * @param msgId
      */
     public void fail(final Object msgId) {
-        System.out.println("ERROR: " + msgId.toString());
-
+        LOG.debug("Replaying line at offset " + msgId);
+        failed.add((Long) msgId);
     }
 
     /**
@@ -131,9 +266,7 @@ public class KrakenSpout extends BaseRichSpout {
      * @param declarer
      */
     public void declareOutputFields(final OutputFieldsDeclarer declarer) {
-        declarer.declare(new Fields("hostname", "udplog_sequence", "timestamp", "responsetime",
-                                    "ipaddress", "response", "size", "httpmethod", "url", "x-forwarded-for",
-                                    "mimetype", "referrer", "useragent", "", "language", "x-cs"));
+        declarer.declare(new Fields(LINE_FIELD));
     }
 
     @Override
@@ -22,6 +22,7 @@ import backtype.storm.Config;
 import backtype.storm.LocalCluster;
 import backtype.storm.StormSubmitter;
 import backtype.storm.topology.TopologyBuilder;
+import backtype.storm.tuple.Fields;
 import backtype.storm.utils.Utils;
 import storm.kafka.KafkaConfig;
 import storm.kafka.KafkaSpout;
@@ -38,9 +39,20 @@ import java.util.List;
  * and cleanup some fields to save diskspace and make future processing easier
  * 3) A split: one stream goes to Redis as a replacement for webstatscollector the other stream
  * continues to HDFS (this is not yet fully implemented).
- * 4) The KrakenGeoBolt geocodes every received logline at the country level (not yet implemented)
- * 5) The KrakenAnonymousBolt removes ip information and replaces that with a cryptographic hash. (not yet implemented)
+ * 4) The KrakenGeoBolt geocodes every received logline at the country level
+ * 5) The KrakenAnonymousBolt removes ip information and replaces that with a cryptographic hash.
  * 6) The KrakenHDFS writer (not yet implemented)
+ *
+ * Steps 4 and 5 only feed the HDFS writer, so they are left out of the topology
+ * until it exists; otherwise every tuple would be geocoded and hashed and then
+ * dropped. The Redis committer cannot consume them either, it needs the real ip
+ * address to filter internal traffic.
+ *
+ * The parallelism of every component can be set with the parallelism.&lt;component&gt; configuration
+ * keys, the number of workers with {@link Config#TOPOLOGY_WORKERS}. Bolts that keep state per key
+ * receive their input through a fieldsGrouping on that key, so the state of a key lives in a single task:
+ * the Redis committer aggregates counts per url, and the geocoder, once wired in, caches lookups per
+ * ip address.
  */
 public class KrakenTopology {
     public Config conf;
@@ -65,6 +77,17 @@ public class KrakenTopology {
         }
         return kafkaServerList;
     }
+    /**
+     *
+     * @param component the name of a spout or bolt
+     * @param defaultParallelism the parallelism hint to use when none is configured
+     * @return the configured parallelism hint of the component
+     */
+    private int parallelism(final String component, final int defaultParallelism) {
+        Object value = conf.get("parallelism." + component);
+        return value == null ? defaultParallelism : Integer.parseInt(value.toString());
+    }
+
     /**
      *
      * @throws Exception
@@ -81,24 +104,31 @@ public class KrakenTopology {
                     (String) conf.get("kafkaZookeeperPath"), // the root path in Zookeeper for the spout to store the consumer offsets
                     (String) conf.get("kafkaProduct")); // an id for this consumer for storing the consumer offsets in Zookeeper
             KafkaSpout kafkaSpout = new KafkaSpout(spoutConfig);
-            builder.setSpout("kraken-spout", kafkaSpout, 1);
+            builder.setSpout("kraken-spout", kafkaSpout, parallelism("kraken-spout", 1));
         } else {
+            // A single file can only be read by a single task
             builder.setSpout("kraken-spout", new KrakenSpout(), 1);
+            if (!conf.containsKey(Config.TOPOLOGY_MAX_SPOUT_PENDING)) {
+                conf.setMaxSpoutPending(KrakenSpout.DEFAULT_MAX_SPOUT_PENDING);
+            }
         }
 
+        builder.setBolt("kraken-cleaner", new KrakenInitialFilterAndCleanerBolt(), parallelism("kraken-cleaner", 2))
+                .shuffleGrouping("kraken-spout");
+        Object flushInterval = conf.get("redisFlushInterval");
+        RedisCommitterBolt redisBolt = flushInterval == null ? new RedisCommitterBolt()
+                : new RedisCommitterBolt(Integer.parseInt(flushInterval.toString()));
+        builder.setBolt("redis", redisBolt, parallelism("redis", 2))
+                .fieldsGrouping("kraken-cleaner", new Fields("url"));
 
-        builder.setBolt("kraken-cleaner", new KrakenInitialFilterAndCleanerBolt(), 1).shuffleGrouping("kraken-spout");
-        builder.setBolt("redis", new RedisCommitterBolt()).shuffleGrouping("kraken-cleaner");
-//        builder.setBolt("kraken-geocoder", new KrakenGeoBolt(), 1)
-//                .shuffleGrouping("kraken-cleaner");
-//        builder.setBolt("kraken-anonymizer", new KrakenAnonymousBolt(), 2)
-//                .shuffleGrouping("kraken-geocoder");
-
-
+        // TODO: add the kraken-geocoder (fieldsGrouping on ipaddress) and kraken-anonymizer
+        // (shuffleGrouping on kraken-geocoder) bolts together with the HDFS writer that consumes them.
 
+        if (!conf.containsKey(Config.TOPOLOGY_WORKERS)) {
+            conf.setNumWorkers(1);
+        }
 
         if ("kafka".equals(mode)) {
-            conf.setNumWorkers(1);
             StormSubmitter.submitTopology("Kraken", conf, builder.createTopology());
         } else {
             LocalCluster cluster = new LocalCluster();
@@ -0,0 +1,225 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The approximate pageview counts of a single time window, in fixed memory.
+ *
+ * Every count goes into a {@link CountMinSketch}, and the keys with the largest
+ * estimates are kept in a side table of at most topSize entries, so the top
+ * pages of the window can be listed without storing every key. Windows of the
+ * same period and dimensions, for example of different bolt instances, can be
+ * merged, and are serialized as a deflated byte array. Keys longer than
+ * {@link #MAX_KEY_LENGTH} characters are truncated, so every key can be
+ * serialized.
+ *
+ * Instances are not thread-safe.
+ */
+public class PageviewWindow {
+    private static final int VERSION = 1;
+
+    /** Maximum length of a key, a key of this length is at most 24KB in modified UTF-8 */
+    public static final int MAX_KEY_LENGTH = 8192;
+
+    private static final Comparator<Map.Entry<String, Long>> BY_COUNT = new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+            return b.getValue().compareTo(a.getValue());
+        }
+    };
+
+    private final String window;
+    private final CountMinSketch sketch;
+    private final int topSize;
+
+    /** The heavy hitters and their estimated counts */
+    private final Map<String, Long> top = new HashMap<String, Long>();
+
+    /** The smallest count in top, only valid when top is full */
+    private long topMinimum;
+
+    /**
+     * @param window the period that is counted, for example an hour
+     * @param depth the depth of the sketch
+     * @param width the width of the sketch
+     * @param topSize the number of heavy hitters to keep
+     */
+    public PageviewWindow(final String window, final int depth, final int width, final int topSize) {
+        this(window, new CountMinSketch(depth, width), topSize);
+    }
+
+    private PageviewWindow(final String window, final CountMinSketch sketch, final int topSize) {
+        if (topSize < 1) {
+            throw new IllegalArgumentException("At least one heavy hitter should be kept, got " + topSize);
+        }
+        this.window = window;
+        this.sketch = sketch;
+        this.topSize = topSize;
+    }
+
+    /**
+     * @param count the number of pageviews, negative to undo an earlier add
+     */
+    public void add(final String key, final long count) {
+        String truncated = truncate(key);
+        sketch.add(truncated, count);
+        offer(truncated, sketch.estimate(truncated));
+    }
+
+    private static String truncate(final String key) {
+        return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    private void offer(final String key, final long estimate) {
+        Long previous = top.get(key);
+        if (previous != null || top.size() < topSize) {
+            top.put(key, estimate);
+            if (top.size() == topSize
+                    && (previous == null || previous == topMinimum || estimate < topMinimum)) {
+                topMinimum = minimum();
+            }
+        } else if (estimate > topMinimum) {
+            // Evicting is rare once the heavy hitters are known, so the minimum is found by a scan
+            String smallest = null;
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                if (entry.getValue() == topMinimum) {
+                    smallest = entry.getKey();
+                    break;
+                }
+            }
+            top.remove(smallest);
+            top.put(key, estimate);
+            topMinimum = minimum();
+        }
+    }
+
+    private long minimum() {
+        long minimum = Long.MAX_VALUE;
+        for (long count : top.values()) {
+            minimum = Math.min(minimum, count);
+        }
+        return minimum;
+    }
+
+    /**
+     * @return the estimated number of pageviews of key, never less than the true count
+     */
+    public long estimate(final String key) {
+        return sketch.estimate(truncate(key));
+    }
+
+    /**
+     * @return at most n keys with the largest estimates and their estimates, largest first
+     */
+    public List<Map.Entry<String, Long>> top(final int n) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(top.entrySet());
+        Collections.sort(entries, BY_COUNT);
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * Add the counts of a window of the same period and dimensions, the heavy
+     * hitters of both windows are estimated again with the merged sketch.
+     */
+    public void merge(final PageviewWindow other) {
+        if (!window.equals(other.window)) {
+            throw new IllegalArgumentException("Cannot merge window " + other.window + " into " + window);
+        }
+        sketch.merge(other.sketch);
+        List<String> keys = new ArrayList<String>(top.keySet());
+        keys.addAll(other.top.keySet());
+        top.clear();
+        for (String key : keys) {
+            offer(key, sketch.estimate(key));
+        }
+    }
+
+    public String getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the total number of pageviews in the window
+     */
+    public long getTotal() {
+        return sketch.getTotal();
+    }
+
+    public byte[] toBytes() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+            out.writeInt(VERSION);
+            out.writeUTF(window);
+            out.writeInt(topSize);
+            sketch.write(out);
+            out.writeInt(top.size());
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // A Deflater passed to the stream is not ended by close(), its native memory is freed here
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param bytes a window serialized by {@link #toBytes()}
+     */
+    public static PageviewWindow fromBytes(final byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unknown pageview window version " + version);
+            }
+            String window = in.readUTF();
+            int topSize = in.readInt();
+            PageviewWindow pageviewWindow = new PageviewWindow(window, CountMinSketch.read(in), topSize);
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                pageviewWindow.offer(in.readUTF(), in.readLong());
+            }
+            return pageviewWindow;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The most recent {@link PageviewWindow}s of a bolt, one per hour.
+ *
+ * Only the newest maxWindows hours are kept; older windows are evicted and
+ * counts for an hour at or before the most recently evicted one are rejected
+ * and counted as late, since adding them to a new window would overwrite the
+ * counts that were stored for that hour. The windows that changed since they
+ * were last persisted are tracked as dirty, together with the counts that were
+ * added to them, so a failed write can be rolled back and the counts counted
+ * again when their tuples are replayed.
+ *
+ * The owner may keep more than maxWindows windows until they are persisted,
+ * but never more than limit: it checks {@link #hasRoom(int)} before counting a
+ * new hour, which keeps the memory fixed while the windows cannot be written.
+ *
+ * Instances are not thread-safe.
+ */
+class PageviewWindows {
+    private final int depth;
+    private final int width;
+    private final int topSize;
+    private final int maxWindows;
+    private final int limit;
+
+    /** The windows per hour, oldest first */
+    private final TreeMap<String, PageviewWindow> windows = new TreeMap<String, PageviewWindow>();
+
+    /** Hours that changed since they were last persisted */
+    private final TreeSet<String> dirty = new TreeSet<String>();
+
+    /** The counts added since the windows were last persisted, per hour and key */
+    private final Map<String, Map<String, long[]>> unpersisted = new HashMap<String, Map<String, long[]>>();
+
+    /** The most recent hour that was evicted */
+    private String droppedHour;
+
+    /** Number of counts rejected because their window was evicted */
+    private long late;
+
+    /**
+     * @param depth the depth of the sketch of a window
+     * @param width the width of the sketch of a window
+     * @param topSize the number of heavy hitters per window
+     * @param maxWindows the number of hours kept
+     * @param limit the maximum number of windows, including those that wait to be evicted
+     */
+    PageviewWindows(final int depth, final int width, final int topSize, final int maxWindows, final int limit) {
+        if (maxWindows < 1) {
+            throw new IllegalArgumentException("At least one window should be kept, got " + maxWindows);
+        }
+        if (limit <= maxWindows) {
+            throw new IllegalArgumentException("The window limit should be larger than " + maxWindows + ", got " + limit);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.topSize = topSize;
+        this.maxWindows = maxWindows;
+        this.limit = limit;
+    }
+
+    /**
+     * @return false, and count the hour as late, if its window was already evicted
+     */
+    boolean accepts(final String hour) {
+        if (droppedHour != null && hour.compareTo(droppedHour) <= 0) {
+            late++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param newWindows the number of windows that would be added
+     * @return true if that many windows can be added without exceeding the limit
+     */
+    boolean hasRoom(final int newWindows) {
+        return windows.size() + newWindows <= limit;
+    }
+
+    boolean contains(final String hour) {
+        return windows.containsKey(hour);
+    }
+
+    /**
+     * Start counting an hour from a window that was stored earlier, for example
+     * by a previous instance of the bolt.
+     * @throws IllegalArgumentException if the window has other dimensions
+     */
+    void restore(final PageviewWindow stored) {
+        PageviewWindow window = newWindow(stored.getWindow());
+        window.merge(stored);
+        windows.put(stored.getWindow(), window);
+    }
+
+    /**
+     * @param count the number of pageviews, negative to undo an earlier add
+     */
+    void add(final String key, final String hour, final long count) {
+        PageviewWindow window = windows.get(hour);
+        if (window == null) {
+            window = newWindow(hour);
+            windows.put(hour, window);
+        }
+        window.add(key, count);
+        dirty.add(hour);
+
+        Map<String, long[]> keys = unpersisted.get(hour);
+        if (keys == null) {
+            keys = new HashMap<String, long[]>();
+            unpersisted.put(hour, keys);
+        }
+        long[] added = keys.get(key);
+        if (added == null) {
+            keys.put(key, new long[] {count});
+        } else {
+            added[0] += count;
+        }
+    }
+
+    private PageviewWindow newWindow(final String hour) {
+        return new PageviewWindow(hour, depth, width, topSize);
+    }
+
+    PageviewWindow get(final String hour) {
+        return windows.get(hour);
+    }
+
+    /**
+     * @return the windows that changed since {@link #markPersisted()}, oldest first
+     */
+    List<PageviewWindow> getDirty() {
+        List<PageviewWindow> result = new ArrayList<PageviewWindow>();
+        for (String hour : dirty) {
+            PageviewWindow window = windows.get(hour);
+            if (window != null) {
+                result.add(window);
+            }
+        }
+        return result;
+    }
+
+    void markPersisted() {
+        dirty.clear();
+        unpersisted.clear();
+    }
+
+    /**
+     * Subtract the counts added since the windows were last persisted, so the
+     * windows are back to the state that was persisted.
+     */
+    void rollback() {
+        for (Map.Entry<String, Map<String, long[]>> hour : unpersisted.entrySet()) {
+            PageviewWindow window = windows.get(hour.getKey());
+            for (Map.Entry<String, long[]> key : hour.getValue().entrySet()) {
+                window.add(key.getKey(), -key.getValue()[0]);
+            }
+        }
+        markPersisted();
+    }
+
+    /**
+     * @return true if evicting now would drop a window that was not persisted
+     */
+    boolean isEvictingDirty() {
+        int excess = windows.size() - maxWindows;
+        for (String hour : windows.keySet()) {
+            if (excess-- <= 0) {
+                break;
+            }
+            if (dirty.contains(hour)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the oldest windows until at most maxWindows are left.
+     * @return the number of windows dropped
+     */
+    int evict() {
+        int evicted = 0;
+        while (windows.size() > maxWindows) {
+            droppedHour = windows.pollFirstEntry().getKey();
+            dirty.remove(droppedHour);
+            unpersisted.remove(droppedHour);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    String getDroppedHour() {
+        return droppedHour;
+    }
+
+    /**
+     * @return the number of counts rejected because their window was evicted
+     */
+    long getLateCount() {
+        return late;
+    }
+
+    int size() {
+        return windows.size();
+    }
+}
@@ -18,87 +18,479 @@
  */
 package org.wikimedia.analytics.storm;
 
-import backtype.storm.coordination.BatchOutputCollector;
+import backtype.storm.Config;
+import backtype.storm.Constants;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
 import backtype.storm.topology.OutputFieldsDeclarer;
-import backtype.storm.transactional.TransactionAttempt;
 import backtype.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wikimedia.analytics.kraken.pageview.Pageview;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
+ * Counts pageviews per canonical page and hour in fixed memory.
  *
+ * Every hour is a {@link PageviewWindow}: a Count-Min sketch of the counts per
+ * canonical key with a side table of the heavy hitters, so neither the memory of
+ * the bolt nor the Redis keyspace grows with the number of pages. Increments are
+ * buffered per (canonical key, hour) and added to the windows when a tick tuple
+ * arrives or when the number of buffered tuples reaches the batch size.
+ *
+ * The windows that changed are written to Redis every persist interval, in a
+ * single pipelined round trip, as field &lt;task index&gt; of the hash
+ * pageviews:&lt;hour&gt;, so a reader merges the windows of all the instances of
+ * the bolt. Serializing a window is far more expensive than counting a batch,
+ * which is why it does not happen on every tick. A tuple is only acked once
+ * the windows holding its count have been written; when the write fails its
+ * count is subtracted from the windows again and the tuple is failed, so the
+ * spout replays it. The persist interval is capped at half the message timeout
+ * of the topology so counted tuples do not time out. The first time a task
+ * counts an hour it reads back the window it stored earlier, so a restarted
+ * task adds to its stored counts instead of overwriting them.
+ *
+ * Only the most recent sketchWindows hours are kept, tuples of older hours are
+ * dropped and counted as late tuples, which are logged. While the windows cannot
+ * be written at most sketchMaxWindows windows are kept, tuples of new hours
+ * beyond that are failed, so the spout backs off until Redis is back. When sketchDirectory is
+ * set the windows are also written to &lt;hour&gt;-&lt;task index&gt;.cms files in that
+ * directory.
+ *
+ * The batch size is read from the redisBatchSize configuration key, the persist
+ * interval (in seconds) from sketchPersistInterval and the sketch dimensions from
+ * sketchDepth, sketchWidth and sketchTopSize. The flush interval is passed to the
+ * constructor as it becomes part of the topology.
  */
 public class RedisCommitterBolt implements IRichBolt {
+    private static final Logger LOG = LoggerFactory.getLogger(RedisCommitterBolt.class);
+
     /** */
     public static final String LAST_COMMITED_TRANSACTION_FIELD = "LAST_COMMIT";
 
-    /** */
-    private TransactionAttempt id;
+    /** Flush after this many buffered tuples */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Flush at least this often, in seconds */
+    public static final int DEFAULT_FLUSH_INTERVAL = 1;
+
+    /** Write the changed windows to Redis at least this often, in seconds */
+    public static final int DEFAULT_PERSIST_INTERVAL = 60;
+
+    /** Count-Min sketch dimensions, the overestimate is at most e / width of the hourly total with 98% probability */
+    public static final int DEFAULT_SKETCH_DEPTH = 4;
+    public static final int DEFAULT_SKETCH_WIDTH = 16384;
+
+    /** Number of heavy hitters kept per window */
+    public static final int DEFAULT_SKETCH_TOP_SIZE = 1000;
+
+    /** Number of hourly windows kept in memory, tuples of older hours are dropped */
+    public static final int DEFAULT_SKETCH_WINDOWS = 2;
+
+    /** Number of windows that may wait to be written on top of sketchWindows */
+    public static final int DEFAULT_SKETCH_EXTRA_WINDOWS = 2;
+
+    /** Storm's default of topology.message.timeout.secs */
+    private static final int DEFAULT_MESSAGE_TIMEOUT = 30;
+
+    /** Seconds a window is kept in Redis */
+    public static final int DEFAULT_SKETCH_TTL = 7 * 24 * 3600;
+
+    public static final String KEY_PREFIX = "pageviews:";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Used when a timestamp cannot be parsed */
+    private static final String UNKNOWN_HOUR = "1970-01-01T00";
 
     /** */
-    private BatchOutputCollector collector;
+    private OutputCollector collector;
 
     /** */
     private Jedis jedis;
 
-    /** */
-    private SimpleDateFormat sdf;
+    /** Reused for every tuple to avoid allocating per log line */
+    private Pageview pageview;
+
+    private int batchSize;
+
+    /** Seconds between two tick tuples */
+    private final int flushInterval;
+
+    /** Milliseconds between two writes of the changed windows */
+    private long persistInterval;
+    private long lastPersist;
+
+    /** Pending increments, per canonical key and hour */
+    private final Map<String, Map<String, long[]>> counts = new HashMap<String, Map<String, long[]>>();
+
+    private PageviewWindows windows;
+
+    /** The number of late tuples that has been logged */
+    private long reportedLate;
+
+    /** Hours of the pending increments that have no window yet */
+    private final Set<String> newHours = new HashSet<String>();
+
+    /** The number of tuples failed because the window limit was reached */
+    private long refused;
+
+    private int sketchTtl;
+    private File sketchDirectory;
+    private byte[] taskField;
+    private int taskIndex;
+
+    /** Tuples of the pending increments */
+    private final List<Tuple> pending = new ArrayList<Tuple>();
+
+    /** Tuples that have been counted and are acked once their windows are persisted */
+    private final List<Tuple> counted = new ArrayList<Tuple>();
+
+    /**
+     * Flush every {@link #DEFAULT_FLUSH_INTERVAL} seconds.
+     */
+    public RedisCommitterBolt() {
+        this(DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param flushInterval the maximum number of seconds between two flushes
+     */
+    public RedisCommitterBolt(final int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
 
     /**
+     * Reduce a timestamp like 2013-01-01T12:34:56.789 (or with a space instead
+     * of the T) to its hour, without parsing it into a Date.
      *
      * @param timestamp
-     * @return
+     * @return the hour as yyyy-MM-ddTHH
      */
-    private String parseTimestamp(final String timestamp) {
-        try {
-            return this.sdf.parse(timestamp).toString();
-        } catch (ParseException e) {
-            return "1970-01-01 00:59:59";
+    static String parseTimestamp(final String timestamp) {
+        if (timestamp == null || timestamp.length() < 13) {
+            return UNKNOWN_HOUR;
         }
+        for (int i = 0; i < 13; i++) {
+            char c = timestamp.charAt(i);
+            boolean valid;
+            if (i == 4 || i == 7) {
+                valid = c == '-';
+            } else if (i == 10) {
+                valid = c == 'T' || c == ' ';
+            } else {
+                valid = c >= '0' && c <= '9';
+            }
+            if (!valid) {
+                return UNKNOWN_HOUR;
+            }
+        }
+        return timestamp.charAt(10) == 'T' ? timestamp.substring(0, 13)
+                : timestamp.substring(0, 10) + 'T' + timestamp.substring(11, 13);
     }
 
     @Override
     public void prepare(final Map map, final TopologyContext topologyContext,
                         final OutputCollector outputCollector) {
         System.out.println("OUTPUT: " + Arrays.toString(map.keySet().toArray()));
+        this.collector = outputCollector;
         jedis = new Jedis((String) map.get("redisHost"), Integer.parseInt((String) map.get("redisPort")));
         jedis.connect();
-        this.sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Object batchSize = map.get("redisBatchSize");
+        this.batchSize = batchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(batchSize.toString());
+        int sketchWindows = getInt(map, "sketchWindows", DEFAULT_SKETCH_WINDOWS);
+        this.windows = new PageviewWindows(getInt(map, "sketchDepth", DEFAULT_SKETCH_DEPTH),
+                getInt(map, "sketchWidth", DEFAULT_SKETCH_WIDTH),
+                getInt(map, "sketchTopSize", DEFAULT_SKETCH_TOP_SIZE),
+                sketchWindows,
+                getInt(map, "sketchMaxWindows", sketchWindows + DEFAULT_SKETCH_EXTRA_WINDOWS));
+        this.persistInterval = 1000L * getInt(map, "sketchPersistInterval", DEFAULT_PERSIST_INTERVAL);
+        long messageTimeout = 1000L * getInt(map, Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, DEFAULT_MESSAGE_TIMEOUT);
+        if (persistInterval > messageTimeout / 2) {
+            LOG.warn("sketchPersistInterval of " + persistInterval / 1000 + "s reduced to half the message timeout of "
+                    + messageTimeout / 1000 + "s");
+            persistInterval = messageTimeout / 2;
+        }
+        this.lastPersist = System.currentTimeMillis();
+        this.sketchTtl = getInt(map, "sketchTtl", DEFAULT_SKETCH_TTL);
+        Object directory = map.get("sketchDirectory");
+        this.sketchDirectory = directory == null ? null : new File(directory.toString());
+        this.taskIndex = topologyContext.getThisTaskIndex();
+        this.taskField = String.valueOf(taskIndex).getBytes(UTF8);
+        this.pageview = new Pageview();
+    }
+
+    private static int getInt(final Map map, final String key, final int defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    /**
+     * @return true if the tuple is a tick tuple sent by Storm itself
+     */
+    private static boolean isTickTuple(final Tuple tuple) {
+        return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent())
+                && Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
     }
 
     @Override
     public void execute(final Tuple tuple) {
+        if (isTickTuple(tuple)) {
+            flush();
+            return;
+        }
 
         String ipAddress = tuple.getString(4);
         String statusCode = tuple.getString(5);
+        String requestMethod = tuple.getString(7);
         String url = tuple.getString(8);
-        String requestMethod = tuple.getString(9);
         String mimeType = tuple.getString(10);
         String referer = tuple.getString(11);
         String userAgent = tuple.getString(13);
 
 
-        Pageview pageview = new Pageview(url, referer, userAgent, statusCode, ipAddress, mimeType, requestMethod);
-        if (pageview.isPageview()) {
-            String timestamp = parseTimestamp(tuple.getString(2));
-            pageview.canonicalizeURL();
-            //TODO: this needs to be refined.
-            String key = pageview.getPageviewCanonical().getLanguage() + pageview.getPageviewCanonical().getProject() + pageview.getPageviewCanonical().getArticleTitle();
-            jedis.hincrBy(key, timestamp, 1);
+        pageview.reset(url, referer, userAgent, statusCode, ipAddress, mimeType, requestMethod);
+        if (!pageview.isPageview()) {
+            collector.ack(tuple);
+            return;
+        }
+
+        String hour = parseTimestamp(tuple.getString(2));
+        if (!windows.accepts(hour)) {
+            // The window is gone, counting it again would overwrite its stored counts
+            collector.ack(tuple);
+            return;
+        }
+        if (!windows.contains(hour) && !newHours.contains(hour)) {
+            if (!windows.hasRoom(newHours.size() + 1)) {
+                // Older windows still wait to be written
+                refused++;
+                collector.fail(tuple);
+                return;
+            }
+            newHours.add(hour);
+        }
+        pageview.canonicalizeURL();
+        //TODO: this needs to be refined.
+        String key = pageview.getPageviewCanonical().getLanguage() + pageview.getPageviewCanonical().getProject() + pageview.getPageviewCanonical().getArticleTitle();
+        increment(key, hour);
+        pending.add(tuple);
+
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void increment(final String key, final String hour) {
+        Map<String, long[]> hours = counts.get(key);
+        if (hours == null) {
+            hours = new HashMap<String, long[]>();
+            counts.put(key, hours);
+        }
+        long[] count = hours.get(hour);
+        if (count == null) {
+            hours.put(hour, new long[] {1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Count the pending increments, then write the changed windows if the
+     * persist interval elapsed.
+     */
+    private void flush() {
+        if (!pending.isEmpty()) {
+            boolean success;
+            try {
+                restoreWindows();
+                success = true;
+            } catch (JedisException e) {
+                collector.reportError(e);
+                success = false;
+                // The connection is in an unknown state, reconnect on the next flush
+                disconnect();
+            }
+            if (success) {
+                for (Map.Entry<String, Map<String, long[]>> key : counts.entrySet()) {
+                    for (Map.Entry<String, long[]> hour : key.getValue().entrySet()) {
+                        windows.add(key.getKey(), hour.getKey(), hour.getValue()[0]);
+                    }
+                }
+            }
+            if (success) {
+                counted.addAll(pending);
+            } else {
+                for (Tuple tuple : pending) {
+                    collector.fail(tuple);
+                }
+            }
+            pending.clear();
+            counts.clear();
+            newHours.clear();
+        }
+
+        if (System.currentTimeMillis() - lastPersist >= persistInterval || windows.isEvictingDirty()) {
+            persist();
+        }
+        // Every window is clean now, either persisted or rolled back
+        windows.evict();
+        reportLateTuples();
+    }
+
+    /**
+     * Read back the windows this task stored earlier for the hours it did not count yet.
+     */
+    private void restoreWindows() {
+        TreeSet<String> hours = new TreeSet<String>();
+        for (Map<String, long[]> key : counts.values()) {
+            for (String hour : key.keySet()) {
+                if (!windows.contains(hour)) {
+                    hours.add(hour);
+                }
+            }
+        }
+        if (hours.isEmpty()) {
+            return;
+        }
+        if (!jedis.isConnected()) {
+            jedis.connect();
+        }
+        for (String hour : hours) {
+            byte[] bytes = jedis.hget((KEY_PREFIX + hour).getBytes(UTF8), taskField);
+            if (bytes == null) {
+                continue;
+            }
+            try {
+                windows.restore(PageviewWindow.fromBytes(bytes));
+            } catch (IOException e) {
+                collector.reportError(e);
+            } catch (IllegalArgumentException e) {
+                // Stored with other sketch dimensions, the window starts over
+                collector.reportError(e);
+            }
+        }
+    }
+
+    /**
+     * Write the windows that changed in one pipelined round trip and ack the
+     * counted tuples, or roll back their counts and fail them if the write fails.
+     */
+    private void persist() {
+        List<PageviewWindow> dirty = windows.getDirty();
+        lastPersist = System.currentTimeMillis();
+        if (dirty.isEmpty()) {
+            ackCounted(true);
+            return;
+        }
+
+        Map<String, byte[]> serialized = new HashMap<String, byte[]>();
+        try {
+            if (!jedis.isConnected()) {
+                jedis.connect();
+            }
+            Pipeline pipeline = jedis.pipelined();
+            for (PageviewWindow window : dirty) {
+                byte[] bytes = window.toBytes();
+                serialized.put(window.getWindow(), bytes);
+                byte[] key = (KEY_PREFIX + window.getWindow()).getBytes(UTF8);
+                pipeline.hset(key, taskField, bytes);
+                pipeline.expire(key, sketchTtl);
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            collector.reportError(e);
+            // The counted tuples are replayed by the spout and counted again
+            windows.rollback();
+            ackCounted(false);
+            disconnect();
+            return;
+        }
+        windows.markPersisted();
+        ackCounted(true);
+
+        if (sketchDirectory != null) {
+            for (Map.Entry<String, byte[]> window : serialized.entrySet()) {
+                writeFile(window.getKey(), window.getValue());
+            }
+        }
+    }
+
+    private void ackCounted(final boolean success) {
+        for (Tuple tuple : counted) {
+            if (success) {
+                collector.ack(tuple);
+            } else {
+                collector.fail(tuple);
+            }
+        }
+        counted.clear();
+    }
+
+    private void reportLateTuples() {
+        long late = windows.getLateCount();
+        if (late > reportedLate) {
+            LOG.warn("Dropped " + (late - reportedLate) + " tuples for hours up to " + windows.getDroppedHour()
+                    + ", " + late + " late tuples in total");
+            reportedLate = late;
+        }
+        if (refused > 0) {
+            collector.reportError(new IllegalStateException("Failed " + refused
+                    + " tuples of new hours, the window limit is reached"));
+            refused = 0;
+        }
+    }
+
+    /**
+     * Replace the file of a window, the new file is renamed into place so readers never see a partial window.
+     */
+    private void writeFile(final String hour, final byte[] bytes) {
+        File file = new File(sketchDirectory, hour + "-" + taskIndex + ".cms");
+        File temporary = new File(sketchDirectory, file.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                throw new IOException("Could not rename " + temporary + " to " + file);
+            }
+        } catch (IOException e) {
+            collector.reportError(e);
+        }
+    }
+
+    private void disconnect() {
+        try {
+            jedis.disconnect();
+        } catch (JedisException e) {
+            collector.reportError(e);
         }
     }
 
     @Override
     public void cleanup() {
-
+        flush();
+        persist();
+        disconnect();
     }
 
     @Override
@@ -108,6 +500,8 @@ public class RedisCommitterBolt implements IRichBolt {
 
     @Override
     public Map<String, Object> getComponentConfiguration() {
-        return null;
+        Map<String, Object> conf = new HashMap<String, Object>();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, flushInterval);
+        return conf;
     }
 }
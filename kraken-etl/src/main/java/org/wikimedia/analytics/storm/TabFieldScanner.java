@@ -0,0 +1,149 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+/**
+ * A reusable, mutable flyweight that records the offsets of the tab separated
+ * fields of a logline, so fields can be inspected without being split into
+ * substrings first. Only the fields that survive filtering need to be
+ * materialized with {@link #field(int)}.
+ *
+ * Instances are not thread-safe, use one scanner per bolt.
+ */
+public final class TabFieldScanner {
+    private CharSequence line;
+    private int count;
+    private final int[] starts;
+    private final int[] ends;
+
+    /**
+     * @param maxFields the number of fields to scan, any tabs after the last field are part of it
+     */
+    public TabFieldScanner(final int maxFields) {
+        this.starts = new int[maxFields];
+        this.ends = new int[maxFields];
+    }
+
+    /**
+     * Scan a line, the result of any previous call is discarded.
+     * @param logLine
+     * @return the number of fields found
+     */
+    public int scan(final CharSequence logLine) {
+        this.line = logLine;
+        int length = logLine.length();
+        int start = 0;
+        count = 0;
+        for (int i = 0; i < length && count < starts.length - 1; i++) {
+            if (logLine.charAt(i) == '\t') {
+                starts[count] = start;
+                ends[count] = i;
+                count++;
+                start = i + 1;
+            }
+        }
+        starts[count] = start;
+        ends[count] = length;
+        count++;
+        return count;
+    }
+
+    /**
+     * @return the number of fields found by the last scan
+     */
+    public int size() {
+        return count;
+    }
+
+    public int start(final int field) {
+        return starts[field];
+    }
+
+    public int end(final int field) {
+        return ends[field];
+    }
+
+    /**
+     * @return the field as a String, this allocates
+     */
+    public String field(final int field) {
+        return line.subSequence(starts[field], ends[field]).toString();
+    }
+
+    /**
+     * @return the character at an absolute offset of the line
+     */
+    public char charAt(final int offset) {
+        return line.charAt(offset);
+    }
+
+    /**
+     * @return line[start, end) as a String, this allocates
+     */
+    public String substring(final int start, final int end) {
+        return line.subSequence(start, end).toString();
+    }
+
+    /**
+     * @return the offset of the first c in line[start, end) or -1
+     */
+    public int indexOf(final char c, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if line[start, end) starts with prefix
+     */
+    public boolean regionStartsWith(final int start, final int end, final String prefix) {
+        return end - start >= prefix.length() && regionMatches(start, prefix);
+    }
+
+    /**
+     * @return true if line[start, end) ends with suffix
+     */
+    public boolean regionEndsWith(final int start, final int end, final String suffix) {
+        return end - start >= suffix.length() && regionMatches(end - suffix.length(), suffix);
+    }
+
+    /**
+     * @return true if line[start, end) contains needle
+     */
+    public boolean regionContains(final int start, final int end, final String needle) {
+        for (int i = start; i <= end - needle.length(); i++) {
+            if (regionMatches(i, needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatches(final int offset, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (line.charAt(offset + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
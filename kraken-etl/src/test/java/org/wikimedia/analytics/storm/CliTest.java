@@ -0,0 +1,72 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CliTest {
+
+    @Test
+    public void testParseParallelism() throws ParseException {
+        Map<String, Integer> hints = Cli.parseParallelism("kraken-cleaner=4, redis = 2");
+        assertEquals(2, hints.size());
+        assertEquals(Integer.valueOf(4), hints.get("kraken-cleaner"));
+        assertEquals(Integer.valueOf(2), hints.get("redis"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseParallelismWithoutHint() throws ParseException {
+        Cli.parseParallelism("kraken-cleaner=4,redis");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseParallelismWithoutComponent() throws ParseException {
+        Cli.parseParallelism("=4");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseParallelismNotANumber() throws ParseException {
+        Cli.parseParallelism("redis=two");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseParallelismNotPositive() throws ParseException {
+        Cli.parseParallelism("redis=0");
+    }
+
+    @Test
+    public void testParseWorkers() throws ParseException {
+        assertEquals(3, Cli.parseWorkers("3"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseZeroWorkers() throws ParseException {
+        Cli.parseWorkers("0");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseWorkersNotANumber() throws ParseException {
+        Cli.parseWorkers("many");
+    }
+}
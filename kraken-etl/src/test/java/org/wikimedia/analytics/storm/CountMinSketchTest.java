@@ -0,0 +1,101 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void testAddAndEstimate() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        sketch.add("en.wikipedia/Main_Page", 10);
+        sketch.add("de.wikipedia/Hauptseite", 3);
+        sketch.add("en.wikipedia/Main_Page", 5);
+        assertTrue(sketch.estimate("en.wikipedia/Main_Page") >= 15);
+        assertTrue(sketch.estimate("de.wikipedia/Hauptseite") >= 3);
+        assertEquals(18, sketch.getTotal());
+    }
+
+    @Test
+    public void testNeverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(2, 16);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("page" + (i % 100), 1);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sketch.estimate("page" + i) >= 10);
+        }
+    }
+
+    @Test
+    public void testUndo() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        sketch.add("page", 7);
+        sketch.add("page", -7);
+        assertEquals(0, sketch.estimate("page"));
+        assertEquals(0, sketch.getTotal());
+    }
+
+    @Test
+    public void testMerge() {
+        CountMinSketch a = new CountMinSketch(4, 1024);
+        CountMinSketch b = new CountMinSketch(4, 1024);
+        a.add("page", 2);
+        b.add("page", 3);
+        b.add("other", 1);
+        a.merge(b);
+        assertTrue(a.estimate("page") >= 5);
+        assertTrue(a.estimate("other") >= 1);
+        assertEquals(6, a.getTotal());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOtherDimensions() {
+        new CountMinSketch(4, 1024).merge(new CountMinSketch(4, 512));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDimensions() {
+        new CountMinSketch(0, 1024);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        CountMinSketch sketch = new CountMinSketch(3, 64);
+        sketch.add("page", 42);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bytes));
+        CountMinSketch read = CountMinSketch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(3, read.getDepth());
+        assertEquals(64, read.getWidth());
+        assertEquals(42, read.getTotal());
+        assertEquals(sketch.estimate("page"), read.estimate("page"));
+        assertEquals(sketch.estimate("other"), read.estimate("other"));
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class KrakenAnonymousBoltTest {
+
+    private static long utc(final int year, final int month, final int day,
+                            final int hour, final int minute, final int second, final int millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void testParseTimestamp() {
+        assertEquals(0L, KrakenAnonymousBolt.parseTimestamp("1970-01-01T00:00:00"));
+        assertEquals(utc(2013, 1, 1, 12, 34, 56, 789), KrakenAnonymousBolt.parseTimestamp("2013-01-01T12:34:56.789"));
+        assertEquals(utc(2013, 3, 1, 0, 0, 0, 0), KrakenAnonymousBolt.parseTimestamp("2013-03-01 00:00:00"));
+        assertEquals(utc(2012, 2, 29, 23, 59, 59, 0), KrakenAnonymousBolt.parseTimestamp("2012-02-29T23:59:59"));
+        assertEquals(utc(2000, 12, 31, 1, 2, 3, 4), KrakenAnonymousBolt.parseTimestamp("2000-12-31T01:02:03.004"));
+    }
+
+    @Test
+    public void testParseInvalidTimestamp() {
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp(null));
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp("2013-01-01T12"));
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp("2013-13-01T12:00:00"));
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp("2013/01/01T12:00:00"));
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp("2013-01-01T12:00:0a"));
+        assertEquals(-1L, KrakenAnonymousBolt.parseTimestamp("2013-01-01T12:00:00.1x3"));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageviewWindowTest {
+
+    @Test
+    public void testTop() {
+        PageviewWindow window = new PageviewWindow("2013-01-01T12", 4, 1024, 2);
+        window.add("a", 5);
+        window.add("b", 1);
+        window.add("c", 3);
+        window.add("b", 1);
+
+        List<Map.Entry<String, Long>> top = window.top(10);
+        assertEquals(2, top.size());
+        assertEquals("a", top.get(0).getKey());
+        assertEquals("c", top.get(1).getKey());
+        assertEquals(10, window.getTotal());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PageviewWindow window = new PageviewWindow("2013-01-01T12", 4, 1024, 10);
+        window.add("a", 5);
+        window.add("b", 2);
+
+        PageviewWindow read = PageviewWindow.fromBytes(window.toBytes());
+        assertEquals("2013-01-01T12", read.getWindow());
+        assertEquals(7, read.getTotal());
+        assertEquals(window.estimate("a"), read.estimate("a"));
+        assertEquals(window.estimate("b"), read.estimate("b"));
+        assertEquals(window.top(10).size(), read.top(10).size());
+        assertEquals("a", read.top(1).get(0).getKey());
+    }
+
+    @Test
+    public void testLongKeyRoundTrip() throws IOException {
+        StringBuilder key = new StringBuilder();
+        while (key.length() < 70000) {
+            key.append("\u00e9t\u00e9");
+        }
+        PageviewWindow window = new PageviewWindow("2013-01-01T12", 4, 1024, 10);
+        window.add(key.toString(), 3);
+
+        PageviewWindow read = PageviewWindow.fromBytes(window.toBytes());
+        assertEquals(PageviewWindow.MAX_KEY_LENGTH, read.top(1).get(0).getKey().length());
+        assertEquals(3, read.estimate(key.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoTop() {
+        new PageviewWindow("2013-01-01T12", 4, 1024, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFromCorruptBytes() throws IOException {
+        PageviewWindow.fromBytes(new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void testMerge() {
+        PageviewWindow a = new PageviewWindow("2013-01-01T12", 4, 1024, 10);
+        PageviewWindow b = new PageviewWindow("2013-01-01T12", 4, 1024, 10);
+        a.add("a", 1);
+        b.add("a", 2);
+        b.add("b", 4);
+        a.merge(b);
+        assertTrue(a.estimate("a") >= 3);
+        assertEquals(7, a.getTotal());
+        assertEquals("b", a.top(1).get(0).getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeOtherWindow() {
+        new PageviewWindow("2013-01-01T12", 4, 1024, 10).merge(new PageviewWindow("2013-01-01T13", 4, 1024, 10));
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageviewWindowsTest {
+
+    private PageviewWindows newWindows() {
+        return new PageviewWindows(4, 1024, 10, 2, 3);
+    }
+
+    @Test
+    public void testRollover() {
+        PageviewWindows windows = newWindows();
+        windows.add("a", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 1);
+        assertEquals(0, windows.evict());
+        assertNull(windows.getDroppedHour());
+
+        windows.add("a", "2013-01-01T12", 1);
+        windows.markPersisted();
+        assertEquals(1, windows.evict());
+        assertEquals("2013-01-01T10", windows.getDroppedHour());
+        assertEquals(2, windows.size());
+        assertFalse(windows.contains("2013-01-01T10"));
+        assertTrue(windows.contains("2013-01-01T12"));
+    }
+
+    @Test
+    public void testLateTuples() {
+        PageviewWindows windows = newWindows();
+        windows.add("a", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 1);
+        windows.add("a", "2013-01-01T12", 1);
+        windows.markPersisted();
+        windows.evict();
+
+        assertFalse(windows.accepts("2013-01-01T09"));
+        assertFalse(windows.accepts("2013-01-01T10"));
+        assertTrue(windows.accepts("2013-01-01T11"));
+        assertTrue(windows.accepts("2013-01-01T13"));
+        assertEquals(2, windows.getLateCount());
+    }
+
+    @Test
+    public void testDirty() {
+        PageviewWindows windows = newWindows();
+        windows.add("a", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 1);
+        assertEquals(2, windows.getDirty().size());
+        assertEquals("2013-01-01T10", windows.getDirty().get(0).getWindow());
+
+        windows.markPersisted();
+        assertTrue(windows.getDirty().isEmpty());
+
+        windows.add("b", "2013-01-01T12", 1);
+        // The oldest window has been persisted, so it can be dropped
+        assertFalse(windows.isEvictingDirty());
+        windows.add("b", "2013-01-01T10", 1);
+        assertTrue(windows.isEvictingDirty());
+    }
+
+    @Test
+    public void testRestore() {
+        PageviewWindow stored = new PageviewWindow("2013-01-01T10", 4, 1024, 10);
+        stored.add("a", 5);
+
+        PageviewWindows windows = newWindows();
+        windows.restore(stored);
+        windows.add("a", "2013-01-01T10", 2);
+        assertTrue(windows.get("2013-01-01T10").estimate("a") >= 7);
+        assertEquals(7, windows.get("2013-01-01T10").getTotal());
+    }
+
+    @Test
+    public void testRollback() {
+        PageviewWindow stored = new PageviewWindow("2013-01-01T10", 4, 1024, 10);
+        stored.add("a", 5);
+
+        PageviewWindows windows = newWindows();
+        windows.restore(stored);
+        windows.add("a", "2013-01-01T10", 2);
+        windows.markPersisted();
+        windows.add("a", "2013-01-01T10", 3);
+        windows.add("b", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 4);
+
+        windows.rollback();
+        assertTrue(windows.getDirty().isEmpty());
+        assertEquals(7, windows.get("2013-01-01T10").getTotal());
+        assertEquals(7, windows.get("2013-01-01T10").estimate("a"));
+        assertEquals(0, windows.get("2013-01-01T11").getTotal());
+        assertEquals(7L, (long) windows.get("2013-01-01T10").top(1).get(0).getValue());
+
+        // Nothing is left to undo once rolled back or persisted
+        windows.rollback();
+        assertEquals(7, windows.get("2013-01-01T10").getTotal());
+    }
+
+    @Test
+    public void testRollbackAfterEvict() {
+        PageviewWindows windows = newWindows();
+        windows.add("a", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 1);
+        windows.add("a", "2013-01-01T12", 1);
+        windows.evict();
+        windows.rollback();
+        assertEquals(0, windows.get("2013-01-01T11").getTotal());
+        assertEquals(0, windows.get("2013-01-01T12").getTotal());
+    }
+
+    @Test
+    public void testLimit() {
+        PageviewWindows windows = newWindows();
+        assertTrue(windows.hasRoom(3));
+        assertFalse(windows.hasRoom(4));
+        windows.add("a", "2013-01-01T10", 1);
+        windows.add("a", "2013-01-01T11", 1);
+        assertTrue(windows.hasRoom(1));
+        windows.add("a", "2013-01-01T12", 1);
+        assertFalse(windows.hasRoom(1));
+
+        windows.markPersisted();
+        windows.evict();
+        assertTrue(windows.hasRoom(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLimitBelowWindows() {
+        new PageviewWindows(4, 1024, 10, 2, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRestoreOtherDimensions() {
+        newWindows().restore(new PageviewWindow("2013-01-01T10", 4, 512, 10));
+    }
+}
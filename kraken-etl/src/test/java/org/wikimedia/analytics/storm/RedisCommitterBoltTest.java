@@ -0,0 +1,42 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RedisCommitterBoltTest {
+
+    @Test
+    public void testParseTimestamp() {
+        assertEquals("2013-01-01T12", RedisCommitterBolt.parseTimestamp("2013-01-01T12:34:56.789"));
+        assertEquals("2013-01-01T12", RedisCommitterBolt.parseTimestamp("2013-01-01 12:34:56"));
+        assertEquals("2013-01-01T12", RedisCommitterBolt.parseTimestamp("2013-01-01T12"));
+    }
+
+    @Test
+    public void testParseInvalidTimestamp() {
+        assertEquals("1970-01-01T00", RedisCommitterBolt.parseTimestamp(null));
+        assertEquals("1970-01-01T00", RedisCommitterBolt.parseTimestamp("2013-01-01"));
+        assertEquals("1970-01-01T00", RedisCommitterBolt.parseTimestamp("2013/01/01T12:00:00"));
+        assertEquals("1970-01-01T00", RedisCommitterBolt.parseTimestamp("2013-01-01X12:00:00"));
+        assertEquals("1970-01-01T00", RedisCommitterBolt.parseTimestamp("2013-0a-01T12:00:00"));
+    }
+}
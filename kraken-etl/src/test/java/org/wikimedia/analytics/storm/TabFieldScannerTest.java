@@ -0,0 +1,120 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.storm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TabFieldScannerTest {
+
+    private final TabFieldScanner scanner = new TabFieldScanner(16);
+
+    @Test
+    public void testSixteenFields() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            if (i > 0) {
+                line.append('\t');
+            }
+            line.append("field").append(i);
+        }
+        assertEquals(16, scanner.scan(line));
+        for (int i = 0; i < 16; i++) {
+            assertEquals("field" + i, scanner.field(i));
+        }
+    }
+
+    @Test
+    public void testEmptyFields() {
+        assertEquals(4, scanner.scan("a\t\t\tb"));
+        assertEquals("a", scanner.field(0));
+        assertEquals("", scanner.field(1));
+        assertEquals("", scanner.field(2));
+        assertEquals("b", scanner.field(3));
+        assertEquals(scanner.start(1), scanner.end(1));
+    }
+
+    @Test
+    public void testEmptyLine() {
+        assertEquals(1, scanner.scan(""));
+        assertEquals("", scanner.field(0));
+    }
+
+    @Test
+    public void testTrailingTab() {
+        assertEquals(3, scanner.scan("a\tb\t"));
+        assertEquals("b", scanner.field(1));
+        assertEquals("", scanner.field(2));
+        assertEquals(4, scanner.start(2));
+        assertEquals(4, scanner.end(2));
+    }
+
+    @Test
+    public void testFewerFields() {
+        assertEquals(3, scanner.scan("a\tb\tc"));
+        assertEquals(3, scanner.size());
+        assertEquals("c", scanner.field(2));
+    }
+
+    @Test
+    public void testExtraFields() {
+        TabFieldScanner three = new TabFieldScanner(3);
+        assertEquals(3, three.scan("a\tb\tc\td\te"));
+        assertEquals("a", three.field(0));
+        assertEquals("b", three.field(1));
+        // The tabs after the last field are part of it
+        assertEquals("c\td\te", three.field(2));
+    }
+
+    @Test
+    public void testRescan() {
+        scanner.scan("a\tb\tc\td");
+        assertEquals(2, scanner.scan("x\ty"));
+        assertEquals(2, scanner.size());
+        assertEquals("y", scanner.field(1));
+    }
+
+    @Test
+    public void testRegions() {
+        scanner.scan("GET\thttp://en.wikipedia.org/wiki/Main_Page\ttext/html");
+        int start = scanner.start(1);
+        int end = scanner.end(1);
+        assertTrue(scanner.regionStartsWith(start, end, "http://"));
+        assertFalse(scanner.regionStartsWith(start, end, "https://"));
+        assertTrue(scanner.regionEndsWith(start, end, "Main_Page"));
+        assertFalse(scanner.regionEndsWith(start, end, "text/html"));
+        assertTrue(scanner.regionContains(start, end, "/wiki/"));
+        assertFalse(scanner.regionContains(start, end, "GET"));
+        assertEquals(start + 4, scanner.indexOf(':', start, end));
+        assertEquals(-1, scanner.indexOf('?', start, end));
+        assertEquals("en.wikipedia.org", scanner.substring(start + 7, scanner.indexOf('/', start + 7, end)));
+        assertEquals('t', scanner.charAt(scanner.start(2)));
+    }
+
+    @Test
+    public void testRegionLongerThanField() {
+        scanner.scan("ab\tlonger");
+        assertFalse(scanner.regionStartsWith(scanner.start(0), scanner.end(0), "abc"));
+        assertFalse(scanner.regionEndsWith(scanner.start(0), scanner.end(0), "xab"));
+        assertFalse(scanner.regionContains(scanner.start(0), scanner.end(0), "ab\tl"));
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes EventLogging capsules of a single schema revision into
+ * {@link EventRecord}s.
+ *
+ * When the decoder is built, every property of the schema gets a
+ * {@link PropertyDecoder} for its type that writes the value straight into the
+ * slot of the property, so a line is decoded in a single pass over the tokens
+ * of the streaming parser without building a tree or boxing any value.
+ * Values that do not match the schema (wrong type, unknown enum value, missing
+ * required property) do not throw but mark the record as invalid.
+ *
+ * A decoder is immutable and can be shared between threads, the records cannot.
+ */
+public final class EventDecoder {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final EventSchema schema;
+    private final Map<String, PropertyDecoder> decoders = new HashMap<String, PropertyDecoder>();
+    /** Bit set of the required properties */
+    private final long[] required;
+
+    /**
+     * @param schema the schema revision of the events to decode.
+     */
+    public EventDecoder(final EventSchema schema) {
+        this.schema = schema;
+        this.required = new long[(schema.getPropertyCount() + 63) >>> 6];
+        for (int i = 0; i < schema.getPropertyCount(); i++) {
+            decoders.put(schema.getProperty(i), newPropertyDecoder(schema, i));
+            if (schema.isRequired(i)) {
+                required[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+
+    private static PropertyDecoder newPropertyDecoder(final EventSchema schema, final int property) {
+        switch (schema.getType(property)) {
+            case STRING:
+                return new StringDecoder(property, schema.slot(property));
+            case ENUM:
+                return new EnumDecoder(property, schema.slot(property), schema.getEnumValues(property));
+            case INTEGER:
+                return new IntegerDecoder(property, schema.slot(property));
+            case NUMBER:
+                return new NumberDecoder(property, schema.slot(property));
+            case BOOLEAN:
+                return new BooleanDecoder(property, schema.slot(property));
+            default:
+                return new SkippingDecoder(property);
+        }
+    }
+
+    public EventSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return a new, empty record for this schema.
+     */
+    public EventRecord newRecord() {
+        return new EventRecord(schema);
+    }
+
+    /**
+     * Decode a single EventLogging capsule, as found in the EventLogging
+     * json logs, into record.
+     * @param line the JSON capsule
+     * @param record the record to overwrite
+     * @return true if the event is valid according to the schema
+     * @throws IOException if the line is not a JSON object
+     */
+    public boolean decode(final String line, final EventRecord record) throws IOException {
+        if (record.getSchema() != schema) {
+            throw new IllegalArgumentException("Record of " + record.getSchema() + " passed to decoder of " + schema);
+        }
+        record.reset();
+        JsonParser parser = FACTORY.createJsonParser(line);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Not a JSON object: " + line);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("event".equals(name)) {
+                    if (token == JsonToken.START_OBJECT) {
+                        decodeEvent(parser, record);
+                    } else {
+                        parser.skipChildren();
+                        record.valid = false;
+                    }
+                } else if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                } else if ("schema".equals(name)) {
+                    record.schemaName = stringValue(parser, record);
+                } else if ("revision".equals(name)) {
+                    record.revision = longValue(parser, record);
+                } else if ("timestamp".equals(name)) {
+                    record.timestamp = longValue(parser, record);
+                } else if ("seqId".equals(name)) {
+                    record.seqId = longValue(parser, record);
+                } else if ("wiki".equals(name)) {
+                    record.wiki = stringValue(parser, record);
+                } else if ("webHost".equals(name)) {
+                    record.webHost = stringValue(parser, record);
+                } else if ("uuid".equals(name)) {
+                    record.uuid = stringValue(parser, record);
+                } else if ("clientIp".equals(name)) {
+                    record.clientIp = stringValue(parser, record);
+                } else if ("recvFrom".equals(name)) {
+                    record.recvFrom = stringValue(parser, record);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        if (!schema.getName().equals(record.schemaName) || schema.getRevision() != record.revision) {
+            record.valid = false;
+        }
+        for (int i = 0; i < required.length; i++) {
+            if ((record.present[i] & required[i]) != required[i]) {
+                record.valid = false;
+            }
+        }
+        return record.valid;
+    }
+
+    private void decodeEvent(final JsonParser parser, final EventRecord record) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            PropertyDecoder decoder = decoders.get(parser.getCurrentName());
+            JsonToken token = parser.nextToken();
+            if (decoder == null) {
+                // EventLogging schemas do not allow additional properties
+                record.valid = false;
+                parser.skipChildren();
+            } else if (token != JsonToken.VALUE_NULL) {
+                if (decoder.decode(parser, token, record)) {
+                    record.setPresent(decoder.property);
+                } else {
+                    record.valid = false;
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static String stringValue(final JsonParser parser, final EventRecord record) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        record.valid = false;
+        parser.skipChildren();
+        return null;
+    }
+
+    private static long longValue(final JsonParser parser, final EventRecord record) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue();
+        }
+        record.valid = false;
+        parser.skipChildren();
+        return -1;
+    }
+
+    /**
+     * Decodes the value of a single property into its slot.
+     */
+    private abstract static class PropertyDecoder {
+        final int property;
+        final int slot;
+
+        PropertyDecoder(final int property, final int slot) {
+            this.property = property;
+            this.slot = slot;
+        }
+
+        /**
+         * @param token the current token, the value of the property
+         * @return false if the value does not have the type of the property
+         */
+        abstract boolean decode(JsonParser parser, JsonToken token, EventRecord record) throws IOException;
+    }
+
+    private static final class StringDecoder extends PropertyDecoder {
+        StringDecoder(final int property, final int slot) {
+            super(property, slot);
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            if (token != JsonToken.VALUE_STRING) {
+                return false;
+            }
+            record.strings[slot] = parser.getText();
+            return true;
+        }
+    }
+
+    private static final class EnumDecoder extends PropertyDecoder {
+        private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+        EnumDecoder(final int property, final int slot, final String[] values) {
+            super(property, slot);
+            for (int i = 0; i < values.length; i++) {
+                ordinals.put(values[i], i);
+            }
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            if (token != JsonToken.VALUE_STRING) {
+                return false;
+            }
+            Integer ordinal = ordinals.get(parser.getText());
+            if (ordinal == null) {
+                return false;
+            }
+            record.longs[slot] = ordinal;
+            return true;
+        }
+    }
+
+    private static final class IntegerDecoder extends PropertyDecoder {
+        IntegerDecoder(final int property, final int slot) {
+            super(property, slot);
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            if (token != JsonToken.VALUE_NUMBER_INT) {
+                return false;
+            }
+            record.longs[slot] = parser.getLongValue();
+            return true;
+        }
+    }
+
+    private static final class NumberDecoder extends PropertyDecoder {
+        NumberDecoder(final int property, final int slot) {
+            super(property, slot);
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+                return false;
+            }
+            record.doubles[slot] = parser.getDoubleValue();
+            return true;
+        }
+    }
+
+    private static final class BooleanDecoder extends PropertyDecoder {
+        BooleanDecoder(final int property, final int slot) {
+            super(property, slot);
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+                return false;
+            }
+            record.longs[slot] = token == JsonToken.VALUE_TRUE ? 1L : 0L;
+            return true;
+        }
+    }
+
+    /**
+     * Objects and arrays are accepted but not decoded.
+     */
+    private static final class SkippingDecoder extends PropertyDecoder {
+        SkippingDecoder(final int property) {
+            super(property, -1);
+        }
+
+        @Override
+        boolean decode(final JsonParser parser, final JsonToken token, final EventRecord record) throws IOException {
+            parser.skipChildren();
+            return true;
+        }
+    }
+}
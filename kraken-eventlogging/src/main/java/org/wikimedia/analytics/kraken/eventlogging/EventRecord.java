@@ -0,0 +1,206 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import java.util.Arrays;
+
+/**
+ * A decoded EventLogging event: the fields of the capsule and the properties
+ * of the event, stored in primitive arrays laid out by an {@link EventSchema}.
+ *
+ * A record is meant to be reused, {@link EventDecoder#decode(String, EventRecord)}
+ * overwrites it for every line. Instances are not thread-safe.
+ */
+public final class EventRecord {
+    private final EventSchema schema;
+
+    final long[] longs;
+    final double[] doubles;
+    final String[] strings;
+    /** Bit set of the properties that were present (and not null) in the event */
+    final long[] present;
+
+    // Capsule
+    String schemaName;
+    long revision;
+    long timestamp;
+    long seqId;
+    String wiki;
+    String webHost;
+    String uuid;
+    String clientIp;
+    String recvFrom;
+    boolean valid;
+
+    /**
+     * @param schema the schema of the events this record will hold.
+     */
+    public EventRecord(final EventSchema schema) {
+        this.schema = schema;
+        this.longs = new long[schema.getLongSlots()];
+        this.doubles = new double[schema.getDoubleSlots()];
+        this.strings = new String[schema.getStringSlots()];
+        this.present = new long[(schema.getPropertyCount() + 63) >>> 6];
+        reset();
+    }
+
+    /**
+     * Forget the previous event, the values of the primitive slots are left
+     * as they are but are not present anymore.
+     */
+    void reset() {
+        Arrays.fill(present, 0L);
+        Arrays.fill(strings, null);
+        schemaName = null;
+        revision = -1;
+        timestamp = -1;
+        seqId = -1;
+        wiki = null;
+        webHost = null;
+        uuid = null;
+        clientIp = null;
+        recvFrom = null;
+        valid = true;
+    }
+
+    void setPresent(final int property) {
+        present[property >>> 6] |= 1L << property;
+    }
+
+    public EventSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return true if the event matched the schema: every required property was
+     * present, every value had the type of its property, and the capsule named
+     * this schema and revision.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return true if the event had a non-null value for the property.
+     */
+    public boolean has(final int property) {
+        return (present[property >>> 6] & (1L << property)) != 0;
+    }
+
+    /**
+     * @return the value of an integer property, 0 if it is missing.
+     */
+    public long getLong(final int property) {
+        check(property, EventSchema.Type.INTEGER);
+        return has(property) ? longs[schema.slot(property)] : 0L;
+    }
+
+    /**
+     * @return the value of a number property, 0 if it is missing.
+     */
+    public double getDouble(final int property) {
+        check(property, EventSchema.Type.NUMBER);
+        return has(property) ? doubles[schema.slot(property)] : 0.0;
+    }
+
+    /**
+     * @return the value of a boolean property, false if it is missing.
+     */
+    public boolean getBoolean(final int property) {
+        check(property, EventSchema.Type.BOOLEAN);
+        return has(property) && longs[schema.slot(property)] != 0;
+    }
+
+    /**
+     * @return the index of the value of an enum property in
+     * {@link EventSchema#getEnumValues(int)}, -1 if it is missing.
+     */
+    public int getEnumOrdinal(final int property) {
+        check(property, EventSchema.Type.ENUM);
+        return has(property) ? (int) longs[schema.slot(property)] : -1;
+    }
+
+    /**
+     * @return the value of a string or enum property, null if it is missing.
+     * Enum values are the (shared) strings of the schema.
+     */
+    public String getString(final int property) {
+        if (schema.getType(property) == EventSchema.Type.ENUM) {
+            int ordinal = getEnumOrdinal(property);
+            return ordinal < 0 ? null : schema.enumValue(property, ordinal);
+        }
+        check(property, EventSchema.Type.STRING);
+        return strings[schema.slot(property)];
+    }
+
+    private void check(final int property, final EventSchema.Type type) {
+        if (schema.getType(property) != type) {
+            throw new IllegalArgumentException("Property " + schema.getProperty(property) + " of "
+                    + schema + " is of type " + schema.getType(property) + ", not " + type);
+        }
+    }
+
+    /**
+     * @return the name of the schema in the capsule.
+     */
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * @return the revision of the schema in the capsule, -1 if it is missing.
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the unix timestamp (in seconds) of the capsule, -1 if it is missing.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the sequence id of the capsule, -1 if it is missing.
+     */
+    public long getSeqId() {
+        return seqId;
+    }
+
+    public String getWiki() {
+        return wiki;
+    }
+
+    public String getWebHost() {
+        return webHost;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public String getRecvFrom() {
+        return recvFrom;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A single revision of an EventLogging JSON schema, as stored on
+ * https://meta.wikimedia.org/wiki/Schema:*
+ *
+ * Every property of the schema is numbered in the order of the schema and
+ * gets a slot in one of the primitive arrays of an {@link EventRecord}:
+ * integers, booleans and enum ordinals are stored as longs, numbers as
+ * doubles and strings as Strings. Properties of any other type (objects and
+ * arrays) are not decoded.
+ */
+public final class EventSchema {
+    /** The type of a property */
+    public enum Type {
+        STRING, ENUM, INTEGER, NUMBER, BOOLEAN, OTHER
+    }
+
+    private final String name;
+    private final long revision;
+
+    private final String[] properties;
+    private final Type[] types;
+    private final boolean[] required;
+    private final String[][] enumValues;
+    private final int[] slots;
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+    private final int longSlots;
+    private final int doubleSlots;
+    private final int stringSlots;
+
+    /**
+     * @param name the name of the schema.
+     * @param revision the Mediawiki revision id of the schema document.
+     * @param schema the JSON schema, either with a "properties" object or
+     *        the properties themselves.
+     * @throws IllegalArgumentException if the schema has no properties.
+     */
+    public EventSchema(final String name, final long revision, final JsonNode schema) {
+        this.name = name;
+        this.revision = revision;
+
+        JsonNode root = schema.has("properties") ? schema.get("properties") : schema;
+        if (!root.isObject() || root.size() == 0) {
+            throw new IllegalArgumentException("Schema " + name + " revision " + revision + " has no properties");
+        }
+        int count = root.size();
+        properties = new String[count];
+        types = new Type[count];
+        required = new boolean[count];
+        enumValues = new String[count][];
+        slots = new int[count];
+
+        int longs = 0;
+        int doubles = 0;
+        int strings = 0;
+        int i = 0;
+        Iterator<Entry<String, JsonNode>> it = root.fields();
+        while (it.hasNext()) {
+            Entry<String, JsonNode> property = it.next();
+            JsonNode definition = property.getValue();
+            properties[i] = property.getKey();
+            index.put(properties[i], i);
+            types[i] = typeOf(definition);
+            required[i] = definition.path("required").asBoolean(false);
+            if (types[i] == Type.ENUM) {
+                List<String> values = new ArrayList<String>();
+                for (JsonNode value : definition.get("enum")) {
+                    values.add(value.asText());
+                }
+                enumValues[i] = values.toArray(new String[values.size()]);
+            }
+            switch (types[i]) {
+                case STRING:
+                    slots[i] = strings++;
+                    break;
+                case NUMBER:
+                    slots[i] = doubles++;
+                    break;
+                case OTHER:
+                    slots[i] = -1;
+                    break;
+                default:
+                    slots[i] = longs++;
+                    break;
+            }
+            i++;
+        }
+        this.longSlots = longs;
+        this.doubleSlots = doubles;
+        this.stringSlots = strings;
+    }
+
+    private static Type typeOf(final JsonNode definition) {
+        String type = definition.path("type").asText();
+        if ("string".equals(type)) {
+            return definition.path("enum").isArray() ? Type.ENUM : Type.STRING;
+        } else if ("integer".equals(type)) {
+            return Type.INTEGER;
+        } else if ("number".equals(type)) {
+            return Type.NUMBER;
+        } else if ("boolean".equals(type)) {
+            return Type.BOOLEAN;
+        }
+        return Type.OTHER;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public int getPropertyCount() {
+        return properties.length;
+    }
+
+    /**
+     * @return the number of the property or -1 if the schema does not have it.
+     */
+    public int indexOf(final String property) {
+        Integer i = index.get(property);
+        return i == null ? -1 : i;
+    }
+
+    public String getProperty(final int property) {
+        return properties[property];
+    }
+
+    public Type getType(final int property) {
+        return types[property];
+    }
+
+    public boolean isRequired(final int property) {
+        return required[property];
+    }
+
+    /**
+     * @return the allowed values of an enum property, in the order of the schema.
+     */
+    public String[] getEnumValues(final int property) {
+        return enumValues[property] == null ? null : enumValues[property].clone();
+    }
+
+    String enumValue(final int property, final int ordinal) {
+        return enumValues[property][ordinal];
+    }
+
+    /**
+     * @return the index of the property in the array of a record that holds its type.
+     */
+    int slot(final int property) {
+        return slots[property];
+    }
+
+    int getLongSlots() {
+        return longSlots;
+    }
+
+    int getDoubleSlots() {
+        return doubleSlots;
+    }
+
+    int getStringSlots() {
+        return stringSlots;
+    }
+
+    @Override
+    public String toString() {
+        return name + "_" + revision;
+    }
+}
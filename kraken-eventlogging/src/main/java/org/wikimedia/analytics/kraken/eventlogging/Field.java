@@ -67,9 +67,9 @@ public class Field {
         return (Boolean) value;
     }
 
+    @SuppressWarnings("unchecked")
     public ArrayList<String> getArrayListString() {
-        //Not yet implemented
-        return new ArrayList<String>();
+        return (ArrayList<String>) value;
     }
     // equals, hashCode
 }
@@ -110,7 +110,8 @@ public class Parser {
     }
 
     /**
-     * Load event logging json schema.
+     * Load event logging json schema. This fetches the schema from meta.wikimedia.org,
+     * use a {@link SchemaRegistry} to decode events with locally stored schemas.
      *
      * @param schemaName the schema name
      * @param revisionId the Mediawiki revisionid of the schema document.
@@ -125,9 +126,10 @@ public class Parser {
         try {
             Charset cs = Charset.forName("utf-8");
             reader = new BufferedReader(new InputStreamReader(url.openStream(), cs));
-            int cp;
-            while ((cp = reader.read()) != -1) {
-                buffer.append((char) cp);
+            char[] chars = new char[8192];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                buffer.append(chars, 0, read);
             }
         } finally {
             if (reader != null)
@@ -0,0 +1,128 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads EventLogging schema revisions from a local directory or from the
+ * classpath, and caches them, and the decoders built from them, by name and
+ * revision. Schema revisions are immutable on meta.wikimedia.org, so a cached
+ * entry never has to be reloaded.
+ *
+ * A schema revision is looked up as &lt;directory&gt;/&lt;name&gt;/&lt;revision&gt;.json
+ * and then as the resource {@link #RESOURCE_PREFIX}&lt;name&gt;/&lt;revision&gt;.json,
+ * so schemas can be shipped inside a jar.
+ *
+ * This jar does not bundle any schema. At runtime the schemas are read from a
+ * directory, given to the constructor or with the system property
+ * {@link #DIRECTORY_PROPERTY}, that holds the raw schema revisions as found at
+ * {@link Parser#generateSchemaUrl(String, String)}, or from a jar on the
+ * classpath that bundles them under {@link #RESOURCE_PREFIX}.
+ */
+public class SchemaRegistry {
+    /** Classpath location of bundled schemas */
+    public static final String RESOURCE_PREFIX = "eventlogging/schemas/";
+    /** System property with the schema directory of the default registry */
+    public static final String DIRECTORY_PROPERTY = "kraken.eventlogging.schemas";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File directory;
+    private final ConcurrentMap<String, EventDecoder> decoders = new ConcurrentHashMap<String, EventDecoder>();
+
+    /**
+     * A registry of the schemas in the directory of the system property
+     * {@link #DIRECTORY_PROPERTY}, if set, and on the classpath.
+     */
+    public SchemaRegistry() {
+        this(System.getProperty(DIRECTORY_PROPERTY) == null ? null : new File(System.getProperty(DIRECTORY_PROPERTY)));
+    }
+
+    /**
+     * @param directory the directory with the schemas, may be null.
+     */
+    public SchemaRegistry(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the schema revision
+     * @throws FileNotFoundException if the revision is neither in the directory nor on the classpath
+     * @throws IOException if the schema cannot be read or parsed
+     */
+    public EventSchema getSchema(final String name, final long revision) throws IOException {
+        return getDecoder(name, revision).getSchema();
+    }
+
+    /**
+     * @return the (shared) decoder for events of the schema revision
+     * @throws FileNotFoundException if the revision is neither in the directory nor on the classpath
+     * @throws IOException if the schema cannot be read or parsed
+     */
+    public EventDecoder getDecoder(final String name, final long revision) throws IOException {
+        String key = name + "_" + revision;
+        EventDecoder decoder = decoders.get(key);
+        if (decoder == null) {
+            decoder = new EventDecoder(load(name, revision));
+            EventDecoder existing = decoders.putIfAbsent(key, decoder);
+            if (existing != null) {
+                decoder = existing;
+            }
+        }
+        return decoder;
+    }
+
+    private EventSchema load(final String name, final long revision) throws IOException {
+        if (name == null || name.length() == 0 || name.indexOf('/') >= 0
+                || name.indexOf('\\') >= 0 || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid schema name: " + name);
+        }
+        String path = name + "/" + revision + ".json";
+
+        InputStream stream = null;
+        if (directory != null) {
+            File file = new File(directory, path);
+            if (file.isFile()) {
+                stream = new FileInputStream(file);
+            }
+        }
+        if (stream == null) {
+            stream = getClass().getClassLoader().getResourceAsStream(RESOURCE_PREFIX + path);
+        }
+        if (stream == null) {
+            throw new FileNotFoundException("Schema " + name + " revision " + revision + " not found");
+        }
+        try {
+            return new EventSchema(name, revision, MAPPER.readTree(stream));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+    }
+}
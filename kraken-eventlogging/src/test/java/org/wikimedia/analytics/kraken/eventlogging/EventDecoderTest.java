@@ -0,0 +1,118 @@
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventDecoderTest {
+    private static final String CAPSULE = "{\"event\": {\"pageId\": 42, \"isAnon\": true, \"action\": \"edit\","
+            + " \"userAgent\": \"Mozilla/5.0\", \"loadTime\": 1.5, \"extra\": {\"a\": [1, 2]}},"
+            + " \"clientIp\": \"127.0.0.1\", \"clientValidated\": true, \"recvFrom\": \"cp1001\","
+            + " \"revision\": 1, \"schema\": \"NavigationTiming\", \"seqId\": 7, \"timestamp\": 1364000000,"
+            + " \"uuid\": \"abc\", \"webHost\": \"en.wikipedia.org\", \"wiki\": \"enwiki\"}";
+
+    private EventDecoder decoder;
+    private EventRecord record;
+
+    @Before
+    public void setUp() throws IOException {
+        decoder = new SchemaRegistry().getDecoder("NavigationTiming", 1);
+        record = decoder.newRecord();
+    }
+
+    @Test
+    public void testDecode() throws IOException {
+        EventSchema schema = decoder.getSchema();
+        assertTrue(decoder.decode(CAPSULE, record));
+
+        assertEquals(42L, record.getLong(schema.indexOf("pageId")));
+        assertTrue(record.getBoolean(schema.indexOf("isAnon")));
+        assertEquals(1, record.getEnumOrdinal(schema.indexOf("action")));
+        assertSame(schema.getEnumValues(schema.indexOf("action"))[1], record.getString(schema.indexOf("action")));
+        assertEquals("Mozilla/5.0", record.getString(schema.indexOf("userAgent")));
+        assertEquals(1.5, record.getDouble(schema.indexOf("loadTime")), 0.0);
+        assertTrue(record.has(schema.indexOf("extra")));
+
+        assertEquals("NavigationTiming", record.getSchemaName());
+        assertEquals(1L, record.getRevision());
+        assertEquals(1364000000L, record.getTimestamp());
+        assertEquals(7L, record.getSeqId());
+        assertEquals("enwiki", record.getWiki());
+        assertEquals("en.wikipedia.org", record.getWebHost());
+        assertEquals("abc", record.getUuid());
+        assertEquals("127.0.0.1", record.getClientIp());
+        assertEquals("cp1001", record.getRecvFrom());
+    }
+
+    @Test
+    public void testReuseRecord() throws IOException {
+        EventSchema schema = decoder.getSchema();
+        assertTrue(decoder.decode(CAPSULE, record));
+        assertTrue(decoder.decode("{\"event\": {\"pageId\": 1, \"isAnon\": false},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 1}", record));
+
+        assertEquals(1L, record.getLong(schema.indexOf("pageId")));
+        assertFalse(record.getBoolean(schema.indexOf("isAnon")));
+        assertFalse(record.has(schema.indexOf("action")));
+        assertEquals(-1, record.getEnumOrdinal(schema.indexOf("action")));
+        assertNull(record.getString(schema.indexOf("userAgent")));
+        assertNull(record.getWiki());
+        assertEquals(-1L, record.getTimestamp());
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        // Missing required property
+        assertFalse(decoder.decode("{\"event\": {\"pageId\": 1},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 1}", record));
+        // Wrong type
+        assertFalse(decoder.decode("{\"event\": {\"pageId\": \"1\", \"isAnon\": false},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 1}", record));
+        // Unknown enum value
+        assertFalse(decoder.decode("{\"event\": {\"pageId\": 1, \"isAnon\": false, \"action\": \"delete\"},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 1}", record));
+        // Other revision
+        assertFalse(decoder.decode("{\"event\": {\"pageId\": 1, \"isAnon\": false},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 2}", record));
+    }
+
+    @Test
+    public void testContainerValues() throws IOException {
+        EventSchema schema = decoder.getSchema();
+        // Objects and arrays are skipped as a whole, the fields after them are still decoded
+        assertFalse(decoder.decode("{\"wiki\": {\"uuid\": \"x\", \"a\": [1]}, \"uuid\": [\"y\", {}],"
+                + " \"event\": {\"userAgent\": {\"pageId\": 2}, \"action\": [\"view\"], \"pageId\": 1,"
+                + " \"isAnon\": true}, \"schema\": \"NavigationTiming\", \"revision\": 1,"
+                + " \"recvFrom\": \"cp1001\"}", record));
+        assertNull(record.getWiki());
+        assertNull(record.getUuid());
+        assertFalse(record.has(schema.indexOf("userAgent")));
+        assertFalse(record.has(schema.indexOf("action")));
+        assertEquals(1L, record.getLong(schema.indexOf("pageId")));
+        assertTrue(record.getBoolean(schema.indexOf("isAnon")));
+        assertEquals(1L, record.getRevision());
+        assertEquals("cp1001", record.getRecvFrom());
+        // Numbers are not strings either
+        assertFalse(decoder.decode("{\"event\": {\"pageId\": 1, \"isAnon\": false},"
+                + " \"schema\": \"NavigationTiming\", \"revision\": 1, \"clientIp\": 127}", record));
+        assertNull(record.getClientIp());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() throws IOException {
+        decoder.decode(CAPSULE, record);
+        record.getDouble(decoder.getSchema().indexOf("pageId"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws IOException {
+        decoder.decode("[1, 2]", record);
+    }
+}
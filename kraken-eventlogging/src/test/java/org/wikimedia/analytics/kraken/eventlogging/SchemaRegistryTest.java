@@ -0,0 +1,83 @@
+package org.wikimedia.analytics.kraken.eventlogging;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SchemaRegistryTest {
+
+    @Test
+    public void testResource() throws IOException {
+        SchemaRegistry registry = new SchemaRegistry();
+        EventSchema schema = registry.getSchema("NavigationTiming", 1);
+        assertEquals("NavigationTiming", schema.getName());
+        assertEquals(1L, schema.getRevision());
+        assertEquals(6, schema.getPropertyCount());
+        assertEquals(EventSchema.Type.INTEGER, schema.getType(schema.indexOf("pageId")));
+        assertEquals(EventSchema.Type.ENUM, schema.getType(schema.indexOf("action")));
+        assertEquals(EventSchema.Type.OTHER, schema.getType(schema.indexOf("extra")));
+        assertNull(schema.getEnumValues(schema.indexOf("userAgent")));
+        assertEquals(-1, schema.indexOf("missing"));
+        assertSame(registry.getDecoder("NavigationTiming", 1), registry.getDecoder("NavigationTiming", 1));
+    }
+
+    @Test
+    public void testDirectory() throws IOException {
+        File directory = File.createTempFile("schemas", "");
+        directory.delete();
+        File file = new File(directory, "Test/5.json");
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write("{\"properties\": {\"flag\": {\"type\": \"boolean\"}}}");
+        writer.close();
+        try {
+            EventSchema schema = new SchemaRegistry(directory).getSchema("Test", 5);
+            assertEquals(1, schema.getPropertyCount());
+            assertEquals(EventSchema.Type.BOOLEAN, schema.getType(0));
+        } finally {
+            file.delete();
+            file.getParentFile().delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testDirectoryProperty() throws IOException {
+        File directory = File.createTempFile("schemas", "");
+        directory.delete();
+        File file = new File(directory, "Test/6.json");
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write("{\"properties\": {\"count\": {\"type\": \"integer\"}}}");
+        writer.close();
+        System.setProperty(SchemaRegistry.DIRECTORY_PROPERTY, directory.getPath());
+        try {
+            SchemaRegistry registry = new SchemaRegistry();
+            assertEquals(EventSchema.Type.INTEGER, registry.getSchema("Test", 6).getType(0));
+            // The classpath is still searched
+            assertEquals("NavigationTiming", registry.getSchema("NavigationTiming", 1).getName());
+        } finally {
+            System.clearProperty(SchemaRegistry.DIRECTORY_PROPERTY);
+            file.delete();
+            file.getParentFile().delete();
+            directory.delete();
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissing() throws IOException {
+        new SchemaRegistry().getSchema("NavigationTiming", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidName() throws IOException {
+        new SchemaRegistry().getSchema("../NavigationTiming", 1);
+    }
+}
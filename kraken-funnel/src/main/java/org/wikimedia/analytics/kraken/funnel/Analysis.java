@@ -18,69 +18,36 @@
  */
 package org.wikimedia.analytics.kraken.funnel;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.jgrapht.DirectedGraph;
 import org.jgrapht.graph.DefaultEdge;
 
+/**
+ * Runs a {@link Funnel} over the graph of a single visitor. The graph is only
+ * encoded into the node masks of the {@link CompiledFunnel} of the funnel,
+ * which does the actual analysis.
+ */
 class Analysis {
 
 	public Result run(String userToken, DirectedGraph<Node, DefaultEdge> history, Funnel funnel) {
-		boolean bounced;
-		ArrayList<FunnelPath> completedFunnelViaPaths = new ArrayList<FunnelPath>();
-        for (FunnelPath path : funnel.paths) {
-            List<Boolean> results = new ArrayList<Boolean>();
-            boolean inFunnel = true;
-
-            //Do first an iterator to increment the impressions
-
-            for (FunnelNode node : path.nodes){
-                inFunnel = hasArrivedAtNode(history, node) && inFunnel;
-                if (inFunnel){
-                    node.incrementImpression();
-                }
-            }
-            bounced = false;
-            for (Pair<FunnelNode, FunnelNode> pair : path) {
-                FunnelNode left = pair.getLeft();
-                FunnelNode right = pair.getRight();
-
-                bounced = hasBouncedFromFunnel(history, left, right) && !bounced;
-                results.add(bounced);
-
-
-                if (bounced){
-                    left.incrementBounced();
-                }
-
-                }
-
-            if (!hasCompletedFunnel(results)) {
-                completedFunnelViaPaths.add(path);
-            }
-        }
-		return new Result(userToken, completedFunnelViaPaths);
-	}
-
-    private boolean hasArrivedAtNode(DirectedGraph<Node, DefaultEdge> history, FunnelNode targetVertex) {
-        return history.containsVertex(targetVertex);
-    }
-
-    private boolean hasBouncedFromFunnel(
-            DirectedGraph<Node, DefaultEdge> history,
-            Node sourceVertex,
-            Node targetVertex) {
-        if (sourceVertex != null) {
-            return !history.containsEdge(sourceVertex, targetVertex);
-        } else {
-            return history.vertexSet().size() > 1;
-        }
-    }
-
-	private boolean hasCompletedFunnel(List<Boolean> results) {
-        return results.contains(false);
+		CompiledFunnel compiled = funnel.getCompiledFunnel();
+		Map<Node, Long> masks = new HashMap<Node, Long>();
+		long visited = 0L;
+		for (Node vertex : history.vertexSet()) {
+			long mask = vertex instanceof UserActionNode ? compiled.encode((UserActionNode) vertex) : 0L;
+			masks.put(vertex, mask);
+			visited |= mask;
+		}
+		long[] successors = new long[compiled.getNodeCount()];
+		for (DefaultEdge edge : history.edgeSet()) {
+			long to = masks.get(history.getEdgeTarget(edge));
+			for (long from = masks.get(history.getEdgeSource(edge)); from != 0; from &= from - 1) {
+				successors[Long.numberOfTrailingZeros(from)] |= to;
+			}
+		}
+		return compiled.run(userToken, visited, successors, funnel.getThreadCounts());
 	}
 
 	/**
@@ -0,0 +1,248 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+import org.wikimedia.analytics.kraken.exceptions.MalformedFunnelException;
+
+/**
+ * A {@link Funnel} compiled for the analysis of large numbers of visitors.
+ *
+ * The distinct {@link FunnelNode}s are numbered 0..n-1 and every path is
+ * stored as an array of node ids. An event of a visitor is matched against
+ * the node definitions exactly once and encoded as a bitmask of the nodes it
+ * matches, so the history of a visitor is a time sorted long[] instead of a
+ * graph. That history is matched against the paths in a single pass by a
+ * {@link FunnelMatcher}, which enforces the maximum step gap and window.
+ *
+ * A visitor arrives at the first node of a path with an event matching it,
+ * and at every next node with a later event matching that node. A visitor
+ * that arrives at a node but not at the next one has bounced from that node;
+ * a visitor that arrives at the last node has completed the path.
+ *
+ * Since a mask is a single long a funnel can have at most 64 distinct nodes.
+ */
+public class CompiledFunnel {
+    /** Maximum number of distinct nodes in a compiled funnel */
+    public static final int MAX_NODES = Long.SIZE;
+
+    private static final ComponentType[] COMPONENTS = ComponentType.values();
+
+    /** The distinct nodes of the funnel, the index is the node id */
+    final FunnelNode[] nodes;
+
+    /** The paths of the funnel, and the node ids of their steps */
+    final FunnelPath[] paths;
+    final int[][] pathNodes;
+
+    private final FunnelMatcher matcher;
+
+    /**
+     * @param funnel the funnel to compile
+     * @throws MalformedFunnelException if the funnel has more than {@link #MAX_NODES} nodes.
+     */
+    public CompiledFunnel(Funnel funnel) throws MalformedFunnelException {
+        this(funnel, FunnelMatcher.NO_LIMIT, FunnelMatcher.NO_LIMIT);
+    }
+
+    /**
+     * @param funnel the funnel to compile
+     * @param maxStepGap maximum number of milliseconds between two steps of a path.
+     * @param window maximum number of milliseconds between the first and the last step of a path.
+     * @throws MalformedFunnelException if the funnel has more than {@link #MAX_NODES} nodes.
+     */
+    public CompiledFunnel(Funnel funnel, long maxStepGap, long window) throws MalformedFunnelException {
+        List<FunnelNode> distinct = new ArrayList<FunnelNode>();
+        this.paths = funnel.paths.toArray(new FunnelPath[funnel.paths.size()]);
+        this.pathNodes = new int[paths.length][];
+        for (int p = 0; p < paths.length; p++) {
+            List<FunnelNode> steps = paths[p].nodes;
+            pathNodes[p] = new int[steps.size()];
+            for (int i = 0; i < steps.size(); i++) {
+                int id = distinct.indexOf(steps.get(i));
+                if (id < 0) {
+                    id = distinct.size();
+                    distinct.add(steps.get(i));
+                }
+                pathNodes[p][i] = id;
+            }
+        }
+        if (distinct.size() > MAX_NODES) {
+            throw new MalformedFunnelException("A funnel cannot have more than " + MAX_NODES
+                    + " distinct nodes, found " + distinct.size() + ".");
+        }
+        this.nodes = distinct.toArray(new FunnelNode[distinct.size()]);
+        this.matcher = new FunnelMatcher(pathNodes, maxStepGap, window);
+    }
+
+    /**
+     * @return the number of distinct nodes in the funnel.
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * @param values the values of an event indexed by {@link ComponentType#ordinal()}.
+     * @return the bitmask of the ids of the nodes that the event matches.
+     */
+    public long encode(String[] values) {
+        long mask = 0L;
+        for (int id = 0; id < nodes.length; id++) {
+            if (nodes[id].matches(values)) {
+                mask |= 1L << id;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param node a user action that was added to a user graph.
+     * @return the bitmask of the ids of the nodes that the action matches.
+     */
+    long encode(UserActionNode node) {
+        String[] values = new String[COMPONENTS.length];
+        for (Map.Entry<ComponentType, String> kv : node.componentValues.entrySet()) {
+            values[kv.getKey().ordinal()] = kv.getValue();
+        }
+        return encode(values);
+    }
+
+    /**
+     * @param event an EventLogging event, the components are read just like
+     * {@link UserActionNode} reads them.
+     * @param values scratch array of at least {@link ComponentType#values()} length.
+     * @return the bitmask of the ids of the nodes that the event matches.
+     */
+    public long encode(JsonObject event, String[] values) {
+        UserActionNode.componentValues(event, values);
+        return encode(values);
+    }
+
+    /**
+     * @param events the events of a single visitor keyed by their timestamp.
+     * @return the time sorted events of the visitor as pairs of the time in
+     * milliseconds and the mask of the nodes the event matches. Events that
+     * do not match any node are left out.
+     */
+    public long[] encode(Map<Date, JsonObject> events) {
+        Date[] dates = events.keySet().toArray(new Date[events.size()]);
+        Arrays.sort(dates);
+        String[] values = new String[COMPONENTS.length];
+        long[] encoded = new long[2 * dates.length];
+        int length = 0;
+        for (Date date : dates) {
+            long mask = encode(events.get(date), values);
+            if (mask != 0) {
+                encoded[length++] = date.getTime();
+                encoded[length++] = mask;
+            }
+        }
+        return length == encoded.length ? encoded : Arrays.copyOf(encoded, length);
+    }
+
+    /**
+     * @param events the events of a single visitor sorted by time, as read by
+     * {@link org.wikimedia.analytics.kraken.funnel.cli.EventLoggingReader}.
+     * @return the events of the visitor as pairs of the time in milliseconds
+     * and the mask of the nodes the event matches, in the order of events.
+     * Events that do not match any node are left out.
+     */
+    public long[] encode(List<TimedEvent> events) {
+        String[] values = new String[COMPONENTS.length];
+        long[] encoded = new long[2 * events.size()];
+        int length = 0;
+        for (TimedEvent event : events) {
+            long mask = encode(event.getJson(), values);
+            if (mask != 0) {
+                encoded[length++] = event.getTime();
+                encoded[length++] = mask;
+            }
+        }
+        return length == encoded.length ? encoded : Arrays.copyOf(encoded, length);
+    }
+
+    /**
+     * Analyse the event history of a single visitor and count the impressions
+     * and bounces on the steps of every path.
+     *
+     * @param userToken unique identifier for a visitor.
+     * @param events the time sorted events of the visitor, as returned by {@link #encode(Map)}.
+     * @param counts the counts of the calling thread.
+     * @return the paths the visitor completed.
+     */
+    public Result run(String userToken, long[] events, FunnelCounts counts) {
+        FunnelMatcher.State state = matcher.newState();
+        for (int i = 0; i + 1 < events.length; i += 2) {
+            state.add(events[i], events[i + 1]);
+        }
+        List<FunnelPath> completed = new ArrayList<FunnelPath>();
+        for (int p = 0; p < paths.length; p++) {
+            counts.add(p, state.getReached(p));
+            if (state.isCompleted(p)) {
+                completed.add(paths[p]);
+            }
+        }
+        counts.addVisitor();
+        return new Result(userToken, completed);
+    }
+
+    /**
+     * Analyse a visitor whose history is only known as the nodes they visited
+     * and the transitions between them, without the time of the events.
+     *
+     * @param userToken unique identifier for a visitor.
+     * @param visited the mask of the nodes the visitor arrived at.
+     * @param successors the masks of the nodes that directly followed every node.
+     * @param counts the counts of the calling thread.
+     * @return the paths the visitor completed.
+     */
+    public Result run(String userToken, long visited, long[] successors, FunnelCounts counts) {
+        List<FunnelPath> completed = new ArrayList<FunnelPath>();
+        for (int p = 0; p < paths.length; p++) {
+            int reached = reached(pathNodes[p], visited, successors);
+            counts.add(p, reached);
+            if (reached == pathNodes[p].length) {
+                completed.add(paths[p]);
+            }
+        }
+        counts.addVisitor();
+        return new Result(userToken, completed);
+    }
+
+    /**
+     * @return the number of steps of the path that the visitor arrived at.
+     */
+    static int reached(int[] path, long visited, long[] successors) {
+        if (path.length == 0 || (visited & (1L << path[0])) == 0) {
+            return 0;
+        }
+        int i = 1;
+        while (i < path.length && (successors[path[i - 1]] & (1L << path[i])) != 0) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -78,6 +78,23 @@ public class Funnel {
     /** Edge definition */
     private final Map<String, String> nodeDefinition = new HashMap<String, String>();
 
+    /** The numbered nodes and paths used to analyse the visitors */
+    private CompiledFunnel compiled;
+
+    /** The counts of every thread that analysed visitors with this funnel */
+    private final List<FunnelCounts> threadCounts = new ArrayList<FunnelCounts>();
+
+    private final ThreadLocal<FunnelCounts> counts = new ThreadLocal<FunnelCounts>() {
+        @Override
+        protected FunnelCounts initialValue() {
+            FunnelCounts threadCount = new FunnelCounts(compiled);
+            synchronized (threadCounts) {
+                threadCounts.add(threadCount);
+            }
+            return threadCount;
+        }
+    };
+
     /**
      * Constructor for the funnel.
      *
@@ -101,12 +118,28 @@ public class Funnel {
      * @throws MalformedFunnelException the malformed funnel exception
      */
     public Funnel(String nodeDefinition, String funnelDefinition) throws MalformedFunnelException {
+        this(nodeDefinition, funnelDefinition, FunnelMatcher.NO_LIMIT, FunnelMatcher.NO_LIMIT);
+    }
+
+    /**
+     * Constructor for a funnel whose steps have to be taken within a limited time.
+     *
+     * @param nodeDefinition see {@link #Funnel(String, String)}
+     * @param funnelDefinition the funnel definition
+     * @param maxStepGap maximum number of milliseconds between two steps, or {@link FunnelMatcher#NO_LIMIT}.
+     * @param window maximum number of milliseconds between the first and the last step,
+     * or {@link FunnelMatcher#NO_LIMIT}.
+     * @throws MalformedFunnelException the malformed funnel exception
+     */
+    public Funnel(String nodeDefinition, String funnelDefinition, long maxStepGap, long window)
+            throws MalformedFunnelException {
         this.parseNodeDefinition(nodeDefinition);
-        System.out.println("Node definition: " + nodeDefinition);
-        System.out.println("Funnel definition: " + funnelDefinition);
+        // Diagnostics go to stderr, stdout is reserved for the results
+        System.err.println("Node definition: " + nodeDefinition);
+        System.err.println("Funnel definition: " + funnelDefinition);
         this.graph = this.constructFunnelGraph(funnelDefinition);
         if (this.graph.edgeSet().size() == 0 || this.graph.vertexSet().size() < 2) {
-            System.out.println(this.graph.toString());
+            System.err.println(this.graph.toString());
             throw new MalformedFunnelException("A funnel needs to have two connected nodes at the very minimum.");
         }
         if (!isDag()) {
@@ -115,6 +148,38 @@ public class Funnel {
         this.getStartingVertices();
         this.getDestinationVertices();
         this.determineUniquePaths();
+        this.compiled = new CompiledFunnel(this, maxStepGap, window);
+    }
+
+    /**
+     * @return the compiled form of this funnel.
+     */
+    public final CompiledFunnel getCompiledFunnel() {
+        return this.compiled;
+    }
+
+    /**
+     * @return the counts that the calling thread adds its analyses to.
+     */
+    final FunnelCounts getThreadCounts() {
+        return this.counts.get();
+    }
+
+    /**
+     * Merge the counts of all the threads that analysed visitors. Analyses
+     * that are still running while the results are merged might be missed,
+     * so wait for them to finish first.
+     *
+     * @return the impressions and bounces of every step of every path.
+     */
+    public final FunnelCounts getResults() {
+        FunnelCounts results = new FunnelCounts(this.compiled);
+        synchronized (threadCounts) {
+            for (FunnelCounts threadCount : threadCounts) {
+                results.merge(threadCount);
+            }
+        }
+        return results;
     }
 
     public void parseNodeDefinition(String nodeDefinition) throws MalformedFunnelException {
@@ -171,7 +236,7 @@ public class Funnel {
                 dg.addEdge(source, target);
             }
         }
-            System.out.println("Graph Summary: " + dg.toString());
+        System.err.println("Graph Summary: " + dg.toString());
 
         return dg;
     }
@@ -183,19 +248,33 @@ public class Funnel {
      * @param history the {@link DirectedGraph} describing the {@link UserActionNode} that the visitor took.
      */
     public final void analysis(String userToken, DirectedGraph<Node, DefaultEdge> history) {
+        // Kept for existing callers, encoding events with encodeUserHistories is much cheaper.
         Analysis analysis = new Analysis();
         Result result = analysis.run(userToken,history, this);
         //analysis.printResults(result);
     }
 
+    /**
+     * Conduct a funnel analysis of a single visitor, this method can be
+     * called concurrently from multiple threads.
+     * @param userToken unique identifier for a visitor.
+     * @param events the time sorted events of the visitor, see {@link #encodeUserHistories(Map)}.
+     * @return the paths the visitor completed.
+     */
+    public final Result analysis(String userToken, long[] events) {
+        return this.compiled.run(userToken, events, getThreadCounts());
+    }
+
     public final void aggregateResults(){
-        for (FunnelPath path : this.paths){
-            for (FunnelNode node : path.nodes){
+        FunnelCounts results = getResults();
+        for (int p = 0; p < this.paths.size(); p++){
+            FunnelPath path = this.paths.get(p);
+            for (int i = 0; i < path.nodes.size(); i++){
                 System.out.println("Path id: " + path.id +
-                        " Node id: " + node.toString() +
-                        " impressions: " + node.impression +
-                        " bounced: " + node.bounced +
-                        " Node completion rate: " + node.completionRate());
+                        " Node id: " + path.nodes.get(i).toString() +
+                        " impressions: " + results.getImpressions(p, i) +
+                        " bounced: " + results.getBounced(p, i) +
+                        " Node completion rate: " + results.getCompletionRate(p, i));
             }
         }
     }
@@ -275,7 +354,10 @@ public class Funnel {
      *
      * @returns a map with as key the usertoken and as value the graph
      * representing their actions.
+     * @deprecated use {@link #encodeUserHistories(Map)}, which does not build
+     * a graph per user token.
      */
+    @Deprecated
     public Map<String, DirectedGraph<Node, DefaultEdge>> constructUserGraph(
             Map<String, Map<Date, JsonObject>> jsonData) {
         Map<String, DirectedGraph<Node, DefaultEdge>> graphs = new HashMap<String, DirectedGraph<Node, DefaultEdge>>();
@@ -324,4 +406,35 @@ public class Funnel {
         return node;
 
     }
+
+    /**
+     * Encode the events of every usertoken as a time sorted array with, for
+     * every event, its time and the bitmask of the funnel nodes it matches.
+     * Every event is matched against the node definitions once.
+     *
+     * @param jsonData map with as key the usertoken and as value their events keyed by timestamp.
+     * @returns a map with as key the usertoken and as value their event masks.
+     */
+    public Map<String, long[]> encodeUserHistories(Map<String, Map<Date, JsonObject>> jsonData) {
+        Map<String, long[]> histories = new HashMap<String, long[]>(jsonData.size() * 2);
+        for (Entry<String, Map<Date, JsonObject>> kv : jsonData.entrySet()) {
+            histories.put(kv.getKey(), this.compiled.encode(kv.getValue()));
+        }
+        return histories;
+    }
+
+    /**
+     * Encode the time sorted events of every usertoken, like
+     * {@link #encodeUserHistories(Map)}.
+     *
+     * @param events map with as key the usertoken and as value their events sorted by time.
+     * @returns a map with as key the usertoken and as value their event masks.
+     */
+    public Map<String, long[]> encodeEventHistories(Map<String, List<TimedEvent>> events) {
+        Map<String, long[]> histories = new HashMap<String, long[]>(events.size() * 2);
+        for (Entry<String, List<TimedEvent>> kv : events.entrySet()) {
+            histories.put(kv.getKey(), this.compiled.encode(kv.getValue()));
+        }
+        return histories;
+    }
 }
@@ -0,0 +1,169 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The impressions and bounces of every step of every path of a
+ * {@link CompiledFunnel}, keyed by path id and the position of the node in
+ * the path, plus the number of visitors and completions.
+ *
+ * Instances are not thread-safe. Every thread counts into its own instance
+ * and the instances are combined with {@link #merge(FunnelCounts)} once the
+ * analyses are done, so concurrent analyses never share a counter.
+ */
+public class FunnelCounts {
+    private final CompiledFunnel funnel;
+
+    private long visitors;
+    private final long[] completed;
+    private final long[][] impressions;
+    private final long[][] bounced;
+
+    /**
+     * @param funnel the funnel whose paths are counted.
+     */
+    public FunnelCounts(CompiledFunnel funnel) {
+        this.funnel = funnel;
+        int paths = funnel.pathNodes.length;
+        this.completed = new long[paths];
+        this.impressions = new long[paths][];
+        this.bounced = new long[paths][];
+        for (int p = 0; p < paths; p++) {
+            impressions[p] = new long[funnel.pathNodes[p].length];
+            bounced[p] = new long[funnel.pathNodes[p].length];
+        }
+    }
+
+    /**
+     * Count a visitor that has been matched against every path.
+     */
+    void addVisitor() {
+        visitors++;
+    }
+
+    /**
+     * Count the outcome of a single path for a single visitor.
+     * @param path the path id.
+     * @param reached the number of steps of the path the visitor arrived at.
+     */
+    void add(int path, int reached) {
+        long[] pathImpressions = impressions[path];
+        for (int i = 0; i < reached; i++) {
+            pathImpressions[i]++;
+        }
+        if (reached == pathImpressions.length) {
+            completed[path]++;
+        } else if (reached > 0) {
+            bounced[path][reached - 1]++;
+        }
+    }
+
+    /**
+     * Add the counts of other to these counts.
+     * @param other counts of the same funnel.
+     * @return this instance.
+     */
+    public FunnelCounts merge(FunnelCounts other) {
+        if (other.funnel != this.funnel) {
+            throw new IllegalArgumentException("Cannot merge the counts of different funnels.");
+        }
+        visitors += other.visitors;
+        for (int p = 0; p < completed.length; p++) {
+            completed[p] += other.completed[p];
+            for (int i = 0; i < impressions[p].length; i++) {
+                impressions[p][i] += other.impressions[p][i];
+                bounced[p][i] += other.bounced[p][i];
+            }
+        }
+        return this;
+    }
+
+    public long getVisitors() {
+        return visitors;
+    }
+
+    public int getPathCount() {
+        return completed.length;
+    }
+
+    public int getStepCount(int path) {
+        return impressions[path].length;
+    }
+
+    /**
+     * @return the number of visitors that arrived at the last step of the path.
+     */
+    public long getCompleted(int path) {
+        return completed[path];
+    }
+
+    /**
+     * @return the number of visitors that arrived at the step of the path.
+     */
+    public long getImpressions(int path, int step) {
+        return impressions[path][step];
+    }
+
+    /**
+     * @return the number of visitors that arrived at the step of the path but not at the next step.
+     */
+    public long getBounced(int path, int step) {
+        return bounced[path][step];
+    }
+
+    /**
+     * @return the fraction of the visitors arriving at the step that did not
+     * bounce, NaN if no visitor arrived at the step.
+     */
+    public double getCompletionRate(int path, int step) {
+        return 1.0 - ((double) bounced[path][step] / impressions[path][step]);
+    }
+
+    /**
+     * @return a summary of the counts, with for every path the steps in order.
+     */
+    public JsonObject toJson() {
+        JsonArray paths = new JsonArray();
+        for (int p = 0; p < completed.length; p++) {
+            JsonArray steps = new JsonArray();
+            for (int i = 0; i < impressions[p].length; i++) {
+                JsonObject step = new JsonObject();
+                step.addProperty("node", funnel.paths[p].nodes.get(i).toString());
+                step.addProperty("impressions", impressions[p][i]);
+                step.addProperty("bounced", bounced[p][i]);
+                if (impressions[p][i] > 0) {
+                    step.addProperty("completionRate", getCompletionRate(p, i));
+                }
+                steps.add(step);
+            }
+            JsonObject path = new JsonObject();
+            path.addProperty("id", funnel.paths[p].id);
+            path.addProperty("completed", completed[p]);
+            path.add("steps", steps);
+            paths.add(path);
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("visitors", visitors);
+        json.add("paths", paths);
+        return json;
+    }
+}
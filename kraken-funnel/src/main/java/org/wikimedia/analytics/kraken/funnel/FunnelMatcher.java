@@ -0,0 +1,228 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches the time sorted events of a visitor against the paths of a funnel
+ * in a single pass, like a non deterministic automaton with one state per
+ * step of every path.
+ *
+ * The nodes of the funnel are numbered 0..63 and every event is given as the
+ * bitmask of the nodes it matches. A visitor enters a path with an event
+ * matching its first step, and moves on to the next step with a later event
+ * matching that step. Events that do not match the next step are skipped, but
+ * the time between two consecutive steps can not exceed the maximum step gap,
+ * and the time between the first and the last step can not exceed the window.
+ *
+ * A partial run at a step that started later and arrived there later can
+ * reach everything an earlier run at that step can, so only the latest run
+ * is kept per step. Every event therefore costs O(steps it matches) per path.
+ *
+ * The matcher itself is immutable and can be shared between threads, the
+ * {@link State} of a visitor can not.
+ */
+public class FunnelMatcher {
+    /** Use as maximum step gap or window to disable the limit */
+    public static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final int[][] paths;
+    /** For every path, the step index of every node id or -1 */
+    private final int[][] steps;
+    /** For every path, the mask of the node ids of its steps */
+    private final long[] pathMasks;
+    private final long maxStepGap;
+    private final long window;
+
+    /**
+     * @param paths the node ids of the steps of every path, the ids are smaller than 64
+     *        and a node occurs at most once per path.
+     * @param maxStepGap maximum time between two consecutive steps, or {@link #NO_LIMIT}.
+     * @param window maximum time between the first and last step, or {@link #NO_LIMIT}.
+     */
+    public FunnelMatcher(int[][] paths, long maxStepGap, long window) {
+        if (maxStepGap < 0 || window < 0) {
+            throw new IllegalArgumentException("The step gap and window cannot be negative.");
+        }
+        this.paths = paths;
+        this.steps = new int[paths.length][Long.SIZE];
+        this.pathMasks = new long[paths.length];
+        this.maxStepGap = maxStepGap;
+        this.window = window;
+        for (int p = 0; p < paths.length; p++) {
+            if (paths[p].length == 0 || paths[p].length > Long.SIZE) {
+                throw new IllegalArgumentException("Path " + p + " has " + paths[p].length + " steps.");
+            }
+            Arrays.fill(steps[p], -1);
+            for (int i = 0; i < paths[p].length; i++) {
+                int node = paths[p][i];
+                if (node < 0 || node >= Long.SIZE) {
+                    throw new IllegalArgumentException("Invalid node id " + node + " in path " + p + ".");
+                }
+                if (steps[p][node] >= 0) {
+                    throw new IllegalArgumentException("Node " + node + " occurs twice in path " + p + ".");
+                }
+                steps[p][node] = i;
+                pathMasks[p] |= 1L << node;
+            }
+        }
+    }
+
+    /**
+     * Enumerate all the paths of a directed acyclic graph of at most 64 nodes.
+     *
+     * @param successors the mask of the direct successors of every node.
+     * @param starts the mask of the nodes the paths start from.
+     * @return the node ids of every path from a start node to a node without successors.
+     */
+    public static int[][] paths(long[] successors, long starts) {
+        List<int[]> paths = new ArrayList<int[]>();
+        int[] breadcrumbs = new int[Long.SIZE];
+        for (long bits = starts; bits != 0; bits &= bits - 1) {
+            findPaths(successors, Long.numberOfTrailingZeros(bits), breadcrumbs, 0, paths);
+        }
+        return paths.toArray(new int[paths.size()][]);
+    }
+
+    private static void findPaths(long[] successors, int node, int[] breadcrumbs, int depth, List<int[]> paths) {
+        if (depth == breadcrumbs.length) {
+            throw new IllegalArgumentException("A funnel cannot have cycles.");
+        }
+        breadcrumbs[depth] = node;
+        if (successors[node] == 0) {
+            paths.add(Arrays.copyOf(breadcrumbs, depth + 1));
+            return;
+        }
+        for (long bits = successors[node]; bits != 0; bits &= bits - 1) {
+            findPaths(successors, Long.numberOfTrailingZeros(bits), breadcrumbs, depth + 1, paths);
+        }
+    }
+
+    public int getPathCount() {
+        return paths.length;
+    }
+
+    /**
+     * @return the node ids of the steps of the path.
+     */
+    public int[] getPath(int path) {
+        return paths[path].clone();
+    }
+
+    /**
+     * @return a new, empty matching state for a single visitor.
+     */
+    public State newState() {
+        return new State();
+    }
+
+    /**
+     * The partial runs of a single visitor, reset it to reuse it for the next visitor.
+     */
+    public final class State {
+        /** Start and last step time of the run at every step of every path */
+        private final long[][] starts = new long[paths.length][];
+        private final long[][] lasts = new long[paths.length][];
+        /** For every path, the mask of the steps that have a run */
+        private final long[] active = new long[paths.length];
+        private final int[] reached = new int[paths.length];
+        private long timestamp = Long.MIN_VALUE;
+
+        private State() {
+            for (int p = 0; p < paths.length; p++) {
+                starts[p] = new long[paths[p].length];
+                lasts[p] = new long[paths[p].length];
+            }
+        }
+
+        public void reset() {
+            Arrays.fill(active, 0L);
+            Arrays.fill(reached, 0);
+            timestamp = Long.MIN_VALUE;
+        }
+
+        /**
+         * Consume the next event of the visitor.
+         *
+         * @param time the time of the event, in the unit of the step gap and window.
+         * @param nodes the mask of the nodes the event matches, 0 if it matches none.
+         * @throws IllegalArgumentException if the event is older than the previous event.
+         */
+        public void add(long time, long nodes) {
+            if (time < timestamp) {
+                throw new IllegalArgumentException("Events are not sorted by time: " + time + " after " + timestamp);
+            }
+            timestamp = time;
+            for (int p = 0; p < paths.length; p++) {
+                long matched = nodes & pathMasks[p];
+                if (matched == 0 || reached[p] == paths[p].length) {
+                    continue;
+                }
+                long matchedSteps = 0L;
+                for (long bits = matched; bits != 0; bits &= bits - 1) {
+                    matchedSteps |= 1L << steps[p][Long.numberOfTrailingZeros(bits)];
+                }
+                // Later steps first, so a single event never advances a run by two steps
+                while (matchedSteps != 0) {
+                    int step = Long.SIZE - 1 - Long.numberOfLeadingZeros(matchedSteps);
+                    matchedSteps &= ~(1L << step);
+                    advance(p, step, time);
+                }
+            }
+        }
+
+        private void advance(int path, int step, long time) {
+            long start;
+            if (step == 0) {
+                start = time;
+            } else {
+                int previous = step - 1;
+                if ((active[path] & (1L << previous)) == 0
+                        || time - lasts[path][previous] > maxStepGap
+                        || time - starts[path][previous] > window) {
+                    return;
+                }
+                start = starts[path][previous];
+            }
+            starts[path][step] = start;
+            lasts[path][step] = time;
+            active[path] |= 1L << step;
+            if (step >= reached[path]) {
+                reached[path] = step + 1;
+            }
+        }
+
+        /**
+         * @return the number of steps of the path the visitor arrived at, in order and in time.
+         */
+        public int getReached(int path) {
+            return reached[path];
+        }
+
+        /**
+         * @return true if the visitor arrived at the last step of the path.
+         */
+        public boolean isCompleted(int path) {
+            return reached[path] == paths[path].length;
+        }
+    }
+}
@@ -36,8 +36,6 @@ import java.util.regex.PatternSyntaxException;
 public class FunnelNode extends Node{
 	/** The nodeDefinition. */
 	private final Map<ComponentType, Pattern> nodeDefinition = new HashMap<ComponentType, Pattern>();
-	public int impression = 0;
-    public int bounced =  0;
 
 
 	/**
@@ -61,17 +59,6 @@ public class FunnelNode extends Node{
 		}
 	}
 
-    protected void incrementImpression() {
-        this.impression++;
-    }
-
-    protected void incrementBounced() {
-        this.bounced++;
-    }
-
-    public double completionRate(){
-        return 1.0 - ((double) this.bounced/ this.impression);
-    }
     /**
      * Whether a UserActionNode matches this FunnelNode
      *
@@ -93,6 +80,25 @@ public class FunnelNode extends Node{
         return match;
     }
 
+    /**
+     * Whether the component values of an event match this FunnelNode, without
+     * building a {@link UserActionNode} first.
+     *
+     * @param values the values of an event indexed by {@link ComponentType#ordinal()},
+     *        null for the components the event does not have.
+     * @return true if the regular expressions of all the components in the
+     * node definition match.
+     */
+    public boolean matches(String[] values) {
+        for (Map.Entry<ComponentType, Pattern> kv : this.nodeDefinition.entrySet()) {
+            String value = values[kv.getKey().ordinal()];
+            if (value == null || !kv.getValue().matcher(value).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 	public boolean equals(Object obj) {
 		if (obj == null) { return false; }
         if (this == obj) { return true; }
@@ -0,0 +1,80 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel;
+
+import com.google.gson.JsonObject;
+
+/**
+ * An event of a visitor with its time and its position in the input.
+ *
+ * Events are ordered by time and then by position, so events with the same
+ * timestamp, which EventLogging records with second precision, are all kept
+ * and keep the order in which they were read.
+ */
+public final class TimedEvent implements Comparable<TimedEvent> {
+    private final long time;
+    private final long sequence;
+    private final JsonObject json;
+
+    /**
+     * @param time the timestamp in milliseconds
+     * @param sequence the position of the event in the input
+     * @param json the event
+     */
+    public TimedEvent(final long time, final long sequence, final JsonObject json) {
+        this.time = time;
+        this.sequence = sequence;
+        this.json = json;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public JsonObject getJson() {
+        return json;
+    }
+
+    @Override
+    public int compareTo(final TimedEvent other) {
+        if (time != other.time) {
+            return time < other.time ? -1 : 1;
+        }
+        return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+
+    /**
+     * Consistent with {@link #compareTo(TimedEvent)}: two events are equal
+     * when they have the same time and position.
+     */
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof TimedEvent && time == ((TimedEvent) other).time
+                && sequence == ((TimedEvent) other).sequence;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (time ^ (time >>> 32)) * 31 + (int) (sequence ^ (sequence >>> 32));
+    }
+}
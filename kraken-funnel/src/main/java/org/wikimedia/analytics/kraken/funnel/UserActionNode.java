@@ -29,8 +29,6 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.LinkedList;
-import java.util.regex.MatchResult;
-import java.util.regex.Pattern;
 
 /**
  * Inspiration taken from "The Uniﬁed Logging Infrastructure for Data Analytics at Twitter".
@@ -51,7 +49,6 @@ import java.util.regex.Pattern;
 class UserActionNode extends Node{
     /** The params. */
     public Map<ComponentType, String> componentValues;
-    private final Pattern wikis = Pattern.compile("project:(patternForProject)|||language:(patternForLanguage)"); //TODO: Find actual regex
     //private boolean reachedPreviousNode = true;
     //public List<Date> visited;
     //public String url;
@@ -77,35 +74,50 @@ class UserActionNode extends Node{
          * @param event the event variable as generated by the EventLogging extension.
          */
         componentValues = new HashMap<ComponentType, String>();
+        String[] values = new String[ComponentType.values().length];
+        componentValues(json, values);
         for (ComponentType type : ComponentType.values()) {
-            JsonElement value = json.get(type.toString().toLowerCase());
-            if (value != null && value.isJsonPrimitive()){
-                String valueString = value.getAsString();
-                switch (type) {
-                    case PROJECT:
-                        componentValues.putAll(splitProject(valueString));
-                        break;
-                    default:
-                        componentValues.put(type, valueString);
-                        break;
-                }
+            if (values[type.ordinal()] != null) {
+                componentValues.put(type, values[type.ordinal()]);
             }
         }
     }
 
+    /**
+     * Read the components of an EventLogging event from its lower case keys;
+     * the project is split into its language and project components.
+     * Both the user graph and {@link CompiledFunnel#encode(JsonObject, String[])}
+     * read events through this method, so they match the same nodes.
+     *
+     * @param json an EventLogging event
+     * @param values receives the values indexed by {@link ComponentType#ordinal()},
+     *               null for missing components.
+     */
+    static void componentValues(final JsonObject json, final String[] values) {
+        for (ComponentType type : ComponentType.values()) {
+            JsonElement value = json.get(type.toString().toLowerCase());
+            values[type.ordinal()] = value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+        }
+        String project = values[ComponentType.PROJECT.ordinal()];
+        if (project != null) {
+            splitProject(project, values);
+        }
+    }
 
     /**
-     * Split project variable from EventLogging data in language and project
-     * component.
+     * Split project variable from EventLogging data, like en.wikipedia, in
+     * language and project component. A project without a language, like
+     * commons, is kept as it is.
      *
-     * @param project the new project
+     * @param project the project variable
+     * @param values the values indexed by {@link ComponentType#ordinal()}
      */
-    private HashMap<ComponentType, String> splitProject(final String project) {
-        MatchResult match = this.wikis.matcher(project);
-        HashMap<ComponentType, String> ret = new HashMap<ComponentType, String>();
-        ret.put(ComponentType.PROJECT, match.group(0));
-        ret.put(ComponentType.LANGUAGE, match.group(1));
-        return ret;
+    private static void splitProject(final String project, final String[] values) {
+        int dot = project.indexOf('.');
+        if (dot > 0 && dot < project.length() - 1) {
+            values[ComponentType.LANGUAGE.ordinal()] = project.substring(0, dot);
+            values[ComponentType.PROJECT.ordinal()] = project.substring(dot + 1);
+        }
     }
 
     /**
@@ -1,10 +1,16 @@
 package org.wikimedia.analytics.kraken.funnel.cli;
 
-import java.net.MalformedURLException;
-import java.util.Date;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,36 +22,32 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 
-import org.jgrapht.DirectedGraph;
-import org.jgrapht.graph.DefaultEdge;
-
 import org.wikimedia.analytics.kraken.exceptions.MalformedFunnelException;
 import org.wikimedia.analytics.kraken.funnel.Funnel;
-import org.wikimedia.analytics.kraken.funnel.Node;
-import org.wikimedia.analytics.kraken.utils.DateUtils;
-import org.wikimedia.analytics.kraken.utils.FileUtils;
+import org.wikimedia.analytics.kraken.funnel.FunnelCounts;
+import org.wikimedia.analytics.kraken.funnel.FunnelMatcher;
+import org.wikimedia.analytics.kraken.funnel.TimedEvent;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.GsonBuilder;
 
 public class Cli {
-	private static final String USAGE = "[-input <absolute path>] [-schema <schema>] [-node <node definition>] [-funnel <funnel definition>]";
+	private static final String USAGE = "[-input <absolute path>] [-schema <schema>] [-node <node definition>] [-funnel <funnel definition>] [-threads <number of threads>] [-stepGap <seconds>] [-window <seconds>]";
 	private static final String HEADER = "Funnel - A simple tool to conduct funnel analyses, Copyright 2012-2013 Wikimedia Foundation licensed under GPL2.\n.";
 	private static final String FOOTER = "\nThis program was written by Diederik van Liere <dvanliere@wikimedia.org> and Dan Andreescu <dandreescu@wikimedia.org>\n";
 	private String input;
 	public String schema;
-	private String rawEventLoggingData;
 	private String funnelDefinition;
 	private String nodeDefinition;
-	private final Map<String, Map<Date, JsonObject>> jsonData = new HashMap<String, Map<Date, JsonObject>>();
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long maxStepGap = FunnelMatcher.NO_LIMIT;
+	private long window = FunnelMatcher.NO_LIMIT;
 
 	/**
 	 * @param args should contain the options to start the funnel analysis.
 	 * @throws MalformedFunnelException
 	 */
 	@SuppressWarnings("static-access")
-	public static void main(String[] args) throws MalformedFunnelException {
+	public static void main(String[] args) throws MalformedFunnelException, IOException {
 		Cli cli = new Cli();
 		CommandLineParser parser = new GnuParser();
 
@@ -66,6 +68,15 @@ public class Cli {
 				.withDescription("").create("funnel");
 		Option nodeDefinition = OptionBuilder.withArgName("node").hasArg()
 				.withDescription("").create("node");
+		Option threads = OptionBuilder.withArgName("threads").hasArg()
+				.withDescription("number of threads that parse and analyse the events, defaults to the number of cores.")
+				.create("threads");
+		Option stepGap = OptionBuilder.withArgName("stepGap").hasArg()
+				.withDescription("maximum number of seconds between two steps of the funnel, unlimited by default.")
+				.create("stepGap");
+		Option window = OptionBuilder.withArgName("window").hasArg()
+				.withDescription("maximum number of seconds between the first and last step of the funnel, unlimited by default.")
+				.create("window");
 
 		input.setRequired(true);
 		schema.setRequired(true);
@@ -76,6 +87,9 @@ public class Cli {
 		options.addOption(schema);
 		options.addOption(nodeDefinition);
 		options.addOption(funnelDefinition);
+		options.addOption(threads);
+		options.addOption(stepGap);
+		options.addOption(window);
 		options.addOption(help);
 
 		// automatically generate the help statement
@@ -95,6 +109,15 @@ public class Cli {
 			if (line.hasOption("funnel")) {
 				cli.funnelDefinition = line.getOptionValue("funnel");
 			}
+			if (line.hasOption("threads")) {
+				cli.threads = parseThreads(line.getOptionValue("threads"));
+			}
+			if (line.hasOption("stepGap")) {
+				cli.maxStepGap = TimeUnit.SECONDS.toMillis(Long.parseLong(line.getOptionValue("stepGap")));
+			}
+			if (line.hasOption("window")) {
+				cli.window = TimeUnit.SECONDS.toMillis(Long.parseLong(line.getOptionValue("window")));
+			}
 			if (line.hasOption("help")) {
 				printUsage(options);
 				System.exit(-1);
@@ -106,16 +129,68 @@ public class Cli {
 			System.exit(-1);
 		}
 
-		cli.rawEventLoggingData = FileUtils.unCompressGzipFile(cli.input);
-		cli.readEventLoggingJsonData();
-		Funnel funnel = new Funnel(cli.nodeDefinition, cli.funnelDefinition);
-		Map<String, DirectedGraph<Node, DefaultEdge>> histories = funnel
-				.constructUserGraph(cli.jsonData);
-		for (Entry<String, DirectedGraph<Node, DefaultEdge>> kv : histories
-				.entrySet()) {
-			funnel.analysis(kv.getKey(), kv.getValue());
+		EventLoggingReader reader = new EventLoggingReader(cli.schema, cli.threads);
+		List<Map<String, List<TimedEvent>>> shards = reader.read(cli.input);
+		System.err.println("Read " + reader.getEvents() + " events, skipped " + reader.getMalformed()
+				+ " malformed lines.");
+		final Funnel funnel = new Funnel(cli.nodeDefinition, cli.funnelDefinition, cli.maxStepGap, cli.window);
+		cli.analyseShards(funnel, shards);
+		FunnelCounts results = funnel.getResults();
+		System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(results.toJson()));
+	}
+
+	/**
+	 * Encode and analyse the user histories of every shard on its own thread,
+	 * every thread counts into its own {@link FunnelCounts}.
+	 */
+	private void analyseShards(final Funnel funnel,
+			final List<Map<String, List<TimedEvent>>> shards) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+			for (final Map<String, List<TimedEvent>> shard : shards) {
+				futures.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						Map<String, long[]> histories = funnel.encodeEventHistories(shard);
+						for (Entry<String, long[]> kv : histories.entrySet()) {
+							funnel.analysis(kv.getKey(), kv.getValue());
+						}
+						return histories.size();
+					}
+				}));
+			}
+			long visitors = 0;
+			for (Future<Integer> future : futures) {
+				visitors += future.get();
+			}
+			System.err.println("Analysed " + visitors + " user tokens.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
 		}
-        funnel.aggregateResults();
+	}
+
+	/**
+	 * @param value the value of the threads option
+	 * @return the number of threads
+	 * @throws ParseException if the value is not a positive number
+	 */
+	static int parseThreads(String value) throws ParseException {
+		int threads;
+		try {
+			threads = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid number of threads [" + value + "], the value is not a number");
+		}
+		if (threads < 1) {
+			throw new ParseException("Invalid number of threads [" + value + "], at least 1 thread is needed");
+		}
+		return threads;
 	}
 
 	private static void printUsage(Options options) {
@@ -127,31 +202,4 @@ public class Cli {
 	public void readEventLoggingKVData() {
 		//
 	}
-
-	public void readEventLoggingJsonData() {
-		String[] lines = this.rawEventLoggingData.split("\n");
-		JsonParser parser = new JsonParser();
-        Map<Date, JsonObject> map;
-		for (String line : lines) {
-			JsonObject json = parser.parse(line).getAsJsonObject();
-			JsonElement key = json.get("token");
-			String schema = json.get("meta").getAsJsonObject().get("schema")
-					.getAsString();
-			if (this.schema.equals(schema)) {
-				Date date = DateUtils.convertToDate(json.get("meta")
-						.getAsJsonObject().get("timestamp").getAsLong());
-				if (!jsonData.containsKey(key.toString())) {
-					// TODO: We don't handle the case when events have the exact
-					// same timestamp
-					map = new HashMap<Date, JsonObject>();
-                }   else {
-                    map = jsonData.get(key.toString());
-                }
-                map.put(date, json);
-                jsonData.put(key.toString(), map);
-				}
-				// System.out.println("key: " + key.toString() + "value: "
-				// + json.toString());
-		}
-	}
 }
@@ -0,0 +1,286 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel.cli;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.wikimedia.analytics.kraken.funnel.TimedEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the events of a single schema from an EventLogging dump, one JSON
+ * object per line, optionally gzipped.
+ *
+ * The dump is decompressed and read line by line, batches of lines are parsed
+ * with the Jackson streaming parser by a pool of threads and the events are
+ * sharded by user token, so the events of a token always end up in the same
+ * shard and the shards can be analysed independently. The pool only accepts a
+ * few batches more than it has threads and the reading thread parses a batch
+ * itself when the pool is busy, so memory use is bounded by the events that
+ * are kept, not by the size of the dump.
+ *
+ * The events of a token are kept as a list of {@link TimedEvent}s sorted by
+ * timestamp and then by position in the dump, so events with the same
+ * timestamp are all kept and are in input order, whatever the order in which
+ * the batches were parsed.
+ */
+public class EventLoggingReader {
+    /** Number of lines that are parsed as a single task */
+    public static final int BATCH_SIZE = 1000;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String schema;
+    private final int threads;
+    private final List<Map<String, List<TimedEvent>>> shards;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /**
+     * @param schema the name of the EventLogging schema to keep
+     * @param threads the number of parsing threads, also the number of shards
+     */
+    public EventLoggingReader(final String schema, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least 1 thread is needed, got " + threads);
+        }
+        this.schema = schema;
+        this.threads = threads;
+        this.shards = new ArrayList<Map<String, List<TimedEvent>>>(threads);
+        for (int i = 0; i < threads; i++) {
+            shards.add(new HashMap<String, List<TimedEvent>>());
+        }
+    }
+
+    /**
+     * @param path an EventLogging dump, gzipped or not
+     * @return the shards, per user token the events sorted by timestamp
+     */
+    public List<Map<String, List<TimedEvent>>> read(final String path) throws IOException {
+        InputStream in = open(path);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Open a file and decompress it when it starts with the gzip magic number.
+     */
+    static InputStream open(final String path) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE);
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    /**
+     * @param in the uncompressed dump
+     * @return the shards, per user token the events sorted by timestamp
+     */
+    public List<Map<String, List<TimedEvent>>> read(final InputStream in) throws IOException {
+        ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8), BUFFER_SIZE);
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            // The position of the first line of the batch among the non-empty lines
+            long sequence = 0;
+            String line;
+            while ((line = reader.readLine()) != null && failure.get() == null) {
+                if (line.length() > 0) {
+                    batch.add(line);
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    submit(pool, batch, sequence);
+                    sequence += batch.size();
+                    batch = new ArrayList<String>(BATCH_SIZE);
+                }
+            }
+            submit(pool, batch, sequence);
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IOException(failure.get());
+        }
+        for (Map<String, List<TimedEvent>> shard : shards) {
+            for (List<TimedEvent> tokenEvents : shard.values()) {
+                Collections.sort(tokenEvents);
+            }
+        }
+        return shards;
+    }
+
+    private void submit(final ExecutorService pool, final List<String> batch, final long sequence) {
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    parse(batch, sequence);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param sequence the position of the first line in the dump
+     */
+    private void parse(final List<String> lines, final long sequence) throws IOException {
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            JsonObject json;
+            try {
+                JsonParser parser = JSON_FACTORY.createJsonParser(line);
+                try {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        malformed.incrementAndGet();
+                        continue;
+                    }
+                    json = (JsonObject) toJsonElement(parser);
+                } finally {
+                    parser.close();
+                }
+            } catch (IOException e) {
+                malformed.incrementAndGet();
+                continue;
+            }
+            add(json, sequence + i);
+        }
+    }
+
+    /**
+     * Add an event to the shard of its token, if it is of the right schema.
+     */
+    private void add(final JsonObject json, final long sequence) {
+        JsonElement token = json.get("token");
+        JsonElement meta = json.get("meta");
+        if (token == null || meta == null || !meta.isJsonObject()) {
+            malformed.incrementAndGet();
+            return;
+        }
+        JsonElement eventSchema = meta.getAsJsonObject().get("schema");
+        JsonElement timestamp = meta.getAsJsonObject().get("timestamp");
+        if (eventSchema == null || timestamp == null || !schema.equals(eventSchema.getAsString())) {
+            return;
+        }
+        String key = token.toString();
+        TimedEvent event = new TimedEvent(timestamp.getAsLong(), sequence, json);
+        Map<String, List<TimedEvent>> shard = shards.get((key.hashCode() & Integer.MAX_VALUE) % threads);
+        synchronized (shard) {
+            List<TimedEvent> tokenEvents = shard.get(key);
+            if (tokenEvents == null) {
+                tokenEvents = new ArrayList<TimedEvent>();
+                shard.put(key, tokenEvents);
+            }
+            tokenEvents.add(event);
+        }
+        events.incrementAndGet();
+    }
+
+    /**
+     * Build the Gson tree of the value at the current token of the parser.
+     */
+    static JsonElement toJsonElement(final JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                JsonObject object = new JsonObject();
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    object.add(name, toJsonElement(parser));
+                }
+                return object;
+            case START_ARRAY:
+                JsonArray array = new JsonArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    array.add(toJsonElement(parser));
+                }
+                return array;
+            case VALUE_STRING:
+                return new JsonPrimitive(parser.getText());
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return new JsonPrimitive(parser.getNumberValue());
+            case VALUE_TRUE:
+                return new JsonPrimitive(Boolean.TRUE);
+            case VALUE_FALSE:
+                return new JsonPrimitive(Boolean.FALSE);
+            case VALUE_NULL:
+                return JsonNull.INSTANCE;
+            default:
+                throw new IOException("Unexpected JSON token " + parser.getCurrentToken());
+        }
+    }
+
+    /**
+     * @return the number of events of the schema that were read
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * @return the number of lines that could not be parsed or are not an EventLogging event
+     */
+    public long getMalformed() {
+        return malformed.get();
+    }
+}
@@ -0,0 +1,183 @@
+package org.wikimedia.analytics.kraken.funnel;
+
+import com.google.gson.JsonObject;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.DefaultDirectedGraph;
+import org.jgrapht.graph.DefaultEdge;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.analytics.kraken.exceptions.MalformedFunnelException;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for CompiledFunnel.
+ */
+public class CompiledFunnelTest {
+
+    /**
+     * A -> B -> C, A -> B -> E, D -> B -> C and D -> B -> E.
+     */
+    private Funnel funnel;
+    private CompiledFunnel compiled;
+
+    @Before
+    public void setUp() throws MalformedFunnelException {
+        funnel = new Funnel("event=page", "event=A,event=B;event=B,event=C;event=D,event=B;event=B,event=E;");
+        compiled = funnel.getCompiledFunnel();
+    }
+
+    private static JsonObject event(String name) {
+        JsonObject json = new JsonObject();
+        json.addProperty("event", name);
+        return json;
+    }
+
+    private long[] history(String... events) {
+        Map<Date, JsonObject> map = new HashMap<Date, JsonObject>();
+        for (int i = 0; i < events.length; i++) {
+            map.put(new Date(1000L * (events.length - i)), event(events[events.length - 1 - i]));
+        }
+        return compiled.encode(map);
+    }
+
+    private FunnelPath path(String... steps) {
+        for (FunnelPath path : funnel.paths) {
+            if (path.nodes.toString().equals(Arrays.asList(steps).toString())) {
+                return path;
+            }
+        }
+        throw new IllegalArgumentException(Arrays.toString(steps));
+    }
+
+    @Test
+    public void testEncode() {
+        assertEquals(5, compiled.getNodeCount());
+        long[] events = history("A", "X", "B");
+        assertEquals(4, events.length);
+        assertEquals(1000L, events[0]);
+        assertEquals(1, Long.bitCount(events[1]));
+        assertEquals(3000L, events[2]);
+        assertEquals(1, Long.bitCount(events[3]));
+        assertTrue(events[1] != events[3]);
+    }
+
+    @Test
+    public void testEncodeTimedEvents() {
+        // Events with the same timestamp are encoded in input order
+        long[] events = compiled.encode(Arrays.asList(new TimedEvent(1000L, 0, event("A")),
+                new TimedEvent(2000L, 1, event("X")), new TimedEvent(2000L, 2, event("B")),
+                new TimedEvent(2000L, 3, event("C"))));
+        assertEquals(6, events.length);
+        assertEquals(1000L, events[0]);
+        assertEquals(2000L, events[2]);
+        assertEquals(2000L, events[4]);
+        assertTrue(funnel.analysis("token", events).getHasFinishedFunnel());
+        assertTrue(Arrays.equals(history("A", "X", "B"), compiled.encode(Arrays.asList(
+                new TimedEvent(1000L, 0, event("A")), new TimedEvent(2000L, 1, event("X")),
+                new TimedEvent(3000L, 2, event("B"))))));
+    }
+
+    @Test
+    public void testTimedEventOrder() {
+        TimedEvent first = new TimedEvent(1000L, 5, event("A"));
+        TimedEvent second = new TimedEvent(1000L, 6, event("A"));
+        TimedEvent third = new TimedEvent(2000L, 0, event("A"));
+        assertTrue(first.compareTo(second) < 0);
+        assertTrue(second.compareTo(third) < 0);
+        assertEquals(0, first.compareTo(new TimedEvent(1000L, 5, event("B"))));
+        assertEquals(first, new TimedEvent(1000L, 5, event("B")));
+        assertEquals(first.hashCode(), new TimedEvent(1000L, 5, event("B")).hashCode());
+        assertFalse(first.equals(second));
+    }
+
+    @Test
+    public void testCompletedPath() {
+        Result result = funnel.analysis("token", history("A", "B", "C"));
+        assertTrue(result.getHasFinishedFunnel());
+        assertEquals(1, result.completionPaths.size());
+        assertEquals(path("A", "B", "C"), result.completionPaths.get(0));
+
+        FunnelCounts counts = funnel.getResults();
+        int abc = path("A", "B", "C").id;
+        int abe = path("A", "B", "E").id;
+        assertEquals(1, counts.getVisitors());
+        assertEquals(1, counts.getCompleted(abc));
+        assertEquals(0, counts.getCompleted(abe));
+        assertEquals(1, counts.getImpressions(abe, 0));
+        assertEquals(1, counts.getImpressions(abe, 1));
+        assertEquals(1, counts.getBounced(abe, 1));
+        assertEquals(0, counts.getImpressions(abe, 2));
+        assertEquals(0.0, counts.getCompletionRate(abe, 1), 0.0);
+        assertEquals(1.0, counts.getCompletionRate(abc, 1), 0.0);
+    }
+
+    @Test
+    public void testSkippedEvents() {
+        Result result = funnel.analysis("token", history("A", "X", "B", "C"));
+        assertTrue(result.getHasFinishedFunnel());
+        assertEquals(path("A", "B", "C"), result.completionPaths.get(0));
+    }
+
+    @Test
+    public void testMaxStepGap() throws MalformedFunnelException {
+        funnel = new Funnel("event=page", "event=A,event=B;event=B,event=C;event=D,event=B;event=B,event=E;",
+                1500, FunnelMatcher.NO_LIMIT);
+        compiled = funnel.getCompiledFunnel();
+        // The events are a second apart, X is left out so B -> C takes two seconds
+        Result result = funnel.analysis("token", history("A", "B", "X", "C"));
+        assertFalse(result.getHasFinishedFunnel());
+
+        FunnelCounts counts = funnel.getResults();
+        int abc = path("A", "B", "C").id;
+        assertEquals(1, counts.getImpressions(abc, 1));
+        assertEquals(1, counts.getBounced(abc, 1));
+        assertEquals(0, counts.getImpressions(abc, 2));
+    }
+
+    @Test
+    public void testGraphAnalysisMatchesEncodedAnalysis() {
+        DirectedGraph<Node, DefaultEdge> history = new DefaultDirectedGraph<Node, DefaultEdge>(DefaultEdge.class);
+        UserActionNode d = new UserActionNode(event("D"));
+        UserActionNode b = new UserActionNode(event("B"));
+        UserActionNode e = new UserActionNode(event("E"));
+        history.addVertex(d);
+        history.addVertex(b);
+        history.addVertex(e);
+        history.addEdge(d, b);
+        history.addEdge(b, e);
+
+        Result fromGraph = new Analysis().run("token", history, funnel);
+        Result fromEvents = funnel.analysis("token", history("D", "B", "E"));
+        assertEquals(1, fromGraph.completionPaths.size());
+        assertEquals(fromGraph.completionPaths, fromEvents.completionPaths);
+        assertEquals(path("D", "B", "E"), fromEvents.completionPaths.get(0));
+    }
+
+    @Test
+    public void testProjectIsEncodedLikeUserActionNode() throws MalformedFunnelException {
+        funnel = new Funnel("event=page", "language=en,project=wikipedia;");
+        compiled = funnel.getCompiledFunnel();
+        String[] scratch = new String[ComponentType.values().length];
+        for (String project : new String[] {"en.wikipedia", "de.wikipedia", "commons", "en.wikisource"}) {
+            JsonObject json = event("A");
+            json.addProperty("project", project);
+            assertEquals(project, compiled.encode(new UserActionNode(json)), compiled.encode(json, scratch));
+        }
+
+        JsonObject json = event("A");
+        json.addProperty("project", "en.wikipedia");
+        UserActionNode node = new UserActionNode(json);
+        assertEquals("en", node.componentValues.get(ComponentType.LANGUAGE));
+        assertEquals("wikipedia", node.componentValues.get(ComponentType.PROJECT));
+        // Both the language and the project node match
+        assertEquals(2, Long.bitCount(compiled.encode(json, scratch)));
+    }
+}
@@ -0,0 +1,99 @@
+package org.wikimedia.analytics.kraken.funnel;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.wikimedia.analytics.kraken.exceptions.MalformedFunnelException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for FunnelCounts.
+ */
+public class FunnelCountsTest {
+    private static final String NODES = "event=page";
+    private static final String FUNNEL = "event=A,event=B;event=B,event=C;event=D,event=B;event=B,event=E;";
+
+    private static List<Map<Date, JsonObject>> randomHistories(int users) {
+        Random rnd = new Random(42);
+        List<Map<Date, JsonObject>> histories = new ArrayList<Map<Date, JsonObject>>();
+        for (int u = 0; u < users; u++) {
+            Map<Date, JsonObject> events = new HashMap<Date, JsonObject>();
+            int length = 1 + rnd.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                JsonObject json = new JsonObject();
+                json.addProperty("event", Character.toString("ABCDEX".charAt(rnd.nextInt(6))));
+                events.put(new Date(1000L * i), json);
+            }
+            histories.add(events);
+        }
+        return histories;
+    }
+
+    @Test
+    public void testConcurrentAnalysisMatchesSequentialAnalysis() throws Exception {
+        final List<Map<Date, JsonObject>> histories = randomHistories(4000);
+
+        Funnel sequential = new Funnel(NODES, FUNNEL);
+        for (Map<Date, JsonObject> events : histories) {
+            sequential.analysis("token", sequential.getCompiledFunnel().encode(events));
+        }
+
+        final Funnel concurrent = new Funnel(NODES, FUNNEL);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int u = offset; u < histories.size(); u += 4) {
+                        concurrent.analysis("token", concurrent.getCompiledFunnel().encode(histories.get(u)));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        FunnelCounts expected = sequential.getResults();
+        FunnelCounts actual = concurrent.getResults();
+        assertEquals(4000, actual.getVisitors());
+        assertEquals(expected.toJson(), actual.toJson());
+    }
+
+    @Test
+    public void testMerge() throws MalformedFunnelException {
+        Funnel funnel = new Funnel(NODES, FUNNEL);
+        CompiledFunnel compiled = funnel.getCompiledFunnel();
+        FunnelCounts left = new FunnelCounts(compiled);
+        FunnelCounts right = new FunnelCounts(compiled);
+        left.add(0, 3);
+        left.addVisitor();
+        right.add(0, 1);
+        right.add(1, 2);
+        right.addVisitor();
+
+        left.merge(right);
+        assertEquals(2, left.getVisitors());
+        assertEquals(1, left.getCompleted(0));
+        assertEquals(2, left.getImpressions(0, 0));
+        assertEquals(1, left.getBounced(0, 0));
+        assertEquals(1, left.getImpressions(1, 1));
+        assertEquals(1, left.getBounced(1, 1));
+        assertEquals(0.5, left.getCompletionRate(0, 0), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentFunnels() throws MalformedFunnelException {
+        new FunnelCounts(new Funnel(NODES, FUNNEL).getCompiledFunnel())
+                .merge(new FunnelCounts(new Funnel(NODES, FUNNEL).getCompiledFunnel()));
+    }
+}
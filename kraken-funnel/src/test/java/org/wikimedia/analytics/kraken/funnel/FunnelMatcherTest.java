@@ -0,0 +1,108 @@
+package org.wikimedia.analytics.kraken.funnel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for FunnelMatcher.
+ */
+public class FunnelMatcherTest {
+    private static final int A = 0;
+    private static final int B = 1;
+    private static final int C = 2;
+    private static final int D = 3;
+
+    private static long node(int id) {
+        return 1L << id;
+    }
+
+    private static FunnelMatcher.State match(FunnelMatcher matcher, long[] times, int[] nodes) {
+        FunnelMatcher.State state = matcher.newState();
+        for (int i = 0; i < times.length; i++) {
+            state.add(times[i], node(nodes[i]));
+        }
+        return state;
+    }
+
+    @Test
+    public void testPaths() {
+        long[] successors = new long[4];
+        successors[A] = node(B) | node(C);
+        successors[B] = node(D);
+        successors[C] = node(D);
+        int[][] paths = FunnelMatcher.paths(successors, node(A));
+        assertEquals(2, paths.length);
+        assertArrayEquals(new int[] {A, B, D}, paths[0]);
+        assertArrayEquals(new int[] {A, C, D}, paths[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPathsWithCycle() {
+        long[] successors = new long[2];
+        successors[A] = node(B);
+        successors[B] = node(A);
+        FunnelMatcher.paths(successors, node(A));
+    }
+
+    @Test
+    public void testSkipsUnrelatedEvents() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B, C}}, FunnelMatcher.NO_LIMIT,
+                FunnelMatcher.NO_LIMIT);
+        FunnelMatcher.State state = match(matcher, new long[] {1, 2, 3, 4, 5}, new int[] {C, A, D, B, C});
+        assertTrue(state.isCompleted(0));
+        assertEquals(3, state.getReached(0));
+    }
+
+    @Test
+    public void testOrderMatters() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B, C}}, FunnelMatcher.NO_LIMIT,
+                FunnelMatcher.NO_LIMIT);
+        FunnelMatcher.State state = match(matcher, new long[] {1, 2, 3}, new int[] {B, A, C});
+        assertEquals(1, state.getReached(0));
+    }
+
+    @Test
+    public void testMaxStepGap() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B, C}}, 10, FunnelMatcher.NO_LIMIT);
+        assertEquals(2, match(matcher, new long[] {0, 10, 21}, new int[] {A, B, C}).getReached(0));
+        assertTrue(match(matcher, new long[] {0, 10, 20}, new int[] {A, B, C}).isCompleted(0));
+        // A restart at 15 keeps the run within the gap
+        assertTrue(match(matcher, new long[] {0, 15, 20, 30}, new int[] {A, A, B, C}).isCompleted(0));
+    }
+
+    @Test
+    public void testWindow() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B, C}}, FunnelMatcher.NO_LIMIT, 100);
+        assertEquals(2, match(matcher, new long[] {0, 50, 101}, new int[] {A, B, C}).getReached(0));
+        // The later start is kept and completes within the window
+        FunnelMatcher.State state = match(matcher, new long[] {0, 40, 60, 101, 120},
+                new int[] {A, B, A, B, C});
+        assertTrue(state.isCompleted(0));
+    }
+
+    @Test
+    public void testSingleEventAdvancesOneStep() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B}}, FunnelMatcher.NO_LIMIT,
+                FunnelMatcher.NO_LIMIT);
+        FunnelMatcher.State state = matcher.newState();
+        state.add(1, node(A) | node(B));
+        assertEquals(1, state.getReached(0));
+        state.add(2, node(B));
+        assertTrue(state.isCompleted(0));
+
+        state.reset();
+        assertEquals(0, state.getReached(0));
+        assertFalse(state.isCompleted(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedEvents() {
+        FunnelMatcher matcher = new FunnelMatcher(new int[][] {{A, B}}, FunnelMatcher.NO_LIMIT,
+                FunnelMatcher.NO_LIMIT);
+        match(matcher, new long[] {2, 1}, new int[] {A, B});
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel.cli;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CliTest {
+
+    @Test
+    public void testParseThreads() throws ParseException {
+        assertEquals(4, Cli.parseThreads("4"));
+        assertEquals(1, Cli.parseThreads(" 1 "));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseZeroThreads() throws ParseException {
+        Cli.parseThreads("0");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseNegativeThreads() throws ParseException {
+        Cli.parseThreads("-2");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testParseThreadsNotANumber() throws ParseException {
+        Cli.parseThreads("four");
+    }
+}
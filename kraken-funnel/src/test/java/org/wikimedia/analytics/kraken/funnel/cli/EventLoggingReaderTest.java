@@ -0,0 +1,128 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.funnel.cli;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.wikimedia.analytics.kraken.funnel.TimedEvent;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoggingReaderTest {
+
+    private String event(final int token, final String schema, final long timestamp, final String page) {
+        return "{\"token\":\"user" + token + "\",\"meta\":{\"schema\":\"" + schema + "\",\"timestamp\":" + timestamp
+                + "},\"page\":\"" + page + "\",\"project\":\"en.wikipedia\",\"ratio\":0.5,\"tags\":[1,true,null]}\n";
+    }
+
+    private String dump(final int tokens) {
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; i < tokens; i++) {
+            dump.append(event(i, "Funnel", 1000L * i, "A"));
+            dump.append(event(i, "Other", 1000L * i + 1, "X"));
+            dump.append(event(i, "Funnel", 1000L * i + 2, "B"));
+        }
+        dump.append("not json\n");
+        dump.append("\n");
+        dump.append("{\"meta\":{\"schema\":\"Funnel\",\"timestamp\":1}}\n");
+        return dump.toString();
+    }
+
+    @Test
+    public void testShardsByToken() throws IOException {
+        EventLoggingReader reader = new EventLoggingReader("Funnel", 4);
+        List<Map<String, List<TimedEvent>>> shards = reader.read(new ByteArrayInputStream(
+                dump(5000).getBytes("UTF-8")));
+        assertEquals(4, shards.size());
+        assertEquals(10000, reader.getEvents());
+        assertEquals(2, reader.getMalformed());
+
+        Set<String> tokens = new HashSet<String>();
+        for (Map<String, List<TimedEvent>> shard : shards) {
+            assertFalse(shard.isEmpty());
+            for (Map.Entry<String, List<TimedEvent>> events : shard.entrySet()) {
+                assertTrue(tokens.add(events.getKey()));
+                assertEquals(2, events.getValue().size());
+            }
+        }
+        assertEquals(5000, tokens.size());
+    }
+
+    @Test
+    public void testJsonTree() throws IOException {
+        List<Map<String, List<TimedEvent>>> shards = new EventLoggingReader("Funnel", 1).read(
+                new ByteArrayInputStream(event(7, "Funnel", 42L, "A").getBytes("UTF-8")));
+        // Tokens are keyed by their JSON representation, like the Gson based reader did
+        TimedEvent event = shards.get(0).get("\"user7\"").get(0);
+        assertEquals(42L, event.getTime());
+        JsonObject json = event.getJson();
+        assertEquals("A", json.get("page").getAsString());
+        assertEquals(0.5, json.get("ratio").getAsDouble(), 0);
+        assertEquals(42L, json.get("meta").getAsJsonObject().get("timestamp").getAsLong());
+        assertEquals(3, json.get("tags").getAsJsonArray().size());
+        assertTrue(json.get("tags").getAsJsonArray().get(2).isJsonNull());
+    }
+
+    @Test
+    public void testSameTimestampKeepsInputOrder() throws IOException {
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            dump.append(event(i % 2, "Funnel", 42L, Integer.toString(i)));
+        }
+        List<Map<String, List<TimedEvent>>> shards = new EventLoggingReader("Funnel", 4).read(
+                new ByteArrayInputStream(dump.toString().getBytes("UTF-8")));
+        for (Map<String, List<TimedEvent>> shard : shards) {
+            for (List<TimedEvent> events : shard.values()) {
+                assertEquals(1500, events.size());
+                int previous = -1;
+                for (TimedEvent event : events) {
+                    int page = Integer.parseInt(event.getJson().get("page").getAsString());
+                    assertTrue(page > previous);
+                    previous = page;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGzipFile() throws IOException {
+        File file = File.createTempFile("eventlogging", ".gz");
+        file.deleteOnExit();
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        out.write(dump(100).getBytes("UTF-8"));
+        out.close();
+
+        EventLoggingReader reader = new EventLoggingReader("Funnel", 2);
+        reader.read(file.getPath());
+        assertEquals(200, reader.getEvents());
+    }
+}
@@ -20,20 +20,20 @@
 package org.wikimedia.analytics.kraken.geo;
 
 import com.maxmind.geoip.Location;
-import com.maxmind.geoip.LookupService;
 import org.wikimedia.analytics.kraken.schemas.Country;
 import org.wikimedia.analytics.kraken.schemas.JsonToClassConverter;
 import org.wikimedia.analytics.kraken.schemas.Schema;
+import org.wikimedia.analytics.kraken.utils.IpAddressParser;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.Map;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class provides a customizable Pig UDF to lookup geographic information belonging
@@ -44,8 +44,8 @@ public class GeoIpLookup {
     private static final String EMPTY_STRING = "";
     private String db;
 
-    private LookupService ip4Lookup;
-    private LookupService ip6Lookup;
+    private MappedGeoIpDatabase ip4Lookup;
+    private MappedGeoIpDatabase ip6Lookup;
     private String execType;
 
     private HashMap<String, Schema> countries = new HashMap<String, Schema>();
@@ -55,8 +55,38 @@ public class GeoIpLookup {
     private final HashMap<String, String> continentFixes  = new HashMap<String, String>();
     private final HashMap<String, String> continentNameFixes  = new HashMap<String, String>();
 
-    private static final Pattern IP4PATTERN = Pattern.compile("^(?:[0-9]{1,3}\\.){3}[0-9]{1,3}$");
-    private static final Pattern IP6PATTERN = Pattern.compile("^(?:[0-9a-fA-F]{0,4}:){2,7}[0-9a-fA-F]{0,4}(?::(?:[0-9]{1,3}\\.){3}[0-9]{1,3})*$");
+    /** Continent code and name per country code, precomputed from the countries and the fixes above */
+    private final Map<String, String> continentCodes = new HashMap<String, String>();
+    private final Map<String, String> continentNames = new HashMap<String, String>();
+
+    /** Classifies and parses the ip address of each lookup in a single pass */
+    private final IpAddressParser ipAddressParser = new IpAddressParser();
+
+    /**
+     * Maximum number of ip addresses kept in the lookup cache, can be overridden
+     * with the kraken.geoip.cache.size system property.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    /** Returned from the cache for addresses that are not in the database */
+    private static final GeoIpResult NOT_FOUND = new GeoIpResult(new Object[0]);
+
+    /**
+     * LRU cache of lookup results, keyed by the numeric ip address: a Long for IPv4
+     * and an {@link Ipv6Key} for IPv6 addresses. Client ip addresses repeat a lot
+     * within an hour of traffic, so most lookups do not need to walk the database.
+     */
+    private final Map<Object, GeoIpResult> cache = new LinkedHashMap<Object, GeoIpResult>(1024, 0.75f, true) {
+        private final int maxSize = Integer.getInteger("kraken.geoip.cache.size", DEFAULT_CACHE_SIZE);
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Object, GeoIpResult> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    private long cacheHits;
+    private long cacheMisses;
 
     /**
      * @param inputFields a comma separated list of fields that are requested.
@@ -124,6 +154,15 @@ public class GeoIpLookup {
         continentNameFixes.put("AS", "Asia");
         continentNameFixes.put("EU", "Europe");
 
+        Set<String> countryCodes = new HashSet<String>(countries.keySet());
+        countryCodes.addAll(continentFixes.keySet());
+        for (String countryCode : countryCodes) {
+            if (countries.containsKey(countryCode) || continentFixes.containsKey(countryCode)) {
+                continentCodes.put(countryCode, computeContinentCode(countryCode));
+                continentNames.put(countryCode, computeContinentName(countryCode));
+            }
+        }
+
         if (!initializeGeoFieldNames(inputFields)) {
             System.out.println("Valid field names are: continentCode, continentName, " + Arrays.toString(Location.class.getFields()));
             throw new RuntimeException("Invalid arguments for GeoIpLookup constructor");
@@ -156,6 +195,21 @@ public class GeoIpLookup {
      * @return String
      */
     public final String getContinentName(final String countryCode) {
+        String continentName = continentNames.get(countryCode);
+        return continentName != null ? continentName : computeContinentName(countryCode);
+    }
+
+    /**
+     *
+     * @param countryCode the A2 countryCode that is used as lookup value for continent.
+     * @return String with continentCode
+     */
+    public final String getContinentCode(final String countryCode){
+        String continentCode = continentCodes.get(countryCode);
+        return continentCode != null ? continentCode : computeContinentCode(countryCode);
+    }
+
+    private String computeContinentName(final String countryCode) {
         if (countryCode != null) {
             Country country = (Country) this.countries.get(countryCode);
             String continentCode = continentFixes.containsKey(countryCode) ? continentFixes.get(countryCode) : country.getContinentCode();
@@ -165,12 +219,7 @@ public class GeoIpLookup {
         }
     }
 
-    /**
-     *
-     * @param countryCode the A2 countryCode that is used as lookup value for continent.
-     * @return String with continentCode
-     */
-    public final String getContinentCode(final String countryCode){
+    private String computeContinentCode(final String countryCode) {
         if (countryCode != null) {
             Country country = (Country) this.countries.get(countryCode);
             return continentFixes.containsKey(countryCode) ? continentFixes.get(countryCode) : country.getContinentCode();
@@ -180,37 +229,31 @@ public class GeoIpLookup {
     }
 
     /**
+     * The databases are memory mapped rather than read into the heap, which used to
+     * cause OOM errors (and did not work at all for the GeoIPv6 database). The mapped
+     * pages are shared through the OS page cache by all tasks running on a host.
      *
      * @throws IOException
      */
     private void initLookupService() throws IOException {
         if (this.execType != null && this.execType.equals("LOCAL")) {
-            ip4Lookup = new LookupService("/usr/share/GeoIP/GeoIPCity.dat", LookupService.GEOIP_MEMORY_CACHE);
-            ip6Lookup = new LookupService("/usr/share/GeoIP/GeoIPv6.dat", LookupService.GEOIP_MEMORY_CACHE);
+            ip4Lookup = MappedGeoIpDatabase.open("/usr/share/GeoIP/GeoIPCity.dat");
+            ip6Lookup = MappedGeoIpDatabase.open("/usr/share/GeoIP/GeoIPv6.dat");
         } else {
-            // Enabling cache seems to create weird OOM errors, disabled by default.
-            ip4Lookup = new LookupService("GeoIPCity.dat");
-            // There seems to be a bug when enabling LookupService.GEOIP_MEMORY_CACHE for the GeoIPv6 database
-            // hence it's disabled.
-            ip6Lookup = new LookupService("GeoIPv6.dat");
+            ip4Lookup = MappedGeoIpDatabase.open("GeoIPCity.dat");
+            ip6Lookup = MappedGeoIpDatabase.open("GeoIPv6.dat");
         }
     }
 
     /**
+     * Classify the ip address and parse its numeric value, which is kept by
+     * {@link #ipAddressParser} for the lookup that follows.
      *
      * @param ip
-     * @return
+     * @return 4 for an IPv4 address, 6 for an IPv6 address, 0 otherwise
      */
-    private Integer determineIpAddressType(final String ip) {
-        Matcher ip4 = IP4PATTERN.matcher(ip);
-        if (ip4.matches()) {
-            return 4;
-        }
-        Matcher ip6 = IP6PATTERN.matcher(ip);
-        if (ip6.matches()) {
-            return 6;
-        }
-        return 0;
+    private int determineIpAddressType(final String ip) {
+        return ipAddressParser.parse(ip);
     }
 
     /**
@@ -220,13 +263,13 @@ public class GeoIpLookup {
      */
     public final Location doGeoLookup(final String ip) {
         Location location = null;
-        Integer ipAddressType = determineIpAddressType(ip);
+        int ipAddressType = determineIpAddressType(ip);
         switch (ipAddressType){
-            case 4:
-                location = ip4Lookup.getLocation(ip);
+            case IpAddressParser.IPV4:
+                location = ip4Lookup.getLocation(ipAddressParser.getIpv4());
                 break;
-            case 6:
-                location = ip6Lookup.getLocationV6(ip);
+            case IpAddressParser.IPV6:
+                location = ip6Lookup.getLocationV6(ipAddressParser.getHigh(), ipAddressParser.getLow());
                 break;
             default:
                 break;
@@ -236,6 +279,129 @@ public class GeoIpLookup {
     }
 
 
+    /**
+     * Look up the requested fields of an ip address, the results are cached per address.
+     *
+     * @param ip
+     * @return the values of the requested fields or null if the ip address is invalid or unknown
+     */
+    public final GeoIpResult lookup(final String ip) {
+        Object key;
+        switch (determineIpAddressType(ip)) {
+            case IpAddressParser.IPV4:
+                key = ipAddressParser.getIpv4();
+                break;
+            case IpAddressParser.IPV6:
+                key = new Ipv6Key(ipAddressParser.getHigh(), ipAddressParser.getLow());
+                break;
+            default:
+                return null;
+        }
+
+        GeoIpResult result = cache.get(key);
+        if (result != null) {
+            cacheHits++;
+        } else {
+            cacheMisses++;
+            Location location = ipAddressParser.isIpv4()
+                    ? ip4Lookup.getLocation(ipAddressParser.getIpv4())
+                    : ip6Lookup.getLocationV6(ipAddressParser.getHigh(), ipAddressParser.getLow());
+            result = location != null ? toResult(location) : NOT_FOUND;
+            cache.put(key, result);
+        }
+        return result != NOT_FOUND ? result : null;
+    }
+
+    /**
+     * @return the values of the requested fields of location
+     */
+    private GeoIpResult toResult(final Location location) {
+        Object[] values = new Object[neededGeoFieldNames.size()];
+        int i = 0;
+        for (GeoIpLookupField field : neededGeoFieldNames) {
+            switch (field) {
+                case COUNTRYCODE:
+                    values[i] = location.countryCode;
+                    break;
+                case CONTINENTCODE:
+                    values[i] = getContinentCode(location.countryCode);
+                    break;
+                case CONTINENTNAME:
+                    values[i] = getContinentName(location.countryCode);
+                    break;
+                case REGION:
+                    values[i] = location.region;
+                    break;
+                case CITY:
+                    values[i] = location.city;
+                    break;
+                case POSTALCODE:
+                    values[i] = location.postalCode;
+                    break;
+                case LATITUDE:
+                    values[i] = location.latitude;
+                    break;
+                case LONGITUDE:
+                    values[i] = location.longitude;
+                    break;
+                case DMACODE:
+                    values[i] = location.dma_code;
+                    break;
+                case AREACODE:
+                    values[i] = location.area_code;
+                    break;
+                case METROCODE:
+                    values[i] = location.metro_code;
+                    break;
+                default:
+                    break;
+            }
+            i++;
+        }
+        return new GeoIpResult(values);
+    }
+
+    /**
+     * @return the number of lookups that were answered from the cache
+     */
+    public final long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the number of lookups that had to walk the database
+     */
+    public final long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Cache key of an IPv6 address.
+     */
+    private static final class Ipv6Key {
+        private final long high;
+        private final long low;
+
+        Ipv6Key(final long high, final long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Ipv6Key)) {
+                return false;
+            }
+            Ipv6Key other = (Ipv6Key) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+        }
+    }
+
     /**
      *
      * @return
@@ -0,0 +1,59 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.geo;
+
+import java.util.Arrays;
+
+/**
+ * Immutable result of a geo lookup, holding the values of the requested
+ * {@link GeoIpLookupField}s in the order in which they were requested.
+ *
+ * Values are materialized once per ip address by {@link GeoIpLookup#lookup(String)}
+ * and shared through its cache, so they are never modified after construction.
+ */
+public final class GeoIpResult {
+    private final Object[] values;
+
+    /**
+     * @param values the field values, this array is not copied and should not be modified afterwards
+     */
+    GeoIpResult(final Object[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @param i index of the field in the list of requested fields
+     * @return the String, Float or Integer value of the field
+     */
+    public Object get(final int i) {
+        return values[i];
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.geo;
+
+import com.maxmind.geoip.Location;
+import com.maxmind.geoip.LookupService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Read-only reader for the legacy MaxMind GeoIP (.dat) Country and City databases,
+ * including their IPv6 editions, backed by a {@link MappedByteBuffer}.
+ *
+ * The database is mapped into memory instead of loaded onto the Java heap, so the
+ * pages are shared through the OS page cache by every JVM on the host that maps the
+ * same file, and a lookup is a walk over the mapped binary tree without any system
+ * calls. The buffer is only read with absolute gets, so a single instance can be
+ * shared between threads; {@link #open(String)} returns one instance per file.
+ *
+ * The results are returned as {@link Location} instances, just like
+ * {@link LookupService#getLocation(String)} does.
+ */
+public final class MappedGeoIpDatabase {
+    /** Database types, as stored in the structure info at the end of the file */
+    static final int COUNTRY_EDITION = 1;
+    static final int CITY_EDITION_REV1 = 2;
+    static final int CITY_EDITION_REV0 = 6;
+    static final int COUNTRY_EDITION_V6 = 12;
+    static final int CITY_EDITION_REV1_V6 = 30;
+    static final int CITY_EDITION_REV0_V6 = 31;
+
+    /** First record of the country editions, the country index is relative to it */
+    static final int COUNTRY_BEGIN = 16776960;
+
+    private static final int STRUCTURE_INFO_MAX_SIZE = 20;
+    private static final int RECORD_LENGTH = 3;
+    private static final int SEGMENT_RECORD_LENGTH = 3;
+    private static final int FULL_RECORD_LENGTH = 60;
+
+    /** The country code and name tables are shared with the MaxMind api we depend on */
+    private static final String[] COUNTRY_CODES = countryTable("countryCode");
+    private static final String[] COUNTRY_NAMES = countryTable("countryName");
+
+    /** Databases that are already mapped, keyed by canonical path */
+    private static final ConcurrentMap<String, MappedGeoIpDatabase> DATABASES =
+            new ConcurrentHashMap<String, MappedGeoIpDatabase>();
+
+    private final MappedByteBuffer buffer;
+    private final int databaseType;
+    private final int databaseSegment;
+    private final boolean ipv6;
+    private final boolean city;
+
+    /**
+     * @param file the GeoIP database to map
+     * @throws IOException if the file cannot be read or is not a supported GeoIP database
+     */
+    MappedGeoIpDatabase(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        int type = COUNTRY_EDITION;
+        int segment = COUNTRY_BEGIN;
+        int limit = buffer.limit();
+        for (int i = 0, pos = limit - 3; i < STRUCTURE_INFO_MAX_SIZE && pos >= 0; i++, pos--) {
+            if (unsignedByte(pos) == 0xFF && unsignedByte(pos + 1) == 0xFF && unsignedByte(pos + 2) == 0xFF) {
+                type = pos + 3 < limit ? unsignedByte(pos + 3) : COUNTRY_EDITION;
+                if (type >= 106) {
+                    // Backwards compatibility with databases from April 2003 and earlier
+                    type -= 105;
+                }
+                if (isCity(type)) {
+                    if (pos + 4 + SEGMENT_RECORD_LENGTH > limit) {
+                        throw new IOException("Truncated GeoIP database: " + file);
+                    }
+                    segment = readInt(pos + 4, SEGMENT_RECORD_LENGTH);
+                }
+                break;
+            }
+        }
+
+        if (!isCity(type) && type != COUNTRY_EDITION && type != COUNTRY_EDITION_V6) {
+            throw new IOException("Unsupported GeoIP database type " + type + ": " + file);
+        }
+        this.databaseType = type;
+        this.databaseSegment = segment;
+        this.city = isCity(type);
+        this.ipv6 = type == COUNTRY_EDITION_V6 || type == CITY_EDITION_REV0_V6 || type == CITY_EDITION_REV1_V6;
+    }
+
+    /**
+     * Map a GeoIP database, or return the instance that already maps it.
+     * @param path path of the .dat file
+     * @return the database
+     * @throws IOException
+     */
+    public static MappedGeoIpDatabase open(final String path) throws IOException {
+        File file = new File(path).getCanonicalFile();
+        String key = file.getPath();
+        MappedGeoIpDatabase database = DATABASES.get(key);
+        if (database == null) {
+            database = new MappedGeoIpDatabase(file);
+            MappedGeoIpDatabase existing = DATABASES.putIfAbsent(key, database);
+            if (existing != null) {
+                database = existing;
+            }
+        }
+        return database;
+    }
+
+    private static boolean isCity(final int type) {
+        return type == CITY_EDITION_REV0 || type == CITY_EDITION_REV1
+                || type == CITY_EDITION_REV0_V6 || type == CITY_EDITION_REV1_V6;
+    }
+
+    private static String[] countryTable(final String name) {
+        try {
+            Field field = LookupService.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return (String[]) field.get(null);
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param ipAddress an IPv4 address as an unsigned 32 bit value
+     * @return the location or null if the database does not know the address
+     */
+    public Location getLocation(final long ipAddress) {
+        if (ipv6) {
+            throw new IllegalStateException("IPv4 lookup in an IPv6 database");
+        }
+        int offset = 0;
+        for (int depth = 31; depth >= 0; depth--) {
+            boolean right = (ipAddress & (1L << depth)) != 0;
+            offset = readInt(2 * RECORD_LENGTH * offset + (right ? RECORD_LENGTH : 0), RECORD_LENGTH);
+            if (offset >= databaseSegment) {
+                return readLocation(offset);
+            }
+        }
+        throw new IllegalStateException("Corrupt GeoIP database, tree is deeper than 32 bits");
+    }
+
+    /**
+     * @param address an IPv6 address in network byte order
+     * @return the location or null if the database does not know the address
+     */
+    public Location getLocationV6(final byte[] address) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (address[i] & 0xFF);
+            low = (low << 8) | (address[i + 8] & 0xFF);
+        }
+        return getLocationV6(high, low);
+    }
+
+    /**
+     * @param high the high 64 bits of an IPv6 address
+     * @param low the low 64 bits of an IPv6 address
+     * @return the location or null if the database does not know the address
+     */
+    public Location getLocationV6(final long high, final long low) {
+        if (!ipv6) {
+            throw new IllegalStateException("IPv6 lookup in an IPv4 database");
+        }
+        int offset = 0;
+        for (int depth = 127; depth >= 0; depth--) {
+            long bits = depth >= 64 ? high : low;
+            boolean right = (bits & (1L << (depth & 63))) != 0;
+            offset = readInt(2 * RECORD_LENGTH * offset + (right ? RECORD_LENGTH : 0), RECORD_LENGTH);
+            if (offset >= databaseSegment) {
+                return readLocation(offset);
+            }
+        }
+        throw new IllegalStateException("Corrupt GeoIP database, tree is deeper than 128 bits");
+    }
+
+    /**
+     * @param seek the leaf record found in the tree
+     */
+    private Location readLocation(final int seek) {
+        if (!city) {
+            int country = seek - COUNTRY_BEGIN;
+            if (country == 0) {
+                return null;
+            }
+            Location location = new Location();
+            location.countryCode = COUNTRY_CODES[country];
+            location.countryName = COUNTRY_NAMES[country];
+            return location;
+        }
+
+        if (seek == databaseSegment) {
+            return null;
+        }
+
+        int pos = seek + (2 * RECORD_LENGTH - 1) * databaseSegment;
+        int end = Math.min(buffer.limit(), pos + FULL_RECORD_LENGTH);
+
+        Location location = new Location();
+        int country = unsignedByte(pos++);
+        location.countryCode = COUNTRY_CODES[country];
+        location.countryName = COUNTRY_NAMES[country];
+
+        int length = stringLength(pos, end);
+        location.region = readString(pos, length);
+        pos += length + 1;
+
+        length = stringLength(pos, end);
+        location.city = readString(pos, length);
+        pos += length + 1;
+
+        length = stringLength(pos, end);
+        location.postalCode = readString(pos, length);
+        pos += length + 1;
+
+        location.latitude = (float) readInt(pos, 3) / 10000 - 180;
+        pos += 3;
+        location.longitude = (float) readInt(pos, 3) / 10000 - 180;
+        pos += 3;
+
+        if ((databaseType == CITY_EDITION_REV1 || databaseType == CITY_EDITION_REV1_V6)
+                && "US".equals(location.countryCode)) {
+            int metroAreaCombo = readInt(pos, 3);
+            location.dma_code = metroAreaCombo / 1000;
+            location.metro_code = location.dma_code;
+            location.area_code = metroAreaCombo % 1000;
+        }
+        return location;
+    }
+
+    private int stringLength(final int start, final int end) {
+        int pos = start;
+        while (pos < end && buffer.get(pos) != 0) {
+            pos++;
+        }
+        return pos - start;
+    }
+
+    /**
+     * @return the ISO-8859-1 string of length bytes at pos, or null for an empty string.
+     */
+    private String readString(final int pos, final int length) {
+        if (length == 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) unsignedByte(pos + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the little endian unsigned integer of length bytes at pos.
+     */
+    private int readInt(final int pos, final int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value |= unsignedByte(pos + i) << (i * 8);
+        }
+        return value;
+    }
+
+    private int unsignedByte(final int pos) {
+        return buffer.get(pos) & 0xFF;
+    }
+
+    /**
+     * @return true if this is an IPv6 edition of the database
+     */
+    public boolean isIpv6() {
+        return ipv6;
+    }
+
+    /**
+     * @return the GeoIP database type
+     */
+    public int getDatabaseType() {
+        return databaseType;
+    }
+}
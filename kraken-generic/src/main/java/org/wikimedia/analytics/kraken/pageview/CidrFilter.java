@@ -19,18 +19,40 @@
 package org.wikimedia.analytics.kraken.pageview;
 
 
-import org.apache.commons.net.util.SubnetUtils;
+import org.wikimedia.analytics.kraken.utils.IpAddressParser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
+ * Checks whether an ip address falls within a set of CIDR ranges.
  *
+ * The ranges are compiled into sorted arrays of non-overlapping, inclusive
+ * [start, end] intervals, one set for IPv4 and one for IPv6, so a lookup is a
+ * single allocation free parse of the address followed by a binary search.
+ * IPv6 values are stored as pairs of longs (high bits, low bits) that are
+ * compared as unsigned numbers.
+ *
+ * The compiled ranges are immutable, but an instance reuses an
+ * {@link IpAddressParser} and is therefore not thread-safe.
  */
 public class CidrFilter {
-    /** a list containing all the CIDR ranges to check for */
-    private List<SubnetUtils> subnets = new ArrayList<SubnetUtils>();
+    /** WMF internal and office ranges, excluded from pageview counts */
+    private static final String WMF_RANGES = "10.0.0.0/8,208.80.152.0/22,91.198.174.0/24,"
+            + "2620:0:860::/46,2a02:ec80::/32";
+
+    /** Inclusive starts and ends of the IPv4 ranges */
+    private final long[] ipv4Starts;
+    private final long[] ipv4Ends;
+
+    /** Inclusive starts and ends of the IPv6 ranges, two longs (high, low) per value */
+    private final long[] ipv6Starts;
+    private final long[] ipv6Ends;
 
+    private final IpAddressParser parser = new IpAddressParser();
 
     /**
      * Default constructor that use WMF internal IP ranges
@@ -38,15 +60,12 @@ public class CidrFilter {
     public CidrFilter() {
         /**
          * 10.x.x.x are internal IP addresses.
+         *
+         * 208.80.152.0/22 && 91.198.174.0/24 (and their IPv6 counterparts
+         * 2620:0:860::/46 && 2a02:ec80::/32) are internal WMF ranges and should
+         * be excluded from pageview counts
          */
-        this.subnets.add(new SubnetUtils("10.0.0.0/8"));
-
-        /**
-         * 208.80.152.0/22 && 91.198.174.0/24 are internal WMF office ranges and should be excluded from
-         * pageview counts
-         */
-        this.subnets.add(new SubnetUtils("208.80.152.0/22"));
-        this.subnets.add(new SubnetUtils("91.198.174.0/24"));
+        this(WMF_RANGES);
     }
 
     /**
@@ -54,36 +73,206 @@ public class CidrFilter {
      * @param subnetInput a comma separated list of subnets using the CIDR notation.
      */
     public CidrFilter(final String subnetInput) {
+        List<long[]> ipv4 = new ArrayList<long[]>();
+        List<long[]> ipv6 = new ArrayList<long[]>();
         for (String subnet : subnetInput.split(",")) {
-            SubnetUtils subnetUtil = new SubnetUtils(subnet);
-            subnetUtil.setInclusiveHostCount(true);
-            this.subnets.add(subnetUtil);
+            addRange(subnet.trim(), ipv4, ipv6);
+        }
+
+        ipv4 = merge(ipv4, 1);
+        ipv4Starts = new long[ipv4.size()];
+        ipv4Ends = new long[ipv4.size()];
+        for (int i = 0; i < ipv4.size(); i++) {
+            ipv4Starts[i] = ipv4.get(i)[0];
+            ipv4Ends[i] = ipv4.get(i)[1];
+        }
+
+        ipv6 = merge(ipv6, 2);
+        ipv6Starts = new long[ipv6.size() * 2];
+        ipv6Ends = new long[ipv6.size() * 2];
+        for (int i = 0; i < ipv6.size(); i++) {
+            long[] range = ipv6.get(i);
+            ipv6Starts[2 * i] = range[0];
+            ipv6Starts[2 * i + 1] = range[1];
+            ipv6Ends[2 * i] = range[2];
+            ipv6Ends[2 * i + 1] = range[3];
         }
     }
 
+    /**
+     * Parse a single CIDR range and add it to the IPv4 or IPv6 list, as
+     * {start, end} or {startHigh, startLow, endHigh, endLow} respectively.
+     */
+    private void addRange(final String subnet, final List<long[]> ipv4, final List<long[]> ipv6) {
+        int slash = subnet.indexOf('/');
+        String address = slash < 0 ? subnet : subnet.substring(0, slash);
+        int type = parser.parse(address);
+        if (type == IpAddressParser.INVALID) {
+            throw new IllegalArgumentException("Could not parse [" + subnet + "]");
+        }
+
+        int maxBits = type == IpAddressParser.IPV4 ? 32 : 128;
+        int bits = maxBits;
+        if (slash >= 0) {
+            try {
+                bits = Integer.parseInt(subnet.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Could not parse [" + subnet + "]", e);
+            }
+            if (bits < 0 || bits > maxBits) {
+                throw new IllegalArgumentException("Value [" + bits + "] not in range [0," + maxBits + "]");
+            }
+        }
+
+        if (type == IpAddressParser.IPV4) {
+            long hostMask = (1L << (32 - bits)) - 1;
+            long start = parser.getIpv4() & ~hostMask;
+            ipv4.add(new long[] {start, start | hostMask});
+        } else {
+            long highMask = hostMask(bits);
+            long lowMask = hostMask(bits - 64);
+            long startHigh = parser.getHigh() & ~highMask;
+            long startLow = parser.getLow() & ~lowMask;
+            ipv6.add(new long[] {startHigh, startLow, startHigh | highMask, startLow | lowMask});
+        }
+    }
+
+    /**
+     * @return a mask of the host bits of a 64 bit word with the given number of network bits.
+     */
+    private static long hostMask(final int bits) {
+        if (bits <= 0) {
+            return -1L;
+        } else if (bits >= 64) {
+            return 0L;
+        }
+        return -1L >>> bits;
+    }
+
+    /**
+     * Sort the ranges by start and merge the ones that overlap or are adjacent.
+     * @param width the number of longs in a single value
+     */
+    private static List<long[]> merge(final List<long[]> ranges, final int width) {
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(final long[] a, final long[] b) {
+                return compareUnsigned(a, 0, b, 0, width);
+            }
+        });
+
+        List<long[]> merged = new ArrayList<long[]>();
+        long[] current = null;
+        for (long[] range : ranges) {
+            if (current != null && !isAfterSuccessor(range, 0, current, width, width)) {
+                if (compareUnsigned(range, width, current, width, width) > 0) {
+                    System.arraycopy(range, width, current, width, width);
+                }
+            } else {
+                current = range;
+                merged.add(current);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return true if a[aOffset] > b[bOffset] + 1, so the two values are neither equal nor adjacent.
+     */
+    private static boolean isAfterSuccessor(final long[] a, final int aOffset,
+                                            final long[] b, final int bOffset, final int width) {
+        long[] successor = Arrays.copyOfRange(b, bOffset, bOffset + width);
+        for (int i = width - 1; i >= 0; i--) {
+            successor[i]++;
+            if (successor[i] != 0) {
+                break;
+            }
+            if (i == 0) {
+                // b is the largest possible value, nothing comes after it
+                return false;
+            }
+        }
+        return compareUnsigned(a, aOffset, successor, 0, width) > 0;
+    }
+
+    private static int compareUnsigned(final long[] a, final int aOffset,
+                                       final long[] b, final int bOffset, final int width) {
+        for (int i = 0; i < width; i++) {
+            int result = compareUnsigned(a[aOffset + i], b[bOffset + i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareUnsigned(final long a, final long b) {
+        long x = a + Long.MIN_VALUE;
+        long y = b + Long.MIN_VALUE;
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
     /**
      *
      * @param ipAddress string that needs to be checked whether it falls in a given CIDR range.
      * @return true if ipAddress is within one of the specified CIDR ranges otherwise return false.
      */
     public final boolean ipAddressFallsInRange(final String ipAddress) {
-        if (isIp4Address(ipAddress)) {
-            for (SubnetUtils subnet : subnets) {
-                if (subnet.getInfo().isInRange(ipAddress)) {
-                    return true;
-                }
+        switch (parser.parse(ipAddress)) {
+            case IpAddressParser.IPV4:
+                return ipv4FallsInRange(parser.getIpv4());
+            case IpAddressParser.IPV6:
+                return ipv6FallsInRange(parser.getHigh(), parser.getLow());
+            default:
+                return false;
+        }
+    }
+
+    private boolean ipv4FallsInRange(final long ip) {
+        // Find the last range that starts at or before ip
+        int low = 0;
+        int high = ipv4Starts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ipv4Starts[mid] <= ip) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && ip <= ipv4Ends[high];
+    }
+
+    private boolean ipv6FallsInRange(final long ipHigh, final long ipLow) {
+        int low = 0;
+        int high = ipv6Starts.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (compare128(ipv6Starts[2 * mid], ipv6Starts[2 * mid + 1], ipHigh, ipLow) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
-            return false;
-        } else {
-            return true;
         }
+        return high >= 0 && compare128(ipHigh, ipLow, ipv6Ends[2 * high], ipv6Ends[2 * high + 1]) <= 0;
+    }
+
+    private static int compare128(final long aHigh, final long aLow, final long bHigh, final long bLow) {
+        int result = compareUnsigned(aHigh, bHigh);
+        return result != 0 ? result : compareUnsigned(aLow, bLow);
     }
 
     /**
-     *
-     * @param ipAddress
+     * @return the number of disjoint IPv4 ranges after merging
+     */
+    final int getIpv4RangeCount() {
+        return ipv4Starts.length;
+    }
+
+    /**
+     * @return the number of disjoint IPv6 ranges after merging
      */
-    private boolean isIp4Address(final String ipAddress) {
-        return !ipAddress.contains(":");
+    final int getIpv6RangeCount() {
+        return ipv6Starts.length / 2;
     }
 }
@@ -0,0 +1,164 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pageview;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable trie of the Wikimedia language codes, used to decide whether a label of a hostname
+ * is a language without splitting the hostname or allocating a String for the label.
+ *
+ * The shared instance returned by {@link #getInstance()} is built once from languages.txt.
+ * Lookups are case sensitive, just like the HashSet based lookups this class replaces.
+ */
+public final class LanguageTrie {
+    /** Language codes consist of a-z, 0-9 and '-' */
+    private static final int ALPHABET_SIZE = 37;
+
+    /** Flattened transition table, children[node * ALPHABET_SIZE + symbol] is the child node or 0 */
+    private final int[] children;
+
+    /** The interned language code ending at a node, or null */
+    private final String[] languages;
+
+    private final int size;
+
+    /**
+     * Lazily loaded holder for the shared instance.
+     */
+    private static final class Holder {
+        private static final LanguageTrie INSTANCE = fromResource("/languages.txt");
+    }
+
+    /**
+     * @param languageCodes the language codes to store in the trie
+     */
+    public LanguageTrie(final Iterable<String> languageCodes) {
+        int[] table = new int[16 * ALPHABET_SIZE];
+        List<String> terminals = new ArrayList<String>();
+        terminals.add(null);
+        int nodes = 1;
+        int count = 0;
+
+        for (String languageCode : languageCodes) {
+            String code = languageCode.trim();
+            if (code.length() == 0) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < code.length(); i++) {
+                int symbol = symbol(code.charAt(i));
+                if (symbol < 0) {
+                    throw new IllegalArgumentException("Invalid language code: " + code);
+                }
+                int index = node * ALPHABET_SIZE + symbol;
+                if (table[index] == 0) {
+                    if ((nodes + 1) * ALPHABET_SIZE > table.length) {
+                        table = Arrays.copyOf(table, table.length * 2);
+                    }
+                    table[index] = nodes++;
+                    terminals.add(null);
+                }
+                node = table[index];
+            }
+            if (terminals.get(node) == null) {
+                terminals.set(node, code.intern());
+                count++;
+            }
+        }
+
+        this.children = Arrays.copyOf(table, nodes * ALPHABET_SIZE);
+        this.languages = terminals.toArray(new String[nodes]);
+        this.size = count;
+    }
+
+    /**
+     * @return the shared trie containing all the languages from languages.txt
+     */
+    public static LanguageTrie getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @param resource name of a classpath resource containing one language code per line
+     * @return a trie containing all the language codes in the resource
+     */
+    public static LanguageTrie fromResource(final String resource) {
+        try {
+            return new LanguageTrie(Resources.readLines(
+                    Resources.getResource(LanguageTrie.class, resource), Charsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Look up a label of a hostname.
+     * @param s the hostname
+     * @param start start of the label, inclusive
+     * @param end end of the label, exclusive
+     * @return the interned language code if s[start, end) is a language, otherwise null
+     */
+    public String match(final CharSequence s, final int start, final int end) {
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            int symbol = symbol(s.charAt(i));
+            if (symbol < 0) {
+                return null;
+            }
+            node = children[node * ALPHABET_SIZE + symbol];
+            if (node == 0) {
+                return null;
+            }
+        }
+        return languages[node];
+    }
+
+    /**
+     * @param label a single label of a hostname
+     * @return true if the label is a language
+     */
+    public boolean contains(final String label) {
+        return match(label, 0, label.length()) != null;
+    }
+
+    /**
+     * @return the number of language codes in the trie
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int symbol(final char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        } else if (c == '-') {
+            return 36;
+        }
+        return -1;
+    }
+}
@@ -18,9 +18,6 @@
  */
 package org.wikimedia.analytics.kraken.pageview;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-
 /**
  * This class provides the main functionality to:
  * 1) determine whether a logline from a cache server is a pageview
@@ -43,10 +40,14 @@ import java.net.URL;
  14. User-Agent header
  15. Accept_Language
  16 X-CS (Wikipedia Zero MCC-MNC Carrier Code)
+ *
+ * A single instance can be reused for many log lines by calling
+ * {@link #reset(String, String, String, String, String, String, String)}, the urls are
+ * tokenized by a {@link UrlParser} so classifying a log line does not allocate.
  */
 public class Pageview {
-    private URL url;
-    private URL referer;
+    private final UrlParser url = new UrlParser();
+    private final UrlParser referer = new UrlParser();
     private String userAgent;
     private String statusCode;
     private String ipAddress;
@@ -60,6 +61,15 @@ public class Pageview {
     private ProjectInfo projectInfo;
     private CidrFilter cidrFilter;
 
+    /**
+     * Create an empty pageview, call
+     * {@link #reset(String, String, String, String, String, String, String)} before using it.
+     */
+    public Pageview() {
+        pageviewFilter = new PageviewFilter();
+        cidrFilter = new CidrFilter();
+        pageviewCanonical = new PageviewCanonical();
+    }
 
     /**
      *
@@ -88,7 +98,7 @@ public class Pageview {
      */
 
     /**
-     * All passed in strings will be converted to lowercase and stored to this instance
+     * All passed in strings are compared case insensitive.
      * @param url page visited
      * @param referer origin of visitor, '-' if direct hit.
      * @param userAgent string indicating the browser/device used by the visitor
@@ -99,40 +109,37 @@ public class Pageview {
      */
     public Pageview(String url, String referer, String userAgent,
                     String statusCode, String ipAddress, String mimeType, String requestMethod) {
+        this();
+        reset(url, referer, userAgent, statusCode, ipAddress, mimeType, requestMethod);
+    }
 
-        // null coalesce all the fields to empty string
-        url = url == null ? "" : url;
-        referer = referer == null ? "" : referer;
-        userAgent = userAgent == null ? "" : userAgent;
-        statusCode = statusCode == null ? "" : statusCode;
-        ipAddress = ipAddress == null ? "0.0.0.0" : ipAddress;
-        mimeType = mimeType == null ? "" : mimeType;
-        requestMethod = requestMethod == null ? "" : requestMethod;
-
-        try {
-            this.url = new URL(url.toLowerCase());
-        } catch (MalformedURLException e) {
-            this.url = null;
-        }
-
-        try {
-            this.referer = new URL(referer.toLowerCase());
-        }  catch (MalformedURLException e) {
-            this.referer = null;
-        }
+    /**
+     * Reuse this instance for another request, all state from the previous request is discarded.
+     * @param url page visited
+     * @param referer origin of visitor, '-' if direct hit.
+     * @param userAgent string indicating the browser/device used by the visitor
+     * @param statusCode responsecode from the cache server to indicate whether request was successful or not
+     * @param ipAddress ipaddress of the visitor
+     * @param mimeType content type requested
+     * @param requestMethod GET, POST, etc.
+     * @return this instance
+     */
+    public final Pageview reset(String url, String referer, String userAgent,
+                    String statusCode, String ipAddress, String mimeType, String requestMethod) {
 
-        this.userAgent = userAgent.toLowerCase();
-        this.statusCode = statusCode.toLowerCase();
-        this.ipAddress = ipAddress;
-        this.mimeType = mimeType.toLowerCase();
-        this.requestMethod = requestMethod.toLowerCase();
+        // null coalesce all the fields to empty string
+        this.url.parse(url);
+        this.referer.parse(referer);
+        this.userAgent = userAgent == null ? "" : userAgent;
+        this.statusCode = statusCode == null ? "" : statusCode;
+        this.ipAddress = ipAddress == null ? "0.0.0.0" : ipAddress;
+        this.mimeType = mimeType == null ? "" : mimeType;
+        this.requestMethod = requestMethod == null ? "" : requestMethod;
         this.mode = "new_definition";
 
-        if (pageviewFilter == null || pageviewCanonical == null || cidrFilter == null) {
-            pageviewFilter = new PageviewFilter();
-            cidrFilter = new CidrFilter();
-            pageviewCanonical = new PageviewCanonical();
-        }
+        this.pageviewType = null;
+        this.projectInfo = null;
+        return this;
     }
 
     /**
@@ -194,27 +201,35 @@ public class Pageview {
         switch (pageviewType) {
             case MOBILE:
                 pageviewCanonical.canonicalizeMobilePageview(url, pageviewType);
+                break;
 
             case MOBILE_API:
                 pageviewCanonical.canonicalizeMobilePageview(url, pageviewType);
+                break;
 
             case MOBILE_ZERO:
                 pageviewCanonical.canonicalizeMobilePageview(url, pageviewType);
+                break;
 
             case MOBILE_SEARCH:
                 pageviewCanonical.canonicalizeSearchQuery(url, pageviewType);
+                break;
 
             case DESKTOP:
                 pageviewCanonical.canonicalizeDesktopPageview(url, pageviewType);
+                break;
 
             case DESKTOP_API:
                 pageviewCanonical.canonicalizeApiRequest(url, pageviewType);
+                break;
 
             case DESKTOP_SEARCH:
                 pageviewCanonical.canonicalizeSearchQuery(url, pageviewType);
+                break;
 
             case COMMONS_IMAGE:
                 pageviewCanonical.canonicalizeImagePageview(url, pageviewType);
+                break;
 
             case BANNER:
                 //TODO: not yet implemented
@@ -233,19 +248,19 @@ public class Pageview {
      * Given a url, determine the pageview type (mobile, desktop, api, search and blog).
      */
     public final void determinePageviewType() {
-        if (url.getQuery() != null && url.getQuery().contains("bannerloader")) {
+        if (url.queryContains("bannerloader")) {
             pageviewType = PageviewType.BANNER;
-        } else if (url.getHost().contains("commons")) { // FIXME: obviously wrong
+        } else if (url.hostContains("commons")) { // FIXME: obviously wrong
             pageviewType = PageviewType.COMMONS_IMAGE;
-        } else if (url.getHost().contains(".m.")) {
+        } else if (url.hostContains(".m.")) {
             pageviewType = PageviewType.MOBILE;
             determineMobileSubPageviewType();
-        } else if (url.getHost().contains(".zero.")) {
+        } else if (url.hostContains(".zero.")) {
             pageviewType = PageviewType.MOBILE_ZERO;
-        } else if (url.getHost().contains("wiki")) { // FIXME: obviously wrong
+        } else if (url.hostContains("wiki")) { // FIXME: obviously wrong
             pageviewType = PageviewType.DESKTOP;
             determineDesktopSubPageviewType();
-        } else if (url.getHost().contains("blog")) { // FIXME: obviously wrong
+        } else if (url.hostContains("blog")) { // FIXME: obviously wrong
             pageviewType = PageviewType.BLOG;
         } else {
             pageviewType = PageviewType.OTHER;
@@ -256,13 +271,13 @@ public class Pageview {
      *
      */
     private void determineDesktopSubPageviewType() {
-        if (url.getPath().contains("api.php")) {
-            if (url.getQuery() != null && url.getQuery().contains("opensearch")) {
+        if (url.pathContains("api.php")) {
+            if (url.queryContains("opensearch")) {
                 pageviewType = PageviewType.DESKTOP_SEARCH;
             } else {
                 pageviewType = PageviewType.DESKTOP_API;
             }
-        } else if (url.getQuery() != null && url.getQuery().contains("search")) {
+        } else if (url.queryContains("search")) {
             pageviewType = PageviewType.DESKTOP_SEARCH;
         }
     }
@@ -271,13 +286,13 @@ public class Pageview {
      *
      */
     private void determineMobileSubPageviewType() {
-        if (url.getPath().contains("api.php")) {
-            if (url.getQuery() != null && url.getQuery().contains("opensearch")) {
+        if (url.pathContains("api.php")) {
+            if (url.queryContains("opensearch")) {
                 pageviewType = PageviewType.MOBILE_SEARCH;
             }  else {
                 pageviewType = PageviewType.MOBILE_API;
             }
-        } else if (url.getQuery() != null && url.getQuery().contains("search")) {
+        } else if (url.queryContains("search")) {
             pageviewType = PageviewType.MOBILE_SEARCH;
         }
     }
@@ -290,9 +305,8 @@ public class Pageview {
     public final boolean isWebstatscollectorPageview() {
         return (isValidURL()
                 && !cidrFilter.ipAddressFallsInRange(this.ipAddress))
-                && this.url.getHost().endsWith(".org")
-                && this.url.getPath() != null
-                && this.url.getPath().contains("/wiki/");
+                && this.url.hostEndsWith(".org")
+                && this.url.pathContains("/wiki/");
     }
 
     public final boolean isPageview() {
@@ -322,7 +336,7 @@ public class Pageview {
      * @return true/false
      */
     public final boolean isValidURL() {
-        return url != null;
+        return url.isValid();
     }
 
     public final PageviewType getPageviewType() {
@@ -339,8 +353,8 @@ public class Pageview {
     }
 
     public final ProjectInfo getProjectInfo() {
-        if (projectInfo == null && url != null) {
-            projectInfo = new ProjectInfo(url.getHost());
+        if (projectInfo == null && url.isValid()) {
+            projectInfo = ProjectInfo.forHost(url.getHost());
         }
         return projectInfo;
     }
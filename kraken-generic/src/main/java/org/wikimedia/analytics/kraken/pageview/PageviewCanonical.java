@@ -20,7 +20,6 @@ package org.wikimedia.analytics.kraken.pageview;
 
 
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,7 +30,6 @@ import java.util.regex.Pattern;
  * of the page.
  */
 public class PageviewCanonical {
-    private StringBuilder sb;
     private Pattern action = Pattern.compile("action=[a-z]*");
     private Matcher matcher;
 
@@ -63,7 +61,7 @@ public class PageviewCanonical {
      * @param url
      * @return
      */
-    private String parsePath(final URL url) {
+    private String parsePath(final UrlParser url) {
         // http://upload.wikimedia.org/wikipedia/commons/thumb/8/87/Nakhalfarms.jpg/220px-Nakhalfarms.jpg
         String pathWithoutPrefix = url.getPath().replaceAll("/wikipedia/[a-z]*/thumb/[a-z0-9]{1}/[a-z0-9]{2}/", "");
         int positionRightSlash = pathWithoutPrefix.lastIndexOf("/");
@@ -96,24 +94,32 @@ public class PageviewCanonical {
      * @param pageviewType
      * @return
      */
-    private String getProject(final URL url, final PageviewType pageviewType){
-        sb = new StringBuilder();
-        String[] hostname = url.getHost().split("\\.");
+    private String getProject(final UrlParser url, final PageviewType pageviewType){
+        String hostname = url.getHost();
         if (pageviewType == PageviewType.MOBILE || pageviewType == PageviewType.MOBILE_API) {
-            sb.append(hostname[0]);
-            sb.append(".");
-            sb.append(hostname[1]);
-            sb.append(".");
-            sb.append(hostname[2]);
+            return firstLabels(hostname, 3);
         }  else if (pageviewType == PageviewType.COMMONS_IMAGE) {
-            sb.append(hostname[0]);
+            return firstLabels(hostname, 1);
         } else {
-            sb.append(hostname[0]);
-            sb.append(".");
-            sb.append(hostname[1]);
+            return firstLabels(hostname, 2);
         }
-        return sb.toString();
+    }
 
+    /**
+     * Returns the first labels of a hostname, for example en.m for en.m.wikipedia.org and 2 labels.
+     * @param hostname
+     * @param labels number of labels to keep
+     * @return
+     */
+    private String firstLabels(final String hostname, final int labels) {
+        int end = -1;
+        for (int i = 0; i < labels; i++) {
+            end = hostname.indexOf('.', end + 1);
+            if (end < 0) {
+                return hostname;
+            }
+        }
+        return hostname.substring(0, end);
     }
 
     /**
@@ -122,7 +128,7 @@ public class PageviewCanonical {
      * @parm pageviewType
      * @return
      */
-    public final void canonicalizeDesktopPageview(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeDesktopPageview(final UrlParser url, final PageviewType pageviewType) {
         this.project = getProject(url, pageviewType);
         String titleInput = url.getPath().replace("/wiki/", "");
         this.articleTitle = decodeURL(titleInput);
@@ -134,7 +140,7 @@ public class PageviewCanonical {
      * @parm pageviewType
      * @return
      */
-    public final void canonicalizeMobilePageview(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeMobilePageview(final UrlParser url, final PageviewType pageviewType) {
         this.project = getProject(url, pageviewType);
         String titleInput = url.getPath().replace("/wiki/", "");
         this.articleTitle = decodeURL(titleInput);
@@ -145,7 +151,7 @@ public class PageviewCanonical {
      * @param url
      * @return
      */
-    public final void canonicalizeApiRequest(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeApiRequest(final UrlParser url, final PageviewType pageviewType) {
         this.project = getProject(url, pageviewType);
 
         if (url.getQuery() != null) {
@@ -165,7 +171,7 @@ public class PageviewCanonical {
      * @parm pageviewType
      * @return
      */
-    public final void canonicalizeBlogPageview(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeBlogPageview(final UrlParser url, final PageviewType pageviewType) {
         //TODO not yet implemented
     }
 
@@ -175,7 +181,7 @@ public class PageviewCanonical {
      * @parm pageviewType
      * @return
      */
-    public final void canonicalizeSearchQuery(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeSearchQuery(final UrlParser url, final PageviewType pageviewType) {
         //TODO not yet implemented
     }
 
@@ -187,7 +193,7 @@ public class PageviewCanonical {
      * @parm pageviewType
      * @return
      */
-    public final void canonicalizeImagePageview(final URL url, final PageviewType pageviewType) {
+    public final void canonicalizeImagePageview(final UrlParser url, final PageviewType pageviewType) {
         String path = parsePath(url);
         this.project = getProject(url, pageviewType);
     }
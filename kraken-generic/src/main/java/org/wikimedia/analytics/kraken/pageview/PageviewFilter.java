@@ -25,13 +25,23 @@ import java.net.URL;
 
 /**
  * The general Pageview filter class for all jobs running on Kraken.
+ *
+ * The checks operate on the slices of a {@link UrlParser} so they do not allocate; the
+ * {@link URL} based variants are kept for convenience and re-parse the url.
  */
 public class PageviewFilter {
+    /**
+     *
+     */
+    public final boolean isNotBitsOrUploadDomain(final UrlParser url) {
+        return !(url.hostContains("bits") || url.hostContains("upload"));
+    }
+
     /**
      *
      */
     public final boolean isNotBitsOrUploadDomain(final URL url) {
-        return !(url.getHost().contains("bits") || url.getHost().contains("upload"));
+        return isNotBitsOrUploadDomain(toUrlParser(url));
     }
 
     /**
@@ -39,24 +49,24 @@ public class PageviewFilter {
      * @param userAgent string identifying the device/browser used by the visitor.
      * @return
      */
-    public final boolean isValidUserAgent(final String userAgent) {
+    public final boolean isValidUserAgent(final CharSequence userAgent) {
         //This should be replaced using the dClass device detector
-        return !(userAgent.contains("bot")
-                || userAgent.contains("spider")
-                || userAgent.contains("http")
-                || userAgent.contains("crawler"));
+        return !(UrlParser.containsIgnoreCase(userAgent, "bot")
+                || UrlParser.containsIgnoreCase(userAgent, "spider")
+                || UrlParser.containsIgnoreCase(userAgent, "http")
+                || UrlParser.containsIgnoreCase(userAgent, "crawler"));
     }
     /**
      *
      * @param url
      * @return
      */
-    public final boolean isValidDesktopPageview(final URL url) {
-        if (url.getPath().contains("special:")) {
+    public final boolean isValidDesktopPageview(final UrlParser url) {
+        if (url.pathContains("special:")) {
             return false;
-        } else if (url.getPath().contains("wiki/")
-                || url.getPath().contains("w/index.php?")
-                || url.getPath().contains("w/api.php?")) {
+        } else if (url.pathContains("wiki/")
+                || url.pathContains("w/index.php?")
+                || url.pathContains("w/api.php?")) {
             return true;
         }
         return false;
@@ -67,33 +77,60 @@ public class PageviewFilter {
      * @param url
      * @return
      */
-    public final boolean isValidMobilePageview(final URL url) {
+    public final boolean isValidDesktopPageview(final URL url) {
+        return isValidDesktopPageview(toUrlParser(url));
+    }
+
+    /**
+     *
+     * @param url
+     * @return
+     */
+    public final boolean isValidMobilePageview(final UrlParser url) {
         //for now, the logic is the same but this is likely to change in the future
         return isValidDesktopPageview(url);
     }
 
+    /**
+     *
+     * @param url
+     * @return
+     */
+    public final boolean isValidMobilePageview(final URL url) {
+        return isValidMobilePageview(toUrlParser(url));
+    }
+
     /**
      *
      * @param url
      * @param referer
      * @return
      */
-    public final boolean isValidMobileAPIPageview(final URL url, final URL referer) {
+    public final boolean isValidMobileAPIPageview(final UrlParser url, final UrlParser referer) {
         //Start with simple logic, if referer is another Wiki* api call then ignore this url else accept it
         return !(referer != null
-              && referer.getPath() != null
-              && referer.getQuery() != null
-              && referer.getHost() != null
-              && referer.getPath().contains("/w/api.php")
+              && referer.isValid()
+              && referer.hasQuery()
+              && referer.pathContains("/w/api.php")
               // TODO: remove contains("wiki") after implementing proper domain matching as here:
               // https://raw.github.com/wikimedia/metrics/master/pageviews/kraken/pageview_base.png
-              && referer.getHost().contains("wiki")
-              && ( referer.getQuery().contains("action=mobileview")
-                || referer.getQuery().contains("action=view")
+              && referer.hostContains("wiki")
+              && ( referer.queryContains("action=mobileview")
+                || referer.queryContains("action=view")
               )
         );
     }
 
+    /**
+     *
+     * @param url
+     * @param referer
+     * @return
+     */
+    public final boolean isValidMobileAPIPageview(final URL url, final URL referer) {
+        return isValidMobileAPIPageview(toUrlParser(url), referer == null ? null : toUrlParser(referer));
+    }
+
     /**
      *
      * @param pageviewType
@@ -156,8 +193,19 @@ public class PageviewFilter {
      * @param responseCode
      * @return
      */
-    public final boolean isValidResponseCode(final String responseCode) {
-        return (responseCode.matches(".*(20\\d|302|304).*"));
+    public final boolean isValidResponseCode(final CharSequence responseCode) {
+        // Equivalent to matching .*(20\\d|302|304).* without the regex
+        for (int i = 0; i + 3 <= responseCode.length(); i++) {
+            char first = responseCode.charAt(i);
+            char second = responseCode.charAt(i + 1);
+            char third = responseCode.charAt(i + 2);
+            if (first == '2' && second == '0' && third >= '0' && third <= '9') {
+                return true;
+            } else if (first == '3' && second == '0' && (third == '2' || third == '4')) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -165,8 +213,8 @@ public class PageviewFilter {
      * @param requestMethod
      * @return
      */
-    public final boolean isValidRequestMethod(final String requestMethod) {
-        return (requestMethod.contains("get"));
+    public final boolean isValidRequestMethod(final CharSequence requestMethod) {
+        return UrlParser.containsIgnoreCase(requestMethod, "get");
     }
 
     /**
@@ -179,16 +227,34 @@ public class PageviewFilter {
      * @param url
      * @return
      */
-    public final boolean isValidBlogPageview(final URL url) {
-        if (url != null
-                && url.getQuery() != null
-                && (url.getQuery().startsWith("s=")
-                || url.getQuery().contains("preview=true"))) {
+    public final boolean isValidBlogPageview(final UrlParser url) {
+        if (url == null || !url.isValid()) {
+            return false;
+        } else if (url.queryStartsWith("s=") || url.queryContains("preview=true")) {
             return false;
         } else {
-            return (url != null
-                && !url.getPath().startsWith("/wp-")
-                && !url.getHost().startsWith("test"));
+            return (!url.pathStartsWith("/wp-")
+                && !url.hostStartsWith("test"));
         }
     }
+
+    /**
+     *
+     * @param url
+     * @return
+     */
+    public final boolean isValidBlogPageview(final URL url) {
+        return url != null && isValidBlogPageview(toUrlParser(url));
+    }
+
+    /**
+     * Adapter for the {@link URL} based checks.
+     * @param url
+     * @return
+     */
+    private UrlParser toUrlParser(final URL url) {
+        UrlParser urlParser = new UrlParser();
+        urlParser.parse(url.toString());
+        return urlParser;
+    }
 }
@@ -0,0 +1,355 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pageview;
+
+/**
+ * A reusable, mutable flyweight that tokenizes a url into host, path and query
+ * offset ranges over the original {@link CharSequence} in a single pass.
+ *
+ * Calling {@link #parse(CharSequence)} does not allocate; the various
+ * <code>host*</code>, <code>path*</code> and <code>query*</code> predicates
+ * compare directly against the slices of the input. All comparisons are case
+ * insensitive and expect a lowercase needle, which matches the behaviour of
+ * the lowercased {@link java.net.URL} instances this class replaces.
+ *
+ * The String getters ({@link #getHost()}, {@link #getPath()} and
+ * {@link #getQuery()}) do allocate and should only be used once a request has
+ * been accepted, for example during canonicalization.
+ *
+ * Instances are not thread-safe, use one parser per thread.
+ */
+public class UrlParser {
+    /** The url that was last passed to {@link #parse(CharSequence)} */
+    private CharSequence input;
+
+    private boolean valid;
+
+    private int hostStart;
+    private int hostEnd;
+    private int pathStart;
+    private int pathEnd;
+    /** -1 when the url does not contain a query */
+    private int queryStart;
+    private int queryEnd;
+
+    /**
+     * Tokenize a url, the result of any previous call is discarded.
+     * @param url the url to tokenize, may be null
+     * @return true if the url could be parsed, false otherwise
+     */
+    public final boolean parse(final CharSequence url) {
+        this.input = url;
+        this.valid = false;
+        this.hostStart = 0;
+        this.hostEnd = 0;
+        this.pathStart = 0;
+        this.pathEnd = 0;
+        this.queryStart = -1;
+        this.queryEnd = -1;
+
+        if (url == null) {
+            return false;
+        }
+
+        // Like java.net.URL, ignore leading and trailing whitespace
+        int start = 0;
+        int end = url.length();
+        while (start < end && url.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && url.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        int pos = parseScheme(url, start, end);
+        if (pos < 0) {
+            return false;
+        }
+
+        // The fragment is never part of the path or the query
+        int fragment = indexOf(url, '#', pos, end);
+        if (fragment >= 0) {
+            end = fragment;
+        }
+
+        if (pos + 1 < end && url.charAt(pos) == '/' && url.charAt(pos + 1) == '/') {
+            pos = parseAuthority(url, pos + 2, end);
+            if (pos < 0) {
+                return false;
+            }
+        } else {
+            hostStart = pos;
+            hostEnd = pos;
+        }
+
+        pathStart = pos;
+        int question = indexOf(url, '?', pos, end);
+        if (question >= 0) {
+            pathEnd = question;
+            queryStart = question + 1;
+            queryEnd = end;
+        } else {
+            pathEnd = end;
+        }
+
+        valid = true;
+        return true;
+    }
+
+    /**
+     * @return the position directly after the ':' of the scheme or -1 if there is no valid scheme.
+     */
+    private int parseScheme(final CharSequence url, final int start, final int end) {
+        if (start >= end || !isAsciiLetter(url.charAt(start))) {
+            return -1;
+        }
+        for (int i = start + 1; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == ':') {
+                return i + 1;
+            } else if (!(isAsciiLetter(c) || (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.')) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determine the host range, stripping user info and port.
+     * @return the position directly after the authority or -1 if the authority is malformed.
+     */
+    private int parseAuthority(final CharSequence url, final int start, final int end) {
+        int authorityEnd = end;
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?') {
+                authorityEnd = i;
+                break;
+            }
+        }
+
+        int begin = start;
+        for (int i = authorityEnd - 1; i >= start; i--) {
+            if (url.charAt(i) == '@') {
+                begin = i + 1;
+                break;
+            }
+        }
+
+        int portStart = -1;
+        if (begin < authorityEnd && url.charAt(begin) == '[') {
+            // IPv6 literal, keep the brackets like java.net.URL does
+            int close = indexOf(url, ']', begin, authorityEnd);
+            if (close < 0) {
+                return -1;
+            }
+            hostEnd = close + 1;
+            if (hostEnd < authorityEnd) {
+                if (url.charAt(hostEnd) != ':') {
+                    return -1;
+                }
+                portStart = hostEnd + 1;
+            }
+        } else {
+            int colon = indexOf(url, ':', begin, authorityEnd);
+            if (colon >= 0) {
+                hostEnd = colon;
+                portStart = colon + 1;
+            } else {
+                hostEnd = authorityEnd;
+            }
+        }
+        hostStart = begin;
+
+        if (portStart >= 0) {
+            for (int i = portStart; i < authorityEnd; i++) {
+                char c = url.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+            }
+        }
+        return authorityEnd;
+    }
+
+    /**
+     * @return true if the last call to {@link #parse(CharSequence)} succeeded.
+     */
+    public final boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return true if the url contains a (possibly empty) query string.
+     */
+    public final boolean hasQuery() {
+        return valid && queryStart >= 0;
+    }
+
+    public final boolean hostContains(final String needle) {
+        return valid && containsIgnoreCase(input, hostStart, hostEnd, needle);
+    }
+
+    public final boolean hostStartsWith(final String needle) {
+        return valid && startsWithIgnoreCase(input, hostStart, hostEnd, needle);
+    }
+
+    public final boolean hostEndsWith(final String needle) {
+        return valid && endsWithIgnoreCase(input, hostStart, hostEnd, needle);
+    }
+
+    public final boolean pathContains(final String needle) {
+        return valid && containsIgnoreCase(input, pathStart, pathEnd, needle);
+    }
+
+    public final boolean pathStartsWith(final String needle) {
+        return valid && startsWithIgnoreCase(input, pathStart, pathEnd, needle);
+    }
+
+    public final boolean queryContains(final String needle) {
+        return hasQuery() && containsIgnoreCase(input, queryStart, queryEnd, needle);
+    }
+
+    public final boolean queryStartsWith(final String needle) {
+        return hasQuery() && startsWithIgnoreCase(input, queryStart, queryEnd, needle);
+    }
+
+    /**
+     * @return the lowercased host or null if the url is not valid.
+     */
+    public final String getHost() {
+        return valid ? slice(hostStart, hostEnd) : null;
+    }
+
+    /**
+     * @return the lowercased path, an empty string if the url has no path, or null if the url is not valid.
+     */
+    public final String getPath() {
+        return valid ? slice(pathStart, pathEnd) : null;
+    }
+
+    /**
+     * @return the lowercased query or null if there is none.
+     */
+    public final String getQuery() {
+        return hasQuery() ? slice(queryStart, queryEnd) : null;
+    }
+
+    public final int getHostStart() {
+        return hostStart;
+    }
+
+    public final int getHostEnd() {
+        return hostEnd;
+    }
+
+    public final int getPathStart() {
+        return pathStart;
+    }
+
+    public final int getPathEnd() {
+        return pathEnd;
+    }
+
+    public final int getQueryStart() {
+        return queryStart;
+    }
+
+    public final int getQueryEnd() {
+        return queryEnd;
+    }
+
+    /**
+     * @return the url that was last parsed.
+     */
+    public final CharSequence getInput() {
+        return input;
+    }
+
+    private String slice(final int start, final int end) {
+        return input.subSequence(start, end).toString().toLowerCase();
+    }
+
+    private static boolean isAsciiLetter(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static int indexOf(final CharSequence s, final char c, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Case insensitive region match.
+     * @param s the haystack
+     * @param offset position in the haystack to start matching
+     * @param needle a lowercase string
+     * @return true if the needle matches the haystack at offset
+     */
+    static boolean regionMatchesIgnoreCase(final CharSequence s, final int offset, final String needle) {
+        for (int j = 0; j < needle.length(); j++) {
+            if (Character.toLowerCase(s.charAt(offset + j)) != needle.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param needle a lowercase string
+     * @return true if s[start, end) contains the needle, ignoring case.
+     */
+    static boolean containsIgnoreCase(final CharSequence s, final int start, final int end, final String needle) {
+        int last = end - needle.length();
+        for (int i = start; i <= last; i++) {
+            if (regionMatchesIgnoreCase(s, i, needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param needle a lowercase string
+     * @return true if s contains the needle, ignoring case.
+     */
+    static boolean containsIgnoreCase(final CharSequence s, final String needle) {
+        return containsIgnoreCase(s, 0, s.length(), needle);
+    }
+
+    /**
+     * @param needle a lowercase string
+     * @return true if s[start, end) starts with the needle, ignoring case.
+     */
+    static boolean startsWithIgnoreCase(final CharSequence s, final int start, final int end, final String needle) {
+        return end - start >= needle.length() && regionMatchesIgnoreCase(s, start, needle);
+    }
+
+    /**
+     * @param needle a lowercase string
+     * @return true if s[start, end) ends with the needle, ignoring case.
+     */
+    static boolean endsWithIgnoreCase(final CharSequence s, final int start, final int end, final String needle) {
+        return end - start >= needle.length() && regionMatchesIgnoreCase(s, end - needle.length(), needle);
+    }
+}
@@ -18,16 +18,31 @@
 package org.wikimedia.analytics.kraken.privacy;
 
 
-import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * Hashes the ip address and user agent of a request into an anonymous token.
  *
+ * The input is hashed exactly like Guava's Hasher.putString(ip).putString(ua) does,
+ * every char as two little endian bytes, so plain tokens are identical to the
+ * ones generated by earlier versions. Every thread hashes into its own, reused
+ * buffers, so a single instance can be shared by all threads of a task and
+ * {@link #generateToken(String, String)} does not allocate for the md5 and sha
+ * hash functions. Hex output is only created by {@link #generateHash(String, String)}.
+ *
+ * When a secret is given the token is an HMAC keyed with a salt that changes
+ * every rotation period. The salt of a period is the HMAC of the period number
+ * keyed with the secret, so every task and job that shares the secret derives
+ * the same salts without coordination, and tokens from different periods cannot
+ * be joined once the secret is gone. Keyed tokens need a cryptographic hash
+ * function, an HMAC built on murmur3 is not a keyed pseudorandom function.
  */
 public class Anonymizer {
 
@@ -41,16 +56,63 @@ public class Anonymizer {
         HASH_FUNCTIONS.put("murmur3_128", Hashing.murmur3_128());
     }
 
-    private HashFunction hf;
-    private Hasher hasher;
+    /** JDK digests of the cryptographic hash functions, they can digest into a reused buffer */
+    private static final Map<String, String> DIGEST_ALGORITHMS = new HashMap<String, String>();
+    static {
+        DIGEST_ALGORITHMS.put("md5", "MD5");
+        DIGEST_ALGORITHMS.put("sha1", "SHA-1");
+        DIGEST_ALGORITHMS.put("sha256", "SHA-256");
+        DIGEST_ALGORITHMS.put("sha512", "SHA-512");
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final byte INNER_PAD = 0x36;
+    private static final byte OUTER_PAD = 0x5c;
+
+    private final HashFunction hf;
+    private final String algorithm;
+    private final int blockSize;
+
+    private final byte[] secret;
+    private final long rotationMillis;
+
+    private final ThreadLocal<Engine> engines = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
 
     /**
      *
      * @param hashFunction
      */
     public Anonymizer(final String hashFunction) {
+        this(hashFunction, null, 0);
+    }
+
+    /**
+     * @param hashFunction md5, sha1, sha256, sha512, murmur3_32 or murmur3_128,
+     * only the cryptographic ones (md5 and sha) when a secret is given
+     * @param secret the key the salts are derived from, or null for plain hashes
+     * @param rotationMillis the number of milliseconds a salt is used
+     */
+    public Anonymizer(final String hashFunction, final byte[] secret, final long rotationMillis) {
         hf = HASH_FUNCTIONS.get(hashFunction);
-        hasher = hf.newHasher();
+        if (hf == null) {
+            throw new IllegalArgumentException("Unknown hash function " + hashFunction);
+        }
+        if (secret != null && !DIGEST_ALGORITHMS.containsKey(hashFunction)) {
+            throw new IllegalArgumentException("Keyed tokens need a cryptographic hash function, got " + hashFunction);
+        }
+        if (secret != null && rotationMillis <= 0) {
+            throw new IllegalArgumentException("Salt rotation should be positive, got " + rotationMillis);
+        }
+        algorithm = DIGEST_ALGORITHMS.get(hashFunction);
+        blockSize = "sha512".equals(hashFunction) ? 128 : 64;
+        this.secret = secret == null ? null : secret.clone();
+        this.rotationMillis = rotationMillis;
     }
 
     /**
@@ -60,10 +122,198 @@ public class Anonymizer {
      * @return
      */
     public final String generateHash(final String ipAddress, final String userAgent) {
-        HashCode hc = this.hasher.
-            putString(ipAddress).
-            putString(userAgent).
-            hash();
-        return hc.toString();
+        return generateHash(ipAddress, userAgent, System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestamp the time of the request in milliseconds, selects the salt
+     * @return the token as a hex string
+     */
+    public final String generateHash(final String ipAddress, final String userAgent, final long timestamp) {
+        Engine engine = engines.get();
+        engine.hash(ipAddress, userAgent, timestamp);
+        char[] hex = new char[2 * engine.digest.length];
+        for (int i = 0; i < engine.digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(engine.digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[engine.digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return the first 64 bits of the token (32 bits for murmur3_32), big endian
+     */
+    public final long generateToken(final String ipAddress, final String userAgent) {
+        return generateToken(ipAddress, userAgent, System.currentTimeMillis());
+    }
+
+    /**
+     * @param timestamp the time of the request in milliseconds, selects the salt
+     * @return the first 64 bits of the token (32 bits for murmur3_32), big endian
+     */
+    public final long generateToken(final String ipAddress, final String userAgent, final long timestamp) {
+        Engine engine = engines.get();
+        engine.hash(ipAddress, userAgent, timestamp);
+        long token = 0;
+        for (int i = 0; i < Math.min(8, engine.digest.length); i++) {
+            token = (token << 8) | (engine.digest[i] & 0xFF);
+        }
+        return token;
+    }
+
+    /**
+     * @param timestamp the time of the request in milliseconds, selects the salt
+     * @return a copy of the full token
+     */
+    public final byte[] generateBytes(final String ipAddress, final String userAgent, final long timestamp) {
+        Engine engine = engines.get();
+        engine.hash(ipAddress, userAgent, timestamp);
+        return engine.digest.clone();
+    }
+
+    /**
+     * @return the rotation period of a timestamp, the salt changes with the period
+     */
+    final long period(final long timestamp) {
+        long period = timestamp / rotationMillis;
+        return timestamp < 0 && period * rotationMillis != timestamp ? period - 1 : period;
+    }
+
+    /**
+     * The buffers and the keyed pads of a single thread.
+     */
+    private final class Engine {
+        private final MessageDigest messageDigest;
+        private final byte[] digest;
+        private byte[] input = new byte[512];
+        private int length;
+
+        private final byte[] innerPad = new byte[blockSize];
+        private final byte[] outerPad = new byte[blockSize];
+        private long keyPeriod;
+        private boolean keyed;
+
+        Engine() {
+            if (algorithm != null) {
+                try {
+                    messageDigest = MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+                digest = new byte[messageDigest.getDigestLength()];
+            } else {
+                messageDigest = null;
+                digest = new byte[hf.bits() / 8];
+            }
+        }
+
+        void hash(final String ipAddress, final String userAgent, final long timestamp) {
+            if (secret == null) {
+                length = 0;
+                putChars(ipAddress);
+                putChars(userAgent);
+                finish();
+                return;
+            }
+
+            long period = period(timestamp);
+            if (!keyed || period != keyPeriod) {
+                rekey(period);
+            }
+            length = 0;
+            put(innerPad, innerPad.length);
+            putChars(ipAddress);
+            putChars(userAgent);
+            finish();
+            outerHash();
+        }
+
+        /**
+         * Derive the salt of a period from the secret and use it as the HMAC key.
+         */
+        private void rekey(final long period) {
+            setKey(secret, secret.length);
+            length = 0;
+            put(innerPad, innerPad.length);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                putByte((byte) (period >>> shift));
+            }
+            finish();
+            outerHash();
+            setKey(digest, digest.length);
+            keyPeriod = period;
+            keyed = true;
+        }
+
+        private void setKey(final byte[] key, final int keyLength) {
+            byte[] k = key;
+            int n = keyLength;
+            if (n > blockSize) {
+                length = 0;
+                put(key, keyLength);
+                finish();
+                k = digest;
+                n = digest.length;
+            }
+            for (int i = 0; i < blockSize; i++) {
+                byte b = i < n ? k[i] : 0;
+                innerPad[i] = (byte) (b ^ INNER_PAD);
+                outerPad[i] = (byte) (b ^ OUTER_PAD);
+            }
+        }
+
+        /**
+         * Hash the outer pad followed by the inner hash, which is in {@link #digest}.
+         */
+        private void outerHash() {
+            length = 0;
+            put(outerPad, outerPad.length);
+            put(digest, digest.length);
+            finish();
+        }
+
+        private void putChars(final String s) {
+            ensureCapacity(length + 2 * s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                input[length++] = (byte) c;
+                input[length++] = (byte) (c >>> 8);
+            }
+        }
+
+        private void put(final byte[] bytes, final int n) {
+            ensureCapacity(length + n);
+            System.arraycopy(bytes, 0, input, length, n);
+            length += n;
+        }
+
+        private void putByte(final byte b) {
+            ensureCapacity(length + 1);
+            input[length++] = b;
+        }
+
+        private void ensureCapacity(final int capacity) {
+            if (capacity > input.length) {
+                byte[] grown = new byte[Math.max(capacity, 2 * input.length)];
+                System.arraycopy(input, 0, grown, 0, length);
+                input = grown;
+            }
+        }
+
+        /**
+         * Hash the input into {@link #digest}.
+         */
+        private void finish() {
+            if (messageDigest != null) {
+                messageDigest.update(input, 0, length);
+                try {
+                    messageDigest.digest(digest, 0, digest.length);
+                } catch (DigestException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                hf.hashBytes(input, 0, length).writeBytesTo(digest, 0, digest.length);
+            }
+        }
     }
 }
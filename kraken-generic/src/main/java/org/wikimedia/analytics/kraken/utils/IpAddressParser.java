@@ -0,0 +1,263 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.utils;
+
+/**
+ * A reusable, mutable flyweight that parses a textual IPv4 or IPv6 address into
+ * its numeric value in a single pass, without regular expressions and without
+ * allocating.
+ *
+ * IPv4 addresses are returned as an unsigned 32 bit value in a long, IPv6
+ * addresses as two longs holding the high and low 64 bits. Zero compression
+ * ("::") and IPv4 suffixes ("::ffff:192.0.2.1") are supported, zone ids are not.
+ *
+ * Instances are not thread-safe, use one parser per thread.
+ */
+public class IpAddressParser {
+    /** The result of the last call to {@link #parse(CharSequence)} */
+    public static final int INVALID = 0;
+    public static final int IPV4 = 4;
+    public static final int IPV6 = 6;
+
+    private int type = INVALID;
+    private long high;
+    private long low;
+
+    /**
+     * Parse an ip address, the result of any previous call is discarded.
+     * @param ip the address to parse, may be null
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID}
+     */
+    public final int parse(final CharSequence ip) {
+        return parse(ip, 0, ip == null ? 0 : ip.length());
+    }
+
+    /**
+     * Parse the ip address in ip[start, end).
+     * @return {@link #IPV4}, {@link #IPV6} or {@link #INVALID}
+     */
+    public final int parse(final CharSequence ip, final int start, final int end) {
+        type = INVALID;
+        high = 0;
+        low = 0;
+        if (ip == null || start >= end) {
+            return type;
+        }
+
+        for (int i = start; i < end; i++) {
+            char c = ip.charAt(i);
+            if (c == ':') {
+                return parseIpv6(ip, start, end);
+            } else if (c == '.') {
+                break;
+            }
+        }
+
+        long value = parseIpv4(ip, start, end);
+        if (value >= 0) {
+            low = value;
+            type = IPV4;
+        }
+        return type;
+    }
+
+    /**
+     * @return the unsigned 32 bit value of ip[start, end) or -1 if it is not a dotted quad.
+     */
+    static long parseIpv4(final CharSequence ip, final int start, final int end) {
+        long value = 0;
+        int octets = 0;
+        int octet = -1;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == 3) {
+                    return -1;
+                }
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+                digits++;
+            } else if (c == '.' && octet >= 0 && octets < 3) {
+                value = (value << 8) | octet;
+                octets++;
+                octet = -1;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+        if (octet < 0 || octets != 3) {
+            return -1;
+        }
+        return (value << 8) | octet;
+    }
+
+    private int parseIpv6(final CharSequence ip, final int start, final int end) {
+        // The groups before and after "::" are accumulated separately as 128 bit values
+        long headHigh = 0;
+        long headLow = 0;
+        long tailHigh = 0;
+        long tailLow = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - start >= 2 && ip.charAt(i) == ':' && ip.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        } else if (ip.charAt(i) == ':') {
+            return INVALID;
+        }
+
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            while (i < end && i - groupStart < 5) {
+                int digit = hexDigit(ip.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+
+            if (i < end && ip.charAt(i) == '.') {
+                // Trailing dotted quad, counts as two groups
+                long ipv4 = parseIpv4(ip, groupStart, end);
+                if (ipv4 < 0) {
+                    return INVALID;
+                }
+                if (compressed) {
+                    tailHigh = (tailHigh << 32) | (tailLow >>> 32);
+                    tailLow = (tailLow << 32) | ipv4;
+                    tailGroups += 2;
+                } else {
+                    headHigh = (headHigh << 32) | (headLow >>> 32);
+                    headLow = (headLow << 32) | ipv4;
+                    headGroups += 2;
+                }
+                i = end;
+                break;
+            }
+
+            int digits = i - groupStart;
+            if (digits == 0 || digits > 4) {
+                return INVALID;
+            }
+            if (compressed) {
+                tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+                tailLow = (tailLow << 16) | group;
+                tailGroups++;
+            } else {
+                headHigh = (headHigh << 16) | (headLow >>> 48);
+                headLow = (headLow << 16) | group;
+                headGroups++;
+            }
+
+            if (i == end) {
+                break;
+            }
+            if (ip.charAt(i) != ':' || i + 1 == end) {
+                return INVALID;
+            }
+            i++;
+            if (ip.charAt(i) == ':') {
+                if (compressed) {
+                    return INVALID;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return INVALID;
+        }
+
+        // Shift the head into place and fill in the tail, the gap is zero
+        int shift = 16 * (8 - headGroups);
+        if (shift >= 128) {
+            headHigh = 0;
+            headLow = 0;
+        } else if (shift >= 64) {
+            headHigh = headLow << (shift - 64);
+            headLow = 0;
+        } else if (shift > 0) {
+            headHigh = (headHigh << shift) | (headLow >>> (64 - shift));
+            headLow = headLow << shift;
+        }
+
+        high = headHigh | tailHigh;
+        low = headLow | tailLow;
+        type = IPV6;
+        return type;
+    }
+
+    private static int hexDigit(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the type of the last parsed address
+     */
+    public final int getType() {
+        return type;
+    }
+
+    public final boolean isIpv4() {
+        return type == IPV4;
+    }
+
+    public final boolean isIpv6() {
+        return type == IPV6;
+    }
+
+    /**
+     * @return the unsigned 32 bit value of the last parsed IPv4 address
+     */
+    public final long getIpv4() {
+        return low;
+    }
+
+    /**
+     * @return the high 64 bits of the last parsed IPv6 address
+     */
+    public final long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return the low 64 bits of the last parsed IPv6 address, or the value of an IPv4 address
+     */
+    public final long getLow() {
+        return low;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.geo;
+
+
+import com.maxmind.geoip.Location;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedGeoIpDatabaseTest {
+
+    /** Index of US in the MaxMind country tables */
+    private static final int US = 225;
+
+    /**
+     * A city database with a single tree node: 0.0.0.0/1 is in San Francisco,
+     * 128.0.0.0/1 is unknown.
+     */
+    @Test
+    public void testCityDatabase() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int segment = 1;
+        writeInt(out, segment + 1);   // left: record at offset 1
+        writeInt(out, segment);       // right: not found
+        out.write(0);                 // offset 0 means not found, so it holds no record
+        out.write(US);
+        out.write("CA\0San Francisco\0\0".getBytes("ISO-8859-1"));
+        writeInt(out, (int) Math.round((37.7697 + 180) * 10000));
+        writeInt(out, (int) Math.round((-122.3933 + 180) * 10000));
+        writeInt(out, 807 * 1000 + 415);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, MappedGeoIpDatabase.CITY_EDITION_REV1});
+        writeInt(out, segment);
+
+        MappedGeoIpDatabase database = new MappedGeoIpDatabase(write(out));
+        assertFalse(database.isIpv6());
+        assertEquals(MappedGeoIpDatabase.CITY_EDITION_REV1, database.getDatabaseType());
+
+        Location location = database.getLocation(0x7F000001L);
+        assertEquals("US", location.countryCode);
+        assertEquals("CA", location.region);
+        assertEquals("San Francisco", location.city);
+        assertNull(location.postalCode);
+        assertEquals(37.7697, location.latitude, 0.0001);
+        assertEquals(-122.3933, location.longitude, 0.0001);
+        assertEquals(807, location.dma_code);
+        assertEquals(807, location.metro_code);
+        assertEquals(415, location.area_code);
+
+        assertNull(database.getLocation(0x80000000L));
+    }
+
+    /**
+     * An IPv6 country database with a single tree node: ::/1 is in the US,
+     * 8000::/1 is unknown.
+     */
+    @Test
+    public void testCountryDatabaseV6() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, MappedGeoIpDatabase.COUNTRY_BEGIN + US);
+        writeInt(out, MappedGeoIpDatabase.COUNTRY_BEGIN);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, MappedGeoIpDatabase.COUNTRY_EDITION_V6});
+
+        MappedGeoIpDatabase database = new MappedGeoIpDatabase(write(out));
+        assertTrue(database.isIpv6());
+
+        byte[] address = new byte[16];
+        address[0] = 0x26;
+        address[1] = 0x20;
+        assertEquals("US", database.getLocationV6(address).countryCode);
+        assertNull(database.getLocationV6(address).city);
+
+        address[0] = (byte) 0x80;
+        assertNull(database.getLocationV6(address));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIpv4LookupInIpv6Database() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, MappedGeoIpDatabase.COUNTRY_BEGIN);
+        writeInt(out, MappedGeoIpDatabase.COUNTRY_BEGIN);
+        out.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, MappedGeoIpDatabase.COUNTRY_EDITION_V6});
+        new MappedGeoIpDatabase(write(out)).getLocation(0L);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+        out.write((value >>> 16) & 0xFF);
+    }
+
+    private static File write(final ByteArrayOutputStream out) throws IOException {
+        File file = File.createTempFile("geoip", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            out.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+}
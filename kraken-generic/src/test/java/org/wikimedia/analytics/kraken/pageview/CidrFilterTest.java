@@ -21,7 +21,9 @@ package org.wikimedia.analytics.kraken.pageview;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class CidrFilterTest {
 
@@ -31,4 +33,46 @@ public class CidrFilterTest {
     public void testNotWMFInternalTraffic() {
         assertFalse(cidrFilter.ipAddressFallsInRange("0.0.0.0"));
     }
+
+    @Test
+    public void testWMFInternalTraffic() {
+        assertTrue(cidrFilter.ipAddressFallsInRange("10.64.0.1"));
+        assertTrue(cidrFilter.ipAddressFallsInRange("208.80.155.255"));
+        assertFalse(cidrFilter.ipAddressFallsInRange("208.80.156.0"));
+        assertTrue(cidrFilter.ipAddressFallsInRange("91.198.174.192"));
+        assertTrue(cidrFilter.ipAddressFallsInRange("2620:0:862:ed1a::1"));
+        assertFalse(cidrFilter.ipAddressFallsInRange("2001:db8::1"));
+    }
+
+    @Test
+    public void testInvalidIpAddress() {
+        assertFalse(cidrFilter.ipAddressFallsInRange(null));
+        assertFalse(cidrFilter.ipAddressFallsInRange("-"));
+    }
+
+    @Test
+    public void testMergeRanges() {
+        CidrFilter filter = new CidrFilter("10.0.1.0/24,10.0.0.0/24,10.0.0.128/25,192.168.0.1,2001:db8::/33,2001:db8:8000::/33");
+        assertEquals(2, filter.getIpv4RangeCount());
+        assertEquals(1, filter.getIpv6RangeCount());
+        assertTrue(filter.ipAddressFallsInRange("10.0.0.0"));
+        assertTrue(filter.ipAddressFallsInRange("10.0.1.255"));
+        assertFalse(filter.ipAddressFallsInRange("10.0.2.0"));
+        assertTrue(filter.ipAddressFallsInRange("192.168.0.1"));
+        assertFalse(filter.ipAddressFallsInRange("192.168.0.2"));
+        assertTrue(filter.ipAddressFallsInRange("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(filter.ipAddressFallsInRange("2001:db9::"));
+    }
+
+    @Test
+    public void testFullRange() {
+        CidrFilter filter = new CidrFilter("0.0.0.0/0,::/0");
+        assertTrue(filter.ipAddressFallsInRange("255.255.255.255"));
+        assertTrue(filter.ipAddressFallsInRange("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSubnet() {
+        new CidrFilter("10.0.0.0/33");
+    }
 }
@@ -118,7 +118,7 @@ public class PageviewFilterTest {
         URL url2 = new URL("http://blog.wikimedia.org/wp-admin/");
         URL url3 = new URL("http://blog.wikimedia.org/?s=foo");
         URL url4 = new URL("http://blog.wikimedia.org/?p=22448&preview=true");
-        assertFalse(pageviewFilter.isValidBlogPageview(null));
+        assertFalse(pageviewFilter.isValidBlogPageview((URL) null));
         assertFalse(pageviewFilter.isValidBlogPageview(url1));
         assertFalse(pageviewFilter.isValidBlogPageview(url2));
         assertFalse(pageviewFilter.isValidBlogPageview(url3));
@@ -56,4 +56,23 @@ public class ProjectInfoTest {
             assertEquals("Incorrect siteVersion for "+host,     get(test,3), info.getSiteVersion());
         }
     }
+
+    @Test
+    public void testForHostIsCached() throws Exception {
+        ProjectInfo info = ProjectInfo.forHost("en.m.wikipedia.org");
+        assertSame(info, ProjectInfo.forHost("en.m.wikipedia.org"));
+        assertSame(info.getProjectDomain(), ProjectInfo.forHost("de.m.wikipedia.org").getProjectDomain());
+    }
+
+    @Test
+    public void testLanguageTrie() throws Exception {
+        LanguageTrie languages = LanguageTrie.getInstance();
+        assertEquals(285, languages.size());
+        assertTrue(languages.contains("en"));
+        assertTrue(languages.contains("zh-min-nan"));
+        assertFalse(languages.contains("zh-min"));
+        assertFalse(languages.contains("EN"));
+        assertFalse(languages.contains(""));
+        assertSame("be-x-old", languages.match("http://be-x-old.wikipedia.org", 7, 15));
+    }
 }
@@ -0,0 +1,93 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pageview;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UrlParserTest {
+
+    UrlParser urlParser = new UrlParser();
+
+    @Test
+    public void testFullUrl() {
+        assertTrue(urlParser.parse("http://user@En.M.Wikipedia.org:80/w/api.php?action=mobileview&page=Foo#section"));
+        assertEquals("en.m.wikipedia.org", urlParser.getHost());
+        assertEquals("/w/api.php", urlParser.getPath());
+        assertEquals("action=mobileview&page=foo", urlParser.getQuery());
+        assertTrue(urlParser.hostContains(".m."));
+        assertTrue(urlParser.hostEndsWith(".org"));
+        assertTrue(urlParser.pathContains("api.php"));
+        assertTrue(urlParser.queryStartsWith("action=mobileview"));
+        assertFalse(urlParser.queryContains("section"));
+    }
+
+    @Test
+    public void testNoPathNoQuery() {
+        assertTrue(urlParser.parse("https://blog.wikimedia.org"));
+        assertEquals("blog.wikimedia.org", urlParser.getHost());
+        assertEquals("", urlParser.getPath());
+        assertNull(urlParser.getQuery());
+        assertFalse(urlParser.hasQuery());
+    }
+
+    @Test
+    public void testQueryWithoutPath() {
+        assertTrue(urlParser.parse("http://blog.wikimedia.org?s=foo"));
+        assertEquals("", urlParser.getPath());
+        assertTrue(urlParser.queryStartsWith("s="));
+    }
+
+    @Test
+    public void testSpaceInPath() {
+        assertTrue(urlParser.parse("https://fr.wikipedia.org/wiki/Discussion:Histoire du Racing Club de Strasbourg"));
+        assertEquals("/wiki/discussion:histoire du racing club de strasbourg", urlParser.getPath());
+    }
+
+    @Test
+    public void testIpv6Host() {
+        assertTrue(urlParser.parse("http://[2620:0:862:ed1a::1]:8080/wiki/Foo"));
+        assertEquals("[2620:0:862:ed1a::1]", urlParser.getHost());
+        assertEquals("/wiki/foo", urlParser.getPath());
+    }
+
+    @Test
+    public void testInvalidUrls() {
+        assertFalse(urlParser.parse(null));
+        assertFalse(urlParser.parse(""));
+        assertFalse(urlParser.parse("-"));
+        assertFalse(urlParser.parse("/wiki/Foo"));
+        assertFalse(urlParser.parse("http://en.wikipedia.org:port/wiki/Foo"));
+        assertFalse(urlParser.isValid());
+        assertFalse(urlParser.hostContains("wiki"));
+    }
+
+    @Test
+    public void testReuse() {
+        urlParser.parse("http://en.wikipedia.org/wiki/Foo?search=bar");
+        urlParser.parse("http://de.wikipedia.org/wiki/Bar");
+        assertEquals("de.wikipedia.org", urlParser.getHost());
+        assertFalse(urlParser.queryContains("search"));
+    }
+}
@@ -20,7 +20,13 @@ package org.wikimedia.analytics.kraken.privacy;
 
 import org.junit.Test;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class AnonymizerTest {
 
@@ -67,4 +73,98 @@ public class AnonymizerTest {
         assertEquals(hashCode, "253ac1b8");
     }
 
+    @Test
+    public void tokenTest() {
+        Anonymizer anonymous = new Anonymizer("sha256");
+        long token = anonymous.generateToken("127.0.0.1", "fake user agent string");
+        assertEquals(0x6fe0319198d60f5cL, token);
+    }
+
+    @Test
+    public void keyedAnonymizerTest() throws Exception {
+        byte[] secret = "a secret".getBytes("UTF-8");
+        long day = 24L * 3600 * 1000;
+        Anonymizer anonymous = new Anonymizer("sha256", secret, day);
+
+        // HMAC-SHA256 keyed with the salt of the period, which is the HMAC of the period number
+        long timestamp = 1365000000000L;
+        long period = timestamp / day;
+        byte[] periodBytes = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            periodBytes[i] = (byte) (period >>> (56 - 8 * i));
+        }
+        byte[] salt = hmacSha256(secret, periodBytes);
+        byte[] expected = hmacSha256(salt, "127.0.0.1fake user agent string".getBytes("UTF-16LE"));
+
+        assertEquals(toHex(expected), anonymous.generateHash("127.0.0.1", "fake user agent string", timestamp));
+        assertEquals(toHex(expected), anonymous.generateHash("127.0.0.1", "fake user agent string", (period + 1) * day - 1));
+        assertFalse(toHex(expected).equals(anonymous.generateHash("127.0.0.1", "fake user agent string", (period + 1) * day)));
+        assertFalse(toHex(expected).equals(new Anonymizer("sha256").generateHash("127.0.0.1", "fake user agent string")));
+    }
+
+    @Test
+    public void periodTest() {
+        Anonymizer anonymous = new Anonymizer("md5", new byte[] {1}, 1000);
+        assertEquals(0, anonymous.period(0));
+        assertEquals(0, anonymous.period(999));
+        assertEquals(1, anonymous.period(1000));
+        assertEquals(-1, anonymous.period(-1));
+        assertEquals(-1, anonymous.period(-1000));
+        assertEquals(-2, anonymous.period(-1001));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownHashFunctionTest() {
+        new Anonymizer("crc32");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyedMurmur3_32Test() {
+        new Anonymizer("murmur3_32", new byte[] {1}, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyedMurmur3_128Test() {
+        new Anonymizer("murmur3_128", new byte[] {1}, 1000);
+    }
+
+    @Test
+    public void concurrentAnonymizerTest() throws InterruptedException {
+        final Anonymizer anonymous = new Anonymizer("md5", new byte[] {1, 2, 3}, 3600 * 1000);
+        final String expected = anonymous.generateHash("127.0.0.1", "fake user agent string", 0);
+        final AtomicInteger mismatches = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        anonymous.generateHash("10.0.0." + (i % 256), "other user agent", i * 60000L);
+                        if (!expected.equals(anonymous.generateHash("127.0.0.1", "fake user agent string", 0))) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(mismatches.get() == 0);
+    }
+
+    private static byte[] hmacSha256(final byte[] key, final byte[] message) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(message);
+    }
+
+    private static String toHex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
 }
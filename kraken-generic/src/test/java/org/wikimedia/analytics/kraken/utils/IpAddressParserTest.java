@@ -0,0 +1,83 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.utils;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IpAddressParserTest {
+
+    IpAddressParser parser = new IpAddressParser();
+
+    @Test
+    public void testIpv4() {
+        assertEquals(IpAddressParser.IPV4, parser.parse("208.80.152.2"));
+        assertEquals(0xD0509802L, parser.getIpv4());
+        assertEquals(IpAddressParser.IPV4, parser.parse("255.255.255.255"));
+        assertEquals(0xFFFFFFFFL, parser.getIpv4());
+    }
+
+    @Test
+    public void testInvalidIpv4() {
+        assertEquals(IpAddressParser.INVALID, parser.parse(null));
+        assertEquals(IpAddressParser.INVALID, parser.parse(""));
+        assertEquals(IpAddressParser.INVALID, parser.parse("-"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("256.0.0.1"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1.2.3"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1.2.3.4.5"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1..3.4"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1.2.3.4 "));
+    }
+
+    @Test
+    public void testIpv6() {
+        assertEquals(IpAddressParser.IPV6, parser.parse("2620:0:862:ed1a::1"));
+        assertEquals(0x262000000862ed1aL, parser.getHigh());
+        assertEquals(1L, parser.getLow());
+
+        assertEquals(IpAddressParser.IPV6, parser.parse("1:2:3:4:5:6:7:8"));
+        assertEquals(0x0001000200030004L, parser.getHigh());
+        assertEquals(0x0005000600070008L, parser.getLow());
+
+        assertEquals(IpAddressParser.IPV6, parser.parse("::"));
+        assertEquals(0L, parser.getHigh());
+        assertEquals(0L, parser.getLow());
+
+        assertEquals(IpAddressParser.IPV6, parser.parse("fe80::"));
+        assertEquals(0xfe80000000000000L, parser.getHigh());
+        assertEquals(0L, parser.getLow());
+
+        assertEquals(IpAddressParser.IPV6, parser.parse("::FFFF:192.0.2.1"));
+        assertEquals(0L, parser.getHigh());
+        assertEquals(0x0000ffffc0000201L, parser.getLow());
+    }
+
+    @Test
+    public void testInvalidIpv6() {
+        assertEquals(IpAddressParser.INVALID, parser.parse(":1::"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1::2::3"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1:2:3:4:5:6:7"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("1:2:3:4:5:6:7:8:9"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("12345::"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("fe80::1%eth0"));
+        assertEquals(IpAddressParser.INVALID, parser.parse("fe80:"));
+    }
+}
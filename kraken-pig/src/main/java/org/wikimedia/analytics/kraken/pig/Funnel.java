@@ -18,20 +18,14 @@
 package org.wikimedia.analytics.kraken.pig;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
-import java.net.URL;
-import java.net.MalformedURLException;
+
 import org.apache.pig.EvalFunc;
 import org.apache.pig.backend.executionengine.ExecException;
-import org.apache.pig.data.Tuple;
 import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
+import org.wikimedia.analytics.kraken.funnel.FunnelMatcher;
 
 /**
  * <pre>
@@ -49,17 +43,30 @@ import org.apache.pig.data.TupleFactory;
  * filtered = FILTER funneled BY funneled == true;
  * DUMP filtered;
  * </pre>
+ *
+ * The maximum number of seconds between two steps of the funnel can be passed
+ * to the constructor, e.g. DEFINE funnel org.wikimedia.analytics.kraken.pig.Funnel('600');
+ * The requests are matched by a {@link FunnelMatcher}, which walks the bag
+ * once and skips the requests that are not part of the funnel.
  * @version $Id: $Id
  */
 public class Funnel extends EvalFunc<Tuple> {
-    private Node funnel;
-    private Map<String, Node> urlMap;
+    private final long maxStepGap;
+
+    private UrlFunnel funnel;
 
     /**
      * <p>Constructor for Funnel.</p>
      */
     public Funnel() {
+        this.maxStepGap = FunnelMatcher.NO_LIMIT;
+    }
 
+    /**
+     * @param maxStepGap maximum number of seconds between two steps of the funnel.
+     */
+    public Funnel(final String maxStepGap) {
+        this.maxStepGap = Long.parseLong(maxStepGap);
     }
 
     @Override
@@ -69,10 +76,15 @@ public class Funnel extends EvalFunc<Tuple> {
      * Method exec takes a tuple containing four objects:
      * 1) A bag of tuples containing: the user id, the time stamp, the uri
      * request
-     * 2) A tuple of URLs
-     * 3) An integer as the maximum timeframe between the first and last
+     * 2) A tuple of URLs, the first URL is the root of the funnel
+     * 3) A tuple of (parent, child) tuples with the indexes of the URLs of
+     * the edges of the funnel
+     * 4) An integer as the maximum timeframe between the first and last
      * request in the funnel in seconds.
      *
+     * The output is a tuple with whether the user completed the funnel, and
+     * if not, the URL of the furthest step the user arrived at.
+     *
      * Doing the sorting in Pig Latin, rather than in your UDF, is important
      * for a couple of reasons. One, it means Pig can offload the sorting to
      * MapReduce. MapReduce has the ability to sort data by a secondary key
@@ -88,118 +100,53 @@ public class Funnel extends EvalFunc<Tuple> {
             return null;
         }
         DataBag bag = (DataBag) input.get(0);
-        Iterator<Tuple> it = bag.iterator();
         Tuple funnelUrls = (Tuple) input.get(1);
         Tuple funnelDag = (Tuple) input.get(2);
-        int timeframe = (Integer) input.get(3);
-        List<String> history = new ArrayList<String>();
-        List<Integer> timestamps = new ArrayList<Integer>();
-        Node drop = null;
+        long timeframe = ((Number) input.get(3)).longValue();
 
-        //Create graph data structure
-        if (funnel == null && urlMap == null) {
-            funnel = constructFunnel(funnelDag.getAll(), funnelUrls.getAll());
+        //Create the matcher, the funnel definition is the same for every user
+        if (funnel == null) {
+            funnel = constructFunnel(funnelDag.getAll(), funnelUrls.getAll(), timeframe);
         }
-
-        //Create history and timestamp list
-        while (it.hasNext()) {
-            Tuple t = (Tuple) it.next();
-            if (t != null && t.size() == 3 && t.get(0) != null) {
-                String url = (String) t.get(2);
-                int timestamp = (Integer) t.get(1);
-                history.add(url);
-                timestamps.add(timestamp);
+        FunnelMatcher matcher = funnel.matcher;
+        FunnelMatcher.State state = funnel.match(bag);
+
+        //Report the path the user got furthest in
+        int best = -1;
+        for (int p = 0; p < matcher.getPathCount(); p++) {
+            if (state.isCompleted(p)) {
+                return output(true, null);
+            }
+            if (state.getReached(p) > 0 && (best < 0 || state.getReached(p) > state.getReached(best))) {
+                best = p;
             }
         }
+        String dropUrl = best < 0 ? null : funnel.urls[matcher.getPath(best)[state.getReached(best) - 1]];
+        return output(false, dropUrl);
+    }
 
-        //Create the output tuple
+    private static Tuple output(final boolean completed, final String dropUrl) throws ExecException {
         Tuple output = TupleFactory.getInstance().newTuple(2);
-
-        //Iterate through user's request history
-        for (int i = 0; i < history.size(); i++) {
-            String url = history.get(i);
-            if (!url.equals(funnel.getUrl())) {
-                //if the current url is not the root of the funnel continue
-                continue;
-            }
-            Node curr = funnel;
-            int beginning = timestamps.get(i);
-            int end = beginning;
-            while (i < history.size()) {
-                i++;
-                end = timestamps.get(i);
-                if (end - beginning > timeframe) {
-                    break;
-                }
-                Node candidate = urlMap.get(history.get(i));
-                if (candidate == null || !curr.getChildren().contains(candidate)) {
-                    drop = curr;
-                    break;
-                }
-                if (candidate.getChildren().size() == 0) {
-                    output.set(0, true);
-                    output.set(1, null);
-                    return output;
-                }
-                if (i == history.size() - 1) {
-                    drop = candidate;
-                    break;
-                }
-                curr = candidate;
-            }
-        }
-        System.out.println(drop);
-        output.set(0, false);
-        String dropUrl = (drop == null) ? null : drop.getUrl();
+        output.set(0, completed);
         output.set(1, dropUrl);
         return output;
-
-    }
-
-    private Node constructFunnel(final List<Object> edges, final List<Object> urls) throws ExecException {
-        List<Node> nodes = new ArrayList<Node>();
-        urlMap = new HashMap<String, Node>();
-
-        for (int i = 0; i < urls.size(); i++) {
-            try {
-                URL url = new URL((String) urls.get(i));
-                Node node = new Node((String) url.toString());
-                nodes.add(node);
-                urlMap.put(url.toString(), node);
-            } catch (MalformedURLException e) {
-                throw new ExecException("Your funnel definition contains an invalid formed URL.\n MalformedURLException:" + e.getMessage());
-            }
-        }
-
-        for (Object edge : edges) {
-            int parentIndex = (Integer) ((Tuple) edge).get(0);
-            int childIndex = (Integer) ((Tuple) edge).get(1);
-            Node parentNode = nodes.get(parentIndex);
-            Node childNode = nodes.get(childIndex);
-            parentNode.getChildren().add(childNode);
-        }
-        return nodes.get(0);
     }
 
-    private class Node {
-        private Set<Node> children;
-        String url;
-
-        public Node(String url) {
-            this.url = url;
-            children = new HashSet<Node>();
+    private UrlFunnel constructFunnel(final List<Object> edges, final List<Object> funnelUrls, final long timeframe)
+            throws ExecException {
+        String[] urls = new String[funnelUrls.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = (String) funnelUrls.get(i);
         }
-
-        public Set<Node> getChildren() {
-            return children;
+        int[][] pairs = new int[edges.size()][];
+        for (int i = 0; i < pairs.length; i++) {
+            Tuple edge = (Tuple) edges.get(i);
+            pairs[i] = new int[] {(Integer) edge.get(0), (Integer) edge.get(1)};
         }
-
-        public String getUrl() {
-            return url;
-        }
-
-        public String toString() {
-            return url;
+        try {
+            return new UrlFunnel(urls, pairs, timeframe, maxStepGap);
+        } catch (IllegalArgumentException e) {
+            throw new ExecException(e.getMessage());
         }
     }
 }
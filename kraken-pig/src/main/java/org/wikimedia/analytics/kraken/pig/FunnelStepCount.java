@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2012  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.kraken.pig;
+
+import java.io.IOException;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.wikimedia.analytics.kraken.funnel.FunnelMatcher;
+
+/**
+ * Counts how many users arrived at every step of every path of a funnel of
+ * URLs, matching the requests of every user like {@link Funnel} does.
+ *
+ * The UDF is algebraic: the requests of a user are matched in the mapper and
+ * folded into a fixed size vector with the number of users and, for every
+ * step of every path, the number of users that arrived at it. Combiners and
+ * reducers only add up those vectors, so a site wide funnel report shuffles a
+ * single small tuple out of every mapper.
+ *
+ * The arguments are the comma separated URLs of the funnel, the first one is
+ * the root, the comma separated parent-child pairs of URL indexes that make up
+ * the edges, the maximum timeframe between the first and the last request in
+ * the funnel in seconds and optionally the maximum number of seconds between
+ * two requests in the funnel.
+ * <pre>
+ * DEFINE FUNNEL_STEPS org.wikimedia.analytics.kraken.pig.FunnelStepCount(
+ *     'http://www.wikimedia.org/A,http://www.wikimedia.org/B,http://www.wikimedia.org/C', '0-1,1-2', '3600');
+ *
+ * log = LOAD 'example.log' AS (timestamp:int, ip:chararray, url:chararray);
+ * users = FOREACH (GROUP log BY ip) {
+ *    sorted = ORDER log BY timestamp;
+ *    GENERATE sorted.(ip, timestamp, url) AS requests;
+ * };
+ * report = FOREACH (GROUP users ALL) GENERATE FLATTEN(FUNNEL_STEPS(users.requests));
+ * </pre>
+ * The output is the number of users and a bag with for every step of every
+ * path the URL, the number of users that arrived at it and the number of
+ * users that dropped out of the funnel there.
+ */
+public class FunnelStepCount extends EvalFunc<Tuple> implements Algebraic {
+    private final UrlFunnel funnel;
+    /** Position of the first step of every path in the counter vector */
+    private final int[] offsets;
+    private final int size;
+
+    public FunnelStepCount(String urls, String edges, String timeframe) {
+        this(urls, edges, timeframe, String.valueOf(FunnelMatcher.NO_LIMIT));
+    }
+
+    public FunnelStepCount(String urls, String edges, String timeframe, String maxStepGap) {
+        funnel = new UrlFunnel(urls.split(","), UrlFunnel.parseEdges(edges), Long.parseLong(timeframe),
+                Long.parseLong(maxStepGap));
+        offsets = new int[funnel.matcher.getPathCount()];
+        int position = 1;
+        for (int p = 0; p < offsets.length; p++) {
+            offsets[p] = position;
+            position += funnel.matcher.getPath(p).length;
+        }
+        size = position;
+    }
+
+    @Override
+    public Tuple exec(Tuple input) throws IOException {
+        return report(count(input));
+    }
+
+    /**
+     * @param input a tuple with a bag of users, the first field of a user is their bag of requests.
+     * @return the counter vector of the users.
+     */
+    private long[] count(Tuple input) throws ExecException {
+        long[] counts = new long[size];
+        if (input == null || input.size() == 0 || input.get(0) == null) {
+            return counts;
+        }
+        for (Tuple user : (DataBag) input.get(0)) {
+            if (user == null || user.size() == 0 || user.get(0) == null) {
+                continue;
+            }
+            FunnelMatcher.State state = funnel.match((DataBag) user.get(0));
+            counts[0]++;
+            for (int p = 0; p < offsets.length; p++) {
+                for (int i = 0; i < state.getReached(p); i++) {
+                    counts[offsets[p] + i]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @param input a tuple with a bag of counter vectors.
+     * @return the sum of the vectors.
+     */
+    private long[] sum(Tuple input) throws ExecException {
+        long[] counts = new long[size];
+        for (Tuple vector : (DataBag) input.get(0)) {
+            if (vector.size() != size) {
+                throw new ExecException("Expected a vector of " + size + " counts but got " + vector.size());
+            }
+            for (int i = 0; i < size; i++) {
+                counts[i] += (Long) vector.get(i);
+            }
+        }
+        return counts;
+    }
+
+    private static Tuple toTuple(long[] counts) throws ExecException {
+        Tuple vector = TupleFactory.getInstance().newTuple(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            vector.set(i, counts[i]);
+        }
+        return vector;
+    }
+
+    /**
+     * @return (users, {(path, step, url, reached, dropped)})
+     */
+    private Tuple report(long[] counts) throws ExecException {
+        TupleFactory tupleFactory = TupleFactory.getInstance();
+        DataBag steps = BagFactory.getInstance().newDefaultBag();
+        for (int p = 0; p < offsets.length; p++) {
+            int[] path = funnel.matcher.getPath(p);
+            for (int i = 0; i < path.length; i++) {
+                long reached = counts[offsets[p] + i];
+                long next = i + 1 < path.length ? counts[offsets[p] + i + 1] : reached;
+                Tuple step = tupleFactory.newTuple(5);
+                step.set(0, p);
+                step.set(1, i);
+                step.set(2, funnel.urls[path[i]]);
+                step.set(3, reached);
+                step.set(4, reached - next);
+                steps.add(step);
+            }
+        }
+        Tuple output = tupleFactory.newTuple(2);
+        output.set(0, counts[0]);
+        output.set(1, steps);
+        return output;
+    }
+
+    @Override
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    @Override
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    @Override
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Matches the users of a single input tuple and emits their counter vector.
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private final FunnelStepCount stepCount;
+
+        public Initial(String urls, String edges, String timeframe) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe);
+        }
+
+        public Initial(String urls, String edges, String timeframe, String maxStepGap) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe, maxStepGap);
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return toTuple(stepCount.count(input));
+        }
+    }
+
+    /**
+     * Adds up counter vectors.
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        private final FunnelStepCount stepCount;
+
+        public Intermed(String urls, String edges, String timeframe) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe);
+        }
+
+        public Intermed(String urls, String edges, String timeframe, String maxStepGap) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe, maxStepGap);
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return toTuple(stepCount.sum(input));
+        }
+    }
+
+    /**
+     * Adds up counter vectors and reports the steps.
+     */
+    public static class Final extends EvalFunc<Tuple> {
+        private final FunnelStepCount stepCount;
+
+        public Final(String urls, String edges, String timeframe) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe);
+        }
+
+        public Final(String urls, String edges, String timeframe, String maxStepGap) {
+            stepCount = new FunnelStepCount(urls, edges, timeframe, maxStepGap);
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return stepCount.report(stepCount.sum(input));
+        }
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        Schema step = new Schema();
+        step.add(new Schema.FieldSchema("path", DataType.INTEGER));
+        step.add(new Schema.FieldSchema("step", DataType.INTEGER));
+        step.add(new Schema.FieldSchema("url", DataType.CHARARRAY));
+        step.add(new Schema.FieldSchema("reached", DataType.LONG));
+        step.add(new Schema.FieldSchema("dropped", DataType.LONG));
+        try {
+            Schema output = new Schema();
+            output.add(new Schema.FieldSchema("users", DataType.LONG));
+            output.add(new Schema.FieldSchema("steps", new Schema(new Schema.FieldSchema(null, step, DataType.TUPLE)),
+                    DataType.BAG));
+            return new Schema(new Schema.FieldSchema(getSchemaName("funnel", input), output, DataType.TUPLE));
+        } catch (FrontendException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
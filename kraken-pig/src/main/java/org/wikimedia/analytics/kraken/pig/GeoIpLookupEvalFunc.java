@@ -19,7 +19,7 @@
 
 package org.wikimedia.analytics.kraken.pig;
 
-import com.maxmind.geoip.Location;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.PigWarning;
 import org.apache.pig.backend.executionengine.ExecException;
@@ -27,8 +27,10 @@ import org.apache.pig.data.DataType;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.tools.pigstats.PigStatusReporter;
 import org.wikimedia.analytics.kraken.geo.GeoIpLookup;
 import org.wikimedia.analytics.kraken.geo.GeoIpLookupField;
+import org.wikimedia.analytics.kraken.geo.GeoIpResult;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -48,6 +50,16 @@ public class GeoIpLookupEvalFunc extends EvalFunc<Tuple> {
 
     private Map<GeoIpLookupField, Byte> mapping;
 
+    /** Pig counter group of the lookup cache counters */
+    static final String COUNTER_GROUP = "GeoIpLookup";
+
+    /** Number of lookups between two updates of the Pig counters */
+    private static final int COUNTER_INTERVAL = 1000;
+
+    private int lookupsSinceReport;
+    private long reportedHits;
+    private long reportedMisses;
+
     /**
      * @param inputFields a comma separated list of fields that are requested.
      * Valid field names include: continentCode, continentName, country, city, longitude, latitude, region, state, (only for North America).
@@ -85,62 +97,39 @@ public class GeoIpLookupEvalFunc extends EvalFunc<Tuple> {
 
     /**
      *
-     * @param location instance of the Maxmind Location class
+     * @param result the cached values of the requested fields
      * @param output instance of a Pig Tuple class
      * @return
      * @throws ExecException
      */
-    private Tuple setResult(final Location location, final Tuple output) throws ExecException {
-        if (location != null) {
-            int i = 0;
-            for (GeoIpLookupField field : geoIpLookup.getNeededGeoFieldNames()) {
-
-                switch (field) {
-                    case COUNTRYCODE:
-                        output.set(i, location.countryCode);
-                        break;
-                    case CONTINENTCODE:
-                        output.set(i, geoIpLookup.getContinentCode(location.countryCode));
-                        break;
-                    case CONTINENTNAME:
-                        output.set(i, geoIpLookup.getContinentName(location.countryCode));
-                        break;
-                    case REGION:
-                        output.set(i, location.region);
-                        break;
-                    case CITY:
-                        output.set(i, location.city);
-                        break;
-                    case POSTALCODE:
-                        output.set(i, location.postalCode);
-                        break;
-                    case LATITUDE:
-                        output.set(i, location.latitude);
-                        break;
-                    case LONGITUDE:
-                        output.set(i, location.longitude);
-                        break;
-                    case DMACODE:
-                        output.set(i, location.dma_code);
-                        break;
-                    case AREACODE:
-                        output.set(i, location.area_code);
-                        break;
-                    case METROCODE:
-                        output.set(i, location.metro_code);
-                        break;
-                    default:
-                        break;
-                }
-                i++;
-            }
-        } else {
-            warn("MaxMind Geo database does not have location information for the supplied IP address.", PigWarning.UDF_WARNING_3);
-            return null;
+    private Tuple setResult(final GeoIpResult result, final Tuple output) throws ExecException {
+        for (int i = 0; i < result.size(); i++) {
+            output.set(i, result.get(i));
         }
         return output;
     }
 
+    /**
+     * Add the cache hits and misses since the last report to the Pig counters.
+     */
+    private void reportCacheCounters() {
+        lookupsSinceReport = 0;
+        PigStatusReporter reporter = PigStatusReporter.getInstance();
+        if (reporter == null) {
+            return;
+        }
+        Counter hits = reporter.getCounter(COUNTER_GROUP, "cache hits");
+        Counter misses = reporter.getCounter(COUNTER_GROUP, "cache misses");
+        if (hits == null || misses == null) {
+            // Not running inside a task
+            return;
+        }
+        hits.increment(geoIpLookup.getCacheHits() - reportedHits);
+        misses.increment(geoIpLookup.getCacheMisses() - reportedMisses);
+        reportedHits = geoIpLookup.getCacheHits();
+        reportedMisses = geoIpLookup.getCacheMisses();
+    }
+
     /**
      *
      * @param ipAddress the ipaddress of the request as recorded by a cache frontend server
@@ -189,9 +178,12 @@ public class GeoIpLookupEvalFunc extends EvalFunc<Tuple> {
             return null;
         }
 
-        Location location = geoIpLookup.doGeoLookup(ip);
-        if (location != null){
-            output = setResult(location, output);
+        GeoIpResult result = geoIpLookup.lookup(ip);
+        if (++lookupsSinceReport >= COUNTER_INTERVAL) {
+            reportCacheCounters();
+        }
+        if (result != null){
+            output = setResult(result, output);
         } else {
             warn("Supplied variable does not seem to be a valid IP4 or IP6 address.", PigWarning.UDF_WARNING_1);
             return null;
@@ -199,6 +191,11 @@ public class GeoIpLookupEvalFunc extends EvalFunc<Tuple> {
         return output;
     }
 
+    @Override
+    public final void finish() {
+        reportCacheCounters();
+    }
+
     @Override
     public final List<String> getCacheFiles() {
         List<String> cacheFiles = new ArrayList<String>();
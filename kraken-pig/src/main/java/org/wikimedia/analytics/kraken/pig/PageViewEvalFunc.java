@@ -78,6 +78,9 @@ public class PageViewEvalFunc extends EvalFunc<Tuple> {
     /** Factory to generate Pig tuples */
     private TupleFactory tupleFactory = TupleFactory.getInstance();
 
+    /** Reused for every tuple to avoid allocating per log line */
+    private final Pageview pageview = new Pageview();
+
     /**
      *
      * @param input tuple containing url, referer, userAgent, statusCode, ip and mimeType.
@@ -98,7 +101,7 @@ public class PageViewEvalFunc extends EvalFunc<Tuple> {
         String requestMethod = (input.get(6) != null ? (String) input.get(6) : "-");
 
         Tuple output;
-        Pageview pageview = new Pageview(url, referer, userAgent, statusCode, ip, mimeType, requestMethod);
+        pageview.reset(url, referer, userAgent, statusCode, ip, mimeType, requestMethod);
 
         if (pageview.isPageview()) {
             output = tupleFactory.newTuple(4);
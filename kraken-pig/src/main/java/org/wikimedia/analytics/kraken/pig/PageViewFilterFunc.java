@@ -72,6 +72,9 @@ import java.util.List;
  * </code>
  */
 public class PageViewFilterFunc extends FilterFunc {
+    /** Reused for every tuple to avoid allocating per log line */
+    private final Pageview pageview = new Pageview();
+
     /**
      *
      * @param input tuple containing url, referer, userAgent, statusCode, ipAddress, mimeType and requestMethod.
@@ -91,7 +94,7 @@ public class PageViewFilterFunc extends FilterFunc {
         String mimeType = (input.get(5) != null ? (String) input.get(5) : "-");
         String requestMethod = (input.get(6) != null ? (String) input.get(6) : "-");
 
-        Pageview pageview = new Pageview(url, referer, userAgent, statusCode, ip, mimeType, requestMethod);
+        pageview.reset(url, referer, userAgent, statusCode, ip, mimeType, requestMethod);
         return pageview.isPageview();
     }
 
@@ -30,13 +30,10 @@ import org.apache.pig.data.TupleFactory;
 import org.apache.pig.impl.logicalLayer.schema.Schema;
 import org.apache.pig.impl.logicalLayer.schema.Schema.FieldSchema;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.HashSet;
+import org.wikimedia.analytics.kraken.pageview.LanguageTrie;
+import org.wikimedia.analytics.kraken.pageview.UrlParser;
+
 import java.util.LinkedList;
-import java.util.Set;
-import java.util.Map;
 import java.util.List;
 
 /**
@@ -45,8 +42,8 @@ import java.util.List;
  * 'wikipedia'.
  */
 public class ParseWikiUrlER extends EvalFunc<Tuple> {
-    private static Set<String> languages;
-    private static Map<String, String> versions;
+    private static final LanguageTrie languages = LanguageTrie.getInstance();
+    private final UrlParser urlParser = new UrlParser();
     private static Tuple defaultOutput;
 
     // 	public ParseWikiUrlER() {
@@ -91,345 +88,46 @@ public class ParseWikiUrlER extends EvalFunc<Tuple> {
         }
 
 
-        //use url class for parsing
-        URL url;
-        try {
-            url = new URL(urlString);
-        } catch (MalformedURLException e) {
+        //tokenize the url, this does not allocate
+        if (!urlParser.parse(urlString)) {
             warn("malformed URL: " + urlString, PigWarning.UDF_WARNING_1);
             return defaultOutput;
         }
 
-        //gets the host
-        String host = url.getHost();
-        String[] subdomains = host.split("\\.");
-
+        //gets the host, trailing empty subdomains are ignored
+        int hostStart = urlParser.getHostStart();
+        int hostEnd = urlParser.getHostEnd();
+        while (hostEnd > hostStart && urlString.charAt(hostEnd - 1) == '.') {
+            hostEnd--;
+        }
 
         //if subdomains has less than two elements then can't find domain so return
-        if (subdomains.length < 2) {
-            warn("host name: " + host + " has less than two subdomains", PigWarning.UDF_WARNING_1);
+        int subdomainEnd = urlString.indexOf('.', hostStart);
+        if (subdomainEnd < 0 || subdomainEnd >= hostEnd) {
+            warn("host name: " + urlString.substring(hostStart, urlParser.getHostEnd())
+                    + " has less than two subdomains", PigWarning.UDF_WARNING_1);
             return defaultOutput;
         }
 
-        //add language codes from languageFile to a hash set
-        if (languages == null) {
-            languages = new HashSet<String>();
-            languages.add("en");
-            languages.add("de");
-            languages.add("fr");
-            languages.add("nl");
-            languages.add("it");
-            languages.add("es");
-            languages.add("pl");
-            languages.add("ru");
-            languages.add("ja");
-            languages.add("pt");
-            languages.add("zh");
-            languages.add("sv");
-            languages.add("vi");
-            languages.add("uk");
-            languages.add("ca");
-            languages.add("no");
-            languages.add("fi");
-            languages.add("cs");
-            languages.add("fa");
-            languages.add("hu");
-            languages.add("ro");
-            languages.add("ko");
-            languages.add("ar");
-            languages.add("tr");
-            languages.add("id");
-            languages.add("sk");
-            languages.add("eo");
-            languages.add("da");
-            languages.add("sr");
-            languages.add("kk");
-            languages.add("lt");
-            languages.add("eu");
-            languages.add("ms");
-            languages.add("he");
-            languages.add("bg");
-            languages.add("sl");
-            languages.add("vo");
-            languages.add("hr");
-            languages.add("war");
-            languages.add("hi");
-            languages.add("et");
-            languages.add("gl");
-            languages.add("az");
-            languages.add("nn");
-            languages.add("simple");
-            languages.add("la");
-            languages.add("el");
-            languages.add("th");
-            languages.add("sh");
-            languages.add("oc");
-            languages.add("new");
-            languages.add("mk");
-            languages.add("roa-rup");
-            languages.add("ka");
-            languages.add("tl");
-            languages.add("pms");
-            languages.add("ht");
-            languages.add("be");
-            languages.add("te");
-            languages.add("ta");
-            languages.add("be-x-old");
-            languages.add("uz");
-            languages.add("lv");
-            languages.add("br");
-            languages.add("ceb");
-            languages.add("sq");
-            languages.add("jv");
-            languages.add("mg");
-            languages.add("mr");
-            languages.add("cy");
-            languages.add("lb");
-            languages.add("is");
-            languages.add("bs");
-            languages.add("hy");
-            languages.add("my");
-            languages.add("yo");
-            languages.add("an");
-            languages.add("lmo");
-            languages.add("ml");
-            languages.add("pnb");
-            languages.add("fy");
-            languages.add("bpy");
-            languages.add("af");
-            languages.add("bn");
-            languages.add("sw");
-            languages.add("io");
-            languages.add("ne");
-            languages.add("gu");
-            languages.add("zh-yue");
-            languages.add("nds");
-            languages.add("ur");
-            languages.add("ba");
-            languages.add("scn");
-            languages.add("ku");
-            languages.add("ast");
-            languages.add("qu");
-            languages.add("su");
-            languages.add("diq");
-            languages.add("tt");
-            languages.add("ga");
-            languages.add("ky");
-            languages.add("cv");
-            languages.add("ia");
-            languages.add("nap");
-            languages.add("bat-smg");
-            languages.add("map-bms");
-            languages.add("als");
-            languages.add("wa");
-            languages.add("kn");
-            languages.add("am");
-            languages.add("gd");
-            languages.add("ckb");
-            languages.add("sco");
-            languages.add("bug");
-            languages.add("tg");
-            languages.add("mzn");
-            languages.add("zh-min-nan");
-            languages.add("yi");
-            languages.add("vec");
-            languages.add("arz");
-            languages.add("hif");
-            languages.add("roa-tara");
-            languages.add("nah");
-            languages.add("os");
-            languages.add("sah");
-            languages.add("mn");
-            languages.add("sa");
-            languages.add("pam");
-            languages.add("hsb");
-            languages.add("li");
-            languages.add("mi");
-            languages.add("si");
-            languages.add("se");
-            languages.add("co");
-            languages.add("gan");
-            languages.add("glk");
-            languages.add("bar");
-            languages.add("fo");
-            languages.add("ilo");
-            languages.add("bo");
-            languages.add("bcl");
-            languages.add("mrj");
-            languages.add("fiu-vro");
-            languages.add("nds-nl");
-            languages.add("ps");
-            languages.add("tk");
-            languages.add("vls");
-            languages.add("gv");
-            languages.add("rue");
-            languages.add("pa");
-            languages.add("dv");
-            languages.add("xmf");
-            languages.add("pag");
-            languages.add("nrm");
-            languages.add("kv");
-            languages.add("zea");
-            languages.add("koi");
-            languages.add("km");
-            languages.add("rm");
-            languages.add("csb");
-            languages.add("lad");
-            languages.add("udm");
-            languages.add("or");
-            languages.add("mhr");
-            languages.add("mt");
-            languages.add("fur");
-            languages.add("lij");
-            languages.add("wuu");
-            languages.add("ug");
-            languages.add("pi");
-            languages.add("sc");
-            languages.add("zh-classical");
-            languages.add("frr");
-            languages.add("bh");
-            languages.add("nov");
-            languages.add("ksh");
-            languages.add("ang");
-            languages.add("so");
-            languages.add("stq");
-            languages.add("kw");
-            languages.add("nv");
-            languages.add("hak");
-            languages.add("ay");
-            languages.add("frp");
-            languages.add("vep");
-            languages.add("ext");
-            languages.add("pcd");
-            languages.add("szl");
-            languages.add("gag");
-            languages.add("gn");
-            languages.add("ie");
-            languages.add("ln");
-            languages.add("haw");
-            languages.add("xal");
-            languages.add("eml");
-            languages.add("pfl");
-            languages.add("pdc");
-            languages.add("rw");
-            languages.add("krc");
-            languages.add("crh");
-            languages.add("ace");
-            languages.add("to");
-            languages.add("as");
-            languages.add("ce");
-            languages.add("kl");
-            languages.add("arc");
-            languages.add("dsb");
-            languages.add("myv");
-            languages.add("bjn");
-            languages.add("pap");
-            languages.add("sn");
-            languages.add("tpi");
-            languages.add("lbe");
-            languages.add("mdf");
-            languages.add("wo");
-            languages.add("kab");
-            languages.add("jbo");
-            languages.add("av");
-            languages.add("lez");
-            languages.add("srn");
-            languages.add("cbk-zam");
-            languages.add("ty");
-            languages.add("bxr");
-            languages.add("lo");
-            languages.add("kbd");
-            languages.add("ab");
-            languages.add("tet");
-            languages.add("mwl");
-            languages.add("ltg");
-            languages.add("na");
-            languages.add("ig");
-            languages.add("kg");
-            languages.add("nso");
-            languages.add("za");
-            languages.add("kaa");
-            languages.add("zu");
-            languages.add("rmy");
-            languages.add("chy");
-            languages.add("cu");
-            languages.add("tn");
-            languages.add("chr");
-            languages.add("got");
-            languages.add("cdo");
-            languages.add("sm");
-            languages.add("bi");
-            languages.add("mo");
-            languages.add("bm");
-            languages.add("iu");
-            languages.add("pih");
-            languages.add("ss");
-            languages.add("sd");
-            languages.add("pnt");
-            languages.add("ee");
-            languages.add("om");
-            languages.add("ha");
-            languages.add("ki");
-            languages.add("ti");
-            languages.add("ts");
-            languages.add("ks");
-            languages.add("sg");
-            languages.add("ve");
-            languages.add("rn");
-            languages.add("cr");
-            languages.add("ak");
-            languages.add("lg");
-            languages.add("tum");
-            languages.add("dz");
-            languages.add("ny");
-            languages.add("ik");
-            languages.add("ff");
-            languages.add("ch");
-            languages.add("st");
-            languages.add("fj");
-            languages.add("tw");
-            languages.add("xh");
-            languages.add("ng");
-            languages.add("ii");
-            languages.add("cho");
-            languages.add("mh");
-            languages.add("aa");
-            languages.add("kj");
-            languages.add("ho");
-            languages.add("mus");
-            languages.add("kr");
-            languages.add("hz");
-        }
-
-
-        versions = new HashMap<String, String>();
-        versions.put("zero", "Z");
-        versions.put("m", "M");
-
-        int consumed = 0;
+        int consumed = hostStart;
 
         // find language, if any
-        if (languages.contains(subdomains[consumed])) {
-            language = subdomains[consumed];
-            consumed++;
+        String languageMatch = languages.match(urlString, consumed, subdomainEnd);
+        if (languageMatch != null) {
+            language = languageMatch;
+            consumed = subdomainEnd + 1;
+            subdomainEnd = nextSubdomainEnd(urlString, consumed, hostEnd);
         }
 
         // find version, else set to main site
-        if (versions.containsKey(subdomains[consumed])) {
-            version = versions.get(subdomains[consumed]);
-            consumed++;
+        version = siteVersion(urlString, consumed, subdomainEnd);
+        if (version != null) {
+            consumed = subdomainEnd < hostEnd ? subdomainEnd + 1 : hostEnd;
         } else {
             version = "X";
         }
 
-        project = "";
-        for (int i = consumed; i < subdomains.length; i++) {
-            if (i < subdomains.length - 1) {
-                project += subdomains[i] + '.';
-            } else {
-                project += subdomains[i];
-            }
-        }
+        project = urlString.substring(consumed, hostEnd);
 
         //create the tuple for output
         Tuple output = TupleFactory.getInstance().newTuple(3);
@@ -439,6 +137,27 @@ public class ParseWikiUrlER extends EvalFunc<Tuple> {
         return output;
     }
 
+    /**
+     * @return the end of the subdomain starting at start
+     */
+    private static int nextSubdomainEnd(final String host, final int start, final int hostEnd) {
+        int end = host.indexOf('.', start);
+        return end < 0 || end > hostEnd ? hostEnd : end;
+    }
+
+    /**
+     * @return the site version of the subdomain host[start, end) or null if it is not a site version
+     */
+    private static String siteVersion(final String host, final int start, final int end) {
+        int length = end - start;
+        if (length == 1 && host.charAt(start) == 'm') {
+            return "M";
+        } else if (length == 4 && host.startsWith("zero", start)) {
+            return "Z";
+        }
+        return null;
+    }
+
     /** {@inheritDoc} */
     public Schema outputSchema(final Schema input) {
         Schema inputModel = new Schema(new FieldSchema(null, DataType.CHARARRAY));
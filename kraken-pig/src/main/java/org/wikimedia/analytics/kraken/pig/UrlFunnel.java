@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012  Wikimedia Foundation
+
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.kraken.pig;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.wikimedia.analytics.kraken.funnel.FunnelMatcher;
+
+/**
+ * A funnel of at most 64 URLs, the first URL is the root, and the
+ * {@link FunnelMatcher} of its paths. Shared by the {@link Funnel} and
+ * {@link FunnelStepCount} UDFs.
+ */
+class UrlFunnel {
+    final String[] urls;
+    final FunnelMatcher matcher;
+
+    private final Map<String, Integer> urlIds = new HashMap<String, Integer>();
+    private final FunnelMatcher.State state;
+
+    /**
+     * @param funnelUrls the URLs of the funnel, the first one is the root.
+     * @param edges (parent, child) pairs of indexes in funnelUrls.
+     * @param timeframe maximum number of seconds between the first and last request in the funnel.
+     * @param maxStepGap maximum number of seconds between two requests in the funnel.
+     * @throws IllegalArgumentException if the funnel definition is not valid.
+     */
+    UrlFunnel(final String[] funnelUrls, final int[][] edges, final long timeframe, final long maxStepGap) {
+        if (funnelUrls.length == 0 || funnelUrls.length > Long.SIZE) {
+            throw new IllegalArgumentException("A funnel has between 1 and " + Long.SIZE + " URLs.");
+        }
+        urls = new String[funnelUrls.length];
+        for (int i = 0; i < funnelUrls.length; i++) {
+            try {
+                urls[i] = new URL(funnelUrls[i]).toString();
+                urlIds.put(urls[i], i);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Your funnel definition contains an invalid formed URL.\n MalformedURLException:" + e.getMessage());
+            }
+        }
+
+        long[] children = new long[urls.length];
+        for (int[] edge : edges) {
+            if (edge[0] < 0 || edge[0] >= urls.length || edge[1] < 0 || edge[1] >= urls.length) {
+                throw new IllegalArgumentException("The edge " + edge[0] + "-" + edge[1] + " is not in the funnel.");
+            }
+            children[edge[0]] |= 1L << edge[1];
+        }
+        matcher = new FunnelMatcher(FunnelMatcher.paths(children, 1L), maxStepGap, timeframe);
+        state = matcher.newState();
+    }
+
+    /**
+     * @param edges comma separated parent-child pairs of indexes, e.g. 0-1,1-2
+     * @return the (parent, child) pairs.
+     */
+    static int[][] parseEdges(final String edges) {
+        String[] pairs = edges.split(",");
+        int[][] parsed = new int[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            String[] pair = pairs[i].trim().split("-");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Could not parse the edge [" + pairs[i] + "]");
+            }
+            parsed[i] = new int[] {Integer.parseInt(pair[0].trim()), Integer.parseInt(pair[1].trim())};
+        }
+        return parsed;
+    }
+
+    /**
+     * Match the requests of a single user, the returned state is reused by the next call.
+     *
+     * @param requests (user id, timestamp, url) tuples sorted by timestamp.
+     * @return the matching state of the user.
+     * @throws ExecException if the requests are not sorted.
+     */
+    FunnelMatcher.State match(final DataBag requests) throws ExecException {
+        state.reset();
+        for (Tuple t : requests) {
+            if (t != null && t.size() == 3 && t.get(0) != null) {
+                Integer id = urlIds.get((String) t.get(2));
+                if (id != null) {
+                    try {
+                        state.add(((Number) t.get(1)).longValue(), 1L << id);
+                    } catch (IllegalArgumentException e) {
+                        throw new ExecException("The bag of requests is not sorted by time stamp: "
+                                + e.getMessage());
+                    }
+                }
+            }
+        }
+        return state;
+    }
+}
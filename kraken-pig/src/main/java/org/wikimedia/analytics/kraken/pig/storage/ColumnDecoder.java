@@ -0,0 +1,176 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.TupleFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the values of a single column of a block, see {@link ColumnEncoder}.
+ */
+final class ColumnDecoder {
+    private static final TupleFactory TUPLE_FACTORY = TupleFactory.getInstance();
+    private static final BagFactory BAG_FACTORY = BagFactory.getInstance();
+
+    private final int encoding;
+
+    private byte[] data;
+    private int end;
+    private int position;
+    private long previous;
+
+    ColumnDecoder(final int encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Start decoding the data of a new block.
+     */
+    void reset(final byte[] bytes, final int length) {
+        this.data = bytes;
+        this.end = length;
+        this.position = 0;
+        this.previous = 0;
+    }
+
+    Object next() throws IOException {
+        switch (encoding) {
+            case WebRequestSchema.LONG:
+                return nextLong();
+            case WebRequestSchema.INT:
+                long v = readVarLong();
+                return v == 0 ? null : (Integer) (int) unzigzag(v - 1);
+            case WebRequestSchema.STRING:
+                return readString();
+            case WebRequestSchema.IP:
+                return nextIp();
+            case WebRequestSchema.METHOD:
+                return nextMethod();
+            case WebRequestSchema.MAP:
+                return nextMap();
+            case WebRequestSchema.BAG:
+                return nextBag();
+            default:
+                throw new IllegalStateException("Unknown encoding " + encoding);
+        }
+    }
+
+    private Long nextLong() throws IOException {
+        long v = readVarLong();
+        if (v == 0) {
+            return null;
+        }
+        previous += unzigzag(v - 1);
+        return previous;
+    }
+
+    private String nextIp() throws IOException {
+        int tag = readByte();
+        switch (tag) {
+            case ColumnEncoder.IP_NULL:
+                return null;
+            case ColumnEncoder.IP_V4:
+                long ip = ((long) readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+                return ColumnEncoder.toDottedQuad(ip);
+            case ColumnEncoder.IP_STRING:
+                return readString();
+            default:
+                throw new IOException("Corrupt ip column, unknown tag " + tag);
+        }
+    }
+
+    private String nextMethod() throws IOException {
+        int symbol = readByte();
+        if (symbol == 0) {
+            return null;
+        } else if (symbol == ColumnEncoder.METHOD_OTHER) {
+            return readString();
+        } else if (symbol > WebRequestSchema.METHODS.length) {
+            throw new IOException("Corrupt method column, unknown symbol " + symbol);
+        }
+        return WebRequestSchema.METHODS[symbol - 1];
+    }
+
+    private Map<String, Object> nextMap() throws IOException {
+        long size = readVarLong();
+        if (size == 0) {
+            return null;
+        }
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (long i = 1; i < size; i++) {
+            String key = readString();
+            map.put(key, readString());
+        }
+        return map;
+    }
+
+    private DataBag nextBag() throws IOException {
+        long size = readVarLong();
+        if (size == 0) {
+            return null;
+        }
+        DataBag bag = BAG_FACTORY.newDefaultBag();
+        for (long i = 1; i < size; i++) {
+            bag.add(TUPLE_FACTORY.newTuple(readString()));
+        }
+        return bag;
+    }
+
+    static long unzigzag(final long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private String readString() throws IOException {
+        long length = readVarLong();
+        if (length == 0) {
+            return null;
+        }
+        int n = (int) length - 1;
+        if (position + n > end) {
+            throw new IOException("Corrupt column, string runs past the end of the block");
+        }
+        String s = new String(data, position, n, ColumnEncoder.UTF8);
+        position += n;
+        return s;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt column, variable length integer is too long");
+    }
+
+    private int readByte() throws IOException {
+        if (position >= end) {
+            throw new IOException("Corrupt column, unexpected end of the block");
+        }
+        return data[position++] & 0xFF;
+    }
+}
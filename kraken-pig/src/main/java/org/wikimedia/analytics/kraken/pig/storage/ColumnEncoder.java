@@ -0,0 +1,218 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.wikimedia.analytics.kraken.utils.IpAddressParser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Encodes the values of a single column of a block. Every encoding writes
+ * variable length integers, 0 always stands for null:
+ * <ul>
+ *     <li>LONG: zigzag encoded delta to the previous value in the block, plus one</li>
+ *     <li>INT: zigzag encoded value plus one</li>
+ *     <li>STRING: the length of the UTF-8 bytes plus one, followed by the bytes</li>
+ *     <li>IP: a tag byte, 1 for an IPv4 address followed by 4 bytes, 2 for any other string</li>
+ *     <li>METHOD: the index of the HTTPRequestMethod symbol plus one, or 255 followed by a string</li>
+ *     <li>MAP and BAG: the number of entries plus one, followed by the strings of the entries</li>
+ * </ul>
+ */
+final class ColumnEncoder {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int IP_NULL = 0;
+    static final int IP_V4 = 1;
+    static final int IP_STRING = 2;
+
+    static final int METHOD_OTHER = 255;
+
+    private final int encoding;
+    private final IpAddressParser ipAddressParser = new IpAddressParser();
+
+    private byte[] buffer = new byte[4096];
+    private int length;
+    private long previous;
+
+    ColumnEncoder(final int encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Start a new block.
+     */
+    void reset() {
+        length = 0;
+        previous = 0;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    void add(final Object value) throws IOException {
+        switch (encoding) {
+            case WebRequestSchema.LONG:
+                addLong(value);
+                break;
+            case WebRequestSchema.INT:
+                writeVarLong(value == null ? 0 : zigzag(((Number) value).longValue()) + 1);
+                break;
+            case WebRequestSchema.STRING:
+                writeString(value);
+                break;
+            case WebRequestSchema.IP:
+                addIp(value);
+                break;
+            case WebRequestSchema.METHOD:
+                addMethod(value);
+                break;
+            case WebRequestSchema.MAP:
+                addMap(value);
+                break;
+            case WebRequestSchema.BAG:
+                addBag(value);
+                break;
+            default:
+                throw new IllegalStateException("Unknown encoding " + encoding);
+        }
+    }
+
+    private void addLong(final Object value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        long v = ((Number) value).longValue();
+        writeVarLong(zigzag(v - previous) + 1);
+        previous = v;
+    }
+
+    private void addIp(final Object value) {
+        if (value == null) {
+            writeByte(IP_NULL);
+            return;
+        }
+        String ip = value.toString();
+        if (ipAddressParser.parse(ip) == IpAddressParser.IPV4 && toDottedQuad(ipAddressParser.getIpv4()).equals(ip)) {
+            long v = ipAddressParser.getIpv4();
+            writeByte(IP_V4);
+            writeByte((int) (v >>> 24));
+            writeByte((int) (v >>> 16));
+            writeByte((int) (v >>> 8));
+            writeByte((int) v);
+        } else {
+            // IPv6, hashes and addresses that would not render back to the same string
+            writeByte(IP_STRING);
+            writeString(ip);
+        }
+    }
+
+    private void addMethod(final Object value) {
+        if (value == null) {
+            writeByte(0);
+            return;
+        }
+        String method = value.toString();
+        for (int i = 0; i < WebRequestSchema.METHODS.length; i++) {
+            if (WebRequestSchema.METHODS[i].equals(method)) {
+                writeByte(i + 1);
+                return;
+            }
+        }
+        writeByte(METHOD_OTHER);
+        writeString(method);
+    }
+
+    private void addMap(final Object value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        Map<?, ?> map = (Map<?, ?>) value;
+        writeVarLong(map.size() + 1);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+    }
+
+    private void addBag(final Object value) throws IOException {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        DataBag bag = (DataBag) value;
+        writeVarLong(bag.size() + 1);
+        for (Tuple tuple : bag) {
+            writeString(tuple.size() == 0 ? null : tuple.get(0));
+        }
+    }
+
+    static String toDottedQuad(final long ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    static long zigzag(final long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private void writeString(final Object value) {
+        if (value == null) {
+            writeVarLong(0);
+            return;
+        }
+        byte[] bytes = value.toString().getBytes(UTF8);
+        writeVarLong(bytes.length + 1);
+        ensureCapacity(length + bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeVarLong(final long value) {
+        ensureCapacity(length + 10);
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[length++] = (byte) v;
+    }
+
+    private void writeByte(final int b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > buffer.length) {
+            byte[] grown = new byte[Math.max(capacity, 2 * buffer.length)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the WebRequest tuples of the blocks that start in a byte range of a file
+ * written by {@link ColumnarBlockWriter}. Only the projected columns are inflated
+ * and decoded, the other columns are skipped.
+ *
+ * Instances are not thread-safe.
+ */
+public class ColumnarBlockReader implements Closeable {
+    private static final TupleFactory TUPLE_FACTORY = TupleFactory.getInstance();
+
+    private final DataInputStream in;
+    private final long end;
+    private long position;
+
+    private final byte[] sync = new byte[ColumnarBlockWriter.SYNC_SIZE];
+    private int columnCount;
+
+    private int[] projection;
+    private final ColumnDecoder[] decoders;
+    private final Inflater inflater = new Inflater();
+    private byte[][] raw;
+    private byte[] compressed = new byte[4096];
+
+    private int blockRows;
+    private int row;
+    private boolean done;
+
+    /**
+     * @param in the file, positioned at its first byte
+     * @param start the offset of the first byte of the range
+     * @param end the offset of the first byte after the range, blocks that start before end are read completely
+     * @throws IOException
+     */
+    public ColumnarBlockReader(final InputStream in, final long start, final long end) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.end = end;
+        readHeader();
+        this.decoders = new ColumnDecoder[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            decoders[i] = new ColumnDecoder(WebRequestSchema.ENCODINGS[i]);
+        }
+        this.raw = new byte[columnCount][];
+        setProjection(null);
+        if (start > position) {
+            skip(start - position);
+        }
+        done = !seekSync();
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[ColumnarBlockWriter.MAGIC.length];
+        readFully(magic, magic.length);
+        if (!Arrays.equals(magic, ColumnarBlockWriter.MAGIC)) {
+            throw new IOException("Not a columnar WebRequest file");
+        }
+        columnCount = readVarInt();
+        if (columnCount != WebRequestSchema.COLUMNS.length) {
+            throw new IOException("Expected " + WebRequestSchema.COLUMNS.length + " columns, got " + columnCount);
+        }
+        for (int i = 0; i < columnCount; i++) {
+            String column = in.readUTF();
+            if (!column.equals(WebRequestSchema.COLUMNS[i])) {
+                throw new IOException("Unexpected column " + column + ", expected " + WebRequestSchema.COLUMNS[i]);
+            }
+            // readUTF does not report the number of bytes it read
+            position += 2 + column.getBytes(ColumnEncoder.UTF8).length;
+        }
+        readFully(sync, sync.length);
+    }
+
+    /**
+     * @param columns the indexes of the columns in the returned tuples, or null for all columns
+     */
+    public final void setProjection(final int[] columns) {
+        if (columns == null) {
+            projection = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                projection[i] = i;
+            }
+        } else {
+            projection = columns.clone();
+        }
+    }
+
+    /**
+     * @return the next tuple or null if there are no more blocks that start in the range
+     * @throws IOException
+     */
+    public Tuple next() throws IOException {
+        while (row == blockRows) {
+            if (done) {
+                return null;
+            }
+            readBlock();
+        }
+        Tuple tuple = TUPLE_FACTORY.newTuple(projection.length);
+        for (int i = 0; i < projection.length; i++) {
+            tuple.set(i, decoders[projection[i]].next());
+        }
+        row++;
+        return tuple;
+    }
+
+    /**
+     * Scan for the next sync marker, the stream is positioned after it.
+     * @return true if a block starts within the range
+     */
+    private boolean seekSync() throws IOException {
+        // The last SYNC_SIZE bytes read, as a ring buffer
+        byte[] window = new byte[sync.length];
+        int filled = 0;
+        while (true) {
+            if (filled >= sync.length && position - sync.length >= end) {
+                return false;
+            }
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            window[(int) (position % sync.length)] = (byte) b;
+            position++;
+            filled++;
+            if (filled >= sync.length && matchesSync(window)) {
+                return position - sync.length < end;
+            }
+        }
+    }
+
+    private boolean matchesSync(final byte[] window) {
+        for (int i = 0; i < sync.length; i++) {
+            if (window[(int) ((position + i) % sync.length)] != sync[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the block that follows the sync marker and position the stream after the next one.
+     */
+    private void readBlock() throws IOException {
+        blockRows = readVarInt();
+        int columns = readVarInt();
+        if (columns != columnCount) {
+            throw new IOException("Corrupt block, expected " + columnCount + " columns, got " + columns);
+        }
+        int[] rawLengths = new int[columns];
+        int[] compressedLengths = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            rawLengths[i] = readVarInt();
+            compressedLengths[i] = readVarInt();
+        }
+
+        boolean[] projected = new boolean[columns];
+        for (int column : projection) {
+            projected[column] = true;
+        }
+        for (int i = 0; i < columns; i++) {
+            if (projected[i]) {
+                inflate(i, rawLengths[i], compressedLengths[i]);
+            } else {
+                skip(compressedLengths[i]);
+            }
+        }
+        row = 0;
+
+        // The next block has to start right after this one
+        if (position >= end || !nextSync()) {
+            done = true;
+        }
+    }
+
+    /**
+     * @return true if the stream is positioned after the sync marker of the next block
+     */
+    private boolean nextSync() throws IOException {
+        byte[] marker = new byte[sync.length];
+        int n = 0;
+        while (n < marker.length) {
+            int read = in.read(marker, n, marker.length - n);
+            if (read < 0) {
+                if (n == 0) {
+                    return false;
+                }
+                throw new EOFException("Truncated columnar WebRequest file");
+            }
+            n += read;
+        }
+        position += n;
+        if (!Arrays.equals(marker, sync)) {
+            throw new IOException("Corrupt columnar WebRequest file, missing sync marker at " + (position - n));
+        }
+        return true;
+    }
+
+    private void inflate(final int column, final int rawLength, final int compressedLength) throws IOException {
+        if (compressed.length < compressedLength) {
+            compressed = new byte[Math.max(compressedLength, 2 * compressed.length)];
+        }
+        readFully(compressed, compressedLength);
+        if (raw[column] == null || raw[column].length < rawLength) {
+            raw[column] = new byte[Math.max(rawLength, 4096)];
+        }
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw[column], n, rawLength - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawLength) {
+                throw new IOException("Corrupt column " + WebRequestSchema.COLUMNS[column]
+                        + ", expected " + rawLength + " bytes, got " + n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column " + WebRequestSchema.COLUMNS[column], e);
+        }
+        decoders[column].reset(raw[column], rawLength);
+    }
+
+    private void readFully(final byte[] buffer, final int length) throws IOException {
+        in.readFully(buffer, 0, length);
+        position += length;
+    }
+
+    private void skip(final long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated columnar WebRequest file");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+            position += skipped;
+        }
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            position++;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt columnar WebRequest file, variable length integer is too long");
+    }
+
+    /**
+     * @return the offset in the file of the next byte to read
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.pig.data.Tuple;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Writes WebRequest tuples in a block-columnar container.
+ *
+ * The file starts with a header: the magic bytes KWR1, the number of columns,
+ * their names and a random 16 byte sync marker. Then follow blocks of up to
+ * blockRows rows: the sync marker, the number of rows and columns, the raw and
+ * compressed length of every column and then the deflated columns, one after
+ * the other. A reader only inflates the columns it needs and skips the others,
+ * and the sync markers let a reader start at any offset of the file, so the
+ * files can be split.
+ *
+ * Instances are not thread-safe.
+ */
+public class ColumnarBlockWriter implements Closeable {
+    static final byte[] MAGIC = {'K', 'W', 'R', '1'};
+
+    static final int SYNC_SIZE = 16;
+
+    public static final int DEFAULT_BLOCK_ROWS = 10000;
+
+    private final DataOutputStream out;
+    private final int blockRows;
+    private final byte[] sync = new byte[SYNC_SIZE];
+
+    private final ColumnEncoder[] encoders;
+    private final Deflater deflater;
+    private byte[] compressed = new byte[4096];
+    private int rows;
+
+    /**
+     * @param out the stream to write to, it is closed by {@link #close()}
+     * @param blockRows maximum number of rows in a block
+     * @param compressionLevel the deflate level, 1 (fastest) to 9 (smallest)
+     * @throws IOException
+     */
+    public ColumnarBlockWriter(final OutputStream out, final int blockRows, final int compressionLevel)
+            throws IOException {
+        if (blockRows < 1) {
+            throw new IllegalArgumentException("Block should have at least 1 row, got " + blockRows);
+        }
+        this.out = new DataOutputStream(out);
+        this.blockRows = blockRows;
+        this.deflater = new Deflater(compressionLevel);
+        this.encoders = new ColumnEncoder[WebRequestSchema.COLUMNS.length];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = new ColumnEncoder(WebRequestSchema.ENCODINGS[i]);
+        }
+        new Random(System.nanoTime() ^ System.identityHashCode(this)).nextBytes(sync);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(MAGIC);
+        writeVarInt(WebRequestSchema.COLUMNS.length);
+        for (String column : WebRequestSchema.COLUMNS) {
+            out.writeUTF(column);
+        }
+        out.write(sync);
+    }
+
+    /**
+     * @param tuple a WebRequest tuple with the fields in schema order
+     * @throws IOException
+     */
+    public void append(final Tuple tuple) throws IOException {
+        if (tuple.size() != encoders.length) {
+            throw new IOException("Expected a WebRequest tuple of " + encoders.length
+                    + " fields, got " + tuple.size());
+        }
+        for (int i = 0; i < encoders.length; i++) {
+            try {
+                encoders[i].add(tuple.get(i));
+            } catch (ClassCastException e) {
+                throw new IOException("Unexpected value type for column " + WebRequestSchema.COLUMNS[i], e);
+            }
+        }
+        if (++rows == blockRows) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        int[] offsets = new int[encoders.length + 1];
+        for (int i = 0; i < encoders.length; i++) {
+            offsets[i + 1] = offsets[i] + deflate(encoders[i], offsets[i]);
+        }
+
+        out.write(sync);
+        writeVarInt(rows);
+        writeVarInt(encoders.length);
+        for (int i = 0; i < encoders.length; i++) {
+            writeVarInt(encoders[i].getLength());
+            writeVarInt(offsets[i + 1] - offsets[i]);
+        }
+        out.write(compressed, 0, offsets[encoders.length]);
+
+        for (ColumnEncoder encoder : encoders) {
+            encoder.reset();
+        }
+        rows = 0;
+    }
+
+    /**
+     * Deflate a column into {@link #compressed} at offset.
+     * @return the compressed length
+     */
+    private int deflate(final ColumnEncoder encoder, final int offset) {
+        deflater.reset();
+        deflater.setInput(encoder.getBuffer(), 0, encoder.getLength());
+        deflater.finish();
+        int length = offset;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] grown = new byte[2 * compressed.length];
+                System.arraycopy(compressed, 0, grown, 0, length);
+                compressed = grown;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length - offset;
+    }
+
+    private void writeVarInt(final int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /**
+     * Write the last block and close the stream.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBlock();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.data.Tuple;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Output format of the block-columnar WebRequest files.
+ */
+public class ColumnarOutputFormat extends FileOutputFormat<NullWritable, Tuple> {
+    /** Maximum number of rows in a block */
+    public static final String BLOCK_ROWS = "kraken.columnar.block.rows";
+
+    /** Deflate level of the columns, 1 (fastest) to 9 (smallest) */
+    public static final String COMPRESSION_LEVEL = "kraken.columnar.compression.level";
+
+    public static final String EXTENSION = ".kwr";
+
+    @Override
+    public RecordWriter<NullWritable, Tuple> getRecordWriter(final TaskAttemptContext context) throws IOException {
+        Configuration conf = context.getConfiguration();
+        Path path = getDefaultWorkFile(context, EXTENSION);
+        FileSystem fs = path.getFileSystem(conf);
+        final ColumnarBlockWriter writer = new ColumnarBlockWriter(fs.create(path, false),
+                conf.getInt(BLOCK_ROWS, ColumnarBlockWriter.DEFAULT_BLOCK_ROWS),
+                conf.getInt(COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION));
+
+        return new RecordWriter<NullWritable, Tuple>() {
+            @Override
+            public void write(final NullWritable key, final Tuple value) throws IOException {
+                writer.append(value);
+            }
+
+            @Override
+            public void close(final TaskAttemptContext context) throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.data.Tuple;
+
+import java.io.IOException;
+
+/**
+ * Reads the WebRequest tuples of the blocks that start in a file split.
+ */
+public class ColumnarRecordReader extends RecordReader<NullWritable, Tuple> {
+    private ColumnarBlockReader reader;
+    private long start;
+    private long end;
+    private Tuple current;
+
+    @Override
+    public void initialize(final InputSplit split, final TaskAttemptContext context) throws IOException {
+        FileSplit fileSplit = (FileSplit) split;
+        Configuration conf = context.getConfiguration();
+        Path path = fileSplit.getPath();
+        FileSystem fs = path.getFileSystem(conf);
+        start = fileSplit.getStart();
+        end = start + fileSplit.getLength();
+        reader = new ColumnarBlockReader(fs.open(path), start, end);
+    }
+
+    /**
+     * @param columns the indexes of the columns in the returned tuples, or null for all columns
+     */
+    public void setProjection(final int[] columns) {
+        reader.setProjection(columns);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        current = reader.next();
+        return current != null;
+    }
+
+    @Override
+    public NullWritable getCurrentKey() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public Tuple getCurrentValue() {
+        return current;
+    }
+
+    @Override
+    public float getProgress() {
+        if (end == start) {
+            return 1.0f;
+        }
+        return Math.min(1.0f, (reader.getPosition() - start) / (float) (end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
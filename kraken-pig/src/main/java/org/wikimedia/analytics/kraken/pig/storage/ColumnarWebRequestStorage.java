@@ -0,0 +1,236 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.Expression;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.StoreFuncInterface;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.util.UDFContext;
+import org.apache.pig.impl.util.Utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Loads and stores WebRequest records (see avro/WebRequest.avro.json) in the
+ * block-columnar container of {@link ColumnarBlockWriter}.
+ *
+ * The loader provides the schema of the records and supports projection
+ * pushdown: only the columns that a script uses are inflated and decoded, the
+ * other columns of a block are skipped without being read from the stream.
+ *
+ * Usage:
+ * <pre>
+ * STORE webrequest INTO '$output' USING org.wikimedia.analytics.kraken.pig.storage.ColumnarWebRequestStorage();
+ * webrequest = LOAD '$input' USING org.wikimedia.analytics.kraken.pig.storage.ColumnarWebRequestStorage();
+ * </pre>
+ * The number of rows per block and the deflate level can be passed to the constructor.
+ */
+public class ColumnarWebRequestStorage extends LoadFunc implements StoreFuncInterface, LoadPushDown, LoadMetadata {
+    private static final String PROJECTION = "projection";
+
+    private final int blockRows;
+    private final int compressionLevel;
+
+    private String signature;
+    private ColumnarRecordReader reader;
+    private RecordWriter<NullWritable, Tuple> writer;
+
+    public ColumnarWebRequestStorage() {
+        this(String.valueOf(ColumnarBlockWriter.DEFAULT_BLOCK_ROWS));
+    }
+
+    /**
+     * @param blockRows maximum number of rows in a block
+     */
+    public ColumnarWebRequestStorage(final String blockRows) {
+        this(blockRows, "-1");
+    }
+
+    /**
+     * @param blockRows maximum number of rows in a block
+     * @param compressionLevel the deflate level, 1 (fastest) to 9 (smallest), -1 for the default
+     */
+    public ColumnarWebRequestStorage(final String blockRows, final String compressionLevel) {
+        this.blockRows = Integer.parseInt(blockRows);
+        this.compressionLevel = Integer.parseInt(compressionLevel);
+        if (this.blockRows < 1) {
+            throw new IllegalArgumentException("Block should have at least 1 row, got " + blockRows);
+        }
+    }
+
+    /* * * * Loading * * * */
+
+    @Override
+    public void setLocation(final String location, final Job job) throws IOException {
+        FileInputFormat.setInputPaths(job, location);
+    }
+
+    @Override
+    public InputFormat getInputFormat() {
+        return new ColumnarInputFormat();
+    }
+
+    @Override
+    public void setUDFContextSignature(final String signature) {
+        this.signature = signature;
+    }
+
+    @Override
+    public void prepareToRead(final RecordReader recordReader, final PigSplit split) {
+        reader = (ColumnarRecordReader) recordReader;
+        String projection = getProperties().getProperty(PROJECTION);
+        if (projection != null) {
+            reader.setProjection(parseProjection(projection));
+        }
+    }
+
+    @Override
+    public Tuple getNext() throws IOException {
+        return reader.nextKeyValue() ? reader.getCurrentValue() : null;
+    }
+
+    @Override
+    public List<OperatorSet> getFeatures() {
+        return Arrays.asList(OperatorSet.PROJECTION);
+    }
+
+    @Override
+    public RequiredFieldResponse pushProjection(final RequiredFieldList requiredFieldList) throws FrontendException {
+        if (requiredFieldList == null || requiredFieldList.getFields() == null) {
+            return null;
+        }
+        StringBuilder projection = new StringBuilder();
+        for (RequiredField field : requiredFieldList.getFields()) {
+            if (field.getIndex() < 0 || field.getIndex() >= WebRequestSchema.COLUMNS.length) {
+                throw new FrontendException("Unknown WebRequest column " + field.getIndex());
+            }
+            if (projection.length() > 0) {
+                projection.append(',');
+            }
+            projection.append(field.getIndex());
+        }
+        getProperties().setProperty(PROJECTION, projection.toString());
+        return new RequiredFieldResponse(true);
+    }
+
+    static int[] parseProjection(final String projection) {
+        if (projection.isEmpty()) {
+            return new int[0];
+        }
+        String[] columns = projection.split(",");
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = Integer.parseInt(columns[i]);
+        }
+        return indexes;
+    }
+
+    private Properties getProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] {signature});
+    }
+
+    @Override
+    public ResourceSchema getSchema(final String location, final Job job) throws IOException {
+        return new ResourceSchema(Utils.getSchemaFromString(WebRequestSchema.PIG_SCHEMA));
+    }
+
+    @Override
+    public ResourceStatistics getStatistics(final String location, final Job job) {
+        return null;
+    }
+
+    @Override
+    public String[] getPartitionKeys(final String location, final Job job) {
+        return null;
+    }
+
+    @Override
+    public void setPartitionFilter(final Expression partitionFilter) {
+    }
+
+    /* * * * Storing * * * */
+
+    @Override
+    public String relToAbsPathForStoreLocation(final String location, final Path curDir) throws IOException {
+        return LoadFunc.getAbsolutePath(location, curDir);
+    }
+
+    @Override
+    public OutputFormat getOutputFormat() {
+        return new ColumnarOutputFormat();
+    }
+
+    @Override
+    public void setStoreLocation(final String location, final Job job) {
+        FileOutputFormat.setOutputPath(job, new Path(location));
+        job.getConfiguration().setInt(ColumnarOutputFormat.BLOCK_ROWS, blockRows);
+        job.getConfiguration().setInt(ColumnarOutputFormat.COMPRESSION_LEVEL, compressionLevel);
+    }
+
+    @Override
+    public void checkSchema(final ResourceSchema schema) throws IOException {
+        if (schema.getFields().length != WebRequestSchema.COLUMNS.length) {
+            throw new IOException("Expected a WebRequest relation of " + WebRequestSchema.COLUMNS.length
+                    + " fields (" + WebRequestSchema.PIG_SCHEMA + "), got " + schema.getFields().length);
+        }
+    }
+
+    @Override
+    public void prepareToWrite(final RecordWriter recordWriter) {
+        writer = recordWriter;
+    }
+
+    @Override
+    public void putNext(final Tuple tuple) throws IOException {
+        try {
+            writer.write(NullWritable.get(), tuple);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void setStoreFuncUDFContextSignature(final String signature) {
+    }
+
+    @Override
+    public void cleanupOnFailure(final String location, final Job job) throws IOException {
+        StoreFunc.cleanupOnFailureImpl(location, job);
+    }
+}
@@ -0,0 +1,440 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.Expression;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigTextInputFormat;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.util.UDFContext;
+import org.apache.pig.impl.util.Utils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Loads raw webrequest loglines with the fields of include/load_webrequest.pig.
+ *
+ * Unlike PigStorage this loader never splits a complete line: it records the
+ * offsets of the fields in the raw bytes, applies the filters it was created
+ * with to those bytes and only creates the fields that the script uses
+ * (projection pushdown), so the lines that are filtered out cost next to
+ * nothing. Pig 0.10 cannot push FILTER expressions into a loader, so the
+ * filters are passed as arguments, every argument is a key=value pair:
+ * <ul>
+ *     <li>delimiter=tab|space|&lt;char&gt;, the field delimiter, tab by default</li>
+ *     <li>status=2,3, only keep the requests with one of these status classes</li>
+ *     <li>host=wikipedia.org, only keep the requests whose uri host contains one of the (comma separated) strings</li>
+ *     <li>mime=text/html, only keep the requests whose content type starts with one of the strings</li>
+ *     <li>path=true, append the path of the input file as input_path, the same String instance is
+ *     shared by all tuples of a split</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * LOG_FIELDS = LOAD '$input' USING org.wikimedia.analytics.kraken.pig.storage.WebRequestLoader('status=2,3', 'mime=text/html');
+ * </pre>
+ */
+public class WebRequestLoader extends LoadFunc implements LoadPushDown, LoadMetadata {
+    public static final String[] FIELDS = {"kafka_byte_offset", "hostname", "sequence", "timestamp",
+            "request_time", "remote_addr", "http_status", "bytes_sent", "request_method", "uri", "proxy_host",
+            "content_type", "referer", "x_forwarded_for", "user_agent", "accept_language", "x_cs"};
+
+    private static final String PIG_SCHEMA = "kafka_byte_offset:double, hostname:chararray, sequence:long, "
+            + "timestamp:chararray, request_time:chararray, remote_addr:chararray, http_status:chararray, "
+            + "bytes_sent:long, request_method:chararray, uri:chararray, proxy_host:chararray, "
+            + "content_type:chararray, referer:chararray, x_forwarded_for:chararray, user_agent:chararray, "
+            + "accept_language:chararray, x_cs:chararray";
+
+    private static final int KAFKA_BYTE_OFFSET = 0;
+    private static final int SEQUENCE = 2;
+    private static final int HTTP_STATUS = 6;
+    private static final int BYTES_SENT = 7;
+    private static final int URI = 9;
+    private static final int CONTENT_TYPE = 11;
+
+    private static final String PROJECTION = "projection";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final TupleFactory TUPLE_FACTORY = TupleFactory.getInstance();
+
+    private byte delimiter = '\t';
+    private char[] statusClasses;
+    private byte[][] hosts;
+    private byte[][] mimeTypes;
+    private boolean appendPath;
+
+    private String signature;
+    private RecordReader reader;
+    private int[] projection;
+    private String path;
+
+    /** Field offsets in the current line, the field i is [starts[i], ends[i]) */
+    private final int[] starts = new int[FIELDS.length];
+    private final int[] ends = new int[FIELDS.length];
+
+    public WebRequestLoader() {
+    }
+
+    /**
+     * @param options key=value pairs, see the class documentation
+     */
+    public WebRequestLoader(final String... options) {
+        for (String option : options) {
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + option);
+            }
+            String key = option.substring(0, equals).trim();
+            String value = option.substring(equals + 1);
+            if ("delimiter".equals(key)) {
+                delimiter = parseDelimiter(value);
+            } else if ("status".equals(key)) {
+                statusClasses = value.replace(",", "").trim().toCharArray();
+            } else if ("host".equals(key)) {
+                hosts = toBytes(value);
+            } else if ("mime".equals(key)) {
+                mimeTypes = toBytes(value);
+            } else if ("path".equals(key)) {
+                appendPath = Boolean.parseBoolean(value.trim());
+            } else {
+                throw new IllegalArgumentException("Unknown option " + key);
+            }
+        }
+    }
+
+    private static byte parseDelimiter(final String value) {
+        if ("tab".equals(value) || "\\t".equals(value)) {
+            return '\t';
+        } else if ("space".equals(value)) {
+            return ' ';
+        } else if (value.length() == 1 && value.charAt(0) < 128) {
+            return (byte) value.charAt(0);
+        }
+        throw new IllegalArgumentException("Delimiter should be a single ascii character, got " + value);
+    }
+
+    private static byte[][] toBytes(final String values) {
+        String[] strings = values.split(",");
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].trim().getBytes(UTF8);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void setLocation(final String location, final Job job) throws IOException {
+        FileInputFormat.setInputPaths(job, location);
+    }
+
+    @Override
+    public InputFormat getInputFormat() {
+        return new PigTextInputFormat();
+    }
+
+    @Override
+    public void setUDFContextSignature(final String signature) {
+        this.signature = signature;
+    }
+
+    @Override
+    public void prepareToRead(final RecordReader recordReader, final PigSplit split) {
+        reader = recordReader;
+        String requiredFields = getProperties().getProperty(PROJECTION);
+        if (requiredFields != null) {
+            projection = ColumnarWebRequestStorage.parseProjection(requiredFields);
+        } else {
+            projection = new int[FIELDS.length + (appendPath ? 1 : 0)];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = i;
+            }
+        }
+        if (appendPath) {
+            // A single instance for all the tuples of the split
+            path = ((FileSplit) split.getWrappedSplit()).getPath().toString().intern();
+        }
+    }
+
+    @Override
+    public Tuple getNext() throws IOException {
+        try {
+            while (reader.nextKeyValue()) {
+                Text line = (Text) reader.getCurrentValue();
+                byte[] bytes = line.getBytes();
+                int fields = scan(bytes, line.getLength());
+                if (accept(bytes, fields)) {
+                    return toTuple(bytes, fields);
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Record the offsets of the fields of a line.
+     * @return the number of fields found
+     */
+    private int scan(final byte[] bytes, final int length) {
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i < length && count < FIELDS.length - 1; i++) {
+            if (bytes[i] == delimiter) {
+                starts[count] = start;
+                ends[count] = i;
+                count++;
+                start = i + 1;
+            }
+        }
+        starts[count] = start;
+        ends[count] = length;
+        return count + 1;
+    }
+
+    /**
+     * @return true if the line passes all the filters
+     */
+    private boolean accept(final byte[] bytes, final int fields) {
+        if (statusClasses != null) {
+            if (fields <= HTTP_STATUS || !acceptStatus(bytes)) {
+                return false;
+            }
+        }
+        if (hosts != null) {
+            if (fields <= URI || !acceptHost(bytes)) {
+                return false;
+            }
+        }
+        if (mimeTypes != null) {
+            if (fields <= CONTENT_TYPE || !acceptMimeType(bytes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The status is either a plain code or prefixed by the cache status, e.g. TCP_MISS/200.
+     */
+    private boolean acceptStatus(final byte[] bytes) {
+        int start = starts[HTTP_STATUS];
+        int end = ends[HTTP_STATUS];
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '/') {
+                start = i + 1;
+                break;
+            }
+        }
+        if (start == end) {
+            return false;
+        }
+        for (char statusClass : statusClasses) {
+            if (bytes[start] == statusClass) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptHost(final byte[] bytes) {
+        // The host is between the scheme and the first slash of the path
+        int start = starts[URI];
+        int end = ends[URI];
+        int scheme = indexOf(bytes, start, end, (byte) ':');
+        if (scheme >= 0 && scheme + 2 < end && bytes[scheme + 1] == '/' && bytes[scheme + 2] == '/') {
+            start = scheme + 3;
+        }
+        int slash = indexOf(bytes, start, end, (byte) '/');
+        if (slash >= 0) {
+            end = slash;
+        }
+        for (byte[] host : hosts) {
+            if (contains(bytes, start, end, host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptMimeType(final byte[] bytes) {
+        for (byte[] mimeType : mimeTypes) {
+            if (startsWith(bytes, starts[CONTENT_TYPE], ends[CONTENT_TYPE], mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(final byte[] bytes, final int start, final int end, final byte b) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(final byte[] bytes, final int start, final int end, final byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(final byte[] bytes, final int start, final int end, final byte[] needle) {
+        for (int i = start; i <= end - needle.length; i++) {
+            if (startsWith(bytes, i, end, needle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create the projected fields, missing fields are null just like PigStorage does.
+     */
+    private Tuple toTuple(final byte[] bytes, final int fields) throws IOException {
+        Tuple tuple = TUPLE_FACTORY.newTuple(projection.length);
+        for (int i = 0; i < projection.length; i++) {
+            int field = projection[i];
+            if (field == FIELDS.length) {
+                tuple.set(i, path);
+            } else if (field < fields) {
+                tuple.set(i, toValue(bytes, field));
+            }
+        }
+        return tuple;
+    }
+
+    private Object toValue(final byte[] bytes, final int field) {
+        int start = starts[field];
+        int end = ends[field];
+        switch (field) {
+            case SEQUENCE:
+            case BYTES_SENT:
+                return parseLong(bytes, start, end);
+            case KAFKA_BYTE_OFFSET:
+                try {
+                    return Double.valueOf(new String(bytes, start, end - start, UTF8));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            default:
+                return new String(bytes, start, end - start, UTF8);
+        }
+    }
+
+    /**
+     * @return the long in bytes[start, end) or null if it is not a number, like a failed cast in Pig.
+     */
+    static Long parseLong(final byte[] bytes, final int start, final int end) {
+        if (start == end) {
+            return null;
+        }
+        int i = start;
+        boolean negative = bytes[i] == '-';
+        if (negative || bytes[i] == '+') {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return null;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    @Override
+    public List<OperatorSet> getFeatures() {
+        return Arrays.asList(OperatorSet.PROJECTION);
+    }
+
+    @Override
+    public RequiredFieldResponse pushProjection(final RequiredFieldList requiredFieldList) throws FrontendException {
+        if (requiredFieldList == null || requiredFieldList.getFields() == null) {
+            return null;
+        }
+        int fieldCount = FIELDS.length + (appendPath ? 1 : 0);
+        StringBuilder requiredFields = new StringBuilder();
+        for (RequiredField field : requiredFieldList.getFields()) {
+            if (field.getIndex() < 0 || field.getIndex() >= fieldCount) {
+                throw new FrontendException("Unknown webrequest field " + field.getIndex());
+            }
+            if (requiredFields.length() > 0) {
+                requiredFields.append(',');
+            }
+            requiredFields.append(field.getIndex());
+        }
+        getProperties().setProperty(PROJECTION, requiredFields.toString());
+        return new RequiredFieldResponse(true);
+    }
+
+    private Properties getProperties() {
+        return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] {signature});
+    }
+
+    @Override
+    public ResourceSchema getSchema(final String location, final Job job) throws IOException {
+        String schema = appendPath ? PIG_SCHEMA + ", input_path:chararray" : PIG_SCHEMA;
+        return new ResourceSchema(Utils.getSchemaFromString(schema));
+    }
+
+    @Override
+    public ResourceStatistics getStatistics(final String location, final Job job) {
+        return null;
+    }
+
+    @Override
+    public String[] getPartitionKeys(final String location, final Job job) {
+        return null;
+    }
+
+    @Override
+    public void setPartitionFilter(final Expression partitionFilter) {
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+/**
+ * The columns of the WebRequest record, see avro/WebRequest.avro.json, in
+ * schema order, and the way every column is encoded in a columnar block.
+ */
+public final class WebRequestSchema {
+    /** Column encodings */
+    static final int LONG = 1;
+    static final int INT = 2;
+    static final int STRING = 3;
+    static final int IP = 4;
+    static final int METHOD = 5;
+    static final int MAP = 6;
+    static final int BAG = 7;
+
+    public static final int TIMESTAMP = 0;
+    public static final int PRODUCT_CODE = 1;
+    public static final int IP_ADDRESS = 2;
+    public static final int UID = 3;
+    public static final int URL = 4;
+    public static final int REFERER = 5;
+    public static final int HTTP_METHOD = 6;
+    public static final int UA = 7;
+    public static final int UA_FLAGS = 8;
+    public static final int CARRIER = 9;
+    public static final int RESPONSE_SERVER = 10;
+    public static final int RESPONSE_STATUS = 11;
+    public static final int RESPONSE_TIME = 12;
+    public static final int RESPONSE_SIZE = 13;
+    public static final int RESPONSE_MIME = 14;
+    public static final int METADATA = 15;
+    public static final int TAGS = 16;
+
+    public static final String[] COLUMNS = {"timestamp", "product_code", "ip", "uid", "url", "referer",
+            "method", "ua", "ua_flags", "carrier", "response_server", "response_status", "response_time",
+            "response_size", "response_mime", "metadata", "tags"};
+
+    static final int[] ENCODINGS = {LONG, STRING, IP, STRING, STRING, STRING,
+            METHOD, STRING, INT, STRING, STRING, INT, LONG,
+            LONG, STRING, MAP, BAG};
+
+    /** Symbols of the HTTPRequestMethod enum */
+    static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "UPDATE"};
+
+    /** The Pig schema of a complete WebRequest tuple */
+    public static final String PIG_SCHEMA = "timestamp:long, product_code:chararray, ip:chararray, uid:chararray, "
+            + "url:chararray, referer:chararray, method:chararray, ua:chararray, ua_flags:int, carrier:chararray, "
+            + "response_server:chararray, response_status:int, response_time:long, response_size:long, "
+            + "response_mime:chararray, metadata:map[chararray], tags:bag{t:(tag:chararray)}";
+
+    private WebRequestSchema() {}
+}
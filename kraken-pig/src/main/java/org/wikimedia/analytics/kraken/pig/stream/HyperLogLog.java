@@ -0,0 +1,196 @@
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import com.google.common.io.ByteStreams;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+import org.apache.pig.impl.util.UDFContext;
+import org.wikimedia.analytics.kraken.privacy.Anonymizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Builds a {@link HyperLogLogSketch} of the distinct visitors in a bag and
+ * returns it as a bytearray, which {@link HyperLogLogMerge} can merge and
+ * {@link HyperLogLogEstimate} turns into a count.
+ *
+ * The tuples in the bag are either (ip, user_agent), (ip, user_agent, timestamp)
+ * with the timestamp in milliseconds, which are hashed with the
+ * {@link Anonymizer} so the token is never materialized, or a single long
+ * token that was generated by the Anonymizer before.
+ *
+ * The arguments are the precision (14 by default), the hash function (md5 by
+ * default) and optionally the secret file and the salt rotation in seconds of
+ * a keyed Anonymizer. Only the path of the secret file is part of the Pig plan
+ * and the job configuration; the file is read by the tasks, from any file
+ * system Hadoop can open, and trimmed like KrakenAnonymousBolt does, so both
+ * generate the same tokens. Keyed tokens change with the salt, so uniques can
+ * only be merged over periods that share a salt, and the salt is selected by
+ * the timestamp of the request: with a secret the (ip, user_agent, timestamp)
+ * form is required and visitors without a timestamp are skipped.
+ *
+ * The UDF is algebraic, mappers and combiners only emit the sketches:
+ * <pre>
+ * DEFINE UNIQUES org.wikimedia.analytics.kraken.pig.stream.HyperLogLog();
+ * uniques = FOREACH (GROUP requests BY (project, country)) GENERATE FLATTEN(group), UNIQUES(requests.(remote_addr, user_agent)) AS sketch;
+ * </pre>
+ */
+public class HyperLogLog extends EvalFunc<DataByteArray> implements Algebraic {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int precision;
+    private final String hashFunction;
+
+    /** The path of the secret of a keyed Anonymizer, or null */
+    private final String secretFile;
+    private final long rotationMillis;
+
+    /** Created on first use, so the secret is only read by the tasks */
+    private Anonymizer anonymizer;
+
+    public HyperLogLog() {
+        this(String.valueOf(HyperLogLogSketch.DEFAULT_PRECISION));
+    }
+
+    public HyperLogLog(String precision) {
+        this(precision, "md5");
+    }
+
+    public HyperLogLog(String precision, String hashFunction) {
+        this(Integer.parseInt(precision), hashFunction, null, 0);
+    }
+
+    public HyperLogLog(String precision, String hashFunction, String secretFile, String saltRotation) {
+        this(Integer.parseInt(precision), hashFunction, secretFile, Long.parseLong(saltRotation) * 1000);
+        if (secretFile == null) {
+            throw new IllegalArgumentException("The secret file of a keyed HyperLogLog is missing");
+        }
+    }
+
+    private HyperLogLog(int precision, String hashFunction, String secretFile, long rotationMillis) {
+        if ("murmur3_32".equals(hashFunction)) {
+            throw new IllegalArgumentException("HyperLogLog needs a hash function of at least 64 bits");
+        }
+        // Fail on the frontend instead of in the tasks, the secret itself is not needed to check the arguments
+        new HyperLogLogSketch(precision);
+        if (secretFile != null) {
+            new Anonymizer(hashFunction, new byte[1], rotationMillis);
+        } else {
+            new Anonymizer(hashFunction);
+        }
+        this.precision = precision;
+        this.hashFunction = hashFunction;
+        this.secretFile = secretFile;
+        this.rotationMillis = rotationMillis;
+    }
+
+    private Anonymizer getAnonymizer() throws IOException {
+        if (anonymizer == null) {
+            anonymizer = secretFile != null
+                    ? new Anonymizer(hashFunction, readSecret(secretFile), rotationMillis)
+                    : new Anonymizer(hashFunction);
+        }
+        return anonymizer;
+    }
+
+    /**
+     * @return the trimmed contents of the file, like KrakenAnonymousBolt reads its secret
+     */
+    private static byte[] readSecret(String secretFile) throws IOException {
+        Path path = new Path(secretFile);
+        Configuration conf = UDFContext.getUDFContext().getJobConf();
+        InputStream in = path.getFileSystem(conf != null ? conf : new Configuration()).open(path);
+        try {
+            return new String(ByteStreams.toByteArray(in), UTF8).trim().getBytes(UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public DataByteArray exec(Tuple input) throws IOException {
+        if (input == null || input.size() == 0 || input.get(0) == null) {
+            return null;
+        }
+        return new DataByteArray(sketch((DataBag) input.get(0)).toBytes());
+    }
+
+    private HyperLogLogSketch sketch(DataBag visitors) throws IOException {
+        HyperLogLogSketch sketch = new HyperLogLogSketch(precision);
+        for (Tuple visitor : visitors) {
+            if (visitor.size() == 1) {
+                Object token = visitor.get(0);
+                if (token != null) {
+                    sketch.offer(((Number) token).longValue());
+                }
+            } else if (visitor.size() > 2 && visitor.get(2) != null) {
+                sketch.offer(getAnonymizer().generateToken((String) visitor.get(0), (String) visitor.get(1),
+                        ((Number) visitor.get(2)).longValue()));
+            } else if (secretFile == null) {
+                sketch.offer(getAnonymizer().generateToken((String) visitor.get(0), (String) visitor.get(1)));
+            } else if (visitor.size() == 2) {
+                // The processing time would select another salt than Storm and other jobs did for the request
+                throw new IOException("Keyed tokens are salted by the request time, expected (ip, user_agent, timestamp)");
+            }
+            // A keyed visitor without a timestamp cannot be given a stable token, so it is skipped
+        }
+        return sketch;
+    }
+
+    @Override
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    @Override
+    public String getIntermed() {
+        return HyperLogLogMerge.Intermed.class.getName();
+    }
+
+    @Override
+    public String getFinal() {
+        return HyperLogLogMerge.Final.class.getName();
+    }
+
+    /**
+     * Sketches the bag of a single input tuple.
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        private final HyperLogLog hyperLogLog;
+
+        public Initial() {
+            hyperLogLog = new HyperLogLog();
+        }
+
+        public Initial(String precision) {
+            hyperLogLog = new HyperLogLog(precision);
+        }
+
+        public Initial(String precision, String hashFunction) {
+            hyperLogLog = new HyperLogLog(precision, hashFunction);
+        }
+
+        public Initial(String precision, String hashFunction, String secretFile, String saltRotation) {
+            hyperLogLog = new HyperLogLog(precision, hashFunction, secretFile, saltRotation);
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return TupleFactory.getInstance().newTuple(hyperLogLog.exec(input));
+        }
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema(getSchemaName("sketch", input), DataType.BYTEARRAY));
+    }
+}
@@ -0,0 +1,29 @@
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+import java.io.IOException;
+
+/**
+ * Returns the estimated number of distinct visitors of a HyperLogLog sketch
+ * created by {@link HyperLogLog} or {@link HyperLogLogMerge}.
+ */
+public class HyperLogLogEstimate extends EvalFunc<Long> {
+
+    @Override
+    public Long exec(Tuple input) throws IOException {
+        if (input == null || input.size() == 0 || input.get(0) == null) {
+            return null;
+        }
+        return HyperLogLogSketch.fromBytes(((DataByteArray) input.get(0)).get()).cardinality();
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema(getSchemaName("uniques", input), DataType.LONG));
+    }
+}
@@ -0,0 +1,112 @@
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import org.apache.pig.Algebraic;
+import org.apache.pig.EvalFunc;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.schema.Schema;
+
+import java.io.IOException;
+
+/**
+ * Merges a bag of HyperLogLog sketches, for example the hourly sketches of a
+ * day, into a single sketch. Null sketches are skipped.
+ *
+ * The Intermed and Final stages are shared with {@link HyperLogLog}, so they
+ * accept the constructor arguments of both UDFs.
+ */
+public class HyperLogLogMerge extends EvalFunc<DataByteArray> implements Algebraic {
+
+    @Override
+    public DataByteArray exec(Tuple input) throws IOException {
+        HyperLogLogSketch sketch = merge(input);
+        return sketch == null ? null : new DataByteArray(sketch.toBytes());
+    }
+
+    /**
+     * @param input a tuple with a bag of (sketch:bytearray) tuples
+     * @return the merged sketch or null if there are no sketches
+     */
+    static HyperLogLogSketch merge(Tuple input) throws IOException {
+        if (input == null || input.size() == 0 || input.get(0) == null) {
+            return null;
+        }
+        HyperLogLogSketch merged = null;
+        for (Tuple tuple : (DataBag) input.get(0)) {
+            DataByteArray bytes = (DataByteArray) tuple.get(0);
+            if (bytes == null) {
+                continue;
+            }
+            HyperLogLogSketch sketch = HyperLogLogSketch.fromBytes(bytes.get());
+            if (merged == null) {
+                merged = sketch;
+            } else {
+                merged.merge(sketch);
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public String getInitial() {
+        return Intermed.class.getName();
+    }
+
+    @Override
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    @Override
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    public static class Intermed extends EvalFunc<Tuple> {
+        public Intermed() {
+        }
+
+        public Intermed(String precision) {
+        }
+
+        public Intermed(String precision, String hashFunction) {
+        }
+
+        public Intermed(String precision, String hashFunction, String secretFile, String saltRotation) {
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            HyperLogLogSketch sketch = merge(input);
+            return TupleFactory.getInstance().newTuple(sketch == null ? null : new DataByteArray(sketch.toBytes()));
+        }
+    }
+
+    public static class Final extends EvalFunc<DataByteArray> {
+        public Final() {
+        }
+
+        public Final(String precision) {
+        }
+
+        public Final(String precision, String hashFunction) {
+        }
+
+        public Final(String precision, String hashFunction, String secretFile, String saltRotation) {
+        }
+
+        @Override
+        public DataByteArray exec(Tuple input) throws IOException {
+            HyperLogLogSketch sketch = merge(input);
+            return sketch == null ? null : new DataByteArray(sketch.toBytes());
+        }
+    }
+
+    @Override
+    public Schema outputSchema(Schema input) {
+        return new Schema(new Schema.FieldSchema(getSchemaName("sketch", input), DataType.BYTEARRAY));
+    }
+}
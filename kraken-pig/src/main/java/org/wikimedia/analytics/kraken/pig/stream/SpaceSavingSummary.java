@@ -0,0 +1,169 @@
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded Space-Saving summary of item counts that can be merged with other
+ * summaries, so TopK and TopKCounts can count map-side and only shuffle the
+ * partial summaries.
+ *
+ * Every count overestimates the true count of its item by at most its error.
+ * The bound is the largest count an item that is not in the summary could have,
+ * it is 0 as long as no item has been dropped. When two summaries are merged an
+ * item that is missing from one of them gets that summary's bound added to its
+ * count and error, and only the capacity largest counts are kept (see
+ * Agarwal et al., Mergeable Summaries).
+ *
+ * A summary is passed between the stages of the UDFs as a tuple of
+ * (summary:bag{(item:tuple, count:long, error:long)}, bound:long).
+ */
+public class SpaceSavingSummary {
+    private static final Comparator<Map.Entry<Tuple, long[]>> BY_COUNT = new Comparator<Map.Entry<Tuple, long[]>>() {
+        @Override
+        public int compare(final Map.Entry<Tuple, long[]> a, final Map.Entry<Tuple, long[]> b) {
+            long x = a.getValue()[0];
+            long y = b.getValue()[0];
+            return x > y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private final int capacity;
+    private Map<Tuple, long[]> counters = new HashMap<Tuple, long[]>();
+    private long bound;
+
+    /**
+     * @param capacity the maximum number of counters to keep
+     */
+    public SpaceSavingSummary(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Count the tuples in a bag exactly, the number of distinct tuples is not limited by the capacity.
+     * @return the summary of the bag as a tuple
+     */
+    public static Tuple count(final DataBag items) {
+        Map<Tuple, long[]> counts = new HashMap<Tuple, long[]>();
+        for (Tuple item : items) {
+            long[] counter = counts.get(item);
+            if (counter == null) {
+                counts.put(item, new long[] {1, 0});
+            } else {
+                counter[0]++;
+            }
+        }
+        return toTuple(new ArrayList<Map.Entry<Tuple, long[]>>(counts.entrySet()), 0);
+    }
+
+    /**
+     * Merge a summary that was created by {@link #count(DataBag)} or {@link #toTuple()}.
+     */
+    public void merge(final Tuple summary) throws IOException {
+        DataBag bag = (DataBag) summary.get(0);
+        long otherBound = (Long) summary.get(1);
+        Map<Tuple, long[]> merged = new HashMap<Tuple, long[]>(counters.size() + (int) bag.size());
+        for (Tuple counter : bag) {
+            Tuple item = (Tuple) counter.get(0);
+            long count = (Long) counter.get(1);
+            long error = (Long) counter.get(2);
+            long[] existing = counters.remove(item);
+            if (existing == null) {
+                merged.put(item, new long[] {count + bound, error + bound});
+            } else {
+                merged.put(item, new long[] {count + existing[0], error + existing[1]});
+            }
+        }
+        for (Map.Entry<Tuple, long[]> entry : counters.entrySet()) {
+            long[] counter = entry.getValue();
+            counter[0] += otherBound;
+            counter[1] += otherBound;
+            merged.put(entry.getKey(), counter);
+        }
+        bound += otherBound;
+
+        if (merged.size() > capacity) {
+            // Everything that is dropped counts at most as much as the smallest kept counter
+            List<Map.Entry<Tuple, long[]>> entries = sorted(merged);
+            merged = new HashMap<Tuple, long[]>(capacity * 2);
+            for (Map.Entry<Tuple, long[]> entry : entries.subList(0, capacity)) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+            bound = Math.max(bound, entries.get(capacity - 1).getValue()[0]);
+        }
+        counters = merged;
+    }
+
+    /**
+     * @return the k largest counters as (item, count, error) tuples, largest first
+     */
+    public List<Tuple> top(final int k) {
+        List<Map.Entry<Tuple, long[]>> entries = sorted(counters);
+        List<Tuple> top = new ArrayList<Tuple>(Math.min(k, entries.size()));
+        for (Map.Entry<Tuple, long[]> entry : entries.subList(0, Math.min(k, entries.size()))) {
+            top.add(toCounter(entry));
+        }
+        return top;
+    }
+
+    /**
+     * @return this summary as a tuple that can be passed to {@link #merge(Tuple)}
+     */
+    public Tuple toTuple() {
+        return toTuple(new ArrayList<Map.Entry<Tuple, long[]>>(counters.entrySet()), bound);
+    }
+
+    private static Tuple toTuple(final List<Map.Entry<Tuple, long[]>> entries, final long bound) {
+        DataBag bag = BagFactory.getInstance().newDefaultBag();
+        for (Map.Entry<Tuple, long[]> entry : entries) {
+            bag.add(toCounter(entry));
+        }
+        Tuple summary = TupleFactory.getInstance().newTuple(2);
+        try {
+            summary.set(0, bag);
+            summary.set(1, bound);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return summary;
+    }
+
+    private static Tuple toCounter(final Map.Entry<Tuple, long[]> entry) {
+        Tuple counter = TupleFactory.getInstance().newTuple(3);
+        try {
+            counter.set(0, entry.getKey());
+            counter.set(1, entry.getValue()[0]);
+            counter.set(2, entry.getValue()[1]);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return counter;
+    }
+
+    private static List<Map.Entry<Tuple, long[]>> sorted(final Map<Tuple, long[]> counters) {
+        List<Map.Entry<Tuple, long[]>> entries = new ArrayList<Map.Entry<Tuple, long[]>>(counters.entrySet());
+        Collections.sort(entries, BY_COUNT);
+        return entries;
+    }
+
+    /**
+     * @return the largest count an item that is not in the summary could have
+     */
+    public long getBound() {
+        return bound;
+    }
+
+    public int size() {
+        return counters.size();
+    }
+}
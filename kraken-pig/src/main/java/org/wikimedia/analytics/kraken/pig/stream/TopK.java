@@ -2,6 +2,7 @@ package org.wikimedia.analytics.kraken.pig.stream;
 
 import com.clearspring.analytics.stream.StreamSummary;
 import org.apache.pig.Accumulator;
+import org.apache.pig.Algebraic;
 import org.apache.pig.EvalFunc;
 import org.apache.pig.data.BagFactory;
 import org.apache.pig.data.DataBag;
@@ -12,7 +13,15 @@ import org.apache.pig.impl.logicalLayer.schema.Schema;
 
 import java.io.IOException;
 
-public class TopK extends EvalFunc<DataBag> implements Accumulator<DataBag> {
+/**
+ * Returns the k most frequent tuples of a bag.
+ *
+ * The UDF is algebraic: map-side every input tuple is turned into a
+ * {@link SpaceSavingSummary}, the combiner merges those into summaries of at
+ * most capacity counters and the reducer merges the partial summaries and
+ * returns the k largest, so only the bounded summaries are shuffled.
+ */
+public class TopK extends EvalFunc<DataBag> implements Accumulator<DataBag>, Algebraic {
     protected final int k;
     protected final int capacity;
     protected StreamSummary<Tuple> summary;
@@ -46,7 +55,9 @@ public class TopK extends EvalFunc<DataBag> implements Accumulator<DataBag> {
 
     @Override
     public void accumulate(Tuple input) throws IOException {
-        summary.offer(input);
+        for (Tuple item : (DataBag) input.get(0)) {
+            summary.offer(item);
+        }
     }
 
     @Override
@@ -63,6 +74,112 @@ public class TopK extends EvalFunc<DataBag> implements Accumulator<DataBag> {
         summary = new StreamSummary<Tuple>(capacity);
     }
 
+    @Override
+    public String getInitial() {
+        return Initial.class.getName();
+    }
+
+    @Override
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    @Override
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    /**
+     * Counts the bag of a single input tuple, takes the same arguments as TopK and TopKCounts.
+     */
+    public static class Initial extends EvalFunc<Tuple> {
+        public Initial() {
+        }
+
+        public Initial(String k) {
+        }
+
+        public Initial(String k, String arg) {
+        }
+
+        public Initial(String k, String arg, String capacity) {
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return SpaceSavingSummary.count((DataBag) input.get(0));
+        }
+    }
+
+    /**
+     * Merges partial summaries into a summary of at most capacity counters.
+     */
+    public static class Intermed extends EvalFunc<Tuple> {
+        private final int capacity;
+
+        public Intermed(String k) {
+            this(Integer.parseInt(k) * 2);
+        }
+
+        public Intermed(String k, String capacity) {
+            this(Integer.parseInt(capacity));
+        }
+
+        protected Intermed(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public Tuple exec(Tuple input) throws IOException {
+            return merge(input, capacity).toTuple();
+        }
+    }
+
+    /**
+     * Merges the partial summaries and returns the k most frequent tuples.
+     */
+    public static class Final extends EvalFunc<DataBag> {
+        protected final int k;
+        protected final int capacity;
+
+        public Final(String k) {
+            this(Integer.parseInt(k), Integer.parseInt(k) * 2);
+        }
+
+        public Final(String k, String capacity) {
+            this(Integer.parseInt(k), Integer.parseInt(capacity));
+        }
+
+        protected Final(int k, int capacity) {
+            this.k = k;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public DataBag exec(Tuple input) throws IOException {
+            final DataBag output = BagFactory.getInstance().newDefaultBag();
+            for (Tuple counter : merge(input, capacity).top(k)) {
+                output.add(toOutput((Tuple) counter.get(0), (Long) counter.get(1)));
+            }
+            return output;
+        }
+
+        protected Tuple toOutput(Tuple item, long count) {
+            return item;
+        }
+    }
+
+    /**
+     * @param input a tuple with a bag of partial summaries
+     */
+    static SpaceSavingSummary merge(Tuple input, int capacity) throws IOException {
+        SpaceSavingSummary summary = new SpaceSavingSummary(capacity);
+        for (Tuple partial : (DataBag) input.get(0)) {
+            summary.merge(partial);
+        }
+        return summary;
+    }
+
     @Override
     public Schema outputSchema(Schema input) {
         try {
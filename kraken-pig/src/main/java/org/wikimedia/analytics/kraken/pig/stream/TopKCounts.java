@@ -31,28 +31,82 @@ public class TopKCounts extends TopK {
 
     public TopKCounts(int k, String optFlatten, int capacity) {
         super(k, capacity);
-        flatten = (optFlatten != null && optFlatten.toLowerCase().equals("flatten"));
+        flatten = isFlatten(optFlatten);
+    }
+
+    private static boolean isFlatten(String optFlatten) {
+        return optFlatten != null && optFlatten.toLowerCase().equals("flatten");
     }
 
     @Override
     public DataBag getValue() {
         final DataBag output = BagFactory.getInstance().newDefaultBag();
         for (Counter<Tuple> counter : summary.topK(k)) {
-            Tuple innerTuple = TupleFactory.getInstance().newTuple(counter.getItem().getAll());
-            Tuple outputTuple = null;
-            if (flatten) {
-                innerTuple.append(counter.getCount());
-                outputTuple = innerTuple;
-            } else {
-                outputTuple = TupleFactory.getInstance().newTuple();
-                outputTuple.append(innerTuple);
-                outputTuple.append(counter.getCount());
-            }
-            output.add(outputTuple);
+            output.add(toOutput(counter.getItem(), counter.getCount(), flatten));
         }
         return output;
     }
 
+    static Tuple toOutput(Tuple item, long count, boolean flatten) {
+        Tuple innerTuple = TupleFactory.getInstance().newTuple(item.getAll());
+        Tuple outputTuple = null;
+        if (flatten) {
+            innerTuple.append(count);
+            outputTuple = innerTuple;
+        } else {
+            outputTuple = TupleFactory.getInstance().newTuple();
+            outputTuple.append(innerTuple);
+            outputTuple.append(count);
+        }
+        return outputTuple;
+    }
+
+    @Override
+    public String getIntermed() {
+        return Intermed.class.getName();
+    }
+
+    @Override
+    public String getFinal() {
+        return Final.class.getName();
+    }
+
+    public static class Intermed extends TopK.Intermed {
+        public Intermed(String k) {
+            super(Integer.parseInt(k) * 2);
+        }
+
+        public Intermed(String k, String optFlatten) {
+            super(Integer.parseInt(k) * 2);
+        }
+
+        public Intermed(String k, String optFlatten, String capacity) {
+            super(Integer.parseInt(capacity));
+        }
+    }
+
+    public static class Final extends TopK.Final {
+        private final boolean flatten;
+
+        public Final(String k) {
+            this(k, null);
+        }
+
+        public Final(String k, String optFlatten) {
+            this(k, optFlatten, String.valueOf(Integer.parseInt(k) * 2));
+        }
+
+        public Final(String k, String optFlatten, String capacity) {
+            super(Integer.parseInt(k), Integer.parseInt(capacity));
+            flatten = isFlatten(optFlatten);
+        }
+
+        @Override
+        protected Tuple toOutput(Tuple item, long count) {
+            return TopKCounts.toOutput(item, count, flatten);
+        }
+    }
+
     @Override
     public Schema outputSchema(Schema input) {
         try {
@@ -73,11 +127,11 @@ public class TopKCounts extends TopK {
 
             if (flatten) {
                 outputTupleSchema = inputTupleSchema.clone();
-                outputTupleSchema.add(new Schema.FieldSchema("count", DataType.INTEGER));
+                outputTupleSchema.add(new Schema.FieldSchema("count", DataType.LONG));
             } else {
                 outputTupleSchema = new Schema();
                 outputTupleSchema.add(new Schema.FieldSchema("tuple_schema", inputTupleSchema.clone(), DataType.TUPLE));
-                outputTupleSchema.add(new Schema.FieldSchema("count", DataType.INTEGER));
+                outputTupleSchema.add(new Schema.FieldSchema("count", DataType.LONG));
             }
             return new Schema(
                 new Schema.FieldSchema(
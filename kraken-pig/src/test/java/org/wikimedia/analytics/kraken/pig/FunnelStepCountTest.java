@@ -0,0 +1,121 @@
+/**
+ Copyright (C) 2012  Wikimedia Foundation
+
+ This program is free software; you can redistribute it and/or
+ modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation; either version 2
+ of the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program; if not, write to the Free Software
+ Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.wikimedia.analytics.kraken.pig;
+
+import org.apache.pig.backend.executionengine.ExecException;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+
+public class FunnelStepCountTest {
+    private static final String URLS = "http://www.wikimedia.org/A,http://www.wikimedia.org/B,"
+            + "http://www.wikimedia.org/C,http://www.wikimedia.org/D";
+    private static final String EDGES = "0-1,0-2,1-3,2-3";
+
+    private final TupleFactory tupleFactory = TupleFactory.getInstance();
+    private final BagFactory bagFactory = BagFactory.getInstance();
+
+    /**
+     * @return a user tuple with a bag of requests, one second apart.
+     */
+    private Tuple user(String... pages) throws ExecException {
+        DataBag requests = bagFactory.newDefaultBag();
+        for (int i = 0; i < pages.length; i++) {
+            Tuple request = tupleFactory.newTuple(3);
+            request.set(0, "1");
+            request.set(1, i);
+            request.set(2, "http://www.wikimedia.org/" + pages[i]);
+            requests.add(request);
+        }
+        return tupleFactory.newTuple(requests);
+    }
+
+    private Tuple bag(Tuple... tuples) {
+        DataBag bag = bagFactory.newDefaultBag();
+        for (Tuple tuple : tuples) {
+            bag.add(tuple);
+        }
+        return tupleFactory.newTuple(bag);
+    }
+
+    private static void assertStep(Tuple step, int path, int index, String url, long reached, long dropped)
+            throws ExecException {
+        assertEquals(path, step.get(0));
+        assertEquals(index, step.get(1));
+        assertEquals("http://www.wikimedia.org/" + url, step.get(2));
+        assertEquals(reached, step.get(3));
+        assertEquals(dropped, step.get(4));
+    }
+
+    private void assertReport(Tuple report) throws ExecException {
+        assertEquals(4L, report.get(0));
+        Iterator<Tuple> steps = ((DataBag) report.get(1)).iterator();
+        assertStep(steps.next(), 0, 0, "A", 3, 1);
+        assertStep(steps.next(), 0, 1, "B", 2, 1);
+        assertStep(steps.next(), 0, 2, "D", 1, 0);
+        assertStep(steps.next(), 1, 0, "A", 3, 2);
+        assertStep(steps.next(), 1, 1, "C", 1, 0);
+        assertStep(steps.next(), 1, 2, "D", 1, 0);
+    }
+
+    private Tuple[] users() throws ExecException {
+        return new Tuple[] {user("A", "B", "D"), user("A", "B"), user("A", "C", "X", "D"), user("B", "D")};
+    }
+
+    @Test
+    public void testExec() throws IOException {
+        assertReport(new FunnelStepCount(URLS, EDGES, "100").exec(bag(users())));
+    }
+
+    @Test
+    public void testAlgebraic() throws IOException {
+        Tuple[] users = users();
+        FunnelStepCount.Initial initial = new FunnelStepCount.Initial(URLS, EDGES, "100");
+        FunnelStepCount.Intermed intermed = new FunnelStepCount.Intermed(URLS, EDGES, "100");
+        FunnelStepCount.Final last = new FunnelStepCount.Final(URLS, EDGES, "100");
+
+        Tuple first = intermed.exec(bag(initial.exec(bag(users[0])), initial.exec(bag(users[1]))));
+        Tuple second = intermed.exec(bag(initial.exec(bag(users[2])), initial.exec(bag(users[3]))));
+        assertEquals(7, first.size());
+        assertReport(last.exec(bag(first, second)));
+    }
+
+    @Test
+    public void testMaxStepGap() throws IOException {
+        Tuple report = new FunnelStepCount(URLS, EDGES, "100", "1").exec(bag(user("A", "C", "X", "D")));
+        Iterator<Tuple> steps = ((DataBag) report.get(1)).iterator();
+        steps.next();
+        steps.next();
+        steps.next();
+        assertStep(steps.next(), 1, 0, "A", 1, 0);
+        assertStep(steps.next(), 1, 1, "C", 1, 1);
+        assertStep(steps.next(), 1, 2, "D", 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidEdge() {
+        new FunnelStepCount(URLS, "0-1,1-4", "100");
+    }
+}
@@ -28,6 +28,10 @@ import org.apache.pig.tools.parameters.ParseException;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -68,11 +72,84 @@ public class FunnelTest {
         assertEquals(output.get(1), "http://www.wikimedia.org/C");
     }
 
+    @Test
+    public void testExecSkipsOtherRequests() throws IOException {
+        Tuple input = defaultInput();
+        ((DataBag) input.get(0)).add(row(7, "http://www.wikimedia.org/other"));
+        Tuple output = funnel.exec(sorted(input));
+        assertTrue((Boolean) output.get(0));
+    }
+
+    @Test
+    public void testExecTimeframe() throws IOException {
+        Tuple input = defaultInput();
+        // D comes 10 seconds after A
+        input.set(3, 9);
+        Tuple output = funnel.exec(input);
+        assertFalse((Boolean) output.get(0));
+        assertEquals("http://www.wikimedia.org/C", output.get(1));
+    }
+
+    @Test
+    public void testExecMaxStepGap() throws IOException {
+        Tuple input = defaultInput();
+        DataBag bag = BagFactory.getInstance().newDefaultBag();
+        bag.add(row(5, "http://www.wikimedia.org/A"));
+        bag.add(row(8, "http://www.wikimedia.org/B"));
+        bag.add(row(20, "http://www.wikimedia.org/D"));
+        input.set(0, bag);
+        Tuple output = new Funnel("10").exec(input);
+        assertFalse((Boolean) output.get(0));
+        assertEquals("http://www.wikimedia.org/B", output.get(1));
+        assertTrue((Boolean) new Funnel("12").exec(input).get(0));
+    }
+
+    @Test(expected = ExecException.class)
+    public void testExecUnsorted() throws IOException {
+        Tuple input = defaultInput();
+        ((DataBag) input.get(0)).add(row(1, "http://www.wikimedia.org/B"));
+        funnel.exec(input);
+    }
+
     @Test
     public void testPig() throws IOException, ParseException {
         pigTest = new PigTest("src/test/resources/funnel.pig");
     }
 
+    private Tuple row(int timestamp, String url) throws ExecException {
+        Tuple row = tupleFactory.newTuple(3);
+        row.set(0, "1");
+        row.set(1, timestamp);
+        row.set(2, url);
+        return row;
+    }
+
+    /**
+     * @return input with its bag of requests sorted by time stamp, as ORDER BY would.
+     */
+    private Tuple sorted(Tuple input) throws ExecException {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (Tuple row : (DataBag) input.get(0)) {
+            rows.add(row);
+        }
+        Collections.sort(rows, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple a, Tuple b) {
+                try {
+                    return ((Integer) a.get(1)).compareTo((Integer) b.get(1));
+                } catch (ExecException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        DataBag bag = BagFactory.getInstance().newDefaultBag();
+        for (Tuple row : rows) {
+            bag.add(row);
+        }
+        input.set(0, bag);
+        return input;
+    }
+
     private Tuple defaultInput() throws ExecException {
         DataBag bag = BagFactory.getInstance().newDefaultBag();
         Tuple urls = tupleFactory.newTuple(4);
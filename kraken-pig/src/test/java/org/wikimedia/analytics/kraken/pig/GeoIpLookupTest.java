@@ -21,6 +21,8 @@ package org.wikimedia.analytics.kraken.pig;
 import org.apache.pig.data.Tuple;
 import org.apache.pig.data.TupleFactory;
 import org.junit.Test;
+import org.wikimedia.analytics.kraken.geo.GeoIpLookup;
+import org.wikimedia.analytics.kraken.geo.GeoIpResult;
 
 import java.io.IOException;
 
@@ -143,4 +145,20 @@ public class GeoIpLookupTest {
         String countryCode = (String) output.get(0);
         assertEquals("IN", countryCode);
     }
+
+    /**
+     * Repeated lookups of an address are answered from the cache
+     * @throws IOException
+     */
+    @Test
+    public void testLookupCache() throws IOException {
+        GeoIpLookup geoIpLookup = new GeoIpLookup("countryCode, continentName", "GeoIPCity", "LOCAL");
+        GeoIpResult first = geoIpLookup.lookup("71.217.23.156");
+        GeoIpResult second = geoIpLookup.lookup("71.217.23.156");
+        assertEquals("US", second.get(0));
+        assertEquals("North America", second.get(1));
+        assertSame(first, second);
+        assertEquals(1, geoIpLookup.getCacheHits());
+        assertEquals(1, geoIpLookup.getCacheMisses());
+    }
 }
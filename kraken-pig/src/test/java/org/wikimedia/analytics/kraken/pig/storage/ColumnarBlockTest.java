@@ -0,0 +1,168 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarBlockTest {
+
+    private TupleFactory tupleFactory = TupleFactory.getInstance();
+
+    private Tuple webRequest(final int i) throws IOException {
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("mf-m", "b");
+        DataBag tags = BagFactory.getInstance().newDefaultBag();
+        tags.add(tupleFactory.newTuple("pageview"));
+
+        Tuple tuple = tupleFactory.newTuple(WebRequestSchema.COLUMNS.length);
+        tuple.set(WebRequestSchema.TIMESTAMP, 1365000000000000L + i * 1000L - (i % 3) * 5000L);
+        tuple.set(WebRequestSchema.PRODUCT_CODE, "web");
+        tuple.set(WebRequestSchema.IP_ADDRESS, i % 4 == 0 ? "2620:0:862:ed1a::1" : "10.0." + (i % 256) + ".1");
+        tuple.set(WebRequestSchema.UID, i % 2 == 0 ? null : "uid" + i);
+        tuple.set(WebRequestSchema.URL, "http://en.wikipedia.org/wiki/Page_" + i);
+        tuple.set(WebRequestSchema.REFERER, null);
+        tuple.set(WebRequestSchema.HTTP_METHOD, i % 5 == 0 ? "HEAD" : "GET");
+        tuple.set(WebRequestSchema.UA, "Mozilla/5.0 (é)");
+        tuple.set(WebRequestSchema.UA_FLAGS, i % 7 - 3);
+        tuple.set(WebRequestSchema.CARRIER, null);
+        tuple.set(WebRequestSchema.RESPONSE_SERVER, "cp1041.eqiad.wmnet");
+        tuple.set(WebRequestSchema.RESPONSE_STATUS, 200);
+        tuple.set(WebRequestSchema.RESPONSE_TIME, null);
+        tuple.set(WebRequestSchema.RESPONSE_SIZE, (long) i * 100);
+        tuple.set(WebRequestSchema.RESPONSE_MIME, "text/html");
+        tuple.set(WebRequestSchema.METADATA, i % 2 == 0 ? metadata : null);
+        tuple.set(WebRequestSchema.TAGS, tags);
+        return tuple;
+    }
+
+    private byte[] write(final int rows, final int blockRows) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(out, blockRows, 6);
+        for (int i = 0; i < rows; i++) {
+            writer.append(webRequest(i));
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private List<Tuple> read(final byte[] file, final long start, final long end, final int[] projection)
+            throws IOException {
+        ColumnarBlockReader reader = new ColumnarBlockReader(new ByteArrayInputStream(file), start, end);
+        reader.setProjection(projection);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        Tuple tuple;
+        while ((tuple = reader.next()) != null) {
+            tuples.add(tuple);
+        }
+        reader.close();
+        return tuples;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] file = write(250, 100);
+        List<Tuple> tuples = read(file, 0, file.length, null);
+        assertEquals(250, tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            Tuple expected = webRequest(i);
+            Tuple actual = tuples.get(i);
+            assertEquals(expected.size(), actual.size());
+            for (int column = 0; column < expected.size(); column++) {
+                if (column == WebRequestSchema.TAGS) {
+                    assertEquals(1L, ((DataBag) actual.get(column)).size());
+                    assertEquals("pageview", ((DataBag) actual.get(column)).iterator().next().get(0));
+                } else {
+                    assertEquals(WebRequestSchema.COLUMNS[column], expected.get(column), actual.get(column));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        byte[] file = write(250, 100);
+        List<Tuple> tuples = read(file, 0, file.length,
+                new int[] {WebRequestSchema.URL, WebRequestSchema.TIMESTAMP});
+        assertEquals(250, tuples.size());
+        assertEquals(2, tuples.get(42).size());
+        assertEquals("http://en.wikipedia.org/wiki/Page_42", tuples.get(42).get(0));
+        assertEquals(webRequest(42).get(WebRequestSchema.TIMESTAMP), tuples.get(42).get(1));
+    }
+
+    @Test
+    public void testSplits() throws IOException {
+        byte[] file = write(1000, 37);
+        // Every block is read by exactly one split, whatever the split boundaries are
+        for (int splits = 1; splits < 20; splits += 3) {
+            List<Tuple> tuples = new ArrayList<Tuple>();
+            long splitSize = file.length / splits + 1;
+            for (long start = 0; start < file.length; start += splitSize) {
+                tuples.addAll(read(file, start, Math.min(file.length, start + splitSize),
+                        new int[] {WebRequestSchema.URL}));
+            }
+            assertEquals(1000, tuples.size());
+            for (int i = 0; i < tuples.size(); i++) {
+                assertEquals("http://en.wikipedia.org/wiki/Page_" + i, tuples.get(i).get(0));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        byte[] file = write(0, 100);
+        assertTrue(read(file, 0, file.length, null).isEmpty());
+    }
+
+    @Test
+    public void testNulls() throws IOException {
+        Tuple tuple = tupleFactory.newTuple(WebRequestSchema.COLUMNS.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(out, 10, 1);
+        writer.append(tuple);
+        writer.close();
+        byte[] file = out.toByteArray();
+        List<Tuple> tuples = read(file, 0, file.length, null);
+        assertEquals(1, tuples.size());
+        for (int column = 0; column < WebRequestSchema.COLUMNS.length; column++) {
+            assertNull(tuples.get(0).get(column));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongArity() throws IOException {
+        ColumnarBlockWriter writer = new ColumnarBlockWriter(new ByteArrayOutputStream(), 10, 1);
+        writer.append(tupleFactory.newTuple(3));
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.storage;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.pig.LoadPushDown;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.Tuple;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WebRequestLoaderTest {
+
+    private static final String PAGEVIEW = "12345\tcp1041.eqiad.wmnet\t987\t2013-04-01T00:00:01\t0.001\t"
+            + "10.0.0.1\tTCP_MISS/200\t5120\tGET\thttp://en.wikipedia.org/wiki/Main_Page\t-\t"
+            + "text/html; charset=UTF-8\t-\t-\tMozilla/5.0\ten-US\t-";
+
+    private static final String IMAGE = "12346\tcp1042.eqiad.wmnet\t988\t2013-04-01T00:00:02\t0.002\t"
+            + "10.0.0.2\tTCP_HIT/304\t0\tGET\thttp://upload.wikimedia.org/wikipedia/a.png\t-\t"
+            + "image/png\t-\t-\tMozilla/5.0\tde\t-";
+
+    private static final String NOT_FOUND = "12347\tcp1043.eqiad.wmnet\tx\t2013-04-01T00:00:03\t0.003\t"
+            + "10.0.0.3\tTCP_MISS/404\t1\tGET\thttp://de.wikipedia.org/wiki/Missing\t-\t"
+            + "text/html\t-\t-\tMozilla/5.0\tde\t-";
+
+    /** A reader over a fixed set of lines */
+    private static class LineReader extends RecordReader<LongWritable, Text> {
+        private final Iterator<String> lines;
+        private final Text value = new Text();
+
+        LineReader(final String... lines) {
+            this.lines = Arrays.asList(lines).iterator();
+        }
+
+        @Override
+        public void initialize(final InputSplit split, final TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            if (!lines.hasNext()) {
+                return false;
+            }
+            value.set(lines.next());
+            return true;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return null;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private List<Tuple> load(final WebRequestLoader loader, final String signature, final String... lines)
+            throws IOException {
+        loader.setUDFContextSignature(signature);
+        PigSplit split = new PigSplit(new FileSplit(new Path("/wmf/raw/webrequest/part-00000"), 0, 0, null));
+        loader.prepareToRead(new LineReader(lines), split);
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        Tuple tuple;
+        while ((tuple = loader.getNext()) != null) {
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+
+    private void project(final WebRequestLoader loader, final String signature, final int... fields)
+            throws Exception {
+        loader.setUDFContextSignature(signature);
+        LoadPushDown.RequiredFieldList requiredFields = new LoadPushDown.RequiredFieldList();
+        for (int field : fields) {
+            requiredFields.add(new LoadPushDown.RequiredField(null, field, null, (byte) 0));
+        }
+        loader.pushProjection(requiredFields);
+    }
+
+    @Test
+    public void testAllFields() throws IOException {
+        List<Tuple> tuples = load(new WebRequestLoader(), "all", PAGEVIEW, NOT_FOUND);
+        assertEquals(2, tuples.size());
+        Tuple tuple = tuples.get(0);
+        assertEquals(WebRequestLoader.FIELDS.length, tuple.size());
+        assertEquals(12345.0, tuple.get(0));
+        assertEquals("cp1041.eqiad.wmnet", tuple.get(1));
+        assertEquals(987L, tuple.get(2));
+        assertEquals(5120L, tuple.get(7));
+        assertEquals("http://en.wikipedia.org/wiki/Main_Page", tuple.get(9));
+        assertEquals("-", tuple.get(16));
+        // Like a failed cast in Pig
+        assertNull(tuples.get(1).get(2));
+    }
+
+    @Test
+    public void testMissingFields() throws IOException {
+        Tuple tuple = load(new WebRequestLoader(), "missing", "1\tcp1041\t2").get(0);
+        assertEquals(WebRequestLoader.FIELDS.length, tuple.size());
+        assertEquals(2L, tuple.get(2));
+        assertNull(tuple.get(3));
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        WebRequestLoader loader = new WebRequestLoader();
+        project(loader, "projection", 9, 6);
+        Tuple tuple = load(loader, "projection", PAGEVIEW).get(0);
+        assertEquals(2, tuple.size());
+        assertEquals("http://en.wikipedia.org/wiki/Main_Page", tuple.get(0));
+        assertEquals("TCP_MISS/200", tuple.get(1));
+    }
+
+    @Test
+    public void testFilters() throws IOException {
+        assertEquals(2, load(new WebRequestLoader("status=2,3"), "status", PAGEVIEW, IMAGE, NOT_FOUND).size());
+        assertEquals(1, load(new WebRequestLoader("status=4"), "status4", PAGEVIEW, IMAGE, NOT_FOUND).size());
+        assertEquals(2, load(new WebRequestLoader("host=wikipedia.org"), "host", PAGEVIEW, IMAGE, NOT_FOUND).size());
+        // Only the host is matched, not the path
+        assertEquals(0, load(new WebRequestLoader("host=wiki/"), "path", PAGEVIEW, IMAGE, NOT_FOUND).size());
+        assertEquals(2, load(new WebRequestLoader("mime=text/html"), "mime", PAGEVIEW, IMAGE, NOT_FOUND).size());
+
+        List<Tuple> tuples = load(new WebRequestLoader("status=2", "mime=text/html,image/"), "all",
+                PAGEVIEW, IMAGE, NOT_FOUND);
+        assertEquals(1, tuples.size());
+        assertEquals("cp1041.eqiad.wmnet", tuples.get(0).get(1));
+    }
+
+    @Test
+    public void testSpaceDelimiter() throws IOException {
+        Tuple tuple = load(new WebRequestLoader("delimiter=space"), "space", IMAGE.replace('\t', ' ')).get(0);
+        assertEquals("image/png", tuple.get(11));
+        assertEquals("-", tuple.get(16));
+    }
+
+    @Test
+    public void testInputPath() throws Exception {
+        WebRequestLoader loader = new WebRequestLoader("path=true");
+        project(loader, "path", 1, WebRequestLoader.FIELDS.length);
+        List<Tuple> tuples = load(loader, "path", PAGEVIEW, IMAGE);
+        assertEquals("/wmf/raw/webrequest/part-00000", tuples.get(0).get(1));
+        assertSame(tuples.get(0).get(1), tuples.get(1).get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOption() {
+        new WebRequestLoader("colour=blue");
+    }
+}
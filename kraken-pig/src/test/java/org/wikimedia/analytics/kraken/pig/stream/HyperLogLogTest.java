@@ -0,0 +1,198 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import com.google.common.io.Files;
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+import org.wikimedia.analytics.kraken.privacy.Anonymizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+
+    private final TupleFactory tupleFactory = TupleFactory.getInstance();
+    private final BagFactory bagFactory = BagFactory.getInstance();
+
+    private Tuple wrap(final Object value) {
+        return tupleFactory.newTuple(value);
+    }
+
+    private DataBag visitors(final int first, final int count) {
+        DataBag bag = bagFactory.newDefaultBag();
+        for (int i = first; i < first + count; i++) {
+            bag.add(tupleFactory.newTuple(Arrays.<Object>asList("10.0." + (i / 256 % 256) + "." + (i % 256),
+                    "Mozilla/5.0 (" + (i / 65536) + ")")));
+        }
+        return bag;
+    }
+
+    private void assertEstimate(final long expected, final long estimate, final double relativeError) {
+        assertTrue("Estimated " + estimate + " instead of " + expected,
+                Math.abs(estimate - expected) <= relativeError * expected);
+    }
+
+    @Test
+    public void testCardinality() {
+        Random random = new Random(42);
+        for (int expected : new int[] {0, 10, 1000, 20000, 45000, 70000, 200000}) {
+            HyperLogLogSketch sketch = new HyperLogLogSketch();
+            for (int i = 0; i < expected; i++) {
+                long hash = random.nextLong();
+                sketch.offer(hash);
+                // Duplicates are not counted
+                sketch.offer(hash);
+            }
+            assertEstimate(expected, sketch.cardinality(), 0.03);
+        }
+    }
+
+    @Test
+    public void testSerialization() {
+        Random random = new Random(42);
+        HyperLogLogSketch sketch = new HyperLogLogSketch(12);
+        for (int expected : new int[] {0, 100, 100000}) {
+            for (int i = 0; i < expected; i++) {
+                sketch.offer(random.nextLong());
+            }
+            byte[] bytes = sketch.toBytes();
+            assertTrue(bytes.length <= 2 + (1 << 12));
+            assertEquals(sketch, HyperLogLogSketch.fromBytes(bytes));
+            assertArrayEquals(bytes, HyperLogLogSketch.fromBytes(bytes).toBytes());
+        }
+        // A sketch of 100 items is stored sparse
+        HyperLogLogSketch small = new HyperLogLogSketch(12);
+        for (int i = 0; i < 100; i++) {
+            small.offer(random.nextLong());
+        }
+        assertTrue(small.toBytes().length < 400);
+    }
+
+    @Test
+    public void testMergeHoursIntoDay() throws IOException {
+        HyperLogLog hyperLogLog = new HyperLogLog();
+        DataBag hours = bagFactory.newDefaultBag();
+        for (int hour = 0; hour < 24; hour++) {
+            // Visitors overlap with the previous hour
+            hours.add(wrap(hyperLogLog.exec(wrap(visitors(hour * 1000, 2000)))));
+        }
+        DataByteArray day = new HyperLogLogMerge().exec(wrap(hours));
+        assertEstimate(25000, new HyperLogLogEstimate().exec(wrap(day)), 0.03);
+        assertEquals(day, hyperLogLog.exec(wrap(visitors(0, 25000))));
+    }
+
+    @Test
+    public void testAlgebraic() throws IOException {
+        HyperLogLog.Initial initial = new HyperLogLog.Initial("12", "sha256");
+        HyperLogLogMerge.Intermed intermed = new HyperLogLogMerge.Intermed("12", "sha256");
+        HyperLogLogMerge.Final last = new HyperLogLogMerge.Final("12", "sha256");
+
+        DataBag partials = bagFactory.newDefaultBag();
+        for (int mapper = 0; mapper < 4; mapper++) {
+            DataBag initials = bagFactory.newDefaultBag();
+            for (Tuple visitor : visitors(mapper * 500, 500)) {
+                DataBag single = bagFactory.newDefaultBag();
+                single.add(visitor);
+                initials.add(initial.exec(wrap(single)));
+            }
+            partials.add(intermed.exec(wrap(initials)));
+        }
+        assertEquals(new HyperLogLog("12", "sha256").exec(wrap(visitors(0, 2000))), last.exec(wrap(partials)));
+    }
+
+    @Test
+    public void testTokens() throws IOException {
+        Anonymizer anonymizer = new Anonymizer("md5");
+        DataBag tokens = bagFactory.newDefaultBag();
+        for (Tuple visitor : visitors(0, 100)) {
+            tokens.add(wrap(anonymizer.generateToken((String) visitor.get(0), (String) visitor.get(1))));
+        }
+        HyperLogLog hyperLogLog = new HyperLogLog();
+        assertEquals(hyperLogLog.exec(wrap(visitors(0, 100))), hyperLogLog.exec(wrap(tokens)));
+    }
+
+    private File secretFile(final String secret) throws IOException {
+        File file = File.createTempFile("secret", ".txt");
+        file.deleteOnExit();
+        Files.write(secret, file, Charset.forName("UTF-8"));
+        return file;
+    }
+
+    private DataBag timedVisitors(final int count, final long timestamp) throws IOException {
+        DataBag bag = bagFactory.newDefaultBag();
+        for (Tuple visitor : visitors(0, count)) {
+            bag.add(tupleFactory.newTuple(Arrays.<Object>asList(visitor.get(0), visitor.get(1), timestamp)));
+        }
+        return bag;
+    }
+
+    @Test
+    public void testKeyedTokens() throws IOException {
+        long timestamp = 1357041600000L;
+        Anonymizer anonymizer = new Anonymizer("sha256", "s3cret".getBytes("UTF-8"), 3600 * 1000L);
+        DataBag tokens = bagFactory.newDefaultBag();
+        for (Tuple visitor : visitors(0, 100)) {
+            tokens.add(wrap(anonymizer.generateToken((String) visitor.get(0), (String) visitor.get(1), timestamp)));
+        }
+        // The secret is trimmed, like the Storm topology does
+        HyperLogLog hyperLogLog = new HyperLogLog("14", "sha256", secretFile("s3cret\n").getPath(), "3600");
+        assertEquals(hyperLogLog.exec(wrap(tokens)), hyperLogLog.exec(wrap(timedVisitors(100, timestamp))));
+    }
+
+    @Test(expected = IOException.class)
+    public void testKeyedWithoutTimestamp() throws IOException {
+        new HyperLogLog("14", "sha256", secretFile("s3cret").getPath(), "3600").exec(wrap(visitors(0, 10)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyedMurmur() {
+        new HyperLogLog("14", "murmur3_128", "/nonexistent", "3600");
+    }
+
+    @Test
+    public void testNulls() throws IOException {
+        assertNull(new HyperLogLogEstimate().exec(wrap(null)));
+        DataBag sketches = bagFactory.newDefaultBag();
+        sketches.add(wrap(null));
+        assertNull(new HyperLogLogMerge().exec(wrap(sketches)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrecisionMismatch() {
+        new HyperLogLogSketch(12).merge(new HyperLogLogSketch(14));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortHash() {
+        new HyperLogLog("14", "murmur3_32");
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ *Copyright (C) 2012-2013  Wikimedia Foundation
+ *
+ *This program is free software; you can redistribute it and/or
+ *modify it under the terms of the GNU General Public License
+ *as published by the Free Software Foundation; either version 2
+ *of the License, or (at your option) any later version.
+ *
+ *This program is distributed in the hope that it will be useful,
+ *but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *GNU General Public License for more details.
+ *
+ *You should have received a copy of the GNU General Public License
+ *along with this program; if not, write to the Free Software
+ *Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+
+ */
+package org.wikimedia.analytics.kraken.pig.stream;
+
+import org.apache.pig.data.BagFactory;
+import org.apache.pig.data.DataBag;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopKTest {
+
+    private final TupleFactory tupleFactory = TupleFactory.getInstance();
+    private final BagFactory bagFactory = BagFactory.getInstance();
+
+    private Tuple item(final String value) {
+        return tupleFactory.newTuple(value);
+    }
+
+    /** A Zipf like stream over 1000 articles where article i occurs about 1/i as often as article 1 */
+    private List<Tuple> stream(final int size) {
+        Random random = new Random(42);
+        List<Tuple> items = new ArrayList<Tuple>(size);
+        for (int i = 0; i < size; i++) {
+            int article = (int) Math.floor(Math.pow(1000, random.nextDouble()));
+            items.add(item("Article_" + article));
+        }
+        return items;
+    }
+
+    private Tuple wrap(final Object value) {
+        return tupleFactory.newTuple(value);
+    }
+
+    private DataBag bag(final List<Tuple> tuples) {
+        DataBag bag = bagFactory.newDefaultBag();
+        for (Tuple tuple : tuples) {
+            bag.add(tuple);
+        }
+        return bag;
+    }
+
+    /**
+     * Run the algebraic stages the way Pig does with a combiner: Initial per
+     * tuple, Intermed per mapper and Final over the partial summaries.
+     */
+    private DataBag runAlgebraic(final TopK.Initial initial, final TopK.Intermed intermed, final TopK.Final last,
+                                 final List<Tuple> items, final int mappers) throws IOException {
+        DataBag partials = bagFactory.newDefaultBag();
+        int perMapper = items.size() / mappers;
+        for (int mapper = 0; mapper < mappers; mapper++) {
+            DataBag initials = bagFactory.newDefaultBag();
+            for (Tuple item : items.subList(mapper * perMapper, (mapper + 1) * perMapper)) {
+                DataBag single = bagFactory.newDefaultBag();
+                single.add(item);
+                initials.add(initial.exec(wrap(single)));
+            }
+            partials.add(intermed.exec(wrap(initials)));
+        }
+        return last.exec(wrap(partials));
+    }
+
+    private List<Tuple> toList(final DataBag bag) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        for (Tuple tuple : bag) {
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
+
+    @Test
+    public void testAlgebraicMatchesExec() throws IOException {
+        List<Tuple> items = stream(20000);
+        List<Tuple> expected = toList(new TopK(5, 50).exec(wrap(bag(items))));
+        List<Tuple> actual = toList(runAlgebraic(new TopK.Initial("5", "50"), new TopK.Intermed("5", "50"),
+                new TopK.Final("5", "50"), items, 8));
+        assertEquals(5, actual.size());
+        assertEquals(item("Article_1"), actual.get(0));
+        assertEquals(expected.subList(0, 3), actual.subList(0, 3));
+    }
+
+    @Test
+    public void testAlgebraicCounts() throws IOException {
+        List<Tuple> items = new ArrayList<Tuple>();
+        for (int i = 0; i < 30; i++) {
+            items.add(item("a"));
+        }
+        for (int i = 0; i < 20; i++) {
+            items.add(item("b"));
+        }
+        for (int i = 0; i < 10; i++) {
+            items.add(item("c"));
+        }
+        List<Tuple> counts = toList(runAlgebraic(new TopK.Initial("2", "flatten"),
+                new TopKCounts.Intermed("2", "flatten"), new TopKCounts.Final("2", "flatten"), items, 3));
+        assertEquals(2, counts.size());
+        // The partial summaries are small enough to be exact
+        assertEquals(tupleFactory.newTuple(Arrays.<Object>asList("a", 30L)), counts.get(0));
+        assertEquals(tupleFactory.newTuple(Arrays.<Object>asList("b", 20L)), counts.get(1));
+
+        counts = toList(new TopKCounts.Final("1").exec(wrap(bag(Arrays.asList(
+                SpaceSavingSummary.count(bag(items)))))));
+        assertEquals(item("a"), counts.get(0).get(0));
+        assertEquals(30L, counts.get(0).get(1));
+    }
+
+    @Test
+    public void testMergeErrorBounds() throws IOException {
+        List<Tuple> items = stream(20000);
+        int capacity = 20;
+        SpaceSavingSummary summary = new SpaceSavingSummary(capacity);
+        for (int start = 0; start < items.size(); start += 1000) {
+            summary.merge(SpaceSavingSummary.count(bag(items.subList(start, start + 1000))));
+        }
+        assertEquals(capacity, summary.size());
+        assertTrue(summary.getBound() > 0);
+
+        for (Tuple counter : summary.top(capacity)) {
+            long actual = 0;
+            for (Tuple item : items) {
+                if (item.equals(counter.get(0))) {
+                    actual++;
+                }
+            }
+            long count = (Long) counter.get(1);
+            long error = (Long) counter.get(2);
+            assertTrue(counter + " overestimates " + actual, count >= actual);
+            assertTrue(counter + " underestimates " + actual, count - error <= actual);
+        }
+    }
+
+    @Test
+    public void testAccumulatorCountsBagItems() throws IOException {
+        TopKCounts topK = new TopKCounts(1, "flatten");
+        List<Tuple> first = new ArrayList<Tuple>();
+        first.add(item("a"));
+        first.add(item("b"));
+        List<Tuple> second = new ArrayList<Tuple>();
+        second.add(item("b"));
+        topK.accumulate(wrap(bag(first)));
+        topK.accumulate(wrap(bag(second)));
+        Iterator<Tuple> top = topK.getValue().iterator();
+        Tuple counts = top.next();
+        assertEquals("b", counts.get(0));
+        assertEquals(2L, counts.get(1));
+    }
+}